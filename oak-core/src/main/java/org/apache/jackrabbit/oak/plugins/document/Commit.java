@@ -365,7 +365,13 @@ public class Commit {
                 // again when the _revisions entry is set at the end
                 NodeDocument.setCommitRoot(op, revision, commitRootDepth);
                 opLog.add(op);
-                createOrUpdateNode(store, op);
+            }
+            // apply all changes with as few round trips as possible
+            // and check for conflicts afterwards
+            List<NodeDocument> oldDocs = store.createOrUpdate(NODES, changedNodes);
+            for (int i = 0; i < changedNodes.size(); i++) {
+                checkConflicts(changedNodes.get(i), oldDocs.get(i));
+                checkSplitCandidate(oldDocs.get(i));
             }
             // finally write the commit root, unless it was already written
             // with added nodes (the commit root might be written twice,
@@ -20,6 +20,7 @@ import java.util.Collections;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Set;
+import java.util.SortedMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.annotation.CheckForNull;
@@ -27,6 +28,7 @@ import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
 
 import org.apache.jackrabbit.oak.cache.CacheValue;
+import org.apache.jackrabbit.oak.plugins.document.util.RevisionSortedMap;
 import org.apache.jackrabbit.oak.plugins.document.util.Utils;
 
 import com.google.common.collect.Maps;
@@ -190,7 +192,11 @@ public class Document implements CacheValue {
                         childMap, entry.getKey().toString(), level + 1));
             }
         }
-        if (map instanceof NavigableMap) {
+        if (map instanceof SortedMap
+                && RevisionSortedMap.canCopy((SortedMap<Object, Object>) map)) {
+            // revision maps are kept in a compact immutable representation
+            return RevisionSortedMap.copyOf((SortedMap<Object, Object>) map);
+        } else if (map instanceof NavigableMap) {
             return Maps.unmodifiableNavigableMap((NavigableMap<Object, Object>) map);
         } else {
             return Collections.unmodifiableMap(map);
@@ -16,6 +16,7 @@
  */
 package org.apache.jackrabbit.oak.plugins.document;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
@@ -51,9 +52,14 @@ import org.apache.jackrabbit.oak.spi.state.NodeStateDiff;
 import org.apache.jackrabbit.oak.util.PerfLogger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.base.Charsets;
 import com.google.common.base.Function;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
 
 import static com.google.common.base.Preconditions.checkNotNull;
 import static org.apache.jackrabbit.oak.plugins.document.util.Utils.estimateMemoryUsage;
@@ -591,6 +597,53 @@ public class DocumentNodeState extends AbstractNodeState implements CacheValue {
         return state;
     }
 
+    /**
+     * Returns this node state in the binary format of the persistent cache.
+     * Revisions are stored as variable size numbers and the property values
+     * as length prefixed strings, in the same JSON representation as with
+     * {@link #asString()}.
+     *
+     * @return the serialized node state
+     */
+    public byte[] asBytes() {
+        ByteArrayDataOutput out = ByteStreams.newDataOutput();
+        writeString(out, path);
+        writeRevision(out, rev);
+        out.writeByte((hasChildren ? 1 : 0) | (lastRevision != null ? 2 : 0));
+        if (lastRevision != null) {
+            writeRevision(out, lastRevision);
+        }
+        writeVarInt(out, properties.size());
+        for (String k : properties.keySet()) {
+            writeString(out, k);
+            writeString(out, getPropertyAsString(k));
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Reads a node state in the format written by {@link #asBytes()},
+     * starting at the current position of the given buffer.
+     *
+     * @param store the node store
+     * @param buff the buffer
+     * @return the node state
+     */
+    public static DocumentNodeState fromBytes(DocumentNodeStore store, ByteBuffer buff) {
+        String path = readString(buff);
+        Revision rev = readRevision(buff);
+        int flags = buff.get();
+        DocumentNodeState state = new DocumentNodeState(store, path, rev, (flags & 1) != 0);
+        if ((flags & 2) != 0) {
+            state.setLastRevision(readRevision(buff));
+        }
+        for (int i = readVarInt(buff); i > 0; i--) {
+            String k = NAMES.intern(readString(buff));
+            state.setProperty(k, readString(buff));
+        }
+        return state;
+    }
+
     /**
      * A list of children for a node.
      */
@@ -667,6 +720,57 @@ public class DocumentNodeState extends AbstractNodeState implements CacheValue {
             }
             return children;            
         }
+
+        /**
+         * Returns the child names in the binary format of the persistent
+         * cache. As the names are sorted, each name is stored as the length
+         * of the prefix it shares with the previous name plus the remaining
+         * characters.
+         *
+         * @return the serialized child names
+         */
+        public byte[] asBytes() {
+            ByteArrayDataOutput out = ByteStreams.newDataOutput();
+            out.writeBoolean(hasMore);
+            writeVarInt(out, children.size());
+            String previous = "";
+            for (String c : children) {
+                int common = 0;
+                int max = Math.min(previous.length(), c.length());
+                while (common < max && previous.charAt(common) == c.charAt(common)) {
+                    common++;
+                }
+                writeVarInt(out, common);
+                writeString(out, c.substring(common));
+                previous = c;
+            }
+            return out.toByteArray();
+        }
+
+        /**
+         * Reads child names in the format written by {@link #asBytes()},
+         * starting at the current position of the given buffer.
+         *
+         * @param buff the buffer
+         * @return the child names
+         */
+        public static Children fromBytes(ByteBuffer buff) {
+            Children children = new Children();
+            children.hasMore = buff.get() != 0;
+            int size = readVarInt(buff);
+            children.children.ensureCapacity(size);
+            String previous = "";
+            for (int i = 0; i < size; i++) {
+                int common = readVarInt(buff);
+                String c = readString(buff);
+                if (common > 0) {
+                    c = previous.substring(0, common) + c;
+                }
+                children.children.add(c);
+                previous = c;
+            }
+            return children;
+        }
         
     }
 
@@ -725,4 +829,82 @@ public class DocumentNodeState extends AbstractNodeState implements CacheValue {
         }
     }
 
+    //-------------------------< binary format >--------------------------------
+
+    /**
+     * Property names are few and occur in many nodes, so the names read from
+     * the persistent cache share the same instances.
+     */
+    private static final Interner<String> NAMES = Interners.newWeakInterner();
+
+    private static void writeRevision(ByteArrayDataOutput out, Revision r) {
+        writeVarLong(out, r.getTimestamp());
+        writeVarInt(out, r.getCounter());
+        writeVarInt(out, r.getClusterId() << 1 | (r.isBranch() ? 1 : 0));
+    }
+
+    private static Revision readRevision(ByteBuffer buff) {
+        long timestamp = readVarLong(buff);
+        int counter = readVarInt(buff);
+        int clusterId = readVarInt(buff);
+        return new Revision(timestamp, counter, clusterId >>> 1, (clusterId & 1) != 0);
+    }
+
+    private static void writeString(ByteArrayDataOutput out, String s) {
+        byte[] bytes = s.getBytes(Charsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buff) {
+        int len = readVarInt(buff);
+        String s;
+        if (buff.hasArray()) {
+            s = new String(buff.array(), buff.arrayOffset() + buff.position(), len, Charsets.UTF_8);
+            buff.position(buff.position() + len);
+        } else {
+            byte[] bytes = new byte[len];
+            buff.get(bytes);
+            s = new String(bytes, Charsets.UTF_8);
+        }
+        return s;
+    }
+
+    private static void writeVarInt(ByteArrayDataOutput out, int x) {
+        while ((x & ~0x7f) != 0) {
+            out.writeByte(0x80 | (x & 0x7f));
+            x >>>= 7;
+        }
+        out.writeByte(x);
+    }
+
+    private static int readVarInt(ByteBuffer buff) {
+        int x = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = buff.get();
+            x |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return x;
+            }
+        }
+    }
+
+    private static void writeVarLong(ByteArrayDataOutput out, long x) {
+        while ((x & ~0x7fL) != 0) {
+            out.writeByte((int) (0x80 | (x & 0x7f)));
+            x >>>= 7;
+        }
+        out.writeByte((int) x);
+    }
+
+    private static long readVarLong(ByteBuffer buff) {
+        long x = 0;
+        for (int shift = 0;; shift += 7) {
+            int b = buff.get();
+            x |= (long) (b & 0x7f) << shift;
+            if (b >= 0) {
+                return x;
+            }
+        }
+    }
 }
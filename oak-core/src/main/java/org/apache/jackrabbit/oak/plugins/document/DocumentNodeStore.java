@@ -22,6 +22,7 @@ import static com.google.common.collect.Iterables.filter;
 import static com.google.common.collect.Iterables.toArray;
 import static com.google.common.collect.Iterables.transform;
 import static java.util.Collections.singletonList;
+import static java.util.concurrent.Executors.newFixedThreadPool;
 import static org.apache.jackrabbit.oak.api.CommitFailedException.MERGE;
 import static org.apache.jackrabbit.oak.commons.PathUtils.concat;
 import static org.apache.jackrabbit.oak.plugins.document.Collection.JOURNAL;
@@ -44,6 +45,7 @@ import java.text.SimpleDateFormat;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.NavigableSet;
@@ -55,6 +57,7 @@ import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -73,6 +76,9 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.UncheckedExecutionException;
 
 import org.apache.jackrabbit.oak.api.PropertyState;
@@ -159,6 +165,19 @@ public final class DocumentNodeStore
      */
     static final int REMEMBER_REVISION_ORDER_MILLIS = 60 * 60 * 1000;
 
+    /**
+     * The number of threads reading external changes from the journal and
+     * invalidating the document cache in a background read. With one thread,
+     * all of this is done on the background read thread. The default is four.
+     */
+    static final int BACKGROUND_READ_THREADS =
+            Integer.getInteger("oak.documentMK.backgroundReadThreads", 4);
+
+    /**
+     * The number of paths per cache invalidation task of a background read.
+     */
+    static final int INVALIDATE_PARTITION_SIZE = 1000;
+
     /**
      * The document store (might be used by multiple node stores).
      */
@@ -278,6 +297,18 @@ public final class DocumentNodeStore
      */
     private final Object backgroundReadMonitor = new Object();
 
+    /**
+     * Executor for the tasks of a background read. Journal entries are read
+     * per cluster node and the document cache is invalidated per partition of
+     * the changed paths.
+     */
+    private final ListeningExecutorService backgroundReadExecutor;
+
+    /**
+     * Statistics of the most recent background read.
+     */
+    private volatile BackgroundReadStats lastBackgroundReadStats;
+
     private Thread backgroundUpdateThread;
 
     /**
@@ -503,6 +534,7 @@ public final class DocumentNodeStore
         };
         String threadNamePostfix = "(" + clusterId + ")";
         batchCommitQueue = new BatchCommitQueue(store, revisionComparator);
+        backgroundReadExecutor = createBackgroundReadExecutor(threadNamePostfix);
         backgroundReadThread = new Thread(
                 new BackgroundReadOperation(this, isDisposed),
                 "DocumentNodeStore background read thread " + threadNamePostfix);
@@ -551,6 +583,7 @@ public final class DocumentNodeStore
         } catch (InterruptedException e) {
             // ignore
         }
+        backgroundReadExecutor.shutdown();
         try {
             backgroundUpdateThread.join();
         } catch (InterruptedException e) {
@@ -1702,6 +1735,7 @@ public final class DocumentNodeStore
             // pull in changes from other cluster nodes
             BackgroundReadStats readStats = backgroundRead(true);
             long readTime = clock.getTime() - start;
+            lastBackgroundReadStats = readStats;
             String msg = "Background read operations stats (read:{} {})";
             if (clock.getTime() - start > TimeUnit.SECONDS.toMillis(10)) {
                 // log as info if it took more than 10 seconds
@@ -1786,7 +1820,8 @@ public final class DocumentNodeStore
         Revision otherSeen = Revision.newRevision(0);
 
         StringSort externalSort = JournalEntry.newSorter();
-        
+        List<ListenableFuture<StringSort>> journalReads = Lists.newArrayList();
+
         Map<Revision, Revision> externalChanges = Maps.newHashMap();
         for (Map.Entry<Integer, Revision> e : lastRevMap.entrySet()) {
             int machineId = e.getKey();
@@ -1808,14 +1843,9 @@ public final class DocumentNodeStore
                     externalChanges.put(r, otherSeen);
                 }
                 // collect external changes
-                if (last != null && externalSort != null) {
-                    // add changes for this particular clusterId to the externalSort
-                    try {
-                        fillExternalChanges(externalSort, last, r, store);
-                    } catch (IOException e1) {
-                        LOG.error("backgroundRead: Exception while reading external changes from journal: "+e1, e1);
-                        externalSort = null;
-                    }
+                if (last != null) {
+                    // read changes for this particular clusterId
+                    journalReads.add(readExternalChanges(last, r));
                 }
             }
         }
@@ -1823,6 +1853,11 @@ public final class DocumentNodeStore
         stats.readHead = clock.getTime() - time;
         time = clock.getTime();
 
+        // add the changes of all cluster nodes to the externalSort
+        externalSort = addExternalChanges(externalSort, journalReads);
+        stats.readJournal = clock.getTime() - time;
+        time = clock.getTime();
+
         if (!externalChanges.isEmpty()) {
             // invalidate caches
             if (externalSort == null) {
@@ -1832,7 +1867,7 @@ public final class DocumentNodeStore
             } else {
                 try {
                     externalSort.sort();
-                    stats.cacheStats = store.invalidateCache(pathToId(externalSort));
+                    stats.cacheStats = invalidateDocumentCache(externalSort);
                     // OAK-3002: only invalidate affected items (using journal)
                     long origSize = docChildrenCache.size();
                     if (origSize == 0) {
@@ -1905,9 +1940,167 @@ public final class DocumentNodeStore
         return stats;
     }
 
+    /**
+     * Reads the changes of a cluster node from the journal on the
+     * {@link #backgroundReadExecutor}.
+     *
+     * @param from the lower bound of the revision range (exclusive).
+     * @param to the upper bound of the revision range (inclusive).
+     * @return the sorted paths of the changes.
+     */
+    private ListenableFuture<StringSort> readExternalChanges(final Revision from,
+                                                             final Revision to) {
+        return backgroundReadExecutor.submit(new Callable<StringSort>() {
+            @Override
+            public StringSort call() throws IOException {
+                StringSort changes = JournalEntry.newSorter();
+                boolean success = false;
+                try {
+                    fillExternalChanges(changes, from, to, store);
+                    changes.sort();
+                    success = true;
+                } finally {
+                    if (!success) {
+                        changes.close();
+                    }
+                }
+                return changes;
+            }
+        });
+    }
+
+    /**
+     * Adds the changes read from the journal to the {@code externalSort} and
+     * closes the sorters of the individual journal reads.
+     *
+     * @param externalSort the sorter for all external changes.
+     * @param journalReads the pending journal reads.
+     * @return the {@code externalSort}, or {@code null} if reading the
+     *          changes failed.
+     */
+    @CheckForNull
+    private static StringSort addExternalChanges(@Nonnull StringSort externalSort,
+                                                 @Nonnull List<ListenableFuture<StringSort>> journalReads) {
+        StringSort result = externalSort;
+        for (ListenableFuture<StringSort> read : journalReads) {
+            StringSort changes = null;
+            try {
+                changes = read.get();
+                if (result != null) {
+                    for (String path : changes) {
+                        result.add(path);
+                    }
+                }
+            } catch (Exception e) {
+                LOG.error("backgroundRead: Exception while reading external changes from journal: " + e, e);
+                result = null;
+            } finally {
+                if (changes != null) {
+                    try {
+                        changes.close();
+                    } catch (IOException e) {
+                        LOG.debug("backgroundRead: Exception while closing sorter", e);
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Invalidates the documents with the given paths in the document store
+     * cache. If there are more paths than fit into a single partition, the
+     * sorted paths are partitioned and the partitions are invalidated
+     * concurrently on the {@link #backgroundReadExecutor}.
+     *
+     * @param paths the sorted paths of the changed documents.
+     * @return cache invalidation statistics or {@code null} if none are
+     *          available.
+     */
+    @CheckForNull
+    private CacheInvalidationStats invalidateDocumentCache(@Nonnull StringSort paths)
+            throws InterruptedException, ExecutionException {
+        if (paths.getSize() <= INVALIDATE_PARTITION_SIZE) {
+            return store.invalidateCache(pathToId(paths));
+        }
+        List<CacheInvalidationStats> stats = Lists.newArrayList();
+        LinkedList<ListenableFuture<CacheInvalidationStats>> running = Lists.newLinkedList();
+        for (final List<String> partition : Iterables.partition(paths, INVALIDATE_PARTITION_SIZE)) {
+            // limit the number of partitions held in memory
+            if (running.size() >= 2 * BACKGROUND_READ_THREADS) {
+                addIfNotNull(stats, running.removeFirst().get());
+            }
+            running.add(backgroundReadExecutor.submit(new Callable<CacheInvalidationStats>() {
+                @Override
+                public CacheInvalidationStats call() {
+                    return store.invalidateCache(pathToId(partition));
+                }
+            }));
+        }
+        for (ListenableFuture<CacheInvalidationStats> f : running) {
+            addIfNotNull(stats, f.get());
+        }
+        if (stats.isEmpty()) {
+            return null;
+        } else if (stats.size() == 1) {
+            return stats.get(0);
+        }
+        return new CompositeInvalidationStats(stats);
+    }
+
+    private static <T> void addIfNotNull(List<T> list, T element) {
+        if (element != null) {
+            list.add(element);
+        }
+    }
+
+    private static ListeningExecutorService createBackgroundReadExecutor(
+            final String threadNamePostfix) {
+        if (BACKGROUND_READ_THREADS <= 1) {
+            return MoreExecutors.sameThreadExecutor();
+        }
+        return MoreExecutors.listeningDecorator(
+                newFixedThreadPool(BACKGROUND_READ_THREADS,
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r,
+                                "DocumentNodeStore background read worker "
+                                        + count.incrementAndGet() + " " + threadNamePostfix);
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }));
+    }
+
+    /**
+     * Cache invalidation statistics of multiple partitions.
+     */
+    private static final class CompositeInvalidationStats
+            implements CacheInvalidationStats {
+
+        private final List<CacheInvalidationStats> stats;
+
+        CompositeInvalidationStats(List<CacheInvalidationStats> stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public String summaryReport() {
+            StringBuilder sb = new StringBuilder();
+            sb.append(stats.size()).append(" partitions");
+            for (CacheInvalidationStats s : stats) {
+                sb.append("; ").append(s.summaryReport());
+            }
+            return sb.toString();
+        }
+    }
+
     private static class BackgroundReadStats {
         CacheInvalidationStats cacheStats;
         long readHead;
+        long readJournal;
         long cacheInvalidationTime;
         long populateDiffCache;
         long lock;
@@ -1923,6 +2116,7 @@ public final class DocumentNodeStore
             return  "ReadStats{" +
                     "cacheStats:" + cacheStatsMsg +
                     ", head:" + readHead +
+                    ", journal:" + readJournal +
                     ", cache:" + cacheInvalidationTime +
                     ", diff: " + populateDiffCache +
                     ", lock:" + lock +
@@ -2525,6 +2719,11 @@ public final class DocumentNodeStore
         public long determineServerTimeDifferenceMillis() {
             return store.determineServerTimeDifferenceMillis();
         }
+
+        @Override
+        public String getBackgroundReadStats() {
+            return String.valueOf(lastBackgroundReadStats);
+        }
     }
 
     static abstract class NodeStoreTask implements Runnable {
@@ -51,4 +51,13 @@ public interface DocumentNodeStoreMBean {
      * @throws UnsupportedOperationException if this DocumentStore does not support this method
      */
     long determineServerTimeDifferenceMillis();
+
+    /**
+     * @return the time in milliseconds spent in each phase of the most
+     * recent background read of external changes: reading the head revision,
+     * reading the journal, invalidating the caches, acquiring the lock,
+     * populating the diff cache, dispatching the changes and purging the
+     * revision comparator.
+     */
+    String getBackgroundReadStats();
 }
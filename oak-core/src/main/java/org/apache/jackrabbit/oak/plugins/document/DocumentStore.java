@@ -211,6 +211,25 @@ public interface DocumentStore {
     @CheckForNull
     <T extends Document> T createOrUpdate(Collection<T> collection, UpdateOp update);
 
+    /**
+     * Create or update multiple documents. This is the batch variant of
+     * {@link #createOrUpdate(Collection, UpdateOp)} and allows an
+     * implementation to send all operations to the backend with fewer round
+     * trips. An implementation does not have to guarantee an atomic update of
+     * all the documents described in the {@code updateOps}. If this method
+     * fails with an exception, then only some of the documents may have been
+     * created or updated. The returned documents are immutable.
+     *
+     * @param <T> the document type
+     * @param collection the collection
+     * @param updateOps the update operations
+     * @return the old documents in the same order as the {@code updateOps},
+     *          with a <code>null</code> element for each document that didn't
+     *          exist before.
+     */
+    @Nonnull
+    <T extends Document> List<T> createOrUpdate(Collection<T> collection, List<UpdateOp> updateOps);
+
     /**
      * Performs a conditional update (e.g. using
      * {@link UpdateOp.Condition.Type#EXISTS} and only updates the
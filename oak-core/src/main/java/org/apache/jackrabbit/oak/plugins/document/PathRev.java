@@ -39,6 +39,16 @@ public final class PathRev implements CacheValue {
         this.revision = checkNotNull(revision);
     }
 
+    @Nonnull
+    public String getPath() {
+        return path;
+    }
+
+    @Nonnull
+    public Revision getRevision() {
+        return revision;
+    }
+
     @Override
     public int getMemory() {
         return 24                           // shallow size
@@ -68,6 +68,12 @@ public class Revision {
     /** Only set for testing */
     private static Clock clock;
 
+    /**
+     * Cache of recently parsed revisions, see {@link #fromString(String)}.
+     * The size must be a power of two.
+     */
+    private static final Revision[] CACHE = new Revision[16 * 1024];
+
     /**
      * <b>
      * Only to be used for testing.
@@ -226,16 +232,28 @@ public class Revision {
         return r1.getTimestamp() - r2.getTimestamp();
     }
 
+    /**
+     * Parses a revision from its string representation. The string is parsed
+     * without creating intermediate objects and recently parsed revisions
+     * are returned from a cache, so that the same revision read from many
+     * documents is only kept once in memory.
+     *
+     * @param rev the string representation of a revision.
+     * @return the revision.
+     * @throws IllegalArgumentException if the string is not a valid revision.
+     */
     public static Revision fromString(String rev) {
+        int len = rev.length();
+        int i = 0;
         boolean isBranch = false;
-        if (rev.startsWith("b")) {
+        if (i < len && rev.charAt(i) == 'b') {
             isBranch = true;
-            rev = rev.substring(1);
+            i++;
         }
-        if (!rev.startsWith("r")) {
+        if (i >= len || rev.charAt(i) != 'r') {
             throw new IllegalArgumentException(rev);
         }
-        int idxCount = rev.indexOf('-');
+        int idxCount = rev.indexOf('-', i + 1);
         if (idxCount < 0) {
             throw new IllegalArgumentException(rev);
         }
@@ -243,13 +261,56 @@ public class Revision {
         if (idxClusterId < 0) {
             throw new IllegalArgumentException(rev);
         }
-        String t = rev.substring(1, idxCount);
-        long timestamp = Long.parseLong(t, 16);
-        t = rev.substring(idxCount + 1, idxClusterId);
-        int c = Integer.parseInt(t, 16);
-        t = rev.substring(idxClusterId + 1);
-        int clusterId = Integer.parseInt(t, 16);
-        return new Revision(timestamp, c, clusterId, isBranch);
+        long timestamp = parseHex(rev, i + 1, idxCount, Long.MAX_VALUE);
+        int c = (int) parseHex(rev, idxCount + 1, idxClusterId, Integer.MAX_VALUE);
+        int clusterId = (int) parseHex(rev, idxClusterId + 1, len, Integer.MAX_VALUE);
+        return intern(timestamp, c, clusterId, isBranch);
+    }
+
+    /**
+     * Parses the hexadecimal number between {@code start} (inclusive) and
+     * {@code end} (exclusive) of the given string.
+     *
+     * @throws NumberFormatException if the number is not valid or larger
+     *          than {@code max}.
+     */
+    private static long parseHex(String s, int start, int end, long max) {
+        if (start >= end) {
+            throw new NumberFormatException(s);
+        }
+        long x = 0;
+        for (int i = start; i < end; i++) {
+            int d = Character.digit(s.charAt(i), 16);
+            if (d < 0 || x > (max - d) >>> 4) {
+                throw new NumberFormatException(s);
+            }
+            x = (x << 4) + d;
+        }
+        return x;
+    }
+
+    /**
+     * Returns a cached revision with the given values, or a new revision
+     * that replaces the cached entry. Revisions are immutable, so
+     * unsynchronized access to the cache is harmless.
+     */
+    private static Revision intern(long timestamp, int counter,
+                                   int clusterId, boolean branch) {
+        int hash = (int) (timestamp >>> 32) ^ (int) timestamp ^ counter ^ clusterId;
+        hash ^= hash >>> 16;
+        hash *= 0x45d9f3b;
+        hash ^= hash >>> 16;
+        int index = hash & (CACHE.length - 1);
+        Revision r = CACHE[index];
+        if (r == null
+                || r.timestamp != timestamp
+                || r.counter != counter
+                || r.clusterId != clusterId
+                || r.branch != branch) {
+            r = new Revision(timestamp, counter, clusterId, branch);
+            CACHE[index] = r;
+        }
+        return r;
     }
 
     @Override
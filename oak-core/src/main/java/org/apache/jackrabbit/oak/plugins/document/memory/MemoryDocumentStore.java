@@ -216,6 +216,16 @@ public class MemoryDocumentStore implements DocumentStore {
         return internalCreateOrUpdate(collection, update, false);
     }
 
+    @Nonnull
+    @Override
+    public <T extends Document> List<T> createOrUpdate(Collection<T> collection, List<UpdateOp> updateOps) {
+        List<T> result = new ArrayList<T>(updateOps.size());
+        for (UpdateOp update : updateOps) {
+            result.add(createOrUpdate(collection, update));
+        }
+        return result;
+    }
+
     @Override
     public <T extends Document> T findAndUpdate(Collection<T> collection, UpdateOp update) {
         return internalCreateOrUpdate(collection, update, true);
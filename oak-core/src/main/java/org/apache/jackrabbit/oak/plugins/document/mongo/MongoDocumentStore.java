@@ -85,6 +85,11 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.Striped;
 import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteError;
+import com.mongodb.BulkWriteException;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.BulkWriteUpsert;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
 import com.mongodb.DBCursor;
@@ -858,6 +863,172 @@ public class MongoDocumentStore implements DocumentStore {
         return doc;
     }
 
+    /**
+     * Applies the update operations with a single unordered bulk write.
+     * Each update is conditional on the modCount of the document as read
+     * from the cache or with a single query up front, which means the
+     * previous document is known for each update that was applied. The
+     * locks of all documents are held while they are read, written and
+     * cached. An update that fails, because the document was modified
+     * concurrently or has conditions, is applied with a regular
+     * findAndModify afterwards.
+     */
+    @Nonnull
+    @Override
+    public <T extends Document> List<T> createOrUpdate(Collection<T> collection,
+                                                       List<UpdateOp> updateOps)
+            throws DocumentStoreException {
+        log("createOrUpdate", updateOps);
+        DBCollection dbCollection = getDBCollection(collection);
+        List<UpdateOp> ops = new ArrayList<UpdateOp>(updateOps.size());
+        List<T> oldDocs = new ArrayList<T>(updateOps.size());
+        boolean[] fallback = new boolean[updateOps.size()];
+        List<String> keys = new ArrayList<String>(updateOps.size());
+        for (UpdateOp updateOp : updateOps) {
+            keys.add(updateOp.getId());
+        }
+        final long start = PERFLOG.start();
+        try {
+            List<Lock> acquired = acquire(keys, collection);
+            try {
+                applyBulk(collection, dbCollection, updateOps, ops, oldDocs, fallback);
+            } finally {
+                unlock(acquired);
+            }
+
+            // findAndModify acquires the lock of the document itself
+            for (int i = 0; i < ops.size(); i++) {
+                if (fallback[i]) {
+                    oldDocs.set(i, findAndModify(collection, updateOps.get(i), true, false));
+                }
+            }
+            log("createOrUpdate returns ", oldDocs);
+            return oldDocs;
+        } catch (Exception e) {
+            throw DocumentStoreException.convert(e);
+        } finally {
+            PERFLOG.end(start, 1, "createOrUpdate [{}]", updateOps.size());
+        }
+    }
+
+    /**
+     * Reads the old documents, sends the bulk write and updates the cache
+     * for the given operations. The caller must hold the locks of all
+     * documents. The operations that could not be applied are marked in
+     * {@code fallback}.
+     */
+    private <T extends Document> void applyBulk(Collection<T> collection,
+                                                DBCollection dbCollection,
+                                                List<UpdateOp> updateOps,
+                                                List<UpdateOp> ops,
+                                                List<T> oldDocs,
+                                                boolean[] fallback) {
+        // old documents from the cache
+        List<String> uncached = new ArrayList<String>();
+        for (UpdateOp updateOp : updateOps) {
+            T oldDoc = null;
+            if (collection == Collection.NODES) {
+                NodeDocument cached = nodesCache.getIfPresent(
+                        new StringValue(updateOp.getId()));
+                if (cached != null && cached != NodeDocument.NULL) {
+                    @SuppressWarnings("unchecked")
+                    T doc = (T) cached;
+                    oldDoc = doc;
+                }
+            }
+            if (oldDoc == null) {
+                uncached.add(updateOp.getId());
+            }
+            oldDocs.add(oldDoc);
+        }
+
+        // read all other old documents with as few queries as possible
+        Map<String, T> loaded = Maps.newHashMap();
+        for (List<String> keys : Lists.partition(uncached, IN_CLAUSE_BATCH_SIZE)) {
+            DBCursor cursor = dbCollection.find(
+                    QueryBuilder.start(Document.ID).in(keys).get());
+            cursor.setReadPreference(ReadPreference.primary());
+            try {
+                while (cursor.hasNext()) {
+                    T doc = convertFromDBObject(collection, cursor.next());
+                    if (doc != null) {
+                        doc.seal();
+                        loaded.put(doc.getId(), doc);
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        }
+
+        BulkWriteOperation bulk = dbCollection.initializeUnorderedBulkOperation();
+        List<Integer> bulkIndexes = new ArrayList<Integer>();
+        for (int i = 0; i < updateOps.size(); i++) {
+            // make sure we don't modify the original updateOp
+            UpdateOp updateOp = updateOps.get(i).copy();
+            ops.add(updateOp);
+            T oldDoc = oldDocs.get(i);
+            if (oldDoc == null) {
+                oldDoc = loaded.get(updateOp.getId());
+                oldDocs.set(i, oldDoc);
+            }
+            Number modCount = oldDoc == null ? null : oldDoc.getModCount();
+            if (!updateOp.getConditions().isEmpty()
+                    || (oldDoc != null && modCount == null)) {
+                // an upsert would copy the conditions into a
+                // new document
+                fallback[i] = true;
+                continue;
+            }
+            QueryBuilder query = getByKeyQuery(updateOp.getId());
+            if (modCount != null) {
+                query.and(Document.MOD_COUNT).is(modCount);
+            } else {
+                query.and(Document.MOD_COUNT).exists(false);
+            }
+            // a document modified concurrently fails with
+            // a duplicate key error, a missing one is inserted
+            bulk.find(query.get()).upsert().updateOne(createUpdate(updateOp));
+            bulkIndexes.add(i);
+        }
+
+        boolean[] inserted = new boolean[updateOps.size()];
+        if (!bulkIndexes.isEmpty()) {
+            BulkWriteResult result;
+            try {
+                result = bulk.execute();
+            } catch (BulkWriteException e) {
+                for (BulkWriteError error : e.getWriteErrors()) {
+                    fallback[bulkIndexes.get(error.getIndex())] = true;
+                }
+                result = e.getWriteResult();
+            }
+            for (BulkWriteUpsert upsert : result.getUpserts()) {
+                inserted[bulkIndexes.get(upsert.getIndex())] = true;
+            }
+        }
+
+        for (int i = 0; i < ops.size(); i++) {
+            UpdateOp updateOp = ops.get(i);
+            T oldDoc = oldDocs.get(i);
+            if (fallback[i] || collection != Collection.NODES) {
+                continue;
+            }
+            if (inserted[i]) {
+                NodeDocument doc = (NodeDocument) collection.newDocument(this);
+                UpdateUtils.applyChanges(doc, updateOp, comparator);
+                addToCache(doc);
+            } else if (oldDoc != null) {
+                // the update was conditional on the modCount of oldDoc
+                putToCache(collection, oldDoc, updateOp);
+            } else {
+                // matched a document without modCount, which was
+                // created after it was read
+                nodesCache.invalidate(new StringValue(updateOp.getId()));
+            }
+        }
+    }
+
     @Override
     public <T extends Document> T findAndUpdate(Collection<T> collection, UpdateOp update)
             throws DocumentStoreException {
@@ -1402,6 +1573,42 @@ public class MongoDocumentStore implements DocumentStore {
         }
     }
 
+    /**
+     * Acquires the locks for all given keys. The locks are acquired in the
+     * order of their stripes, which avoids deadlocks between concurrent
+     * callers of this method.
+     *
+     * @param keys the keys.
+     * @param collection the collection for which the locks are acquired.
+     * @return the acquired locks, to be released with {@link #unlock(List)}.
+     */
+    private List<Lock> acquire(List<String> keys, Collection<?> collection) {
+        List<Lock> acquired = new ArrayList<Lock>();
+        if (collection != Collection.NODES) {
+            return acquired;
+        }
+        List<String> parentKeys = new ArrayList<String>(keys.size());
+        for (String key : keys) {
+            parentKeys.add(getParentId(key));
+        }
+        for (ReadWriteLock parentLock : parentLocks.bulkGet(parentKeys)) {
+            Lock lock = parentLock.readLock();
+            lock.lock();
+            acquired.add(lock);
+        }
+        for (Lock lock : locks.bulkGet(keys)) {
+            lock.lock();
+            acquired.add(lock);
+        }
+        return acquired;
+    }
+
+    private static void unlock(List<Lock> acquired) {
+        for (Lock lock : Lists.reverse(acquired)) {
+            lock.unlock();
+        }
+    }
+
     /**
      * Acquires an exclusive lock on the given parent key. Use this method to
      * block cache access for child keys of the given parent key.
@@ -19,6 +19,9 @@ package org.apache.jackrabbit.oak.plugins.document.persistentCache;
 import java.nio.ByteBuffer;
 
 import org.apache.jackrabbit.oak.cache.CacheValue;
+import org.apache.jackrabbit.oak.plugins.document.PathRev;
+import org.apache.jackrabbit.oak.plugins.document.Revision;
+import org.h2.mvstore.DataUtils;
 import org.h2.mvstore.WriteBuffer;
 import org.h2.mvstore.type.DataType;
 import org.h2.mvstore.type.StringDataType;
@@ -26,9 +29,23 @@ import org.h2.mvstore.type.StringDataType;
 public class KeyDataType implements DataType {
     
     private final CacheType type;
+
+    /**
+     * Whether the keys are {@link PathRev} instances stored in the binary
+     * format: the path followed by the revision as variable size numbers.
+     * Within a page, a path that is equal to the one of the previous key
+     * is not stored again and the same instance is used when reading.
+     */
+    private final boolean binary;
     
     public KeyDataType(CacheType type) {
+        this(type, false);
+    }
+
+    public KeyDataType(CacheType type, boolean binary) {
         this.type = type;
+        this.binary = binary && (type == CacheType.NODE
+                || type == CacheType.CHILDREN || type == CacheType.DIFF);
     }
 
     @Override
@@ -43,28 +60,72 @@ public class KeyDataType implements DataType {
 
     @Override
     public void write(WriteBuffer buff, Object obj) {
+        if (binary) {
+            writePathRev(buff, (PathRev) obj, null);
+            return;
+        }
         String s = type.keyToString(obj);
         StringDataType.INSTANCE.write(buff, s);
     }
 
     @Override
     public Object read(ByteBuffer buff) {
+        if (binary) {
+            return readPathRev(buff, null);
+        }
         String s = StringDataType.INSTANCE.read(buff);
         return type.keyFromString(s);
     }
 
     @Override
     public void write(WriteBuffer buff, Object[] obj, int len, boolean key) {
+        String previousPath = null;
         for (int i = 0; i < len; i++) {
-            write(buff, obj[i]);
+            if (binary) {
+                PathRev pr = (PathRev) obj[i];
+                writePathRev(buff, pr, previousPath);
+                previousPath = pr.getPath();
+            } else {
+                write(buff, obj[i]);
+            }
         }
     }
 
     @Override
     public void read(ByteBuffer buff, Object[] obj, int len, boolean key) {
+        String previousPath = null;
         for (int i = 0; i < len; i++) {
-            obj[i] = read(buff);
+            if (binary) {
+                PathRev pr = readPathRev(buff, previousPath);
+                previousPath = pr.getPath();
+                obj[i] = pr;
+            } else {
+                obj[i] = read(buff);
+            }
         }
     }
+
+    private static void writePathRev(WriteBuffer buff, PathRev key, String previousPath) {
+        String path = key.getPath();
+        if (path.equals(previousPath)) {
+            buff.putVarInt(0);
+        } else {
+            buff.putVarInt(path.length() + 1).putStringData(path, path.length());
+        }
+        Revision r = key.getRevision();
+        buff.putVarLong(r.getTimestamp()).
+                putVarInt(r.getCounter()).
+                putVarInt(r.getClusterId() << 1 | (r.isBranch() ? 1 : 0));
+    }
+
+    private static PathRev readPathRev(ByteBuffer buff, String previousPath) {
+        int len = DataUtils.readVarInt(buff);
+        String path = len == 0 ? previousPath : DataUtils.readString(buff, len - 1);
+        long timestamp = DataUtils.readVarLong(buff);
+        int counter = DataUtils.readVarInt(buff);
+        int clusterId = DataUtils.readVarInt(buff);
+        Revision r = new Revision(timestamp, counter, clusterId >>> 1, (clusterId & 1) != 0);
+        return new PathRev(path, r);
+    }
     
 }
\ No newline at end of file
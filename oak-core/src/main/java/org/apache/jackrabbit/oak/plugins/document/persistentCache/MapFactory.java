@@ -70,6 +70,13 @@ public abstract class MapFactory {
      */
     abstract <K, V> Map<K, V> openMap(String name, MVMap.Builder<K, V> builder);
     
+    /**
+     * Get the store version, which is used for the format of the entries.
+     * 
+     * @return the store version, or -1 if the store is not open
+     */
+    abstract int getStoreVersion();
+    
     /**
      * Get the file size in bytes.
      * 
@@ -32,8 +32,14 @@ import org.h2.mvstore.type.DataType;
 import com.google.common.cache.Cache;
 import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
 
 class NodeCache<K, V> implements Cache<K, V>, GenerationCache {
+
+    /**
+     * Marker for a pending removal.
+     */
+    private static final Object REMOVED = new Object();
     
     private final PersistentCache cache;
     private final Cache<K, V> memCache;
@@ -41,6 +47,14 @@ class NodeCache<K, V> implements Cache<K, V>, GenerationCache {
     private final CacheType type;
     private final DocumentNodeStore docNodeStore;
     private final DocumentStore docStore;
+
+    /**
+     * The entries waiting to be written by the writer thread of the
+     * persistent cache, with {@link #REMOVED} for pending removals. Readers
+     * check these entries first, so they never wait for the writer and never
+     * read a stale entry. Multiple writes of the same key are coalesced.
+     */
+    private final ConcurrentMap<K, Object> pending = Maps.newConcurrentMap();
     
     NodeCache(
             PersistentCache cache,
@@ -58,8 +72,9 @@ class NodeCache<K, V> implements Cache<K, V>, GenerationCache {
     
     @Override
     public void addGeneration(int generation, boolean readOnly) {
-        DataType keyType = new KeyDataType(type);
-        DataType valueType = new ValueDataType(docNodeStore, docStore, type);
+        boolean binary = cache.isBinaryFormat();
+        DataType keyType = new KeyDataType(type, binary);
+        DataType valueType = new ValueDataType(docNodeStore, docStore, type, binary);
         MVMap.Builder<K, V> b = new MVMap.Builder<K, V>().
                 keyType(keyType).valueType(valueType);
         String mapName = type.name();
@@ -75,13 +90,66 @@ class NodeCache<K, V> implements Cache<K, V>, GenerationCache {
         map.removeReadMap(generation);
     }
     
+    @SuppressWarnings("unchecked")
     private V readIfPresent(K key) {
+        Object p = pending.get(key);
+        if (p != null) {
+            return p == REMOVED ? null : (V) p;
+        }
         cache.switchGenerationIfNeeded();
         V v = map.get(key);
         return v;
     }
     
     public void write(K key, V value) {
+        if (!cache.isAsyncWrite()) {
+            writeNow(key, value);
+            return;
+        }
+        Object v = value == null ? REMOVED : value;
+        if (pending.put(key, v) == null
+                && !cache.scheduleWrite(this, key, value == null)) {
+            removeDropped(key, v);
+        }
+    }
+
+    /**
+     * Remove the entry of a dropped write, as otherwise an older value could
+     * be read back. This is done synchronously, so that the write queue
+     * stays bounded.
+     *
+     * @param key the key
+     * @param v the dropped value
+     */
+    private synchronized void removeDropped(K key, Object v) {
+        writeNow(key, null);
+        if (!pending.remove(key, v)) {
+            // a newer value was set in the meantime
+            cache.scheduleWrite(this, key, true);
+        }
+    }
+
+    /**
+     * Write the pending entry for the given key, if any. This method is
+     * called by the writer thread of the persistent cache.
+     *
+     * @param k the key
+     */
+    @SuppressWarnings("unchecked")
+    synchronized void writePending(Object k) {
+        K key = (K) k;
+        Object v = pending.get(key);
+        if (v == null) {
+            return;
+        }
+        writeNow(key, v == REMOVED ? null : (V) v);
+        if (!pending.remove(key, v)) {
+            // a newer value was set in the meantime
+            cache.scheduleWrite(this, key, true);
+        }
+    }
+
+    private void writeNow(K key, V value) {
         cache.switchGenerationIfNeeded();
         if (value == null) {
             map.remove(key);
@@ -150,7 +218,10 @@ class NodeCache<K, V> implements Cache<K, V>, GenerationCache {
     @Override
     public void invalidateAll() {
         memCache.invalidateAll();
-        map.clear();
+        synchronized (this) {
+            pending.clear();
+            map.clear();
+        }
     }
 
     @Override
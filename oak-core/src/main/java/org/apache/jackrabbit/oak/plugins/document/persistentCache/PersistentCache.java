@@ -20,7 +20,11 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Map;
 import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.jackrabbit.oak.plugins.document.DocumentNodeStore;
 import org.apache.jackrabbit.oak.plugins.document.DocumentStore;
@@ -45,6 +49,14 @@ public class PersistentCache {
     private static final String FILE_PREFIX = "cache-";
     private static final String FILE_SUFFIX = ".data";
     private static final AtomicInteger COUNTER = new AtomicInteger();
+
+    /**
+     * The store version of cache files with node states and children in
+     * the binary format. Files in the string format have store version 0.
+     * The entries of a generation in a different format than the configured
+     * one are not used.
+     */
+    static final int BINARY_FORMAT_VERSION = 1;
     
     private boolean cacheNodes = true;
     private boolean cacheChildren = true;
@@ -54,6 +66,7 @@ public class PersistentCache {
     private boolean cacheDocChildren;
     private boolean compactOnClose;
     private boolean compress = true;
+    private boolean binaryFormat = true;
     private ArrayList<GenerationCache> caches = 
             new ArrayList<GenerationCache>();
     
@@ -67,6 +80,17 @@ public class PersistentCache {
     private int autoCompact = 50;
     private boolean appendOnly;
     private boolean manualCommit;
+
+    /**
+     * The maximum number of entries waiting to be written by the writer
+     * thread, or 0 to write entries synchronously.
+     */
+    private int maxWriteQueue = 1024;
+    private final BlockingQueue<PendingWrite> writeQueue =
+            new LinkedBlockingQueue<PendingWrite>();
+    private final AtomicLong droppedWrites = new AtomicLong();
+    private Thread writer;
+    private volatile boolean stopWriter;
     
     private int exceptionCount;
 
@@ -96,6 +120,8 @@ public class PersistentCache {
                 compactOnClose = true;
             } else if (p.equals("-compress")) {
                 compress = false;
+            } else if (p.equals("-binaryFormat")) {
+                binaryFormat = false;
             } else if (p.endsWith("time")) {
                 dir += "-" + System.currentTimeMillis() + "-" + COUNTER.getAndIncrement();
             } else if (p.startsWith("size=")) {
@@ -108,6 +134,8 @@ public class PersistentCache {
                 appendOnly = true;
             } else if (p.equals("manualCommit")) {
                 manualCommit = true;
+            } else if (p.startsWith("writeQueue=")) {
+                maxWriteQueue = Integer.parseInt(p.split("=")[1]);
             }
         }
         this.directory = dir;
@@ -161,9 +189,20 @@ public class PersistentCache {
         writeGeneration = generations.size() > 0 ? generations.last() : 0;
         if (readGeneration >= 0) {
             readStore = createMapFactory(readGeneration, true);
+            if (readStore.getStoreVersion() != getFormatVersion()) {
+                // the file is removed as an old generation later on
+                LOG.info("Ignoring generation in a different format " + getFileName(readGeneration));
+                readStore.closeStore();
+                readStore = null;
+                readGeneration = -1;
+            }
         }
         writeStore = createMapFactory(writeGeneration, false);
     }
+
+    private int getFormatVersion() {
+        return binaryFormat ? BINARY_FORMAT_VERSION : 0;
+    }
     
     private String getFileName(int generation) {
         if (directory.length() == 0) {
@@ -215,6 +254,13 @@ public class PersistentCache {
                     if (appendOnly) {
                         store.setReuseSpace(false);
                     }
+                    if (!readOnly && store.getStoreVersion() != getFormatVersion()) {
+                        // the entries can't be read, so drop them
+                        for (String name : store.getMapNames()) {
+                            store.removeMap(store.openMap(name));
+                        }
+                        store.setStoreVersion(getFormatVersion());
+                    }
                 } catch (Exception e) {
                     exceptionCount++;
                     LOG.warn("Could not open the store " + fileName, e);
@@ -266,6 +312,14 @@ public class PersistentCache {
                 }
             }
 
+            @Override
+            int getStoreVersion() {
+                if (store == null) {
+                    return -1;
+                }
+                return store.getStoreVersion();
+            }
+
             @Override
             long getFileSize() {
                 try {
@@ -289,6 +343,7 @@ public class PersistentCache {
     }
     
     public void close() {
+        stopWriter();
         if (writeStore != null) {
             writeStore.closeStore();
         }
@@ -338,6 +393,7 @@ public class PersistentCache {
         if (wrap) {
             NodeCache<K, V> c = new NodeCache<K, V>(this, base, docNodeStore, docStore, type);
             initGenerationCache(c);
+            startWriterIfNeeded();
             return c;
         }
         return base;
@@ -407,6 +463,10 @@ public class PersistentCache {
         return maxSizeMB;
     }
     
+    public boolean isBinaryFormat() {
+        return binaryFormat;
+    }
+
     public long getMaxBinaryEntrySize() {
         return maxBinaryEntry;
     }
@@ -419,6 +479,116 @@ public class PersistentCache {
         return exceptionCount;
     }
 
+    /**
+     * @return the number of cache entries waiting to be written
+     */
+    public int getWriteQueueSize() {
+        return writeQueue.size();
+    }
+
+    /**
+     * @return the number of cache entries that were not written because
+     *         the write queue was full
+     */
+    public long getDroppedWriteCount() {
+        return droppedWrites.get();
+    }
+
+    boolean isAsyncWrite() {
+        return maxWriteQueue > 0;
+    }
+
+    /**
+     * Schedule a pending write of the given cache. Entries with new values
+     * are dropped instead if the queue is full, while removals are always
+     * scheduled, so that stale entries are never read.
+     *
+     * @param cache the cache
+     * @param key the key of the pending entry
+     * @param removal whether the entry is removed
+     * @return {@code false} if the entry was dropped
+     */
+    boolean scheduleWrite(NodeCache<?, ?> cache, Object key, boolean removal) {
+        if (!removal && writeQueue.size() >= maxWriteQueue) {
+            droppedWrites.incrementAndGet();
+            return false;
+        }
+        writeQueue.add(new PendingWrite(cache, key));
+        return true;
+    }
+
+    private synchronized void startWriterIfNeeded() {
+        if (writer != null || !isAsyncWrite()) {
+            return;
+        }
+        writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // not interrupted on close, as this would close the file
+                while (!stopWriter) {
+                    try {
+                        PendingWrite w = writeQueue.poll(100, TimeUnit.MILLISECONDS);
+                        if (w != null) {
+                            w.write();
+                        }
+                    } catch (InterruptedException e) {
+                        // ignore
+                    } catch (Exception e) {
+                        exceptionCount++;
+                        LOG.debug("Could not write to the persistent cache", e);
+                        LOG.warn("Could not write to the persistent cache: " + e);
+                    }
+                }
+            }
+        }, "PersistentCache writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Stop the writer thread and write the remaining entries.
+     */
+    private void stopWriter() {
+        Thread t;
+        synchronized (this) {
+            t = writer;
+            writer = null;
+        }
+        if (t != null) {
+            stopWriter = true;
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        for (PendingWrite w = writeQueue.poll(); w != null; w = writeQueue.poll()) {
+            w.write();
+        }
+        if (droppedWrites.get() > 0) {
+            LOG.info("Dropped {} writes as the write queue was full", droppedWrites.get());
+        }
+    }
+
+    /**
+     * An entry of a cache that is waiting to be written.
+     */
+    private static final class PendingWrite {
+
+        private final NodeCache<?, ?> cache;
+        private final Object key;
+
+        PendingWrite(NodeCache<?, ?> cache, Object key) {
+            this.cache = cache;
+            this.key = key;
+        }
+
+        void write() {
+            cache.writePending(key);
+        }
+
+    }
+
 
     interface GenerationCache {
 
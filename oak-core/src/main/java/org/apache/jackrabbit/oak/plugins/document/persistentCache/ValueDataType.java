@@ -19,6 +19,7 @@ package org.apache.jackrabbit.oak.plugins.document.persistentCache;
 import java.nio.ByteBuffer;
 
 import org.apache.jackrabbit.oak.cache.CacheValue;
+import org.apache.jackrabbit.oak.plugins.document.DocumentNodeState;
 import org.apache.jackrabbit.oak.plugins.document.DocumentNodeStore;
 import org.apache.jackrabbit.oak.plugins.document.DocumentStore;
 import org.h2.mvstore.WriteBuffer;
@@ -30,13 +31,27 @@ public class ValueDataType implements DataType {
     private final DocumentNodeStore docNodeStore;
     private final DocumentStore docStore;
     private final CacheType type;
+
+    /**
+     * Whether node states and children are stored in their binary format
+     * instead of the string format.
+     */
+    private final boolean binary;
     
     public ValueDataType(
             DocumentNodeStore docNodeStore,
             DocumentStore docStore, CacheType type) {
+        this(docNodeStore, docStore, type, false);
+    }
+
+    public ValueDataType(
+            DocumentNodeStore docNodeStore,
+            DocumentStore docStore, CacheType type, boolean binary) {
         this.docNodeStore = docNodeStore;
         this.docStore = docStore;
         this.type = type;
+        this.binary = binary && (type == CacheType.NODE
+                || type == CacheType.CHILDREN);
     }
 
     @Override
@@ -51,12 +66,27 @@ public class ValueDataType implements DataType {
 
     @Override
     public void write(WriteBuffer buff, Object obj) {
+        if (binary) {
+            if (type == CacheType.NODE) {
+                buff.put(((DocumentNodeState) obj).asBytes());
+            } else {
+                buff.put(((DocumentNodeState.Children) obj).asBytes());
+            }
+            return;
+        }
         String s = type.valueToString(obj);
         StringDataType.INSTANCE.write(buff, s);
     }
 
     @Override
     public Object read(ByteBuffer buff) {
+        if (binary) {
+            if (type == CacheType.NODE) {
+                return DocumentNodeState.fromBytes(docNodeStore, buff);
+            } else {
+                return DocumentNodeState.Children.fromBytes(buff);
+            }
+        }
         String s = StringDataType.INSTANCE.read(buff);
         return type.valueFromString(docNodeStore, docStore, s);
     }
@@ -37,6 +37,7 @@ import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
@@ -272,6 +273,15 @@ public class RDBDocumentStore implements DocumentStore {
         return internalCreateOrUpdate(collection, update, true, false);
     }
 
+    @Override
+    public <T extends Document> List<T> createOrUpdate(Collection<T> collection, List<UpdateOp> updateOps) {
+        List<T> result = new ArrayList<T>(updateOps.size());
+        for (List<UpdateOp> chunk : Lists.partition(updateOps, CHUNKSIZE)) {
+            result.addAll(internalCreateOrUpdate(collection, chunk));
+        }
+        return result;
+    }
+
     @Override
     public <T extends Document> T findAndUpdate(Collection<T> collection, UpdateOp update) {
         return internalCreateOrUpdate(collection, update, false, true);
@@ -286,8 +296,10 @@ public class RDBDocumentStore implements DocumentStore {
     }
     @Override
     public CacheInvalidationStats invalidateCache(Iterable<String> keys) {
-        //TODO: optimize me
-        return invalidateCache();
+        for (String key : keys) {
+            invalidateNodesCache(key, false);
+        }
+        return null;
     }
 
     @Override
@@ -833,6 +845,123 @@ public class RDBDocumentStore implements DocumentStore {
         }
     }
 
+    /**
+     * Creates or updates a chunk of documents. The locks of all documents are
+     * held while they are read, written and cached. Documents not in the
+     * cache are read with a single query. Existing documents are updated
+     * like in {@link #updateDocument}, new documents are inserted, with JDBC
+     * batches in a single transaction. If any statement fails, for instance
+     * because a document was modified concurrently, the transaction is
+     * rolled back and the updates are applied one by one.
+     *
+     * @return the previous versions of the documents, <code>null</code> for
+     *         documents that were created
+     */
+    @Nonnull
+    private <T extends Document> List<T> internalCreateOrUpdate(Collection<T> collection, List<UpdateOp> updates) {
+        List<String> ids = new ArrayList<String>(updates.size());
+        for (UpdateOp update : updates) {
+            ids.add(update.getId());
+        }
+        List<T> oldDocs = new ArrayList<T>(updates.size());
+        boolean[] batched = new boolean[updates.size()];
+        boolean success = false;
+
+        // stripes are returned in a fixed order, which avoids deadlocks
+        // between concurrent batches
+        Iterable<Lock> chunkLocks = locks.bulkGet(ids);
+        for (Lock lock : chunkLocks) {
+            lock.lock();
+        }
+        try {
+            Map<String, T> cachedDocs = new HashMap<String, T>();
+            List<String> uncachedIds = new ArrayList<String>();
+            for (String id : ids) {
+                NodeDocument cached = null;
+                if (collection == Collection.NODES) {
+                    cached = nodesCache.getIfPresent(new StringValue(id));
+                }
+                if (cached != null && cached.getLastCheckTime() != 0) {
+                    T doc = castAsT(unwrap(cached));
+                    cachedDocs.put(id, doc);
+                } else {
+                    uncachedIds.add(id);
+                }
+            }
+            Map<String, T> readDocs = readDocumentsUncached(collection, uncachedIds);
+
+            List<T> batchedOldDocs = new ArrayList<T>();
+            List<T> batchedNewDocs = new ArrayList<T>();
+            List<UpdateOp> batchedUpdates = new ArrayList<UpdateOp>();
+            List<T> insertedDocs = new ArrayList<T>();
+            for (int i = 0; i < updates.size(); i++) {
+                // make sure we don't modify the original update
+                UpdateOp update = updates.get(i).copy();
+                T oldDoc = cachedDocs.containsKey(update.getId()) ? cachedDocs.get(update.getId()) : readDocs.get(update.getId());
+                if (oldDoc != null) {
+                    batchedOldDocs.add(oldDoc);
+                    batchedNewDocs.add(applyChanges(collection, oldDoc, update, false));
+                    batchedUpdates.add(update);
+                    batched[i] = true;
+                } else if (update.isNew()) {
+                    T doc = collection.newDocument(this);
+                    update.increment(MODCOUNT, 1);
+                    if (hasChangesToCollisions(update)) {
+                        update.increment(COLLISIONSMODCOUNT, 1);
+                    }
+                    UpdateUtils.applyChanges(doc, update, comparator);
+                    insertedDocs.add(doc);
+                    batched[i] = true;
+                }
+                oldDocs.add(oldDoc);
+            }
+
+            if (!batchedNewDocs.isEmpty() || !insertedDocs.isEmpty()) {
+                Connection connection = null;
+                String tableName = getTable(collection);
+                try {
+                    connection = this.ch.getRWConnection();
+                    success = dbBatchedUpdate(connection, tableName, batchedOldDocs, batchedNewDocs, batchedUpdates)
+                            && (insertedDocs.isEmpty() || dbInsert(connection, tableName, insertedDocs));
+                    if (success) {
+                        connection.commit();
+                    } else {
+                        this.ch.rollbackConnection(connection);
+                    }
+                } catch (SQLException ex) {
+                    LOG.debug("Batch update failed for " + tableName, ex);
+                    success = false;
+                    this.ch.rollbackConnection(connection);
+                } finally {
+                    this.ch.closeConnection(connection);
+                }
+            }
+
+            if (success && collection == Collection.NODES) {
+                for (int i = 0; i < batchedNewDocs.size(); i++) {
+                    applyToCache((NodeDocument) batchedOldDocs.get(i), (NodeDocument) batchedNewDocs.get(i));
+                }
+                for (T doc : insertedDocs) {
+                    addToCache((NodeDocument) doc);
+                }
+            }
+        } finally {
+            for (Lock lock : chunkLocks) {
+                lock.unlock();
+            }
+        }
+
+        List<T> result = new ArrayList<T>(updates.size());
+        for (int i = 0; i < updates.size(); i++) {
+            if (success && batched[i]) {
+                result.add(oldDocs.get(i));
+            } else {
+                result.add(internalCreateOrUpdate(collection, updates.get(i).copy(), true, false));
+            }
+        }
+        return result;
+    }
+
     /**
      * @return previous version of document or <code>null</code>
      */
@@ -1050,6 +1179,30 @@ public class RDBDocumentStore implements DocumentStore {
         }
     }
 
+    @Nonnull
+    private <T extends Document> Map<String, T> readDocumentsUncached(Collection<T> collection, List<String> ids) {
+        Map<String, T> result = new HashMap<String, T>();
+        if (ids.isEmpty()) {
+            return result;
+        }
+        Connection connection = null;
+        String tableName = getTable(collection);
+        try {
+            connection = this.ch.getROConnection();
+            List<RDBRow> rows = dbRead(connection, tableName, ids);
+            connection.commit();
+            for (RDBRow row : rows) {
+                T doc = SR.fromRow(collection, row);
+                result.put(doc.getId(), doc);
+            }
+            return result;
+        } catch (Exception ex) {
+            throw new DocumentStoreException(ex);
+        } finally {
+            this.ch.closeConnection(connection);
+        }
+    }
+
     private <T extends Document> void delete(Collection<T> collection, String id) {
         Connection connection = null;
         String tableName = getTable(collection);
@@ -1376,6 +1529,40 @@ public class RDBDocumentStore implements DocumentStore {
         }
     }
 
+    @Nonnull
+    private List<RDBRow> dbRead(Connection connection, String tableName, List<String> ids) throws SQLException {
+        StringBuilder inClause = new StringBuilder();
+        for (int i = 0; i < ids.size(); i++) {
+            if (i != 0) {
+                inClause.append(',');
+            }
+            inClause.append('?');
+        }
+        PreparedStatement stmt = connection.prepareStatement("select ID, MODIFIED, MODCOUNT, CMODCOUNT, HASBINARY, DELETEDONCE, DATA, BDATA from "
+                + tableName + " where ID in (" + inClause.toString() + ")");
+        List<RDBRow> result = new ArrayList<RDBRow>();
+        try {
+            for (int i = 0; i < ids.size(); i++) {
+                setIdInStatement(stmt, i + 1, ids.get(i));
+            }
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                String id = getIdFromRS(rs, 1);
+                long modified = rs.getLong(2);
+                long modcount = rs.getLong(3);
+                long cmodcount = rs.getLong(4);
+                long hasBinary = rs.getLong(5);
+                long deletedOnce = rs.getLong(6);
+                String data = rs.getString(7);
+                byte[] bdata = rs.getBytes(8);
+                result.add(new RDBRow(id, hasBinary == 1, deletedOnce == 1, modified, modcount, cmodcount, data, bdata));
+            }
+        } finally {
+            stmt.close();
+        }
+        return result;
+    }
+
     private List<RDBRow> dbQuery(Connection connection, String tableName, String minId, String maxId, String indexedProperty,
             long startValue, int limit) throws SQLException {
         long start = System.currentTimeMillis();
@@ -1471,39 +1658,143 @@ public class RDBDocumentStore implements DocumentStore {
 
     private boolean dbUpdate(Connection connection, String tableName, String id, Long modified, Boolean hasBinary,
             Boolean deletedOnce, Long modcount, Long cmodcount, Long oldmodcount, String data) throws SQLException {
+        PreparedStatement stmt = connection.prepareStatement(getUpdateStatement(tableName, oldmodcount != null));
+        try {
+            setUpdateParameters(stmt, id, modified, hasBinary, deletedOnce, modcount, cmodcount, oldmodcount, data);
+            int result = stmt.executeUpdate();
+            if (result != 1) {
+                LOG.debug("DB update failed for " + tableName + "/" + id + " with oldmodcount=" + oldmodcount);
+            }
+            return result == 1;
+        } finally {
+            stmt.close();
+        }
+    }
+
+    /**
+     * Updates the given documents with JDBC batches, one per distinct
+     * statement. Like in {@link #updateDocument}, the update operation is
+     * appended to the stored data, except for every 16th update, which
+     * rewrites the document. Each update is conditional on the modcount of
+     * the corresponding old document.
+     *
+     * @return {@code true} iff all documents were updated; drivers that do
+     *         not report the update count of each statement count as failure
+     */
+    private <T extends Document> boolean dbBatchedUpdate(Connection connection, String tableName, List<T> oldDocs,
+            List<T> documents, List<UpdateOp> updates) throws SQLException {
+        Map<String, PreparedStatement> statements = new LinkedHashMap<String, PreparedStatement>();
+        Map<String, List<String>> batchedIds = new HashMap<String, List<String>>();
+        try {
+            for (int i = 0; i < documents.size(); i++) {
+                T document = documents.get(i);
+                UpdateOp update = updates.get(i);
+                Operation modOperation = update.getChanges().get(MODIFIEDKEY);
+                long modified = getModifiedFromOperation(modOperation);
+                boolean modifiedIsConditional = modOperation == null || modOperation.type != UpdateOp.Operation.Type.SET;
+                Number flagB = (Number) document.get(NodeDocument.HAS_BINARY_FLAG);
+                Boolean hasBinary = flagB != null && flagB.intValue() == NodeDocument.HAS_BINARY_VAL;
+                Boolean flagD = (Boolean) document.get(NodeDocument.DELETED_ONCE);
+                Boolean deletedOnce = flagD != null && flagD.booleanValue();
+                Long modcount = (Long) document.get(MODCOUNT);
+                Long cmodcount = (Long) document.get(COLLISIONSMODCOUNT);
+                Long oldmodcount = modcountOf(oldDocs.get(i));
+
+                // every 16th update is a full rewrite
+                String appendData = null;
+                if (isAppendableUpdate(update) && modcount % 16 != 0) {
+                    appendData = SR.asString(update);
+                    if (appendData.length() >= this.dataLimitInOctets / CHAR2OCTETRATIO) {
+                        appendData = null;
+                    }
+                }
+                String sql = appendData != null ? getAppendingUpdateStatement(tableName, modifiedIsConditional,
+                        appendData.length(), true) : getUpdateStatement(tableName, true);
+                PreparedStatement stmt = statements.get(sql);
+                if (stmt == null) {
+                    stmt = connection.prepareStatement(sql);
+                    statements.put(sql, stmt);
+                    batchedIds.put(sql, new ArrayList<String>());
+                }
+                if (appendData != null) {
+                    setAppendingUpdateParameters(stmt, document.getId(), modified, modifiedIsConditional, hasBinary,
+                            deletedOnce, modcount, cmodcount, oldmodcount, appendData);
+                } else {
+                    setUpdateParameters(stmt, document.getId(), modified, hasBinary, deletedOnce, modcount, cmodcount,
+                            oldmodcount, SR.asString(document));
+                }
+                stmt.addBatch();
+                batchedIds.get(sql).add(document.getId());
+            }
+            for (Entry<String, PreparedStatement> entry : statements.entrySet()) {
+                List<String> ids = batchedIds.get(entry.getKey());
+                int[] results = entry.getValue().executeBatch();
+                for (int i = 0; i < results.length; i++) {
+                    if (results[i] != 1) {
+                        LOG.debug("DB batch update failed for " + tableName + "/" + ids.get(i) + " with result "
+                                + results[i]);
+                        return false;
+                    }
+                }
+                if (results.length != ids.size()) {
+                    return false;
+                }
+            }
+            return true;
+        } finally {
+            for (PreparedStatement stmt : statements.values()) {
+                stmt.close();
+            }
+        }
+    }
+
+    private static String getUpdateStatement(String tableName, boolean checkModcount) {
         String t = "update "
                 + tableName
                 + " set MODIFIED = ?, HASBINARY = ?, DELETEDONCE = ?, MODCOUNT = ?, CMODCOUNT = ?, DSIZE = ?, DATA = ?, BDATA = ? where ID = ?";
-        if (oldmodcount != null) {
+        if (checkModcount) {
             t += " and MODCOUNT = ?";
         }
-        PreparedStatement stmt = connection.prepareStatement(t);
-        try {
-            int si = 1;
-            stmt.setObject(si++, modified, Types.BIGINT);
-            stmt.setObject(si++, hasBinary ? 1 : 0, Types.SMALLINT);
-            stmt.setObject(si++, deletedOnce ? 1 : 0, Types.SMALLINT);
-            stmt.setObject(si++, modcount, Types.BIGINT);
-            stmt.setObject(si++, cmodcount == null ? Long.valueOf(0) : cmodcount, Types.BIGINT);
-            stmt.setObject(si++, data.length(), Types.BIGINT);
-
-            if (data.length() < this.dataLimitInOctets / CHAR2OCTETRATIO) {
-                stmt.setString(si++, data);
-                stmt.setBinaryStream(si++, null, 0);
-            } else {
-                stmt.setString(si++, "\"blob\"");
-                byte[] bytes = asBytes(data);
-                stmt.setBytes(si++, bytes);
-            }
+        return t;
+    }
+
+    private void setUpdateParameters(PreparedStatement stmt, String id, Long modified, Boolean hasBinary,
+            Boolean deletedOnce, Long modcount, Long cmodcount, Long oldmodcount, String data) throws SQLException {
+        int si = 1;
+        stmt.setObject(si++, modified, Types.BIGINT);
+        stmt.setObject(si++, hasBinary ? 1 : 0, Types.SMALLINT);
+        stmt.setObject(si++, deletedOnce ? 1 : 0, Types.SMALLINT);
+        stmt.setObject(si++, modcount, Types.BIGINT);
+        stmt.setObject(si++, cmodcount == null ? Long.valueOf(0) : cmodcount, Types.BIGINT);
+        stmt.setObject(si++, data.length(), Types.BIGINT);
+
+        if (data.length() < this.dataLimitInOctets / CHAR2OCTETRATIO) {
+            stmt.setString(si++, data);
+            stmt.setBinaryStream(si++, null, 0);
+        } else {
+            stmt.setString(si++, "\"blob\"");
+            byte[] bytes = asBytes(data);
+            stmt.setBytes(si++, bytes);
+        }
 
-            setIdInStatement(stmt, si++, id);
+        setIdInStatement(stmt, si++, id);
 
-            if (oldmodcount != null) {
-                stmt.setObject(si++, oldmodcount, Types.BIGINT);
-            }
+        if (oldmodcount != null) {
+            stmt.setObject(si++, oldmodcount, Types.BIGINT);
+        }
+    }
+
+    private boolean dbAppendingUpdate(Connection connection, String tableName, String id, Long modified,
+            boolean setModifiedConditionally, Boolean hasBinary, Boolean deletedOnce, Long modcount, Long cmodcount,
+            Long oldmodcount, String appendData) throws SQLException {
+        PreparedStatement stmt = connection.prepareStatement(getAppendingUpdateStatement(tableName, setModifiedConditionally,
+                appendData.length(), oldmodcount != null));
+        try {
+            setAppendingUpdateParameters(stmt, id, modified, setModifiedConditionally, hasBinary, deletedOnce, modcount,
+                    cmodcount, oldmodcount, appendData);
             int result = stmt.executeUpdate();
             if (result != 1) {
-                LOG.debug("DB update failed for " + tableName + "/" + id + " with oldmodcount=" + oldmodcount);
+                LOG.debug("DB append update failed for " + tableName + "/" + id + " with oldmodcount=" + oldmodcount);
             }
             return result == 1;
         } finally {
@@ -1511,43 +1802,38 @@ public class RDBDocumentStore implements DocumentStore {
         }
     }
 
-    private boolean dbAppendingUpdate(Connection connection, String tableName, String id, Long modified,
-            boolean setModifiedConditionally, Boolean hasBinary, Boolean deletedOnce, Long modcount, Long cmodcount,
-            Long oldmodcount, String appendData) throws SQLException {
+    private String getAppendingUpdateStatement(String tableName, boolean setModifiedConditionally, int appendLength,
+            boolean checkModcount) {
         StringBuilder t = new StringBuilder();
         t.append("update " + tableName + " set ");
         t.append(setModifiedConditionally ? "MODIFIED = case when ? > MODIFIED then ? else MODIFIED end, " : "MODIFIED = ?, ");
         t.append("HASBINARY = ?, DELETEDONCE = ?, MODCOUNT = ?, CMODCOUNT = ?, DSIZE = DSIZE + ?, ");
-        t.append("DATA = " + this.db.getConcatQueryString(this.dataLimitInOctets, appendData.length()) + " ");
+        t.append("DATA = " + this.db.getConcatQueryString(this.dataLimitInOctets, appendLength) + " ");
         t.append("where ID = ?");
-        if (oldmodcount != null) {
+        if (checkModcount) {
             t.append(" and MODCOUNT = ?");
         }
-        PreparedStatement stmt = connection.prepareStatement(t.toString());
-        try {
-            int si = 1;
+        return t.toString();
+    }
+
+    private void setAppendingUpdateParameters(PreparedStatement stmt, String id, Long modified,
+            boolean setModifiedConditionally, Boolean hasBinary, Boolean deletedOnce, Long modcount, Long cmodcount,
+            Long oldmodcount, String appendData) throws SQLException {
+        int si = 1;
+        stmt.setObject(si++, modified, Types.BIGINT);
+        if (setModifiedConditionally) {
             stmt.setObject(si++, modified, Types.BIGINT);
-            if (setModifiedConditionally) {
-                stmt.setObject(si++, modified, Types.BIGINT);
-            }
-            stmt.setObject(si++, hasBinary ? 1 : 0, Types.SMALLINT);
-            stmt.setObject(si++, deletedOnce ? 1 : 0, Types.SMALLINT);
-            stmt.setObject(si++, modcount, Types.BIGINT);
-            stmt.setObject(si++, cmodcount == null ? Long.valueOf(0) : cmodcount, Types.BIGINT);
-            stmt.setObject(si++, 1 + appendData.length(), Types.BIGINT);
-            stmt.setString(si++, "," + appendData);
-            setIdInStatement(stmt, si++, id);
+        }
+        stmt.setObject(si++, hasBinary ? 1 : 0, Types.SMALLINT);
+        stmt.setObject(si++, deletedOnce ? 1 : 0, Types.SMALLINT);
+        stmt.setObject(si++, modcount, Types.BIGINT);
+        stmt.setObject(si++, cmodcount == null ? Long.valueOf(0) : cmodcount, Types.BIGINT);
+        stmt.setObject(si++, 1 + appendData.length(), Types.BIGINT);
+        stmt.setString(si++, "," + appendData);
+        setIdInStatement(stmt, si++, id);
 
-            if (oldmodcount != null) {
-                stmt.setObject(si++, oldmodcount, Types.BIGINT);
-            }
-            int result = stmt.executeUpdate();
-            if (result != 1) {
-                LOG.debug("DB append update failed for " + tableName + "/" + id + " with oldmodcount=" + oldmodcount);
-            }
-            return result == 1;
-        } finally {
-            stmt.close();
+        if (oldmodcount != null) {
+            stmt.setObject(si++, oldmodcount, Types.BIGINT);
         }
     }
 
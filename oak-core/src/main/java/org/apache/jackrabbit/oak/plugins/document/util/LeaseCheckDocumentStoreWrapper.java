@@ -126,6 +126,13 @@ public final class LeaseCheckDocumentStoreWrapper implements DocumentStore {
         return delegate.createOrUpdate(collection, update);
     }
 
+    @Override
+    public final <T extends Document> List<T> createOrUpdate(Collection<T> collection,
+            List<UpdateOp> updateOps) {
+        performLeaseCheck();
+        return delegate.createOrUpdate(collection, updateOps);
+    }
+
     @Override
     public final <T extends Document> T findAndUpdate(Collection<T> collection,
             UpdateOp update) {
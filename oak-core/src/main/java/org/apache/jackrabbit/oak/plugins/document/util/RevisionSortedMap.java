@@ -0,0 +1,392 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.document.util;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeSet;
+
+import javax.annotation.Nonnull;
+
+import org.apache.jackrabbit.oak.plugins.document.Revision;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.collect.Sets.unmodifiableNavigableSet;
+
+/**
+ * An immutable sorted map with revision keys. The keys and values are kept
+ * in two parallel arrays, which needs less memory than a {@code TreeMap}
+ * with an entry object per mapping. Lookups use a binary search. The head,
+ * tail and sub maps are views on the same arrays, while the descending map
+ * and the navigable key sets are copies.
+ */
+public final class RevisionSortedMap<V> extends AbstractMap<Revision, V>
+        implements NavigableMap<Revision, V> {
+
+    private final Comparator<? super Revision> comparator;
+
+    private final Revision[] keys;
+
+    private final Object[] values;
+
+    /**
+     * The index of the first entry of this map (inclusive).
+     */
+    private final int from;
+
+    /**
+     * The index of the last entry of this map (exclusive).
+     */
+    private final int to;
+
+    private RevisionSortedMap(Comparator<? super Revision> comparator,
+                              Revision[] keys, Object[] values,
+                              int from, int to) {
+        this.comparator = comparator;
+        this.keys = keys;
+        this.values = values;
+        this.from = from;
+        this.to = to;
+    }
+
+    /**
+     * Returns {@code true} if the given map can be copied with
+     * {@link #copyOf(SortedMap)}. This is the case if the map has a
+     * comparator and only revision keys.
+     *
+     * @param map the map.
+     * @return whether the map can be copied.
+     */
+    public static boolean canCopy(@Nonnull SortedMap<?, ?> map) {
+        if (map.comparator() == null) {
+            return false;
+        }
+        for (Object k : map.keySet()) {
+            if (!(k instanceof Revision)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns an immutable copy of the given map, with the same comparator.
+     *
+     * @param map the map to copy.
+     * @return the copy.
+     * @throws IllegalArgumentException if the map can't be copied.
+     */
+    @Nonnull
+    @SuppressWarnings("unchecked")
+    public static <V> RevisionSortedMap<V> copyOf(@Nonnull SortedMap<?, ? extends V> map) {
+        checkArgument(canCopy(map), "Not a revision map with a comparator");
+        int size = map.size();
+        Revision[] keys = new Revision[size];
+        Object[] values = new Object[size];
+        int i = 0;
+        for (Map.Entry<?, ? extends V> e : map.entrySet()) {
+            keys[i] = (Revision) e.getKey();
+            values[i] = e.getValue();
+            i++;
+        }
+        return new RevisionSortedMap<V>(
+                (Comparator<? super Revision>) map.comparator(), keys, values, 0, size);
+    }
+
+    @Override
+    public Comparator<? super Revision> comparator() {
+        return comparator;
+    }
+
+    @Override
+    public int size() {
+        return to - from;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return to == from;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        int index = indexOf(key);
+        return index < 0 ? null : (V) values[index];
+    }
+
+    @Override
+    public Revision firstKey() {
+        if (isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        return keys[from];
+    }
+
+    @Override
+    public Revision lastKey() {
+        if (isEmpty()) {
+            throw new NoSuchElementException();
+        }
+        return keys[to - 1];
+    }
+
+    @Override
+    public Entry<Revision, V> firstEntry() {
+        return isEmpty() ? null : entry(from);
+    }
+
+    @Override
+    public Entry<Revision, V> lastEntry() {
+        return isEmpty() ? null : entry(to - 1);
+    }
+
+    @Override
+    public Entry<Revision, V> lowerEntry(Revision key) {
+        return entry(lowerBound(key) - 1);
+    }
+
+    @Override
+    public Revision lowerKey(Revision key) {
+        return keyOrNull(lowerEntry(key));
+    }
+
+    @Override
+    public Entry<Revision, V> floorEntry(Revision key) {
+        return entry(upperBound(key) - 1);
+    }
+
+    @Override
+    public Revision floorKey(Revision key) {
+        return keyOrNull(floorEntry(key));
+    }
+
+    @Override
+    public Entry<Revision, V> ceilingEntry(Revision key) {
+        return entry(lowerBound(key));
+    }
+
+    @Override
+    public Revision ceilingKey(Revision key) {
+        return keyOrNull(ceilingEntry(key));
+    }
+
+    @Override
+    public Entry<Revision, V> higherEntry(Revision key) {
+        return entry(upperBound(key));
+    }
+
+    @Override
+    public Revision higherKey(Revision key) {
+        return keyOrNull(higherEntry(key));
+    }
+
+    @Override
+    public Entry<Revision, V> pollFirstEntry() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Entry<Revision, V> pollLastEntry() {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public NavigableMap<Revision, V> descendingMap() {
+        int size = size();
+        Revision[] k = new Revision[size];
+        Object[] v = new Object[size];
+        for (int i = 0; i < size; i++) {
+            k[i] = keys[to - 1 - i];
+            v[i] = values[to - 1 - i];
+        }
+        return new RevisionSortedMap<V>(
+                Collections.reverseOrder(comparator), k, v, 0, size);
+    }
+
+    @Override
+    public NavigableSet<Revision> navigableKeySet() {
+        TreeSet<Revision> set = new TreeSet<Revision>(comparator);
+        set.addAll(keySet());
+        return unmodifiableNavigableSet(set);
+    }
+
+    @Override
+    public NavigableSet<Revision> descendingKeySet() {
+        return descendingMap().navigableKeySet();
+    }
+
+    @Override
+    public NavigableMap<Revision, V> subMap(Revision fromKey, boolean fromInclusive,
+                                            Revision toKey, boolean toInclusive) {
+        checkArgument(comparator.compare(fromKey, toKey) <= 0,
+                "fromKey > toKey");
+        return subMap(fromInclusive ? lowerBound(fromKey) : upperBound(fromKey),
+                toInclusive ? upperBound(toKey) : lowerBound(toKey));
+    }
+
+    @Override
+    public NavigableMap<Revision, V> headMap(Revision toKey, boolean inclusive) {
+        checkNotNull(toKey);
+        return subMap(from, inclusive ? upperBound(toKey) : lowerBound(toKey));
+    }
+
+    @Override
+    public NavigableMap<Revision, V> tailMap(Revision fromKey, boolean inclusive) {
+        checkNotNull(fromKey);
+        return subMap(inclusive ? lowerBound(fromKey) : upperBound(fromKey), to);
+    }
+
+    @Override
+    public SortedMap<Revision, V> subMap(Revision fromKey, Revision toKey) {
+        return subMap(fromKey, true, toKey, false);
+    }
+
+    @Override
+    public SortedMap<Revision, V> headMap(Revision toKey) {
+        return headMap(toKey, false);
+    }
+
+    @Override
+    public SortedMap<Revision, V> tailMap(Revision fromKey) {
+        return tailMap(fromKey, true);
+    }
+
+    @Nonnull
+    @Override
+    public Set<Entry<Revision, V>> entrySet() {
+        return new AbstractSet<Entry<Revision, V>>() {
+            @Override
+            public Iterator<Entry<Revision, V>> iterator() {
+                return new Iterator<Entry<Revision, V>>() {
+                    private int index = from;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < to;
+                    }
+
+                    @Override
+                    public Entry<Revision, V> next() {
+                        if (!hasNext()) {
+                            throw new NoSuchElementException();
+                        }
+                        return entry(index++);
+                    }
+
+                    @Override
+                    public void remove() {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return RevisionSortedMap.this.size();
+            }
+        };
+    }
+
+    //------------------------------< internal >--------------------------------
+
+    /**
+     * @return the entry at the given index, or {@code null} if the index is
+     *          outside of this map.
+     */
+    @SuppressWarnings("unchecked")
+    private Entry<Revision, V> entry(int index) {
+        if (index < from || index >= to) {
+            return null;
+        }
+        return new SimpleImmutableEntry<Revision, V>(keys[index], (V) values[index]);
+    }
+
+    private static Revision keyOrNull(Entry<Revision, ?> entry) {
+        return entry == null ? null : entry.getKey();
+    }
+
+    private NavigableMap<Revision, V> subMap(int fromIndex, int toIndex) {
+        if (fromIndex == from && toIndex == to) {
+            return this;
+        }
+        return new RevisionSortedMap<V>(comparator, keys, values,
+                fromIndex, Math.max(fromIndex, toIndex));
+    }
+
+    /**
+     * @return the index of the given key, or -1 if not found.
+     */
+    private int indexOf(Object key) {
+        if (!(key instanceof Revision)) {
+            return -1;
+        }
+        int index = lowerBound((Revision) key);
+        if (index < to && comparator.compare(keys[index], (Revision) key) == 0) {
+            return index;
+        }
+        return -1;
+    }
+
+    /**
+     * @return the index of the first entry with a key greater than or equal
+     *          to the given key, or {@link #to} if there is no such entry.
+     */
+    private int lowerBound(Revision key) {
+        return search(key, false);
+    }
+
+    /**
+     * @return the index of the first entry with a key greater than the given
+     *          key, or {@link #to} if there is no such entry.
+     */
+    private int upperBound(Revision key) {
+        return search(key, true);
+    }
+
+    private int search(Revision key, boolean upper) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int comp = comparator.compare(keys[mid], key);
+            if (comp < 0 || (upper && comp == 0)) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+}
@@ -21,12 +21,19 @@ import static com.google.common.collect.Maps.newHashMap;
 import static org.apache.jackrabbit.oak.api.Type.BINARIES;
 import static org.apache.jackrabbit.oak.api.Type.BINARY;
 import static org.apache.jackrabbit.oak.commons.PathUtils.concat;
+import static org.apache.jackrabbit.oak.plugins.segment.SegmentNodeStore.ROOT;
 
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 import com.google.common.hash.Hashing;
 import org.apache.jackrabbit.oak.api.Blob;
@@ -39,6 +46,7 @@ import org.apache.jackrabbit.oak.plugins.memory.MultiBinaryPropertyState;
 import org.apache.jackrabbit.oak.plugins.memory.PropertyStates;
 import org.apache.jackrabbit.oak.plugins.segment.compaction.CompactionStrategy;
 import org.apache.jackrabbit.oak.plugins.segment.file.FileStore;
+import org.apache.jackrabbit.oak.spi.gc.GCMonitor;
 import org.apache.jackrabbit.oak.spi.state.ApplyDiff;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
@@ -78,25 +86,74 @@ public class Compactor {
      */
     private final boolean cloneBinaries;
 
+    /**
+     * Number of threads compacting the subtrees below the root
+     */
+    private final int threads;
+
+    private final GCMonitor gcMonitor;
+
+    /**
+     * Number of nodes compacted so far, for progress reporting
+     */
+    private final AtomicLong nodes = new AtomicLong();
+
+    /**
+     * Set when a parallel compaction failed, so that the remaining tasks
+     * abort their diff. Tasks are not interrupted, as an interrupt closes
+     * the file channels of the tar files they are reading from.
+     */
+    private volatile boolean cancelled;
+
     public Compactor(SegmentWriter writer) {
         this.writer = writer;
         this.map = new InMemoryCompactionMap(writer.getTracker());
         this.cloneBinaries = false;
+        this.threads = 1;
+        this.gcMonitor = GCMonitor.EMPTY;
     }
 
     public Compactor(FileStore store, CompactionStrategy compactionStrategy) {
-        this.writer = store.createSegmentWriter();
+        this(store, compactionStrategy, GCMonitor.EMPTY);
+    }
+
+    public Compactor(FileStore store, CompactionStrategy compactionStrategy, GCMonitor gcMonitor) {
+        this.threads = compactionStrategy.getCompactionThreads();
+        this.writer = store.getTracker().getWriter().createCompactionWriter(threads);
         if (compactionStrategy.getPersistCompactionMap()) {
             this.map = new PersistedCompactionMap(store);
+        } else if (compactionStrategy.getMappedCompactionMap()) {
+            this.map = new MappedCompactionMap(writer.getTracker(), store.getDirectory());
         } else {
             this.map = new InMemoryCompactionMap(writer.getTracker());
         }
         this.cloneBinaries = compactionStrategy.cloneBinaries();
+        this.gcMonitor = gcMonitor;
     }
 
     protected SegmentNodeBuilder process(NodeState before, NodeState after, NodeState onto) {
+        long start = System.currentTimeMillis();
+        long count = nodes.get();
+
         SegmentNodeBuilder builder = new SegmentNodeBuilder(writer.writeNode(onto), writer);
-        after.compareAgainstBaseState(before, new CompactDiff(builder));
+        if (threads > 1) {
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            cancelled = false;
+            try {
+                ParallelCompactDiff diff = new ParallelCompactDiff(builder, executor);
+                after.compareAgainstBaseState(before, diff);
+                diff.join();
+            } finally {
+                executor.shutdown();
+            }
+        } else {
+            after.compareAgainstBaseState(before, new CompactDiff(builder));
+        }
+
+        long time = System.currentTimeMillis() - start;
+        count = nodes.get() - count;
+        gcMonitor.info("TarMK compaction compacted {} nodes in {}ms ({} nodes/s) using {} threads",
+                count, time, time > 0 ? count * 1000 / time : count, threads);
         return builder;
     }
 
@@ -130,11 +187,97 @@ public class Compactor {
         return compacted;
     }
 
+    /**
+     * @return the writer of the compacted content
+     */
+    public SegmentWriter getWriter() {
+        return writer;
+    }
+
     public PartialCompactionMap getCompactionMap() {
         map.compress();
         return map;
     }
 
+    // The compaction map is not thread-safe. Access it through these
+    // methods, which synchronize on the map when compacting in parallel.
+
+    private RecordId getCompactedId(RecordId id) {
+        synchronized (map) {
+            return map.get(id);
+        }
+    }
+
+    private void putCompactedId(RecordId before, RecordId after) {
+        synchronized (map) {
+            // identical subtrees share their records, so the same record
+            // might have been compacted concurrently by another thread
+            if (map.get(before) == null) {
+                map.put(before, after);
+            }
+        }
+    }
+
+    /**
+     * Compact a newly added subtree.
+     *
+     * @return the compacted subtree, or {@code null} if the diff was aborted
+     */
+    private SegmentNodeState compactAdded(String path, String name, NodeState after) {
+        NodeBuilder child = EmptyNodeState.EMPTY_NODE.builder();
+        boolean success = EmptyNodeState.compareAgainstEmptyState(after,
+                new CompactDiff(child, path, name));
+
+        if (success) {
+            SegmentNodeState state = writer.writeNode(child.getNodeState());
+            if (after instanceof SegmentNodeState) {
+                putCompactedId(((SegmentNodeState) after).getRecordId(), state.getRecordId());
+            }
+            nodes.incrementAndGet();
+            return state;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * Compact the changes to a subtree on top of the given {@code child}
+     * builder.
+     *
+     * @return the compacted subtree, or {@code null} if the diff was aborted
+     */
+    private SegmentNodeState compactChanged(String path, String name,
+            NodeBuilder child, NodeState before, NodeState after) {
+        boolean success = after.compareAgainstBaseState(before,
+                new CompactDiff(child, path, name));
+
+        if (success) {
+            SegmentNodeState state = writer.writeNode(child.getNodeState());
+            if (after instanceof SegmentNodeState) {
+                putCompactedId(((SegmentNodeState) after).getRecordId(), state.getRecordId());
+            }
+            nodes.incrementAndGet();
+            return state;
+        } else {
+            return null;
+        }
+    }
+
+    /**
+     * @return the compacted version of the given node state, or {@code null}
+     *         if it was not compacted yet
+     */
+    private SegmentNodeState getCompacted(NodeState state) {
+        if (state instanceof SegmentNodeState) {
+            RecordId compactedId = getCompactedId(
+                    ((SegmentNodeState) state).getRecordId());
+            if (compactedId != null) {
+                return new SegmentNodeState(compactedId);
+            }
+        }
+        return null;
+    }
+
     private class CompactDiff extends ApplyDiff {
 
         /**
@@ -142,7 +285,7 @@ public class Compactor {
          * the beginning of the compaction call. The null check will also be
          * used to verify if a trace log will be needed or not
          */
-        private final String path;
+        final String path;
 
         CompactDiff(NodeBuilder builder) {
             super(builder);
@@ -183,29 +326,22 @@ public class Compactor {
             if (path != null) {
                 log.trace("childNodeAdded {}/{}", path, name);
             }
-            RecordId id = null;
-            if (after instanceof SegmentNodeState) {
-                id = ((SegmentNodeState) after).getRecordId();
-                RecordId compactedId = map.get(id);
-                if (compactedId != null) {
-                    builder.setChildNode(name, new SegmentNodeState(compactedId));
-                    return true;
-                }
+            if (cancelled) {
+                return false;
+            }
+            SegmentNodeState compacted = getCompacted(after);
+            if (compacted != null) {
+                builder.setChildNode(name, compacted);
+                return true;
             }
 
-            NodeBuilder child = EmptyNodeState.EMPTY_NODE.builder();
-            boolean success = EmptyNodeState.compareAgainstEmptyState(after,
-                    new CompactDiff(child, path, name));
-
-            if (success) {
-                SegmentNodeState state = writer.writeNode(child.getNodeState());
+            SegmentNodeState state = compactAdded(path, name, after);
+            if (state != null) {
                 builder.setChildNode(name, state);
-                if (id != null) {
-                    map.put(id, state.getRecordId());
-                }
+                return true;
+            } else {
+                return false;
             }
-
-            return success;
         }
 
         @Override
@@ -214,30 +350,191 @@ public class Compactor {
             if (path != null) {
                 log.trace("childNodeChanged {}/{}", path, name);
             }
+            if (cancelled) {
+                return false;
+            }
 
-            RecordId id = null;
-            if (after instanceof SegmentNodeState) {
-                id = ((SegmentNodeState) after).getRecordId();
-                RecordId compactedId = map.get(id);
-                if (compactedId != null) {
-                    builder.setChildNode(name, new SegmentNodeState(compactedId));
-                    return true;
-                }
+            SegmentNodeState compacted = getCompacted(after);
+            if (compacted != null) {
+                builder.setChildNode(name, compacted);
+                return true;
             }
 
             NodeBuilder child = builder.getChildNode(name);
-            boolean success = after.compareAgainstBaseState(before,
-                    new CompactDiff(child, path, name));
-
-            if (success) {
-                RecordId compactedId = writer.writeNode(child.getNodeState())
-                        .getRecordId();
-                if (id != null) {
-                    map.put(id, compactedId);
+            return compactChanged(path, name, child, before, after) != null;
+        }
+
+    }
+
+    /**
+     * Diff for the root of a parallel compaction. Each added or changed
+     * child subtree is compacted by a separate task on the given executor.
+     * The tasks are only submitted by {@link #join()}, once the diff is
+     * done, which also sets the compacted subtrees on the builder.
+     * Everything else is done in the calling thread.
+     * <p>
+     * The super-root compacted by {@link FileStore} only has the content
+     * below {@code /root} and the checkpoints as children. The content is
+     * therefore split one level further: {@code /root} is compacted right
+     * away, with a task per child of {@code /root}. The checkpoints are
+     * compacted afterwards and map to the already compacted records of the
+     * content they share with {@code /root}, instead of copying it again.
+     */
+    private class ParallelCompactDiff extends CompactDiff {
+
+        private final ExecutorService executor;
+
+        /**
+         * Path of the compacted node, for progress reporting
+         */
+        private final String parent;
+
+        private final List<String> names = newArrayList();
+
+        private final List<Callable<SegmentNodeState>> tasks = newArrayList();
+
+        ParallelCompactDiff(NodeBuilder builder, ExecutorService executor) {
+            super(builder);
+            this.executor = executor;
+            this.parent = "/";
+        }
+
+        private ParallelCompactDiff(NodeBuilder builder, ExecutorService executor,
+                String path, String name) {
+            super(builder, path, name);
+            this.executor = executor;
+            this.parent = "/" + name;
+        }
+
+        /**
+         * @return whether the given child is the content of a super-root
+         *         and should be split into tasks per child
+         */
+        private boolean isSplit(String name) {
+            return "/".equals(parent) && ROOT.equals(name);
+        }
+
+        @Override
+        public boolean childNodeAdded(final String name, final NodeState after) {
+            SegmentNodeState compacted = getCompacted(after);
+            if (compacted != null) {
+                builder.setChildNode(name, compacted);
+                return true;
+            }
+
+            if (isSplit(name)) {
+                return compactSplit(name, EmptyNodeState.EMPTY_NODE.builder(), null, after);
+            }
+            add(name, new Callable<SegmentNodeState>() {
+                @Override
+                public SegmentNodeState call() {
+                    return compactAdded(path, name, after);
                 }
+            });
+            return true;
+        }
+
+        @Override
+        public boolean childNodeChanged(
+                final String name, final NodeState before, final NodeState after) {
+            SegmentNodeState compacted = getCompacted(after);
+            if (compacted != null) {
+                builder.setChildNode(name, compacted);
+                return true;
+            }
+
+            if (isSplit(name)) {
+                return compactSplit(name, builder.getChildNode(name), before, after);
             }
+            // each task needs a builder of its own, as builders are not
+            // thread-safe. Changes are written with the compaction writer.
+            final SegmentNodeState base = writer.writeNode(
+                    builder.getChildNode(name).getNodeState());
+            add(name, new Callable<SegmentNodeState>() {
+                @Override
+                public SegmentNodeState call() {
+                    NodeBuilder child = new SegmentNodeBuilder(base, writer);
+                    return compactChanged(path, name, child, before, after);
+                }
+            });
+            return true;
+        }
 
-            return success;
+        private void add(String name, Callable<SegmentNodeState> task) {
+            names.add(name);
+            tasks.add(task);
+        }
+
+        /**
+         * Compact a subtree in the calling thread, with a separate task for
+         * each of its child subtrees.
+         *
+         * @param before  the before state, or {@code null} if the subtree
+         *                was added
+         * @return {@code false} if the diff was aborted
+         */
+        private boolean compactSplit(String name, NodeBuilder child,
+                NodeState before, NodeState after) {
+            ParallelCompactDiff diff = new ParallelCompactDiff(
+                    child, executor, path, name);
+            boolean success = before == null
+                    ? EmptyNodeState.compareAgainstEmptyState(after, diff)
+                    : after.compareAgainstBaseState(before, diff);
+            if (!success) {
+                return false;
+            }
+            diff.join();
+
+            SegmentNodeState state = writer.writeNode(child.getNodeState());
+            if (after instanceof SegmentNodeState) {
+                putCompactedId(((SegmentNodeState) after).getRecordId(), state.getRecordId());
+            }
+            nodes.incrementAndGet();
+            builder.setChildNode(name, state);
+            return true;
+        }
+
+        /**
+         * Compact the collected subtrees in parallel, wait for all of them to
+         * be compacted and set them on the builder.
+         */
+        void join() {
+            List<Future<SegmentNodeState>> futures = newArrayList();
+            boolean success = false;
+            try {
+                for (Callable<SegmentNodeState> task : tasks) {
+                    futures.add(executor.submit(task));
+                }
+                for (int i = 0; i < futures.size(); i++) {
+                    SegmentNodeState state = futures.get(i).get();
+                    if (state != null) {
+                        builder.setChildNode(names.get(i), state);
+                    }
+                    gcMonitor.info("TarMK compaction compacted subtree {} ({} of {}), {} nodes so far",
+                            concat(parent, names.get(i)), i + 1, futures.size(), nodes.get());
+                }
+                success = true;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while compacting", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new IllegalStateException("Failed to compact", cause);
+            } finally {
+                if (!success) {
+                    // let running tasks abort their diff instead of
+                    // interrupting them
+                    cancelled = true;
+                    for (Future<SegmentNodeState> future : futures) {
+                        future.cancel(false);
+                    }
+                }
+            }
         }
 
     }
@@ -273,7 +570,7 @@ public class Compactor {
             try {
                 // else check if we've already cloned this specific record
                 RecordId id = sb.getRecordId();
-                RecordId compactedId = map.get(id);
+                RecordId compactedId = getCompactedId(id);
                 if (compactedId != null) {
                     return new SegmentBlob(compactedId);
                 }
@@ -281,30 +578,39 @@ public class Compactor {
                 // if the blob is inlined or external, just clone it
                 if (sb.isExternal() || sb.length() < Segment.MEDIUM_LIMIT) {
                     SegmentBlob clone = sb.clone(writer, cloneBinaries);
-                    map.put(id, clone.getRecordId());
+                    putCompactedId(id, clone.getRecordId());
                     return clone;
                 }
 
                 // alternatively look if the exact same binary has been cloned
                 String key = getBlobKey(blob);
-                List<RecordId> ids = binaries.get(key);
+                List<RecordId> ids;
+                synchronized (binaries) {
+                    ids = binaries.get(key);
+                    ids = ids == null ? null : new ArrayList<RecordId>(ids);
+                }
                 if (ids != null) {
                     for (RecordId duplicateId : ids) {
                         if (new SegmentBlob(duplicateId).equals(sb)) {
-                            map.put(id, duplicateId);
+                            putCompactedId(id, duplicateId);
                             return new SegmentBlob(duplicateId);
                         }
                     }
                 }
 
-                // if not, clone the blob and keep track of the result
+                // if not, clone the blob and keep track of the result.
+                // Concurrent compaction threads might clone the same binary,
+                // in which case both copies are kept.
                 sb = sb.clone(writer, cloneBinaries);
-                map.put(id, sb.getRecordId());
-                if (ids == null) {
-                    ids = newArrayList();
-                    binaries.put(key, ids);
+                putCompactedId(id, sb.getRecordId());
+                synchronized (binaries) {
+                    List<RecordId> list = binaries.get(key);
+                    if (list == null) {
+                        list = newArrayList();
+                        binaries.put(key, list);
+                    }
+                    list.add(sb.getRecordId());
                 }
-                ids.add(sb.getRecordId());
 
                 return sb;
             } catch (IOException e) {
@@ -0,0 +1,542 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static java.lang.Integer.getInteger;
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static org.apache.jackrabbit.oak.plugins.segment.Segment.decode;
+import static org.apache.jackrabbit.oak.plugins.segment.Segment.encode;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@code PartialCompactionMap} implementation keeping its entries outside
+ * of the Java heap, so that the heap used by compaction does not depend on
+ * the size of the repository.
+ * <p>
+ * New entries are collected in a small in-memory map. Once it is full, its
+ * entries are sorted and written to a file as a <em>run</em> of primitive
+ * longs, which is then memory mapped for lookups by binary search. Whenever
+ * there are {@value #MERGE_FACTOR} runs of the same level, the newest runs
+ * are merged into one of the next level, so that the number of runs to
+ * search only grows logarithmically with the number of entries. All runs
+ * are merged into a single one when the map is {@link #compress() compressed}.
+ * <p>
+ * Each entry of a run takes {@value #ENTRY_SIZE} bytes: the most and least
+ * significant bits of the before segment, the before and after offsets,
+ * and the most and least significant bits of the after segment. Entries
+ * are sorted by before segment and offset.
+ * <p>
+ * The files are created in the given directory and deleted as soon as their
+ * runs have been merged or removed. Files left over by a map that was not
+ * used any more are deleted by {@link #deleteRuns(File)}.
+ */
+public class MappedCompactionMap implements PartialCompactionMap {
+
+    private static final Logger log = LoggerFactory.getLogger(MappedCompactionMap.class);
+
+    /**
+     * Number of map entries to keep in memory until writing them to a run.
+     */
+    private static final int COMPRESS_INTERVAL = getInteger("compress-interval", 100000);
+
+    /**
+     * Number of runs of the same level that are merged into a single run
+     * of the next level.
+     */
+    static final int MERGE_FACTOR = 8;
+
+    private static final String RUN_PREFIX = "compaction-map-";
+
+    private static final String RUN_SUFFIX = ".bin";
+
+    static final int ENTRY_SIZE = 5 * 8;
+
+    /**
+     * Maximum number of entries in a single run, as a run is mapped
+     * into a single buffer.
+     */
+    private static final int MAX_RUN_ENTRIES = Integer.MAX_VALUE / ENTRY_SIZE;
+
+    private static final Comparator<long[]> ENTRY_ORDER = new Comparator<long[]>() {
+        @Override
+        public int compare(long[] a, long[] b) {
+            return MappedCompactionMap.compare(a[0], a[1], (int) (a[2] >> 32), b[0], b[1], (int) (b[2] >> 32));
+        }
+    };
+
+    private final SegmentTracker tracker;
+
+    private final File directory;
+
+    private final int compressInterval;
+
+    /**
+     * Entries not yet written to a run, per before segment
+     */
+    private Map<UUID, RecordIdMap> recent = newHashMap();
+
+    private int recentCount;
+
+    /**
+     * The runs, newest first
+     */
+    private final List<Run> runs = newArrayList();
+
+    MappedCompactionMap(@Nonnull SegmentTracker tracker, @Nonnull File directory) {
+        this(tracker, directory, COMPRESS_INTERVAL);
+    }
+
+    MappedCompactionMap(@Nonnull SegmentTracker tracker, @Nonnull File directory,
+            int compressInterval) {
+        this.tracker = tracker;
+        this.directory = directory;
+        this.compressInterval = compressInterval;
+    }
+
+    /**
+     * Delete the run files in the given directory. Compaction maps are not
+     * persisted, so this must only be called when no map is using the
+     * directory, e.g. when opening or closing a store.
+     *
+     * @param directory the directory
+     */
+    public static void deleteRuns(@Nonnull File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(RUN_PREFIX) && name.endsWith(RUN_SUFFIX)
+                        && !file.delete()) {
+                    log.debug("Failed to delete compaction map run {}", file);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of runs of this map
+     */
+    synchronized int getRunCount() {
+        return runs.size();
+    }
+
+    @Override
+    public boolean wasCompactedTo(@Nonnull RecordId before, @Nonnull RecordId after) {
+        return after.equals(get(before));
+    }
+
+    @Override
+    public synchronized boolean wasCompacted(@Nonnull UUID id) {
+        if (recent.containsKey(id)) {
+            return true;
+        }
+        long msb = id.getMostSignificantBits();
+        long lsb = id.getLeastSignificantBits();
+        for (Run run : runs) {
+            if (run.containsSegment(msb, lsb)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    @CheckForNull
+    public synchronized RecordId get(@Nonnull RecordId before) {
+        SegmentId id = before.getSegmentId();
+        RecordIdMap entries = recent.get(id.asUUID());
+        if (entries != null) {
+            RecordId after = entries.get(encode(before.getOffset()));
+            if (after != null) {
+                return after;
+            }
+        }
+
+        long msb = id.getMostSignificantBits();
+        long lsb = id.getLeastSignificantBits();
+        int offset = before.getOffset();
+        for (Run run : runs) {
+            int index = run.find(msb, lsb, offset);
+            if (index != -1) {
+                return run.getAfter(index);
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public synchronized void put(@Nonnull RecordId before, @Nonnull RecordId after) {
+        if (get(before) != null) {
+            throw new IllegalArgumentException();
+        }
+        UUID uuid = before.getSegmentId().asUUID();
+        RecordIdMap entries = recent.get(uuid);
+        if (entries == null) {
+            entries = new RecordIdMap();
+            recent.put(uuid, entries);
+        }
+        entries.put(encode(before.getOffset()), after);
+        recentCount++;
+        if (recentCount >= compressInterval) {
+            try {
+                runs.add(0, writeRun());
+                mergeNewestRuns();
+            } catch (IOException e) {
+                throw new IllegalStateException("Failed to write compaction map run", e);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void remove(@Nonnull Set<UUID> uuids) {
+        compress(uuids);
+    }
+
+    @Override
+    public synchronized void compress() {
+        compress(Collections.<UUID>emptySet());
+    }
+
+    @Override
+    public synchronized long getSegmentCount() {
+        // exact once compressed, an upper bound otherwise
+        long count = recent.size();
+        for (Run run : runs) {
+            count += run.segments;
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized long getRecordCount() {
+        long count = recentCount;
+        for (Run run : runs) {
+            count += run.size;
+        }
+        return count;
+    }
+
+    /**
+     * Only the in-memory part of the map is accounted for, as the runs
+     * are kept outside of the heap.
+     */
+    @Override
+    public synchronized long getEstimatedWeight() {
+        // rough estimate of a hash map entry per segment and of the
+        // arrays of the record id maps
+        return 168 + recent.size() * 160L + recentCount * 24L + runs.size() * 64L;
+    }
+
+    private void compress(@Nonnull Set<UUID> removed) {
+        if (recent.isEmpty() && removed.isEmpty() && runs.size() <= 1) {
+            return;
+        }
+
+        try {
+            if (!recent.isEmpty()) {
+                runs.add(0, writeRun());
+            }
+            long entries = 0;
+            for (Run run : runs) {
+                entries += run.size;
+            }
+            if (entries <= MAX_RUN_ENTRIES) {
+                int level = 0;
+                for (Run run : runs) {
+                    level = Math.max(level, run.level);
+                }
+                Run merged = merge(runs, removed, level);
+                for (Run run : runs) {
+                    run.delete();
+                }
+                runs.clear();
+                if (merged.size > 0) {
+                    runs.add(merged);
+                } else {
+                    merged.delete();
+                }
+            } else {
+                log.warn("Compaction map too large to merge into a single run, keeping {} runs",
+                        runs.size());
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to compress compaction map", e);
+        }
+    }
+
+    /**
+     * Merge the newest runs as long as there are {@link #MERGE_FACTOR} of
+     * them with the same level. Runs are kept newest first, so that the
+     * levels never decrease towards the older runs.
+     */
+    private void mergeNewestRuns() throws IOException {
+        while (runs.size() >= MERGE_FACTOR) {
+            List<Run> newest = runs.subList(0, MERGE_FACTOR);
+            int level = newest.get(0).level;
+            long entries = 0;
+            for (Run run : newest) {
+                if (run.level != level) {
+                    return;
+                }
+                entries += run.size;
+            }
+            if (entries > MAX_RUN_ENTRIES) {
+                return;
+            }
+
+            Run merged = merge(newest, Collections.<UUID>emptySet(), level + 1);
+            for (Run run : newest) {
+                run.delete();
+            }
+            newest.clear();
+            runs.add(0, merged);
+        }
+    }
+
+    /**
+     * Sort the entries of the {@link #recent} map and write them to a new run.
+     */
+    private Run writeRun() throws IOException {
+        List<long[]> entries = newArrayList();
+        for (Entry<UUID, RecordIdMap> entry : recent.entrySet()) {
+            UUID before = entry.getKey();
+            RecordIdMap map = entry.getValue();
+            for (int i = 0; i < map.size(); i++) {
+                RecordId after = map.getRecordId(i);
+                entries.add(new long[] {
+                        before.getMostSignificantBits(),
+                        before.getLeastSignificantBits(),
+                        ((long) decode(map.getKey(i)) << 32) | after.getOffset(),
+                        after.getSegmentId().getMostSignificantBits(),
+                        after.getSegmentId().getLeastSignificantBits() });
+            }
+        }
+        Collections.sort(entries, ENTRY_ORDER);
+
+        File file = newFile();
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            for (long[] entry : entries) {
+                for (long value : entry) {
+                    out.writeLong(value);
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        recent = newHashMap();
+        recentCount = 0;
+        return new Run(file, 0);
+    }
+
+    /**
+     * Merge the given runs into a new one of the given level, dropping all
+     * entries of the given removed segments.
+     */
+    private Run merge(List<Run> runs, Set<UUID> removed, int level) throws IOException {
+        int[] positions = new int[runs.size()];
+        File file = newFile();
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            long lastMsb = 0;
+            long lastLsb = 0;
+            boolean lastRemoved = false;
+            boolean first = true;
+            while (true) {
+                // find the smallest current entry among all runs
+                int next = -1;
+                for (int i = 0; i < positions.length; i++) {
+                    Run run = runs.get(i);
+                    if (positions[i] < run.size && (next == -1 || run.compareTo(
+                            positions[i], runs.get(next), positions[next]) < 0)) {
+                        next = i;
+                    }
+                }
+                if (next == -1) {
+                    break;
+                }
+
+                Run run = runs.get(next);
+                int index = positions[next]++;
+                long msb = run.getLong(index, 0);
+                long lsb = run.getLong(index, 1);
+                if (first || msb != lastMsb || lsb != lastLsb) {
+                    lastRemoved = !removed.isEmpty()
+                            && removed.contains(new UUID(msb, lsb));
+                    lastMsb = msb;
+                    lastLsb = lsb;
+                    first = false;
+                }
+                if (!lastRemoved) {
+                    for (int k = 0; k < 5; k++) {
+                        out.writeLong(run.getLong(index, k));
+                    }
+                }
+            }
+        } finally {
+            out.close();
+        }
+
+        return new Run(file, level);
+    }
+
+    private File newFile() throws IOException {
+        return File.createTempFile(RUN_PREFIX, RUN_SUFFIX, directory);
+    }
+
+    private static int compare(long msb1, long lsb1, int offset1,
+            long msb2, long lsb2, int offset2) {
+        if (msb1 != msb2) {
+            return msb1 < msb2 ? -1 : 1;
+        } else if (lsb1 != lsb2) {
+            return lsb1 < lsb2 ? -1 : 1;
+        } else if (offset1 != offset2) {
+            return offset1 < offset2 ? -1 : 1;
+        } else {
+            return 0;
+        }
+    }
+
+    /**
+     * A sorted, memory mapped run of map entries.
+     */
+    private class Run {
+
+        private final File file;
+
+        /**
+         * The number of merges that led to this run
+         */
+        private final int level;
+
+        private final MappedByteBuffer buffer;
+
+        private final int size;
+
+        private final long segments;
+
+        Run(File file, int level) throws IOException {
+            this.file = file;
+            this.level = level;
+            RandomAccessFile access = new RandomAccessFile(file, "r");
+            try {
+                this.buffer = access.getChannel().map(READ_ONLY, 0, access.length());
+            } finally {
+                access.close();
+            }
+            this.size = buffer.capacity() / ENTRY_SIZE;
+            this.segments = countSegments();
+        }
+
+        long getLong(int index, int field) {
+            return buffer.getLong(index * ENTRY_SIZE + field * 8);
+        }
+
+        int getBeforeOffset(int index) {
+            return (int) (getLong(index, 2) >> 32);
+        }
+
+        RecordId getAfter(int index) {
+            SegmentId id = tracker.getSegmentId(getLong(index, 3), getLong(index, 4));
+            return new RecordId(id, (int) getLong(index, 2));
+        }
+
+        int compareTo(int index, Run other, int otherIndex) {
+            return compare(getLong(index, 0), getLong(index, 1), getBeforeOffset(index),
+                    other.getLong(otherIndex, 0), other.getLong(otherIndex, 1),
+                    other.getBeforeOffset(otherIndex));
+        }
+
+        /**
+         * @return the index of the first entry not smaller than the given key
+         */
+        private int lowerBound(long msb, long lsb, int offset) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (compare(getLong(mid, 0), getLong(mid, 1), getBeforeOffset(mid),
+                        msb, lsb, offset) < 0) {
+                    low = mid + 1;
+                } else {
+                    high = mid;
+                }
+            }
+            return low;
+        }
+
+        int find(long msb, long lsb, int offset) {
+            int index = lowerBound(msb, lsb, offset);
+            if (index < size && getLong(index, 0) == msb
+                    && getLong(index, 1) == lsb && getBeforeOffset(index) == offset) {
+                return index;
+            }
+            return -1;
+        }
+
+        boolean containsSegment(long msb, long lsb) {
+            int index = lowerBound(msb, lsb, Integer.MIN_VALUE);
+            return index < size && getLong(index, 0) == msb && getLong(index, 1) == lsb;
+        }
+
+        private long countSegments() {
+            long count = 0;
+            for (int i = 0; i < size; i++) {
+                if (i == 0 || getLong(i, 0) != getLong(i - 1, 0)
+                        || getLong(i, 1) != getLong(i - 1, 1)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        void delete() {
+            // the mapping is only released once the buffer is garbage
+            // collected, so deleting might fail on some platforms
+            if (!file.delete()) {
+                log.debug("Failed to delete compaction map run {}", file);
+            }
+        }
+
+    }
+
+}
@@ -0,0 +1,245 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static org.apache.jackrabbit.oak.plugins.segment.Segment.MAX_SEGMENT_SIZE;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import javax.annotation.CheckForNull;
+
+import com.google.common.cache.AbstractCache;
+import com.google.common.cache.CacheStats;
+
+/**
+ * A second level cache for segment data, which is kept outside of the Java
+ * heap in direct byte buffers. Segments evicted from the on-heap segment
+ * cache of the {@link SegmentTracker} are copied here, so that they can be
+ * served again without reading the tar files.
+ * <p>
+ * The memory is divided into a number of fixed size slabs, which are
+ * filled one after the other. Once all slabs are used, the oldest slab is
+ * evicted as a whole and reused. The eviction order is thus first in, first
+ * out, which is sufficient as the on-heap cache keeps track of the hot
+ * segments.
+ * <p>
+ * Entries are keyed by the segment {@code UUID} rather than by the
+ * {@link SegmentId}, to not keep segment identifiers referenced in memory.
+ */
+class OffHeapSegmentCache extends AbstractCache<UUID, ByteBuffer> {
+
+    /**
+     * Default size of the individual slabs
+     */
+    static final int SLAB_SIZE = 16 * 1024 * 1024;
+
+    private final int slabSize;
+
+    /**
+     * The slabs, allocated lazily when they are used the first time.
+     */
+    private final ByteBuffer[] slabs;
+
+    /**
+     * Keys of the entries stored in each slab, used to evict a slab.
+     */
+    private final List<List<UUID>> slabKeys;
+
+    private final Map<UUID, Entry> entries = newHashMap();
+
+    private final SimpleStatsCounter stats = new SimpleStatsCounter();
+
+    /**
+     * The slab currently being filled.
+     */
+    private int slab = 0;
+
+    /**
+     * Write position within the current slab.
+     */
+    private int position = 0;
+
+    /**
+     * The number of bytes used by all entries.
+     */
+    private long weight = 0;
+
+    /**
+     * Create a new off-heap cache.
+     *
+     * @param maxSize the maximum memory in bytes.
+     */
+    OffHeapSegmentCache(long maxSize) {
+        this(maxSize, SLAB_SIZE);
+    }
+
+    OffHeapSegmentCache(long maxSize, int slabSize) {
+        checkArgument(slabSize >= MAX_SEGMENT_SIZE,
+                "Slab size must be at least the maximum segment size");
+        checkArgument(maxSize >= slabSize,
+                "Cache size must be at least the slab size");
+        long count = maxSize / slabSize;
+        checkArgument(count <= Integer.MAX_VALUE, "Too many slabs");
+        this.slabSize = slabSize;
+        this.slabs = new ByteBuffer[(int) count];
+        this.slabKeys = newArrayList();
+        for (int i = 0; i < slabs.length; i++) {
+            slabKeys.add(null);
+        }
+    }
+
+    /**
+     * Get a copy of the data of the given segment.
+     *
+     * @param key the segment {@code UUID}
+     * @return a heap buffer with the segment data, or {@code null}
+     */
+    @Override
+    @CheckForNull
+    public synchronized ByteBuffer getIfPresent(Object key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            stats.recordMisses(1);
+            return null;
+        }
+
+        ByteBuffer source = slabs[entry.slab].duplicate();
+        source.position(entry.offset);
+        source.limit(entry.offset + entry.length);
+        ByteBuffer data = ByteBuffer.allocate(entry.length);
+        data.put(source);
+        data.rewind();
+        stats.recordHits(1);
+        return data;
+    }
+
+    /**
+     * Copy the given segment data into this cache. Nothing is done if the
+     * segment is already cached, as segments are immutable.
+     *
+     * @param key the segment {@code UUID}
+     * @param data the segment data
+     */
+    @Override
+    public synchronized void put(UUID key, ByteBuffer data) {
+        int length = data.remaining();
+        if (entries.containsKey(key) || length > slabSize) {
+            return;
+        }
+
+        if (position + length > slabSize) {
+            slab = (slab + 1) % slabs.length;
+            position = 0;
+            evict(slab);
+        }
+        if (slabs[slab] == null) {
+            slabs[slab] = ByteBuffer.allocateDirect(slabSize);
+            List<UUID> keys = newArrayList();
+            slabKeys.set(slab, keys);
+        }
+
+        ByteBuffer target = slabs[slab].duplicate();
+        target.position(position);
+        target.put(data.duplicate());
+        entries.put(key, new Entry(slab, position, length));
+        slabKeys.get(slab).add(key);
+        position += length;
+        weight += length;
+    }
+
+    void put(SegmentId id, Segment segment) {
+        put(id.asUUID(), segment.getData());
+    }
+
+    @CheckForNull
+    ByteBuffer get(SegmentId id) {
+        return getIfPresent(id.asUUID());
+    }
+
+    private void evict(int index) {
+        List<UUID> keys = slabKeys.get(index);
+        if (keys != null) {
+            for (UUID key : keys) {
+                Entry entry = entries.remove(key);
+                weight -= entry.length;
+                stats.recordEviction();
+            }
+            keys.clear();
+        }
+    }
+
+    @Override
+    public synchronized void invalidateAll() {
+        for (int i = 0; i < slabs.length; i++) {
+            List<UUID> keys = slabKeys.get(i);
+            if (keys != null) {
+                keys.clear();
+            }
+        }
+        entries.clear();
+        slab = 0;
+        position = 0;
+        weight = 0;
+    }
+
+    @Override
+    public synchronized long size() {
+        return entries.size();
+    }
+
+    /**
+     * @return the number of bytes used by the cached segments
+     */
+    synchronized long getWeight() {
+        return weight;
+    }
+
+    /**
+     * @return the maximum number of bytes this cache can hold
+     */
+    long getMaxWeight() {
+        return (long) slabs.length * slabSize;
+    }
+
+    @Override
+    public CacheStats stats() {
+        return stats.snapshot();
+    }
+
+    private static class Entry {
+
+        private final int slab;
+
+        private final int offset;
+
+        private final int length;
+
+        Entry(int slab, int offset, int length) {
+            this.slab = slab;
+            this.offset = offset;
+            this.length = length;
+        }
+
+    }
+
+}
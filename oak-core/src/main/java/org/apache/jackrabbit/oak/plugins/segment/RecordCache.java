@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment;
+
+import static com.google.common.collect.Maps.newConcurrentMap;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Cache of recently written records, used by {@link SegmentWriter} to avoid
+ * storing duplicates of frequently occurring strings, templates and node
+ * records. The cache can be shared by several writers.
+ * <p>
+ * Entries are partitioned into generations, each of which is a bounded LRU
+ * map. Writers of regular commits use the <em>current</em> generation.
+ * A compaction writer uses a generation of its own, which becomes the
+ * current one once the compacted state has been set as the new head. New
+ * commits then reuse the compacted records, but never reference records of
+ * the pre-compacted content.
+ * <p>
+ * Records added to a generation that has been dropped in the meantime are
+ * ignored, so that concurrent writers don't add stale records back.
+ * <p>
+ * Looking up records doesn't lock the cache as a whole and each generation
+ * is synchronized separately, so that a compaction writer doesn't contend
+ * with the writers of regular commits.
+ */
+class RecordCache {
+
+    /**
+     * Maximum number of records per generation.
+     */
+    private final int size;
+
+    private final ConcurrentMap<Integer, Generation> generations =
+            newConcurrentMap();
+
+    private volatile int current;
+
+    private int last;
+
+    RecordCache(int size) {
+        this.size = size;
+        generations.put(current, new Generation());
+    }
+
+    /**
+     * @return the current generation
+     */
+    int getGeneration() {
+        return current;
+    }
+
+    /**
+     * Creates a new, empty generation for a compaction writer. The
+     * generations of previous compactions that did not become current
+     * are dropped.
+     *
+     * @return the new generation
+     */
+    synchronized int newGeneration() {
+        Iterator<Integer> iterator = generations.keySet().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next() != current) {
+                iterator.remove();
+            }
+        }
+        int generation = ++last;
+        generations.put(generation, new Generation());
+        return generation;
+    }
+
+    /**
+     * Makes the given generation the current one, dropping the records
+     * of the previous current generation.
+     *
+     * @param generation the generation, as returned by {@link #newGeneration()}
+     */
+    synchronized void setGeneration(int generation) {
+        if (generation != current) {
+            generations.remove(current);
+            if (!generations.containsKey(generation)) {
+                generations.put(generation, new Generation());
+            }
+            current = generation;
+        }
+    }
+
+    /**
+     * Drops all records of the current generation by replacing it with a
+     * new, empty generation.
+     */
+    synchronized void clear() {
+        int generation = ++last;
+        generations.put(generation, new Generation());
+        generations.remove(current);
+        current = generation;
+    }
+
+    /**
+     * Drops all records of the given generation. Records added to it
+     * later on are ignored.
+     *
+     * @param generation the generation
+     */
+    synchronized void drop(int generation) {
+        if (generation == current) {
+            clear();
+        } else {
+            generations.remove(generation);
+        }
+    }
+
+    RecordId get(int generation, Object key) {
+        Generation records = generations.get(generation);
+        if (records != null) {
+            return records.get(key);
+        } else {
+            return null;
+        }
+    }
+
+    void put(int generation, Object key, RecordId id) {
+        Generation records = generations.get(generation);
+        if (records != null) {
+            records.put(key, id);
+        }
+    }
+
+    private class Generation {
+
+        private final Map<Object, RecordId> records = newRecordMap(size);
+
+        synchronized RecordId get(Object key) {
+            return records.get(key);
+        }
+
+        synchronized void put(Object key, RecordId id) {
+            records.put(key, id);
+        }
+
+    }
+
+    @SuppressWarnings("serial")
+    private static Map<Object, RecordId> newRecordMap(final int maxSize) {
+        return new LinkedHashMap<Object, RecordId>(maxSize * 3 / 2, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Object, RecordId> e) {
+                return size() > maxSize;
+            }
+        };
+    }
+
+}
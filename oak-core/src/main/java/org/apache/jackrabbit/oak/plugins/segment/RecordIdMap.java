@@ -21,19 +21,27 @@ package org.apache.jackrabbit.oak.plugins.segment;
 
 import static java.lang.System.arraycopy;
 import static java.util.Arrays.binarySearch;
+import static java.util.Arrays.copyOf;
 
 import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 /**
  * A memory optimised map of {@code short} key to {@link RecordId} values.
+ * <p>
+ * The values are kept as segment id and offset in separate arrays, so
+ * there is no {@code RecordId} instance per entry. The arrays grow by
+ * doubling.
  */
 public class RecordIdMap {
     private static final short[] NO_KEYS = new short[0];
-    private static final RecordId[] NO_VALUES = new RecordId[0];
+    private static final SegmentId[] NO_SEGMENT_IDS = new SegmentId[0];
+    private static final int[] NO_OFFSETS = new int[0];
 
     private short[] keys = NO_KEYS;
-    private RecordId[] values = NO_VALUES;
+    private SegmentId[] segmentIds = NO_SEGMENT_IDS;
+    private int[] offsets = NO_OFFSETS;
+    private int size;
 
     /**
      * Associates {@code key} with {@code value} if not already present
@@ -42,33 +50,28 @@ public class RecordIdMap {
      * @return  {@code true} if added, {@code false} if already present
      */
     public boolean put(short key, @Nonnull RecordId value) {
-        if (keys.length == 0) {
-            keys = new short[1];
-            values = new RecordId[1];
-            keys[0] = key;
-            values[0] = value;
+        int k = binarySearch(keys, 0, size, key);
+        if (k < 0) {
+            int l = -k - 1;
+            if (size == keys.length) {
+                int capacity = Math.max(1, 2 * size);
+                keys = copyOf(keys, capacity);
+                segmentIds = copyOf(segmentIds, capacity);
+                offsets = copyOf(offsets, capacity);
+            }
+            int c = size - l;
+            if (c > 0) {
+                arraycopy(keys, l, keys, l + 1, c);
+                arraycopy(segmentIds, l, segmentIds, l + 1, c);
+                arraycopy(offsets, l, offsets, l + 1, c);
+            }
+            keys[l] = key;
+            segmentIds[l] = value.getSegmentId();
+            offsets[l] = value.getOffset();
+            size++;
             return true;
         } else {
-            int k = binarySearch(keys, key);
-            if (k < 0) {
-                int l = -k - 1;
-                short[] newKeys = new short[keys.length + 1];
-                RecordId[] newValues = new RecordId[(values.length + 1)];
-                arraycopy(keys, 0, newKeys, 0, l);
-                arraycopy(values, 0, newValues, 0, l);
-                newKeys[l] = key;
-                newValues[l] = value;
-                int c = keys.length - l;
-                if (c > 0) {
-                    arraycopy(keys, l, newKeys, l + 1, c);
-                    arraycopy(values, l, newValues, l + 1, c);
-                }
-                keys = newKeys;
-                values = newValues;
-                return true;
-            } else {
-                return false;
-            }
+            return false;
         }
     }
 
@@ -79,9 +82,9 @@ public class RecordIdMap {
      */
     @CheckForNull
     public RecordId get(short key) {
-        int k = binarySearch(keys, key);
+        int k = binarySearch(keys, 0, size, key);
         if (k >= 0) {
-            return values[k];
+            return new RecordId(segmentIds[k], offsets[k]);
         } else {
             return null;
         }
@@ -93,14 +96,14 @@ public class RecordIdMap {
      * @return  {@code true} iff {@code key} is present.
      */
     public boolean containsKey(short key) {
-        return binarySearch(keys, key) >= 0;
+        return binarySearch(keys, 0, size, key) >= 0;
     }
 
     /**
      * @return the number of keys in this map
      */
     public int size() {
-        return keys.length;
+        return size;
     }
 
     /**
@@ -111,6 +114,7 @@ public class RecordIdMap {
      * @throws ArrayIndexOutOfBoundsException if not {@code 0 <= index < size()}
      */
     public short getKey(int index) {
+        checkIndex(index);
         return keys[index];
     }
 
@@ -123,6 +127,13 @@ public class RecordIdMap {
      */
     @Nonnull
     public RecordId getRecordId(int index) {
-        return values[index];
+        checkIndex(index);
+        return new RecordId(segmentIds[index], offsets[index]);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new ArrayIndexOutOfBoundsException(index);
+        }
     }
 }
@@ -19,21 +19,36 @@
 
 package org.apache.jackrabbit.oak.plugins.segment;
 
-import static com.google.common.collect.Maps.newHashMap;
 import static java.lang.System.arraycopy;
 import static java.util.Arrays.binarySearch;
 import static org.apache.jackrabbit.oak.plugins.segment.Segment.RECORD_ALIGN_BITS;
 
-import java.util.Map;
-
 /**
  * A memory optimised set of {@link RecordId}s.
  *
  * The set doesn't keep references to the actual record ids
- * it contains.
+ * it contains. Segments are kept in an open addressing hash table keyed
+ * by the most and least significant bits of their id, each with a sorted
+ * array of the offsets of the records it contains. There are no objects
+ * per record and lookups don't allocate.
  */
 public class RecordIdSet {
-    private final Map<String, ShortSet> seenIds = newHashMap();
+
+    /**
+     * The segment ids, most and least significant bits of each slot next
+     * to each other.
+     */
+    private long[] segmentIds = new long[2 * 16];
+
+    /**
+     * The offsets of the records per slot, {@code null} for empty slots.
+     */
+    private ShortSet[] offsets = new ShortSet[16];
+
+    /**
+     * Number of segments in this set
+     */
+    private int segmentCount;
 
     /**
      * Add {@code id} to this set if not already present
@@ -41,13 +56,21 @@ public class RecordIdSet {
      * @return  {@code true} if added, {@code false} if already present
      */
     public boolean addIfNotPresent(RecordId id) {
-        String segmentId = id.getSegmentId().toString();
-        ShortSet offsets = seenIds.get(segmentId);
-        if (offsets == null) {
-            offsets = new ShortSet();
-            seenIds.put(segmentId, offsets);
+        SegmentId segmentId = id.getSegmentId();
+        long msb = segmentId.getMostSignificantBits();
+        long lsb = segmentId.getLeastSignificantBits();
+        int slot = find(msb, lsb);
+        if (offsets[slot] == null) {
+            if (2 * (segmentCount + 1) > offsets.length) {
+                rehash();
+                slot = find(msb, lsb);
+            }
+            segmentIds[2 * slot] = msb;
+            segmentIds[2 * slot + 1] = lsb;
+            offsets[slot] = new ShortSet();
+            segmentCount++;
         }
-        return offsets.add(crop(id.getOffset()));
+        return offsets[slot].add(crop(id.getOffset()));
     }
 
     /**
@@ -56,35 +79,75 @@ public class RecordIdSet {
      * @return  {@code true} iff {@code id} is present.
      */
     public boolean contains(RecordId id) {
-        String segmentId = id.getSegmentId().toString();
-        ShortSet offsets = seenIds.get(segmentId);
-        return offsets != null && offsets.contains(crop(id.getOffset()));
+        SegmentId segmentId = id.getSegmentId();
+        ShortSet set = offsets[find(
+                segmentId.getMostSignificantBits(),
+                segmentId.getLeastSignificantBits())];
+        return set != null && set.contains(crop(id.getOffset()));
+    }
+
+    /**
+     * Find the slot of the segment with the given id. That is either the
+     * slot containing that segment or the empty slot it should go to.
+     */
+    private int find(long msb, long lsb) {
+        int mask = offsets.length - 1;
+        // the lower bits of the least significant bits are random
+        int slot = (int) (lsb ^ (lsb >>> 32) ^ msb) & mask;
+        while (offsets[slot] != null
+                && (segmentIds[2 * slot] != msb || segmentIds[2 * slot + 1] != lsb)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void rehash() {
+        long[] oldIds = segmentIds;
+        ShortSet[] oldOffsets = offsets;
+        segmentIds = new long[2 * oldIds.length];
+        offsets = new ShortSet[2 * oldOffsets.length];
+        for (int i = 0; i < oldOffsets.length; i++) {
+            if (oldOffsets[i] != null) {
+                long msb = oldIds[2 * i];
+                long lsb = oldIds[2 * i + 1];
+                int slot = find(msb, lsb);
+                segmentIds[2 * slot] = msb;
+                segmentIds[2 * slot + 1] = lsb;
+                offsets[slot] = oldOffsets[i];
+            }
+        }
     }
 
     private static short crop(int value) {
         return (short) (value >> RECORD_ALIGN_BITS);
     }
 
+    /**
+     * Sorted set of {@code short}s, growing its backing array by doubling
+     * rather than one element at a time.
+     */
     static class ShortSet {
         short[] elements;
+        int size;
 
         boolean add(short n) {
             if (elements == null) {
                 elements = new short[1];
                 elements[0] = n;
+                size = 1;
                 return true;
             } else {
-                int k = binarySearch(elements, n);
+                int k = binarySearch(elements, 0, size, n);
                 if (k < 0) {
                     int l = -k - 1;
-                    short[] e = new short[elements.length + 1];
-                    arraycopy(elements, 0, e, 0, l);
-                    e[l] = n;
-                    int c = elements.length - l;
-                    if (c > 0) {
-                        arraycopy(elements, l, e, l + 1, c);
+                    if (size == elements.length) {
+                        short[] e = new short[Math.min(2 * size, 1 << 16)];
+                        arraycopy(elements, 0, e, 0, size);
+                        elements = e;
                     }
-                    elements = e;
+                    arraycopy(elements, l, elements, l + 1, size - l);
+                    elements[l] = n;
+                    size++;
                     return true;
                 } else {
                     return false;
@@ -93,7 +156,7 @@ public class RecordIdSet {
         }
 
         boolean contains(short n) {
-            return elements != null && binarySearch(elements, n) >= 0;
+            return elements != null && binarySearch(elements, 0, size, n) >= 0;
         }
     }
 
@@ -312,6 +312,13 @@ public class Segment {
         return data.remaining();
     }
 
+    /**
+     * @return a read-only view of the raw data of this segment
+     */
+    ByteBuffer getData() {
+        return data.asReadOnlyBuffer();
+    }
+
     public long getCacheSize() {
         int size = 1024;
         if (!data.isDirect()) {
@@ -0,0 +1,360 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment;
+
+import static com.google.common.base.Preconditions.checkArgument;
+import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newLinkedHashMap;
+import static com.google.common.collect.Sets.newHashSet;
+import static org.apache.jackrabbit.oak.plugins.segment.Segment.MAX_SEGMENT_SIZE;
+import static org.apache.jackrabbit.oak.plugins.segment.Segment.RECORD_ID_BYTES;
+import static org.apache.jackrabbit.oak.plugins.segment.Segment.SEGMENT_REFERENCE_LIMIT;
+import static org.apache.jackrabbit.oak.plugins.segment.SegmentWriter.align;
+import static org.apache.jackrabbit.oak.plugins.segment.SegmentWriter.createNewBuffer;
+
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A buffer for a single in-progress segment. Records are allocated with
+ * the {@code prepare} methods and then filled in with the various
+ * {@code write} methods. Once the buffer is full it is automatically
+ * flushed to the segment store and a new segment is started.
+ * <p>
+ * Instances of this class are <em>not</em> thread-safe. The
+ * {@link SegmentWriter} owning a buffer writer synchronizes on it
+ * for the duration of each record it writes.
+ */
+class SegmentBufferWriter {
+
+    /** Logger instance */
+    private static final Logger log =
+            LoggerFactory.getLogger(SegmentBufferWriter.class);
+
+    private final SegmentStore store;
+
+    private final SegmentTracker tracker;
+
+    /**
+     * Version of the segment storage format.
+     */
+    private final SegmentVersion version;
+
+    /**
+     * The set of root records (i.e. ones not referenced by other records)
+     * in this segment.
+     */
+    private final Map<RecordId, RecordType> roots = newLinkedHashMap();
+
+    /**
+     * Identifiers of the external blob references stored in this segment.
+     */
+    private final List<RecordId> blobrefs = newArrayList();
+
+    /**
+     * The segment write buffer, filled from the end to the beginning
+     * (see OAK-629).
+     */
+    private byte[] buffer;
+
+    /**
+     * The number of bytes already written (or allocated). Counted from
+     * the <em>end</em> of the buffer.
+     */
+    private int length = 0;
+
+    /**
+     * Current write position within the buffer. Grows up when raw data
+     * is written, but shifted downwards by the prepare methods.
+     */
+    private int position;
+
+    /**
+     * The in-progress segment. Volatile, so that the writers of other lanes
+     * can check whether a record is still pending in this buffer without
+     * synchronizing on it. It is only replaced after the previous segment
+     * has been written to the store.
+     */
+    private volatile Segment segment;
+
+    SegmentBufferWriter(SegmentStore store, SegmentTracker tracker, SegmentVersion version) {
+        this.store = store;
+        this.tracker = tracker;
+        this.version = version;
+        this.buffer = createNewBuffer(version);
+        this.segment = new Segment(tracker, buffer);
+        segment.getSegmentId().setSegment(segment);
+    }
+
+    /**
+     * @return identifier of the in-progress segment of this buffer
+     */
+    SegmentId getSegmentId() {
+        return segment.getSegmentId();
+    }
+
+    /**
+     * Adds a segment header to the buffer and writes a segment to the segment
+     * store. This is done automatically (called from prepare) when there is not
+     * enough space for a record. It can also be called explicitly.
+     */
+    void flush() {
+        if (length > 0) {
+            int refcount = segment.getRefCount();
+
+            int rootcount = roots.size();
+            buffer[Segment.ROOT_COUNT_OFFSET] = (byte) (rootcount >> 8);
+            buffer[Segment.ROOT_COUNT_OFFSET + 1] = (byte) rootcount;
+
+            int blobrefcount = blobrefs.size();
+            buffer[Segment.BLOBREF_COUNT_OFFSET] = (byte) (blobrefcount >> 8);
+            buffer[Segment.BLOBREF_COUNT_OFFSET + 1] = (byte) blobrefcount;
+
+            length = align(
+                    refcount * 16 + rootcount * 3 + blobrefcount * 2 + length,
+                    16);
+
+            checkState(length <= buffer.length);
+
+            int pos = refcount * 16;
+            if (pos + length <= buffer.length) {
+                // the whole segment fits to the space *after* the referenced
+                // segment identifiers we've already written, so we can safely
+                // copy those bits ahead even if concurrent code is still
+                // reading from that part of the buffer
+                System.arraycopy(buffer, 0, buffer, buffer.length-length, pos);
+                pos += buffer.length - length;
+            } else {
+                // this might leave some empty space between the header and
+                // the record data, but this case only occurs when the
+                // segment is >252kB in size and the maximum overhead is <<4kB,
+                // which is acceptable
+                length = buffer.length;
+            }
+
+            for (Map.Entry<RecordId, RecordType> entry : roots.entrySet()) {
+                int offset = entry.getKey().getOffset();
+                buffer[pos++] = (byte) entry.getValue().ordinal();
+                buffer[pos++] = (byte) (offset >> (8 + Segment.RECORD_ALIGN_BITS));
+                buffer[pos++] = (byte) (offset >> Segment.RECORD_ALIGN_BITS);
+            }
+
+            for (RecordId blobref : blobrefs) {
+                int offset = blobref.getOffset();
+                buffer[pos++] = (byte) (offset >> (8 + Segment.RECORD_ALIGN_BITS));
+                buffer[pos++] = (byte) (offset >> Segment.RECORD_ALIGN_BITS);
+            }
+
+            SegmentId id = segment.getSegmentId();
+            log.debug("Writing data segment {} ({} bytes)", id, length);
+            store.writeSegment(id, buffer, buffer.length - length, length);
+
+            // Keep this segment in memory as it's likely to be accessed soon
+            ByteBuffer data;
+            if (buffer.length - length > 4096) {
+                data = ByteBuffer.allocate(length);
+                data.put(buffer, buffer.length - length, length);
+                data.rewind();
+            } else {
+                data = ByteBuffer.wrap(buffer, buffer.length - length, length);
+            }
+            tracker.setSegment(id, new Segment(tracker, id, data));
+
+            buffer = createNewBuffer(version);
+            roots.clear();
+            blobrefs.clear();
+            length = 0;
+            position = buffer.length;
+            segment = new Segment(tracker, buffer);
+            segment.getSegmentId().setSegment(segment);
+        }
+    }
+
+    RecordId prepare(RecordType type, int size) {
+        return prepare(type, size, Collections.<RecordId>emptyList());
+    }
+
+    /**
+     * Before writing a record (which are written backwards, from the end of the
+     * file to the beginning), this method is called, to ensure there is enough
+     * space. A new segment is also created if there is not enough space in the
+     * segment lookup table or elsewhere.
+     * <p>
+     * This method does not actually write into the segment, just allocates the
+     * space (flushing the segment if needed and starting a new one), and sets
+     * the write position (records are written from the end to the beginning,
+     * but within a record from left to right).
+     *
+     * @param type the record type (only used for root records)
+     * @param size the size of the record, excluding the size used for the
+     *            record ids
+     * @param ids the record ids
+     * @return a new record id
+     */
+    RecordId prepare(RecordType type, int size, Collection<RecordId> ids) {
+        checkArgument(size >= 0);
+        checkNotNull(ids);
+
+        int idcount = ids.size();
+        int recordSize = align(size + idcount * RECORD_ID_BYTES);
+
+        // First compute the header and segment sizes based on the assumption
+        // that *all* identifiers stored in this record point to previously
+        // unreferenced segments.
+        int refcount = segment.getRefCount() + idcount;
+        int blobrefcount = blobrefs.size() + 1;
+        int rootcount = roots.size() + 1;
+        int headerSize = refcount * 16 + rootcount * 3 + blobrefcount * 2;
+        int segmentSize = align(headerSize + recordSize + length, 16);
+
+        // If the size estimate looks too big, recompute it with a more
+        // accurate refcount value. We skip doing this when possible to
+        // avoid the somewhat expensive list and set traversals.
+        if (segmentSize > buffer.length - 1
+                || refcount > Segment.SEGMENT_REFERENCE_LIMIT) {
+            refcount -= idcount;
+
+            Set<SegmentId> segmentIds = newHashSet();
+
+            // The set of old record ids in this segment
+            // that were previously root record ids, but will no longer be,
+            // because the record to be written references them.
+            // This needs to be a set, because the list of ids can
+            // potentially reference the same record multiple times
+            Set<RecordId> notRoots = new HashSet<RecordId>();
+            for (RecordId recordId : ids) {
+                SegmentId segmentId = recordId.getSegmentId();
+                if (!(segmentId.equals(segment.getSegmentId()))) {
+                    segmentIds.add(segmentId);
+                } else if (roots.containsKey(recordId)) {
+                    notRoots.add(recordId);
+                }
+            }
+            rootcount -= notRoots.size();
+
+            if (!segmentIds.isEmpty()) {
+                for (int refid = 1; refid < refcount; refid++) {
+                    segmentIds.remove(segment.getRefId(refid));
+                }
+                refcount += segmentIds.size();
+            }
+
+            headerSize = refcount * 16 + rootcount * 3 + blobrefcount * 2;
+            segmentSize = align(headerSize + recordSize + length, 16);
+        }
+
+        if (segmentSize > buffer.length - 1
+                || blobrefcount > 0xffff
+                || rootcount > 0xffff
+                || refcount > Segment.SEGMENT_REFERENCE_LIMIT) {
+            flush();
+        }
+
+        length += recordSize;
+        position = buffer.length - length;
+        checkState(position >= 0);
+
+        RecordId id = new RecordId(segment.getSegmentId(), position);
+        roots.put(id, type);
+        return id;
+    }
+
+    private int getSegmentRef(SegmentId segmentId) {
+        int refcount = segment.getRefCount();
+        if (refcount > SEGMENT_REFERENCE_LIMIT) {
+          throw new SegmentOverflowException(
+                  "Segment cannot have more than 255 references " + segment.getSegmentId());
+        }
+        for (int index = 0; index < refcount; index++) {
+            if (segmentId.equals(segment.getRefId(index))) {
+                return index;
+            }
+        }
+
+        ByteBuffer.wrap(buffer, refcount * 16, 16)
+            .putLong(segmentId.getMostSignificantBits())
+            .putLong(segmentId.getLeastSignificantBits());
+        buffer[Segment.REF_COUNT_OFFSET] = (byte) refcount;
+        return refcount;
+    }
+
+    /**
+     * Write a record id, and marks the record id as referenced (removes it from
+     * the unreferenced set).
+     *
+     * @param recordId the record id
+     */
+    void writeRecordId(RecordId recordId) {
+        checkNotNull(recordId);
+        roots.remove(recordId);
+
+        int offset = recordId.getOffset();
+        checkState(0 <= offset && offset < MAX_SEGMENT_SIZE);
+        checkState(offset == align(offset));
+
+        buffer[position++] = (byte) getSegmentRef(recordId.getSegmentId());
+        buffer[position++] = (byte) (offset >> (8 + Segment.RECORD_ALIGN_BITS));
+        buffer[position++] = (byte) (offset >> Segment.RECORD_ALIGN_BITS);
+    }
+
+    void writeByte(byte value) {
+        buffer[position++] = value;
+    }
+
+    void writeShort(short value) {
+        buffer[position++] = (byte) (value >> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    void writeInt(int value) {
+        buffer[position++] = (byte) (value >> 24);
+        buffer[position++] = (byte) (value >> 16);
+        buffer[position++] = (byte) (value >> 8);
+        buffer[position++] = (byte) value;
+    }
+
+    void writeLong(long value) {
+        writeInt((int) (value >> 32));
+        writeInt((int) value);
+    }
+
+    void writeBytes(byte[] data, int offset, int length) {
+        System.arraycopy(data, offset, buffer, position, length);
+        position += length;
+    }
+
+    /**
+     * Marks the given, previously prepared record as an external
+     * blob reference of this segment.
+     *
+     * @param id identifier of the blob id record
+     */
+    void addBlobRef(RecordId id) {
+        blobrefs.add(id);
+    }
+
+}
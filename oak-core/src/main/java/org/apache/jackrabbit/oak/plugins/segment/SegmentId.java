@@ -75,6 +75,12 @@ public class SegmentId implements Comparable<SegmentId> {
      */
     private volatile Segment segment;
 
+    /**
+     * Whether the segment was loaded ahead of time by the
+     * {@link SegmentPrefetcher} and not accessed since.
+     */
+    private boolean prefetched;
+
     private SegmentId(SegmentTracker tracker, long msb, long lsb,
             Segment segment, long creationTime) {
         this.tracker = tracker;
@@ -150,6 +156,11 @@ public class SegmentId implements Comparable<SegmentId> {
                 }
             }
         }
+        if (prefetched) {
+            // benign race, at worst a hit is counted twice
+            prefetched = false;
+            tracker.prefetchHit(segment);
+        }
         return segment;
     }
 
@@ -157,6 +168,17 @@ public class SegmentId implements Comparable<SegmentId> {
         this.segment = segment;
     }
 
+    /**
+     * @return {@code true} if the segment is in memory
+     */
+    public boolean isLoaded() {
+        return segment != null;
+    }
+
+    void setPrefetched() {
+        prefetched = true;
+    }
+
     public SegmentTracker getTracker() {
         return tracker;
     }
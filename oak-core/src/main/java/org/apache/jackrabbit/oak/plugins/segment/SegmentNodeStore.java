@@ -18,6 +18,8 @@ package org.apache.jackrabbit.oak.plugins.segment;
 
 import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkNotNull;
+import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.Lists.newArrayList;
 import static java.lang.System.currentTimeMillis;
 import static java.util.concurrent.TimeUnit.MILLISECONDS;
 import static java.util.concurrent.TimeUnit.NANOSECONDS;
@@ -29,11 +31,14 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Queue;
 import java.util.Random;
 import java.util.UUID;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicReference;
@@ -75,6 +80,11 @@ public class SegmentNodeStore implements NodeStore, Observable {
 
     public static final String CHECKPOINTS = "checkpoints";
 
+    /**
+     * Default for {@link #setGroupCommit(boolean)}
+     */
+    static final boolean GROUP_COMMIT_DEFAULT = Boolean.getBoolean("oak.segment.groupCommit");
+
     private final SegmentStore store;
 
     private final ChangeDispatcher changeDispatcher;
@@ -93,6 +103,19 @@ public class SegmentNodeStore implements NodeStore, Observable {
 
     private long maximumBackoff = MILLISECONDS.convert(10, SECONDS);
 
+    /**
+     * Whether concurrent commits are combined into a single update of
+     * the head state. See {@link #groupMerge(PendingCommit)}.
+     */
+    private volatile boolean groupCommit = GROUP_COMMIT_DEFAULT;
+
+    /**
+     * Commits waiting to be applied by the next thread acquiring the
+     * {@link #commitSemaphore} in group commit mode.
+     */
+    private final Queue<PendingCommit> pendingCommits =
+            new ConcurrentLinkedQueue<PendingCommit>();
+
     @Nonnull
     public static SegmentNodeStoreBuilder newSegmentNodeStore(
             @Nonnull SegmentStore store) {
@@ -122,6 +145,19 @@ public class SegmentNodeStore implements NodeStore, Observable {
         this.maximumBackoff = max;
     }
 
+    /**
+     * Turn group commit on or off. With group commit, a thread acquiring
+     * the commit lock also applies the commits of all threads waiting for
+     * it, each on top of the previous one, and then updates the head state
+     * once for all of them. Each commit is still rebased and run through
+     * its own commit hook, and observers still see each commit separately.
+     *
+     * @param groupCommit {@code true} to turn group commit on
+     */
+    void setGroupCommit(boolean groupCommit) {
+        this.groupCommit = groupCommit;
+    }
+
     /**
      * Execute the passed callable with trying to acquire this store's commit lock.
      * @param c  callable to execute
@@ -199,15 +235,20 @@ public class SegmentNodeStore implements NodeStore, Observable {
         SegmentNodeBuilder snb = (SegmentNodeBuilder) builder;
 
         try {
-            commitSemaphore.acquire();
-            try {
-                Commit commit = new Commit(snb, commitHook, info);
-                NodeState merged = commit.execute();
-                snb.reset(merged);
-                return merged;
-            } finally {
-                commitSemaphore.release();
+            NodeState merged;
+            if (groupCommit) {
+                merged = groupMerge(new PendingCommit(snb, commitHook, info));
+            } else {
+                commitSemaphore.acquire();
+                try {
+                    Commit commit = new Commit(snb, commitHook, info);
+                    merged = commit.execute();
+                } finally {
+                    commitSemaphore.release();
+                }
             }
+            snb.reset(merged);
+            return merged;
         } catch (InterruptedException e) {
             throw new CommitFailedException(
                     "Segment", 2, "Merge interrupted", e);
@@ -217,6 +258,99 @@ public class SegmentNodeStore implements NodeStore, Observable {
         }
     }
 
+    /**
+     * Merge the given commit in group commit mode. The commit is queued and
+     * applied either by this thread or by the thread currently holding the
+     * commit lock, whichever gets to it first.
+     */
+    private NodeState groupMerge(PendingCommit commit)
+            throws CommitFailedException, InterruptedException {
+        pendingCommits.add(commit);
+        try {
+            commitSemaphore.acquire();
+        } catch (InterruptedException e) {
+            if (pendingCommits.remove(commit)) {
+                throw e;
+            }
+            // the commit is already being applied by another thread
+            commitSemaphore.acquireUninterruptibly();
+            Thread.currentThread().interrupt();
+        }
+        try {
+            if (!commit.isDone()) {
+                List<PendingCommit> commits = newArrayList();
+                for (PendingCommit c = pendingCommits.poll(); c != null; c = pendingCommits.poll()) {
+                    commits.add(c);
+                }
+                executeAll(commits);
+            }
+        } finally {
+            commitSemaphore.release();
+        }
+        return commit.getResult();
+    }
+
+    /**
+     * Apply the given commits, each on top of the previous one, and update
+     * the head state once. Commits failing with an exception are skipped.
+     * If the head state cannot be updated because of a concurrent change,
+     * the commits are executed one by one. Should only be called while
+     * holding a permit from the {@link #commitSemaphore}.
+     */
+    private void executeAll(List<PendingCommit> commits) {
+        if (commits.size() > 1) {
+            refreshHead();
+            SegmentNodeState base = head.get();
+            if (!isLocked(base)) {
+                List<PendingCommit> applied = newArrayList();
+                List<SegmentNodeState> states = newArrayList();
+                SegmentNodeState state = base;
+                for (PendingCommit commit : commits) {
+                    try {
+                        SegmentNodeState next = commit.getCommit().apply(state);
+                        if (next != state) {
+                            applied.add(commit);
+                            states.add(next);
+                            state = next;
+                        } else {
+                            commit.succeeded(state.getChildNode(ROOT));
+                        }
+                    } catch (CommitFailedException e) {
+                        commit.failed(e);
+                    } catch (RuntimeException e) {
+                        commit.failed(e);
+                    }
+                }
+
+                if (applied.isEmpty()) {
+                    return;
+                } else if (store.setHead(base, state)) {
+                    head.set(state);
+                    for (int i = 0; i < applied.size(); i++) {
+                        NodeState root = states.get(i).getChildNode(ROOT);
+                        changeDispatcher.contentChanged(root, applied.get(i).info);
+                        applied.get(i).succeeded(root);
+                    }
+                    refreshHead();
+                    return;
+                } else {
+                    log.debug("Concurrent change of the head state, " +
+                            "executing {} commits one by one", applied.size());
+                    commits = applied;
+                }
+            }
+        }
+
+        for (PendingCommit commit : commits) {
+            commit.run();
+        }
+    }
+
+    private static boolean isLocked(SegmentNodeState state) {
+        return state.hasProperty("token")
+                && state.getLong("timeout") >= currentTimeMillis();
+    }
+
     @Override @Nonnull
     public NodeState rebase(@Nonnull NodeBuilder builder) {
         checkArgument(builder instanceof SegmentNodeBuilder);
@@ -463,8 +597,7 @@ public class SegmentNodeStore implements NodeStore, Observable {
 
                 refreshHead();
                 SegmentNodeState state = head.get();
-                if (state.hasProperty("token")
-                        && state.getLong("timeout") >= currentTimeMillis()) {
+                if (isLocked(state)) {
                     // someone else has a pessimistic lock on the journal,
                     // so we should not try to commit anything yet
                 } else {
@@ -532,6 +665,95 @@ public class SegmentNodeStore implements NodeStore, Observable {
             return head.get().getChildNode(ROOT);
         }
 
+        /**
+         * Rebase this commit on the given state and run the commit hook,
+         * without updating the head state.
+         *
+         * @return the state including this commit, or {@code state}
+         *         if there are no changes to commit
+         */
+        SegmentNodeState apply(SegmentNodeState state) throws CommitFailedException {
+            if (fastEquals(before, after)) {
+                return state;
+            }
+            return prepare(state).getNodeState();
+        }
+
+    }
+
+    /**
+     * A commit waiting to be applied in group commit mode. The actual
+     * {@link Commit} is only created by the thread holding the
+     * {@link #commitSemaphore}, as this writes the changes of the builder.
+     * All fields are only accessed while holding the semaphore, or by the
+     * committing thread while it is waiting for the semaphore.
+     */
+    private class PendingCommit {
+
+        private final SegmentNodeBuilder builder;
+
+        private final CommitHook hook;
+
+        private final CommitInfo info;
+
+        private Commit commit;
+
+        private NodeState result;
+
+        private Exception failure;
+
+        PendingCommit(SegmentNodeBuilder builder, CommitHook hook, CommitInfo info) {
+            this.builder = builder;
+            this.hook = hook;
+            this.info = info;
+        }
+
+        Commit getCommit() {
+            if (commit == null) {
+                commit = new Commit(builder, hook, info);
+            }
+            return commit;
+        }
+
+        /**
+         * Execute this commit on its own, recording the result or failure.
+         */
+        void run() {
+            try {
+                succeeded(getCommit().execute());
+            } catch (CommitFailedException e) {
+                failed(e);
+            } catch (RuntimeException e) {
+                failed(e);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                failed(new CommitFailedException(
+                        "Segment", 2, "Merge interrupted", e));
+            }
+        }
+
+        void succeeded(NodeState result) {
+            this.result = result;
+        }
+
+        void failed(Exception failure) {
+            this.failure = failure;
+        }
+
+        boolean isDone() {
+            return result != null || failure != null;
+        }
+
+        NodeState getResult() throws CommitFailedException {
+            if (failure instanceof CommitFailedException) {
+                throw (CommitFailedException) failure;
+            } else if (failure instanceof RuntimeException) {
+                throw (RuntimeException) failure;
+            }
+            checkState(result != null);
+            return result;
+        }
+
     }
 
 }
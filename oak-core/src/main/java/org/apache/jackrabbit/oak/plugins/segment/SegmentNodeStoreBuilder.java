@@ -46,6 +46,7 @@ public class SegmentNodeStoreBuilder {
     private boolean persistCompactionMap;
     private byte gainThreshold;
     private CompactionStrategy compactionStrategy;
+    private boolean groupCommit = SegmentNodeStore.GROUP_COMMIT_DEFAULT;
 
     static SegmentNodeStoreBuilder newSegmentNodeStore(SegmentStore store) {
         return new SegmentNodeStoreBuilder(store);
@@ -83,6 +84,19 @@ public class SegmentNodeStoreBuilder {
         return this;
     }
 
+    /**
+     * Turn group commit on or off. With group commit, concurrent commits
+     * are combined into a single update of the head state. Defaults to the
+     * value of the {@code oak.segment.groupCommit} system property.
+     * @param groupCommit
+     * @return this instance
+     */
+    @Nonnull
+    public SegmentNodeStoreBuilder withGroupCommit(boolean groupCommit) {
+        this.groupCommit = groupCommit;
+        return this;
+    }
+
     public CompactionStrategy getCompactionStrategy() {
         checkState(isCreated);
         return compactionStrategy;
@@ -93,6 +107,7 @@ public class SegmentNodeStoreBuilder {
         checkState(!isCreated);
         isCreated = true;
         final SegmentNodeStore segmentStore = new SegmentNodeStore(store, true);
+        segmentStore.setGroupCommit(groupCommit);
         if (hasCompactionStrategy) {
             compactionStrategy = new CompactionStrategy(pauseCompaction,
                     cloneBinaries, CleanupType.valueOf(cleanup), cleanupTs,
@@ -136,6 +136,30 @@ public class SegmentNodeStoreService extends ProxyNodeStore
     )
     public static final String CACHE = "cache";
 
+    @Property(
+            intValue = 0,
+            label = "Off-heap cache size (MB)",
+            description = "Size of the off-heap cache for Segments evicted from the " +
+                    "Segment cache. 0 to disable."
+    )
+    public static final String OFF_HEAP_CACHE = "offHeapCache";
+
+    @Property(
+            intValue = 0,
+            label = "Maximum mapped tar files",
+            description = "If memory mapping is off, memory map the given number of " +
+                    "most recently read tar files. 0 to disable."
+    )
+    public static final String MAX_MAPPED_FILES = "maxMappedFiles";
+
+    @Property(
+            boolValue = false,
+            label = "Segment graph",
+            description = "Keep an in-memory graph of the segment references, so that " +
+                    "revision cleanup doesn't need to block concurrent writes"
+    )
+    public static final String SEGMENT_GRAPH = "segmentGraph";
+
     @Property(
             boolValue = CLONE_BINARIES_DEFAULT,
             label = "Clone Binaries",
@@ -261,6 +285,8 @@ public class SegmentNodeStoreService extends ProxyNodeStore
     private Registration compactionStrategyRegistration;
     private Registration segmentCacheMBean;
     private Registration stringCacheMBean;
+    private Registration offHeapCacheMBean;
+    private Registration prefetchMBean;
     private Registration fsgcMonitorMBean;
     private WhiteboardExecutor executor;
     private boolean customBlobStore;
@@ -342,6 +368,16 @@ public class SegmentNodeStoreService extends ProxyNodeStore
             cache = System.getProperty(CACHE);
         }
 
+        String offHeapCache = property(OFF_HEAP_CACHE);
+        if (offHeapCache == null) {
+            offHeapCache = System.getProperty(OFF_HEAP_CACHE, "0");
+        }
+
+        String maxMappedFiles = property(MAX_MAPPED_FILES);
+        if (maxMappedFiles == null) {
+            maxMappedFiles = System.getProperty(MAX_MAPPED_FILES, "0");
+        }
+
         boolean pauseCompaction = toBoolean(property(PAUSE_COMPACTION),
                 PAUSE_DEFAULT);
         boolean cloneBinaries = toBoolean(
@@ -381,8 +417,11 @@ public class SegmentNodeStoreService extends ProxyNodeStore
         gcMonitor.start(whiteboard);
         Builder storeBuilder = FileStore.newFileStore(new File(directory))
                 .withCacheSize(Integer.parseInt(cache))
+                .withOffHeapCacheSize(Integer.parseInt(offHeapCache))
                 .withMaxFileSize(Integer.parseInt(size))
                 .withMemoryMapping("64".equals(mode))
+                .withMaxMappedFiles(Integer.parseInt(maxMappedFiles))
+                .withSegmentGraph(toBoolean(property(SEGMENT_GRAPH), false))
                 .withGCMonitor(gcMonitor);
         if (customBlobStore) {
             log.info("Initializing SegmentNodeStore with BlobStore [{}]", blobStore);
@@ -413,6 +452,20 @@ public class SegmentNodeStoreService extends ProxyNodeStore
                     CacheStats.TYPE, stringCacheStats.getName());
         }
 
+        CacheStats offHeapCacheStats = store.getTracker().getOffHeapSegmentCacheStats();
+        if (offHeapCacheStats != null) {
+            offHeapCacheMBean = registerMBean(whiteboard, CacheStatsMBean.class,
+                    offHeapCacheStats,
+                    CacheStats.TYPE, offHeapCacheStats.getName());
+        }
+
+        CacheStats prefetchStats = store.getTracker().getPrefetchStats();
+        if (prefetchStats != null) {
+            prefetchMBean = registerMBean(whiteboard, CacheStatsMBean.class,
+                    prefetchStats,
+                    CacheStats.TYPE, prefetchStats.getName());
+        }
+
         FileStoreGCMonitor fsgcMonitor = new FileStoreGCMonitor(Clock.SIMPLE);
         fsgcMonitorMBean = new CompositeRegistration(
                 whiteboard.register(GCMonitor.class, fsgcMonitor, emptyMap()),
@@ -519,6 +572,14 @@ public class SegmentNodeStoreService extends ProxyNodeStore
             stringCacheMBean.unregister();
             stringCacheMBean = null;
         }
+        if (offHeapCacheMBean != null) {
+            offHeapCacheMBean.unregister();
+            offHeapCacheMBean = null;
+        }
+        if (prefetchMBean != null) {
+            prefetchMBean.unregister();
+            prefetchMBean = null;
+        }
         if(providerRegistration != null){
             providerRegistration.unregister();
             providerRegistration = null;
@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment;
+
+import static java.util.Collections.newSetFromMap;
+
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.CheckForNull;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.cache.AbstractCache;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Asynchronous read-ahead of segments. Whenever a segment is loaded on
+ * demand or a prefetched segment is accessed for the first time, the data
+ * segments it references are loaded into the {@link SegmentTracker} on a
+ * small pool of background threads. A traversal thus finds the segments
+ * further down the tree already in memory.
+ * <p>
+ * Prefetching is best effort: requests are dropped once the queue of
+ * pending loads is full. This class only extends {@code AbstractCache} to
+ * expose its statistics through a {@code CacheStatsMBean}: a hit is the
+ * first access to a prefetched segment, a miss a segment that had to be
+ * loaded on demand, a load a prefetched segment and an eviction a dropped
+ * prefetch request.
+ */
+class SegmentPrefetcher extends AbstractCache<SegmentId, Segment> {
+
+    private static final Logger log = LoggerFactory.getLogger(SegmentPrefetcher.class);
+
+    private final SegmentTracker tracker;
+
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * Segments queued for prefetching, to avoid loading a segment twice
+     */
+    private final Set<SegmentId> queued =
+            newSetFromMap(new ConcurrentHashMap<SegmentId, Boolean>());
+
+    private final SimpleStatsCounter stats = new SimpleStatsCounter();
+
+    /**
+     * Create a new prefetcher.
+     *
+     * @param tracker  the tracker to load segments into
+     * @param threads  number of background threads
+     * @param queueSize  maximum number of pending prefetch requests
+     */
+    SegmentPrefetcher(SegmentTracker tracker, int threads, int queueSize) {
+        this.tracker = tracker;
+        this.executor = new ThreadPoolExecutor(threads, threads,
+                60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r,
+                                "TarMK segment prefetch " + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                },
+                new ThreadPoolExecutor.AbortPolicy());
+        // idle threads go away, so no explicit shutdown is needed
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * Prefetch the data segments referenced by the given segment that are
+     * not in memory yet.
+     */
+    void prefetch(Segment segment) {
+        if (!segment.getSegmentId().isDataSegmentId()) {
+            // bulk segments don't reference other segments
+            return;
+        }
+        for (SegmentId id : segment.getReferencedIds()) {
+            if (id.isDataSegmentId() && !id.isLoaded() && queued.add(id)) {
+                try {
+                    executor.execute(new Load(id));
+                } catch (RejectedExecutionException e) {
+                    queued.remove(id);
+                    stats.recordEviction();
+                }
+            }
+        }
+    }
+
+    /**
+     * Called on the first access to a prefetched segment. Continues the
+     * read-ahead with the segments referenced from there.
+     */
+    void hit(Segment segment) {
+        stats.recordHits(1);
+        prefetch(segment);
+    }
+
+    /**
+     * Called when a segment had to be loaded on demand.
+     */
+    void miss(Segment segment) {
+        stats.recordMisses(1);
+        prefetch(segment);
+    }
+
+    /**
+     * Prefetched segments are kept by the {@link SegmentTracker}.
+     * @return  {@code null}
+     */
+    @Override
+    @CheckForNull
+    public Segment getIfPresent(Object key) {
+        return null;
+    }
+
+    /**
+     * @return  the number of pending prefetch requests
+     */
+    @Override
+    public long size() {
+        return queued.size();
+    }
+
+    @Override
+    public CacheStats stats() {
+        return stats.snapshot();
+    }
+
+    private class Load implements Runnable {
+
+        private final SegmentId id;
+
+        Load(SegmentId id) {
+            this.id = id;
+        }
+
+        @Override
+        public void run() {
+            try {
+                synchronized (id) {
+                    if (!id.isLoaded()) {
+                        long start = System.nanoTime();
+                        tracker.loadSegment(id);
+                        id.setPrefetched();
+                        stats.recordLoadSuccess(System.nanoTime() - start);
+                    }
+                }
+            } catch (RuntimeException e) {
+                log.debug("Failed to prefetch segment {}", id, e);
+                stats.recordLoadException(0);
+            } finally {
+                queued.remove(id);
+            }
+        }
+    }
+
+}
@@ -16,10 +16,13 @@
  */
 package org.apache.jackrabbit.oak.plugins.segment;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.collect.Queues.newArrayDeque;
 import static com.google.common.collect.Sets.newHashSet;
 import static java.lang.Boolean.getBoolean;
+import static java.lang.Integer.getInteger;
 
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
 import java.util.Queue;
 import java.util.Set;
@@ -55,6 +58,24 @@ public class SegmentTracker {
      */
     private static final boolean DISABLE_STRING_CACHE = getBoolean("oak.segment.disableStringCache");
 
+    /**
+     * Number of lanes of the {@link #writer}, i.e. the number of segments
+     * that concurrent writers can fill in parallel. Defaults to a single
+     * lane, which serialises all writes on one segment.
+     */
+    private static final int WRITER_LANES = getInteger("oak.segment.writerLanes", 1);
+
+    /**
+     * Number of threads loading referenced segments ahead of a traversal.
+     * Defaults to {@code 0}, which disables prefetching.
+     */
+    private static final int PREFETCH_THREADS = getInteger("oak.segment.prefetchThreads", 0);
+
+    /**
+     * Maximum number of pending prefetch requests
+     */
+    private static final int PREFETCH_QUEUE_SIZE = getInteger("oak.segment.prefetchQueueSize", 1024);
+
     private static final long MSB_MASK = ~(0xfL << 12);
 
     private static final long VERSION = (0x4L << 12);
@@ -67,7 +88,7 @@ public class SegmentTracker {
 
     private static final long MB = 1024 * 1024;
 
-    private static final int DEFAULT_MEMORY_CACHE_SIZE = 256;
+    public static final int DEFAULT_MEMORY_CACHE_SIZE = 256;
 
     /**
      * The random number source for generating new segment identifiers.
@@ -106,14 +127,39 @@ public class SegmentTracker {
      */
     private final CacheLIRS<SegmentId, Segment> segmentCache;
 
+    /**
+     * Second level cache for segments evicted from the {@link #segmentCache},
+     * kept outside of the Java heap. {@code null} if not configured.
+     */
+    private final OffHeapSegmentCache offHeapCache;
+
+    /**
+     * Read-ahead of referenced segments. {@code null} if not configured.
+     */
+    private final SegmentPrefetcher prefetcher;
+
     public SegmentTracker(SegmentStore store, int cacheSizeMB,
             SegmentVersion version) {
+        this(store, cacheSizeMB, 0, version);
+    }
+
+    /**
+     * Create a new tracker with an additional off-heap segment cache.
+     *
+     * @param store  the segment store
+     * @param cacheSizeMB  size of the on-heap caches in MB
+     * @param offHeapCacheSizeMB  size of the off-heap segment cache in MB,
+     *                            {@code 0} to disable it
+     * @param version  the segment version used for writing
+     */
+    public SegmentTracker(SegmentStore store, int cacheSizeMB,
+            int offHeapCacheSizeMB, SegmentVersion version) {
         for (int i = 0; i < tables.length; i++) {
             tables[i] = new SegmentIdTable(this);
         }
 
         this.store = store;
-        this.writer = new SegmentWriter(store, this, version);
+        this.writer = new SegmentWriter(store, this, version, WRITER_LANES);
         this.compactionMap = new AtomicReference<CompactionMap>(
                 CompactionMap.EMPTY);
         StringCache c;
@@ -124,6 +170,18 @@ public class SegmentTracker {
             c = new StringCache(stringCacheSize);
         }
         stringCache = c;
+        if (offHeapCacheSizeMB > 0) {
+            offHeapCache = new OffHeapSegmentCache(Math.max(
+                    offHeapCacheSizeMB * MB, OffHeapSegmentCache.SLAB_SIZE));
+        } else {
+            offHeapCache = null;
+        }
+        if (PREFETCH_THREADS > 0) {
+            prefetcher = new SegmentPrefetcher(this, PREFETCH_THREADS,
+                    PREFETCH_QUEUE_SIZE);
+        } else {
+            prefetcher = null;
+        }
         segmentCache = CacheLIRS.<SegmentId, Segment>newBuilder()
             .module("SegmentTracker")
             .maximumSize((int) Math.min(Integer.MAX_VALUE, cacheSizeMB * MB))
@@ -133,6 +191,10 @@ public class SegmentTracker {
                 public void evicted(SegmentId segmentId, Segment segment) {
                     if (segment != null) {
                         segmentId.setSegment(null);
+                        // memory mapped segments are already off-heap
+                        if (offHeapCache != null && !segment.getData().isDirect()) {
+                            offHeapCache.put(segmentId, segment);
+                        }
                     }
                 }
             })
@@ -159,6 +221,21 @@ public class SegmentTracker {
             : stringCache.getStats();
     }
 
+    @CheckForNull
+    public CacheStats getOffHeapSegmentCacheStats() {
+        return offHeapCache == null
+            ? null
+            : new CacheStats(offHeapCache, "Segment Off-Heap Cache",
+                    null, offHeapCache.getMaxWeight());
+    }
+
+    @CheckForNull
+    public CacheStats getPrefetchStats() {
+        return prefetcher == null
+            ? null
+            : new CacheStats(prefetcher, "Segment Prefetch", null, -1);
+    }
+
     public SegmentWriter getWriter() {
         return writer;
     }
@@ -172,6 +249,9 @@ public class SegmentTracker {
      */
     public synchronized void clearCache() {
         segmentCache.invalidateAll();
+        if (offHeapCache != null) {
+            offHeapCache.invalidateAll();
+        }
         if (stringCache != null) {
             stringCache.clear();
         }
@@ -207,8 +287,41 @@ public class SegmentTracker {
      * @throws SegmentNotFoundException  if no segment with the given {@code id} exists.
      */
     Segment readSegment(SegmentId id) {
+        Segment segment = loadSegment(id);
+        if (prefetcher != null) {
+            prefetcher.miss(segment);
+        }
+        return segment;
+    }
+
+    /**
+     * Called on the first access to a segment loaded by the prefetcher.
+     */
+    void prefetchHit(Segment segment) {
+        if (prefetcher != null) {
+            prefetcher.hit(segment);
+        }
+    }
+
+    /**
+     * Load a segment from the off-heap cache or the underlying segment
+     * store, without triggering any prefetching.
+     * @param id  segment id
+     * @return  segment with the given id
+     * @throws SegmentNotFoundException  if no segment with the given {@code id} exists.
+     */
+    Segment loadSegment(SegmentId id) {
         try {
-            Segment segment = store.readSegment(id);
+            Segment segment = null;
+            if (offHeapCache != null) {
+                ByteBuffer data = offHeapCache.get(id);
+                if (data != null) {
+                    segment = new Segment(this, id, data);
+                }
+            }
+            if (segment == null) {
+                segment = store.readSegment(id);
+            }
             setSegment(id, segment);
             return segment;
         } catch (SegmentNotFoundException snfe) {
@@ -219,9 +332,27 @@ public class SegmentTracker {
         }
     }
 
+    /**
+     * Add a segment the store has read ahead of its first access, for
+     * example as part of a batch, unless it is in memory already.
+     * @param segment  segment read by the store
+     */
+    public void addSegment(Segment segment) {
+        SegmentId id = segment.getSegmentId();
+        checkArgument(id.getTracker() == this);
+        // no locking on the id, the store may read several segments at
+        // once while another thread loads one of them on demand. At worst
+        // an identical segment gets replaced
+        if (!id.isLoaded()) {
+            setSegment(id, segment);
+        }
+    }
+
     void setSegment(SegmentId id, Segment segment) {
-        id.setSegment(segment);
+        // replacing a segment added by the store evicts the previous entry,
+        // which clears the segment of the id
         segmentCache.put(id, segment, segment.size());
+        id.setSegment(segment);
     }
 
     public void setCompactionMap(PartialCompactionMap map) {
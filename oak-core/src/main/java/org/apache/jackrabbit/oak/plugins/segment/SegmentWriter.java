@@ -24,10 +24,10 @@ import static com.google.common.base.Preconditions.checkPositionIndexes;
 import static com.google.common.base.Preconditions.checkState;
 import static com.google.common.collect.Iterables.addAll;
 import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Lists.newArrayListWithCapacity;
 import static com.google.common.collect.Lists.newArrayListWithExpectedSize;
 import static com.google.common.collect.Maps.newHashMap;
-import static com.google.common.collect.Maps.newLinkedHashMap;
-import static com.google.common.collect.Sets.newHashSet;
+import static java.lang.Integer.getInteger;
 import static java.util.Arrays.asList;
 import static java.util.Collections.emptyMap;
 import static java.util.Collections.nCopies;
@@ -36,8 +36,6 @@ import static org.apache.jackrabbit.oak.api.Type.NAME;
 import static org.apache.jackrabbit.oak.api.Type.NAMES;
 import static org.apache.jackrabbit.oak.plugins.segment.MapRecord.BUCKETS_PER_LEVEL;
 import static org.apache.jackrabbit.oak.plugins.segment.Segment.MAX_SEGMENT_SIZE;
-import static org.apache.jackrabbit.oak.plugins.segment.Segment.RECORD_ID_BYTES;
-import static org.apache.jackrabbit.oak.plugins.segment.Segment.SEGMENT_REFERENCE_LIMIT;
 import static org.apache.jackrabbit.oak.plugins.segment.Segment.readString;
 import static org.apache.jackrabbit.oak.plugins.segment.SegmentVersion.V_11;
 
@@ -45,15 +43,12 @@ import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.SequenceInputStream;
-import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashSet;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
 import javax.jcr.PropertyType;
 
@@ -79,6 +74,11 @@ import org.slf4j.LoggerFactory;
  * <p>
  * The same writer is used to create multiple segments (data is automatically
  * split: new segments are automatically created if and when needed).
+ * <p>
+ * A writer can be configured with several <em>lanes</em>, each of which
+ * fills its own in-progress segment. Concurrent writing threads are spread
+ * over the lanes so that they do not contend on a single segment buffer.
+ * All lanes are written to the segment store on {@link #flush()}.
  */
 public class SegmentWriter {
 
@@ -88,6 +88,18 @@ public class SegmentWriter {
 
     static final int BLOCK_SIZE = 1 << 12; // 4kB
 
+    /**
+     * Maximum number of records per generation of the record cache.
+     */
+    private static final int RECORD_CACHE_SIZE =
+            getInteger("oak.segment.recordCacheSize", 10000);
+
+    /**
+     * Maximum number of property and child node records of a node record
+     * to be considered for deduplication.
+     */
+    private static final int MAX_CACHED_NODE_SIZE = 16;
+
     static byte[] createNewBuffer(SegmentVersion v) {
         byte[] buffer = new byte[Segment.MAX_SEGMENT_SIZE];
         buffer[0] = '0';
@@ -99,11 +111,11 @@ public class SegmentWriter {
         return buffer;
     }
 
-    private static int align(int value) {
+    static int align(int value) {
         return align(value, 1 << Segment.RECORD_ALIGN_BITS);
     }
 
-    private static int align(int value, int boundary) {
+    static int align(int value, int boundary) {
         return (value + boundary - 1) & ~(boundary - 1);
     }
 
@@ -113,279 +125,154 @@ public class SegmentWriter {
     private final SegmentStore store;
 
     /**
-     * Cache of recently stored string and template records, used to
-     * avoid storing duplicates of frequently occurring data.
-     * Should only be accessed from synchronized blocks to prevent corruption.
+     * Cache of recently stored string, template and node records, used to
+     * avoid storing duplicates of frequently occurring data. Shared with
+     * the compaction writers created by {@link #createCompactionWriter(int)}.
      */
-    @SuppressWarnings("serial")
-    private final Map<Object, RecordId> records =
-        new LinkedHashMap<Object, RecordId>(15000, 0.75f, true) {
-            @Override
-            protected boolean removeEldestEntry(Map.Entry<Object, RecordId> e) {
-                return size() > 10000;
-            }
-        };
+    private final RecordCache cache;
 
     /**
-     * The set of root records (i.e. ones not referenced by other records)
-     * in this segment.
+     * The generation of the {@link #cache} used by this writer, or -1 to
+     * use its current generation.
      */
-    private final Map<RecordId, RecordType> roots = newLinkedHashMap();
+    private final int cacheGeneration;
 
     /**
-     * Identifiers of the external blob references stored in this segment.
+     * The segment buffers of the lanes of this writer. Buffers are created
+     * lazily the first time a thread is assigned to the respective lane.
      */
-    private final List<RecordId> blobrefs = newArrayList();
+    private final AtomicReferenceArray<SegmentBufferWriter> lanes;
 
     /**
-     * The segment write buffer, filled from the end to the beginning
-     * (see OAK-629).
-     */
-    private byte[] buffer;
-
-    /**
-     * The number of bytes already written (or allocated). Counted from
-     * the <em>end</em> of the buffer.
-     */
-    private int length = 0;
-
-    /**
-     * Current write position within the buffer. Grows up when raw data
-     * is written, but shifted downwards by the prepare methods.
+     * Version of the segment storage format.
      */
-    private int position;
+    private final SegmentVersion version;
 
-    private Segment segment;
+    public SegmentWriter(SegmentStore store, SegmentTracker tracker, SegmentVersion version) {
+        this(store, tracker, version, 1);
+    }
 
     /**
-     * Version of the segment storage format.
+     * Create a new writer with the given number of lanes.
+     *
+     * @param store   store to write segments to
+     * @param tracker tracker of the segments
+     * @param version segment version to write
+     * @param lanes   number of segments that are filled concurrently
      */
-    private final SegmentVersion version;
+    public SegmentWriter(SegmentStore store, SegmentTracker tracker, SegmentVersion version, int lanes) {
+        this(store, tracker, version, lanes, new RecordCache(RECORD_CACHE_SIZE), -1);
+    }
 
-    public SegmentWriter(SegmentStore store, SegmentTracker tracker, SegmentVersion version) {
+    private SegmentWriter(SegmentStore store, SegmentTracker tracker, SegmentVersion version,
+            int lanes, RecordCache cache, int cacheGeneration) {
+        checkArgument(lanes > 0, "Number of lanes must be positive: %s", lanes);
         this.store = store;
         this.tracker = tracker;
         this.version = version;
-        this.buffer = createNewBuffer(version);
-        this.segment = new Segment(tracker, buffer);
-        segment.getSegmentId().setSegment(segment);
+        this.cache = cache;
+        this.cacheGeneration = cacheGeneration;
+        this.lanes = new AtomicReferenceArray<SegmentBufferWriter>(lanes);
+        // eagerly create the first lane, which is the only one used
+        // by single threaded writers
+        this.lanes.set(0, new SegmentBufferWriter(store, tracker, version));
     }
 
     /**
-     * Adds a segment header to the buffer and writes a segment to the segment
-     * store. This is done automatically (called from prepare) when there is not
-     * enough space for a record. It can also be called explicitly.
+     * Returns the segment buffer of the lane assigned to the current thread.
+     * Callers must synchronize on the returned instance while writing a
+     * record to it.
      */
-    public synchronized void flush() {
-        if (length > 0) {
-            int refcount = segment.getRefCount();
-
-            int rootcount = roots.size();
-            buffer[Segment.ROOT_COUNT_OFFSET] = (byte) (rootcount >> 8);
-            buffer[Segment.ROOT_COUNT_OFFSET + 1] = (byte) rootcount;
-
-            int blobrefcount = blobrefs.size();
-            buffer[Segment.BLOBREF_COUNT_OFFSET] = (byte) (blobrefcount >> 8);
-            buffer[Segment.BLOBREF_COUNT_OFFSET + 1] = (byte) blobrefcount;
-
-            length = align(
-                    refcount * 16 + rootcount * 3 + blobrefcount * 2 + length,
-                    16);
-
-            checkState(length <= buffer.length);
-
-            int pos = refcount * 16;
-            if (pos + length <= buffer.length) {
-                // the whole segment fits to the space *after* the referenced
-                // segment identifiers we've already written, so we can safely
-                // copy those bits ahead even if concurrent code is still
-                // reading from that part of the buffer
-                System.arraycopy(buffer, 0, buffer, buffer.length-length, pos);
-                pos += buffer.length - length;
-            } else {
-                // this might leave some empty space between the header and
-                // the record data, but this case only occurs when the
-                // segment is >252kB in size and the maximum overhead is <<4kB,
-                // which is acceptable
-                length = buffer.length;
-            }
-
-            for (Map.Entry<RecordId, RecordType> entry : roots.entrySet()) {
-                int offset = entry.getKey().getOffset();
-                buffer[pos++] = (byte) entry.getValue().ordinal();
-                buffer[pos++] = (byte) (offset >> (8 + Segment.RECORD_ALIGN_BITS));
-                buffer[pos++] = (byte) (offset >> Segment.RECORD_ALIGN_BITS);
-            }
-
-            for (RecordId blobref : blobrefs) {
-                int offset = blobref.getOffset();
-                buffer[pos++] = (byte) (offset >> (8 + Segment.RECORD_ALIGN_BITS));
-                buffer[pos++] = (byte) (offset >> Segment.RECORD_ALIGN_BITS);
-            }
-
-            SegmentId id = segment.getSegmentId();
-            log.debug("Writing data segment {} ({} bytes)", id, length);
-            store.writeSegment(id, buffer, buffer.length - length, length);
-
-            // Keep this segment in memory as it's likely to be accessed soon
-            ByteBuffer data;
-            if (buffer.length - length > 4096) {
-                data = ByteBuffer.allocate(length);
-                data.put(buffer, buffer.length - length, length);
-                data.rewind();
-            } else {
-                data = ByteBuffer.wrap(buffer, buffer.length - length, length);
-            }
-            tracker.setSegment(id, new Segment(tracker, id, data));
-
-            buffer = createNewBuffer(version);
-            roots.clear();
-            blobrefs.clear();
-            length = 0;
-            position = buffer.length;
-            segment = new Segment(tracker, buffer);
-            segment.getSegmentId().setSegment(segment);
-        }
-    }
-
-    private RecordId prepare(RecordType type, int size) {
-        return prepare(type, size, Collections.<RecordId>emptyList());
+    private SegmentBufferWriter getBufferWriter() {
+        return getBufferWriter(Collections.<RecordId>emptyList());
     }
 
     /**
-     * Before writing a record (which are written backwards, from the end of the
-     * file to the beginning), this method is called, to ensure there is enough
-     * space. A new segment is also created if there is not enough space in the
-     * segment lookup table or elsewhere.
-     * <p>
-     * This method does not actually write into the segment, just allocates the
-     * space (flushing the segment if needed and starting a new one), and sets
-     * the write position (records are written from the end to the beginning,
-     * but within a record from left to right).
-     * 
-     * @param type the record type (only used for root records)
-     * @param size the size of the record, excluding the size used for the
-     *            record ids
-     * @param ids the record ids
-     * @return a new record id
+     * Returns the segment buffer of the lane assigned to the current thread,
+     * for writing a record that references the given records. The
+     * in-progress segments of other lanes that contain any of these records
+     * are flushed first, so that a segment is never written to the store
+     * before the segments it references. Callers must synchronize on the
+     * returned instance while writing the record to it.
      */
-    private RecordId prepare(
-            RecordType type, int size, Collection<RecordId> ids) {
-        checkArgument(size >= 0);
-        checkNotNull(ids);
-
-        int idcount = ids.size();
-        int recordSize = align(size + idcount * RECORD_ID_BYTES);
-
-        // First compute the header and segment sizes based on the assumption
-        // that *all* identifiers stored in this record point to previously
-        // unreferenced segments.
-        int refcount = segment.getRefCount() + idcount;
-        int blobrefcount = blobrefs.size() + 1;
-        int rootcount = roots.size() + 1;
-        int headerSize = refcount * 16 + rootcount * 3 + blobrefcount * 2;
-        int segmentSize = align(headerSize + recordSize + length, 16);
-
-        // If the size estimate looks too big, recompute it with a more
-        // accurate refcount value. We skip doing this when possible to
-        // avoid the somewhat expensive list and set traversals.
-        if (segmentSize > buffer.length - 1
-                || refcount > Segment.SEGMENT_REFERENCE_LIMIT) {
-            refcount -= idcount;
-
-            Set<SegmentId> segmentIds = newHashSet();
-
-            // The set of old record ids in this segment
-            // that were previously root record ids, but will no longer be,
-            // because the record to be written references them.
-            // This needs to be a set, because the list of ids can
-            // potentially reference the same record multiple times
-            Set<RecordId> notRoots = new HashSet<RecordId>();
-            for (RecordId recordId : ids) {
-                SegmentId segmentId = recordId.getSegmentId();
-                if (!(segmentId.equals(segment.getSegmentId()))) {
-                    segmentIds.add(segmentId);
-                } else if (roots.containsKey(recordId)) {
-                    notRoots.add(recordId);
-                }
-            }
-            rootcount -= notRoots.size();
-
-            if (!segmentIds.isEmpty()) {
-                for (int refid = 1; refid < refcount; refid++) {
-                    segmentIds.remove(segment.getRefId(refid));
+    private SegmentBufferWriter getBufferWriter(Collection<RecordId> ids) {
+        int lane = getLane();
+        if (lanes.length() > 1) {
+            for (RecordId id : ids) {
+                SegmentBufferWriter writer = getPendingLane(lane, id);
+                if (writer != null) {
+                    synchronized (writer) {
+                        // unless it has been flushed concurrently
+                        if (writer.getSegmentId().equals(id.getSegmentId())) {
+                            writer.flush();
+                        }
+                    }
                 }
-                refcount += segmentIds.size();
             }
-
-            headerSize = refcount * 16 + rootcount * 3 + blobrefcount * 2;
-            segmentSize = align(headerSize + recordSize + length, 16);
         }
 
-        if (segmentSize > buffer.length - 1
-                || blobrefcount > 0xffff
-                || rootcount > 0xffff
-                || refcount > Segment.SEGMENT_REFERENCE_LIMIT) {
-            flush();
+        SegmentBufferWriter writer = lanes.get(lane);
+        if (writer == null) {
+            lanes.compareAndSet(
+                    lane, null, new SegmentBufferWriter(store, tracker, version));
+            writer = lanes.get(lane);
         }
-
-        length += recordSize;
-        position = buffer.length - length;
-        checkState(position >= 0);
-
-        RecordId id = new RecordId(segment.getSegmentId(), position);
-        roots.put(id, type);
-        return id;
+        return writer;
     }
 
-    private synchronized int getSegmentRef(SegmentId segmentId) {
-        int refcount = segment.getRefCount();
-        if (refcount > SEGMENT_REFERENCE_LIMIT) {
-          throw new SegmentOverflowException(
-                  "Segment cannot have more than 255 references " + segment.getSegmentId());
-        }
-        for (int index = 0; index < refcount; index++) {
-            if (segmentId.equals(segment.getRefId(index))) {
-                return index;
-            }
+    private int getLane() {
+        if (lanes.length() > 1) {
+            return (int) (Thread.currentThread().getId() % lanes.length());
+        } else {
+            return 0;
         }
-
-        ByteBuffer.wrap(buffer, refcount * 16, 16)
-            .putLong(segmentId.getMostSignificantBits())
-            .putLong(segmentId.getLeastSignificantBits());
-        buffer[Segment.REF_COUNT_OFFSET] = (byte) refcount;
-        return refcount;
     }
 
     /**
-     * Write a record id, and marks the record id as referenced (removes it from
-     * the unreferenced set).
-     * 
-     * @param recordId the record id
+     * Returns the buffer of the lane other than the given one whose
+     * in-progress segment contains the given record, or {@code null} if
+     * there is no such lane.
      */
-    private synchronized void writeRecordId(RecordId recordId) {
-        checkNotNull(recordId);
-        roots.remove(recordId);
-
-        int offset = recordId.getOffset();
-        checkState(0 <= offset && offset < MAX_SEGMENT_SIZE);
-        checkState(offset == align(offset));
-
-        buffer[position++] = (byte) getSegmentRef(recordId.getSegmentId());
-        buffer[position++] = (byte) (offset >> (8 + Segment.RECORD_ALIGN_BITS));
-        buffer[position++] = (byte) (offset >> Segment.RECORD_ALIGN_BITS);
+    private SegmentBufferWriter getPendingLane(int lane, RecordId id) {
+        SegmentId segmentId = id.getSegmentId();
+        for (int i = 0; i < lanes.length(); i++) {
+            SegmentBufferWriter writer = lanes.get(i);
+            if (i != lane && writer != null
+                    && writer.getSegmentId().equals(segmentId)) {
+                return writer;
+            }
+        }
+        return null;
     }
 
-    private void writeInt(int value) {
-        buffer[position++] = (byte) (value >> 24);
-        buffer[position++] = (byte) (value >> 16);
-        buffer[position++] = (byte) (value >> 8);
-        buffer[position++] = (byte) value;
+    /**
+     * Looks up a record in the {@link #cache}. Records in the in-progress
+     * segment of another lane are ignored: writing them again is cheaper
+     * than flushing that lane early to be able to reference them.
+     */
+    private RecordId getCachedRecord(int generation, Object key) {
+        RecordId id = cache.get(generation, key);
+        if (id != null && lanes.length() > 1
+                && getPendingLane(getLane(), id) != null) {
+            return null;
+        }
+        return id;
     }
 
-    private void writeLong(long value) {
-        writeInt((int) (value >> 32));
-        writeInt((int) value);
+    /**
+     * Adds segment headers to the buffers of all lanes and writes the
+     * segments to the segment store. This is done automatically when there
+     * is not enough space for a record. It can also be called explicitly.
+     */
+    public void flush() {
+        for (int i = 0; i < lanes.length(); i++) {
+            SegmentBufferWriter writer = lanes.get(i);
+            if (writer != null) {
+                synchronized (writer) {
+                    writer.flush();
+                }
+            }
+        }
     }
 
     private MapRecord writeMapLeaf(
@@ -407,15 +294,16 @@ public class SegmentWriter {
         MapEntry[] array = entries.toArray(new MapEntry[entries.size()]);
         Arrays.sort(array);
 
-        synchronized (this) {
-            RecordId id = prepare(RecordType.LEAF, 4 + size * 4, ids);
-            writeInt((level << MapRecord.SIZE_BITS) | size);
+        SegmentBufferWriter writer = getBufferWriter(ids);
+        synchronized (writer) {
+            RecordId id = writer.prepare(RecordType.LEAF, 4 + size * 4, ids);
+            writer.writeInt((level << MapRecord.SIZE_BITS) | size);
             for (MapEntry entry : array) {
-                writeInt(entry.getHash());
+                writer.writeInt(entry.getHash());
             }
             for (MapEntry entry : array) {
-                writeRecordId(entry.getKey());
-                writeRecordId(entry.getValue());
+                writer.writeRecordId(entry.getKey());
+                writer.writeRecordId(entry.getValue());
             }
             return new MapRecord(id);
         }
@@ -431,36 +319,41 @@ public class SegmentWriter {
             }
         }
 
-        synchronized (this) {
-            RecordId mapId = prepare(RecordType.BRANCH, 8, ids);
-            writeInt((level << MapRecord.SIZE_BITS) | size);
-            writeInt(bitmap);
+        SegmentBufferWriter writer = getBufferWriter(ids);
+        synchronized (writer) {
+            RecordId mapId = writer.prepare(RecordType.BRANCH, 8, ids);
+            writer.writeInt((level << MapRecord.SIZE_BITS) | size);
+            writer.writeInt(bitmap);
             for (RecordId id : ids) {
-                writeRecordId(id);
+                writer.writeRecordId(id);
             }
             return new MapRecord(mapId);
         }
     }
 
-    private synchronized RecordId writeListBucket(List<RecordId> bucket) {
+    private RecordId writeListBucket(List<RecordId> bucket) {
         checkArgument(bucket.size() > 1);
-        RecordId bucketId = prepare(RecordType.BUCKET, 0, bucket);
-        for (RecordId id : bucket) {
-            writeRecordId(id);
+        SegmentBufferWriter writer = getBufferWriter(bucket);
+        synchronized (writer) {
+            RecordId bucketId = writer.prepare(RecordType.BUCKET, 0, bucket);
+            for (RecordId id : bucket) {
+                writer.writeRecordId(id);
+            }
+            return bucketId;
         }
-        return bucketId;
     }
 
-    private synchronized MapRecord writeMapBucket(
+    private MapRecord writeMapBucket(
             MapRecord base, Collection<MapEntry> entries, int level) {
         // when no changed entries, return the base map (if any) as-is
         if (entries == null || entries.isEmpty()) {
             if (base != null) {
                 return base;
             } else if (level == 0) {
-                synchronized (this) {
-                    RecordId id = prepare(RecordType.LEAF, 4);
-                    writeInt(0);
+                SegmentBufferWriter writer = getBufferWriter();
+                synchronized (writer) {
+                    RecordId id = writer.prepare(RecordType.LEAF, 4);
+                    writer.writeInt(0);
                     return new MapRecord(id);
                 }
             } else {
@@ -560,30 +453,32 @@ public class SegmentWriter {
         return buckets;
     }
 
-    private synchronized RecordId writeValueRecord(
-            long length, RecordId blocks) {
-        RecordId valueId = prepare(
-                RecordType.VALUE, 8, Collections.singleton(blocks));
-        writeLong((length - Segment.MEDIUM_LIMIT) | (0x3L << 62));
-        writeRecordId(blocks);
-        return valueId;
+    private RecordId writeValueRecord(long length, RecordId blocks) {
+        Collection<RecordId> ids = Collections.singleton(blocks);
+        SegmentBufferWriter writer = getBufferWriter(ids);
+        synchronized (writer) {
+            RecordId valueId = writer.prepare(RecordType.VALUE, 8, ids);
+            writer.writeLong((length - Segment.MEDIUM_LIMIT) | (0x3L << 62));
+            writer.writeRecordId(blocks);
+            return valueId;
+        }
     }
 
-    private synchronized RecordId writeValueRecord(int length, byte[] data) {
+    private RecordId writeValueRecord(int length, byte[] data) {
         checkArgument(length < Segment.MEDIUM_LIMIT);
-        RecordId id;
-        if (length < Segment.SMALL_LIMIT) {
-            id = prepare(RecordType.VALUE, 1 + length);
-            buffer[position++] = (byte) length;
-        } else {
-            id = prepare(RecordType.VALUE, 2 + length);
-            int len = (length - Segment.SMALL_LIMIT) | 0x8000;
-            buffer[position++] = (byte) (len >> 8);
-            buffer[position++] = (byte) len;
+        SegmentBufferWriter writer = getBufferWriter();
+        synchronized (writer) {
+            RecordId id;
+            if (length < Segment.SMALL_LIMIT) {
+                id = writer.prepare(RecordType.VALUE, 1 + length);
+                writer.writeByte((byte) length);
+            } else {
+                id = writer.prepare(RecordType.VALUE, 2 + length);
+                writer.writeShort((short) ((length - Segment.SMALL_LIMIT) | 0x8000));
+            }
+            writer.writeBytes(data, 0, length);
+            return id;
         }
-        System.arraycopy(data, 0, buffer, position, length);
-        position += length;
-        return id;
     }
 
     /**
@@ -615,16 +510,18 @@ public class SegmentWriter {
     private RecordId writeLargeBlobId(String blobId) {
         RecordId stringRecord = writeString(blobId);
 
-        synchronized (this) {
-            RecordId blobIdRecord = prepare(RecordType.VALUE, 1, Collections.singletonList(stringRecord));
+        Collection<RecordId> ids = Collections.singletonList(stringRecord);
+        SegmentBufferWriter writer = getBufferWriter(ids);
+        synchronized (writer) {
+            RecordId blobIdRecord = writer.prepare(RecordType.VALUE, 1, ids);
 
             // The length uses a fake "length" field that is always equal to 0xF0.
             // This allows the code to take apart small from a large blob IDs.
 
-            buffer[position++] = (byte) 0xF0;
-            writeRecordId(stringRecord);
+            writer.writeByte((byte) 0xF0);
+            writer.writeRecordId(stringRecord);
 
-            blobrefs.add(blobIdRecord);
+            writer.addBlobRef(blobIdRecord);
 
             return blobIdRecord;
         }
@@ -642,19 +539,17 @@ public class SegmentWriter {
 
         checkArgument(length < Segment.BLOB_ID_SMALL_LIMIT);
 
-        synchronized (this) {
-            RecordId id = prepare(RecordType.VALUE, 2 + length);
+        SegmentBufferWriter writer = getBufferWriter();
+        synchronized (writer) {
+            RecordId id = writer.prepare(RecordType.VALUE, 2 + length);
 
             int masked = length | 0xE000;
 
-            buffer[position++] = (byte) (masked >> 8);
-            buffer[position++] = (byte) (masked);
-
-            System.arraycopy(blobId, 0, buffer, position, length);
+            writer.writeShort((short) masked);
 
-            position += length;
+            writer.writeBytes(blobId, 0, length);
 
-            blobrefs.add(id);
+            writer.addBlobRef(id);
 
             return id;
         }
@@ -668,15 +563,16 @@ public class SegmentWriter {
      * @param length number of bytes to write
      * @return block record identifier
      */
-    public synchronized RecordId writeBlock(
-            byte[] bytes, int offset, int length) {
+    public RecordId writeBlock(byte[] bytes, int offset, int length) {
         checkNotNull(bytes);
         checkPositionIndexes(offset, offset + length, bytes.length);
 
-        RecordId blockId = prepare(RecordType.BLOCK, length);
-        System.arraycopy(bytes, offset, buffer, position, length);
-        position += length;
-        return blockId;
+        SegmentBufferWriter writer = getBufferWriter();
+        synchronized (writer) {
+            RecordId blockId = writer.prepare(RecordType.BLOCK, length);
+            writer.writeBytes(bytes, offset, length);
+            return blockId;
+        }
     }
 
     /**
@@ -726,14 +622,16 @@ public class SegmentWriter {
                     if (value.equals(entry.getValue())) {
                         return base;
                     } else {
-                        synchronized (this) {
-                            RecordId id = prepare(RecordType.BRANCH, 8, asList(
-                                    entry.getKey(), value, base.getRecordId()));
-                            writeInt(-1);
-                            writeInt(entry.getHash());
-                            writeRecordId(entry.getKey());
-                            writeRecordId(value);
-                            writeRecordId(base.getRecordId());
+                        List<RecordId> ids = asList(
+                                entry.getKey(), value, base.getRecordId());
+                        SegmentBufferWriter writer = getBufferWriter(ids);
+                        synchronized (writer) {
+                            RecordId id = writer.prepare(RecordType.BRANCH, 8, ids);
+                            writer.writeInt(-1);
+                            writer.writeInt(entry.getHash());
+                            writer.writeRecordId(entry.getKey());
+                            writer.writeRecordId(value);
+                            writer.writeRecordId(base.getRecordId());
                             return new MapRecord(id);
                         }
                     }
@@ -771,25 +669,22 @@ public class SegmentWriter {
      * @return value record identifier
      */
     public RecordId writeString(String string) {
-        synchronized (this) {
-            RecordId id = records.get(string);
-            if (id != null) {
-                return id; // shortcut if the same string was recently stored
-            }
+        int generation = getCacheGeneration();
+        RecordId id = getCachedRecord(generation, string);
+        if (id != null) {
+            return id; // shortcut if the same string was recently stored
         }
 
         byte[] data = string.getBytes(Charsets.UTF_8);
 
         if (data.length < Segment.MEDIUM_LIMIT) {
-            // only cache short strings to avoid excessive memory use
-            synchronized (this) {
-                RecordId id = records.get(string);
-                if (id == null) {
-                    id = writeValueRecord(data.length, data);
-                    records.put(string, id);
-                }
-                return id;
-            }
+            // only cache short strings to avoid excessive memory use.
+            // Concurrent writers might both store the same string, which
+            // is harmless and cheaper than holding the cache lock while
+            // writing the record
+            id = writeValueRecord(data.length, data);
+            cache.put(generation, string, id);
+            return id;
         }
 
         int pos = 0;
@@ -846,8 +741,52 @@ public class SegmentWriter {
         return new SegmentBlob(id);
     }
 
-    public synchronized void dropCache() {
-        records.clear();
+    public void dropCache() {
+        if (cacheGeneration == -1) {
+            cache.clear();
+        } else {
+            cache.drop(cacheGeneration);
+        }
+    }
+
+    /**
+     * Create a writer for compacted content. It shares the record cache of
+     * this writer, but starts with an empty generation of its own so that
+     * the compacted content never references pre-compacted records.
+     *
+     * @param lanes number of segments that are filled concurrently
+     * @return a new writer
+     * @see #adoptCache(SegmentWriter)
+     */
+    public SegmentWriter createCompactionWriter(int lanes) {
+        return new SegmentWriter(store, tracker, version, lanes,
+                cache, cache.newGeneration());
+    }
+
+    /**
+     * Replace the cached records of this writer with the records cached by
+     * the given compaction writer, once the compacted content has become
+     * the head state. If the given writer doesn't share the record cache
+     * of this writer, the cached records are just dropped.
+     *
+     * @param compactionWriter the writer of the compacted content
+     */
+    public void adoptCache(SegmentWriter compactionWriter) {
+        if (compactionWriter.cache == cache
+                && cacheGeneration == -1
+                && compactionWriter.cacheGeneration != -1) {
+            cache.setGeneration(compactionWriter.cacheGeneration);
+        } else {
+            dropCache();
+        }
+    }
+
+    private int getCacheGeneration() {
+        if (cacheGeneration == -1) {
+            return cache.getGeneration();
+        } else {
+            return cacheGeneration;
+        }
     }
 
     /**
@@ -943,27 +882,30 @@ public class SegmentWriter {
         if (!type.isArray()) {
             return valueIds.iterator().next();
         } else if (count == 0) {
-            synchronized (this) {
-                RecordId propertyId = prepare(RecordType.LIST, 4);
-                writeInt(0);
+            SegmentBufferWriter writer = getBufferWriter();
+            synchronized (writer) {
+                RecordId propertyId = writer.prepare(RecordType.LIST, 4);
+                writer.writeInt(0);
                 return propertyId;
             }
         } else {
             RecordId listId = writeList(valueIds);
-            synchronized (this) {
-                RecordId propertyId = prepare(
-                        RecordType.LIST, 4, Collections.singleton(listId));
-                writeInt(count);
-                writeRecordId(listId);
+            Collection<RecordId> ids = Collections.singleton(listId);
+            SegmentBufferWriter writer = getBufferWriter(ids);
+            synchronized (writer) {
+                RecordId propertyId = writer.prepare(RecordType.LIST, 4, ids);
+                writer.writeInt(count);
+                writer.writeRecordId(listId);
                 return propertyId;
             }
         }
     }
 
-    public synchronized RecordId writeTemplate(Template template) {
+    public RecordId writeTemplate(Template template) {
         checkNotNull(template);
 
-        RecordId id = records.get(template);
+        int generation = getCacheGeneration();
+        RecordId id = getCachedRecord(generation, template);
         if (id != null) {
             return id; // shortcut if the same template was recently stored
         }
@@ -1019,7 +961,7 @@ public class SegmentWriter {
         }
 
         RecordId propNamesId = null;
-        if (segment.getSegmentVersion().onOrAfter(V_11)) {
+        if (version.onOrAfter(V_11)) {
             if (propertyNames.length > 0) {
                 propNamesId = writeList(Arrays.asList(propertyNames));
                 ids.add(propNamesId);
@@ -1031,34 +973,36 @@ public class SegmentWriter {
         checkState(propertyNames.length < (1 << 18));
         head |= propertyNames.length;
 
-        id = prepare(RecordType.TEMPLATE, 4 + propertyTypes.length, ids);
-        writeInt(head);
-        if (primaryId != null) {
-            writeRecordId(primaryId);
-        }
-        if (mixinIds != null) {
-            for (RecordId mixinId : mixinIds) {
-                writeRecordId(mixinId);
+        SegmentBufferWriter writer = getBufferWriter(ids);
+        synchronized (writer) {
+            id = writer.prepare(RecordType.TEMPLATE, 4 + propertyTypes.length, ids);
+            writer.writeInt(head);
+            if (primaryId != null) {
+                writer.writeRecordId(primaryId);
             }
-        }
-        if (childNameId != null) {
-            writeRecordId(childNameId);
-        }
-        if (segment.getSegmentVersion().onOrAfter(V_11)) {
-            if (propNamesId != null) {
-                writeRecordId(propNamesId);
+            if (mixinIds != null) {
+                for (RecordId mixinId : mixinIds) {
+                    writer.writeRecordId(mixinId);
+                }
             }
-        }
-        for (int i = 0; i < propertyNames.length; i++) {
-            if (!segment.getSegmentVersion().onOrAfter(V_11)) {
-                // V10 only
-                writeRecordId(propertyNames[i]);
+            if (childNameId != null) {
+                writer.writeRecordId(childNameId);
+            }
+            if (version.onOrAfter(V_11)) {
+                if (propNamesId != null) {
+                    writer.writeRecordId(propNamesId);
+                }
+            }
+            for (int i = 0; i < propertyNames.length; i++) {
+                if (!version.onOrAfter(V_11)) {
+                    // V10 only
+                    writer.writeRecordId(propertyNames[i]);
+                }
+                writer.writeByte(propertyTypes[i]);
             }
-            buffer[position++] = propertyTypes[i];
         }
 
-        records.put(template, id);
-
+        cache.put(generation, template, id);
         return id;
     }
 
@@ -1185,21 +1129,41 @@ public class SegmentWriter {
             }
         }
 
+        // look up identical small nodes, keyed by the record ids of
+        // their template, child node and properties
+        int generation = getCacheGeneration();
+        List<RecordId> key = null;
+        if (childName != Template.MANY_CHILD_NODES
+                && pIds.size() <= MAX_CACHED_NODE_SIZE) {
+            key = newArrayListWithCapacity(ids.size() + pIds.size());
+            key.addAll(ids);
+            key.addAll(pIds);
+            RecordId id = getCachedRecord(generation, key);
+            if (id != null) {
+                return new SegmentNodeState(id);
+            }
+        }
+
         if (!pIds.isEmpty()) {
-            if (segment.getSegmentVersion().onOrAfter(V_11)) {
+            if (version.onOrAfter(V_11)) {
                 ids.add(writeList(pIds));
             } else {
                 ids.addAll(pIds);
             }
         }
 
-        synchronized (this) {
-            RecordId recordId = prepare(RecordType.NODE, 0, ids);
+        RecordId recordId;
+        SegmentBufferWriter writer = getBufferWriter(ids);
+        synchronized (writer) {
+            recordId = writer.prepare(RecordType.NODE, 0, ids);
             for (RecordId id : ids) {
-                writeRecordId(id);
+                writer.writeRecordId(id);
             }
-            return new SegmentNodeState(recordId);
         }
+        if (key != null) {
+            cache.put(generation, key, recordId);
+        }
+        return new SegmentNodeState(recordId);
     }
 
     public SegmentTracker getTracker() {
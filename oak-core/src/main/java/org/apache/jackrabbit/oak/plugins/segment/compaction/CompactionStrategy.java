@@ -88,6 +88,21 @@ public abstract class CompactionStrategy {
      */
     public static final boolean FORCE_AFTER_FAIL_DEFAULT = true;
 
+    /**
+     * Default value for {@link #getCompactionThreads()}
+     */
+    public static final int COMPACTION_THREADS_DEFAULT = 1;
+
+    /**
+     * Default value for {@link #isIncrementalCompaction()}
+     */
+    public static final boolean INCREMENTAL_COMPACTION_DEFAULT = false;
+
+    /**
+     * Default value for {@link #getMappedCompactionMap()}
+     */
+    public static final boolean MAPPED_COMPACTION_MAP_DEFAULT = false;
+
     /**
      * No compaction at all
      */
@@ -122,6 +137,12 @@ public abstract class CompactionStrategy {
 
     private boolean forceAfterFail = FORCE_AFTER_FAIL_DEFAULT;
 
+    private int compactionThreads = COMPACTION_THREADS_DEFAULT;
+
+    private boolean incrementalCompaction = INCREMENTAL_COMPACTION_DEFAULT;
+
+    private boolean mappedCompactionMap = MAPPED_COMPACTION_MAP_DEFAULT;
+
     private long compactionStart = currentTimeMillis();
 
     /**
@@ -196,6 +217,9 @@ public abstract class CompactionStrategy {
                 ", persistedCompactionMap=" + persistedCompactionMap +
                 ", retryCount=" + retryCount +
                 ", forceAfterFail=" + forceAfterFail +
+                ", compactionThreads=" + compactionThreads +
+                ", incrementalCompaction=" + incrementalCompaction +
+                ", mappedCompactionMap=" + mappedCompactionMap +
                 ", compactionStart=" + compactionStart +
                 '}';
     }
@@ -276,6 +300,65 @@ public abstract class CompactionStrategy {
         this.gainThreshold = gainThreshold;
     }
 
+    /**
+     * Get the number of threads used to compact the subtrees below the
+     * root concurrently
+     * @return  number of compaction threads
+     */
+    public int getCompactionThreads() {
+        return compactionThreads;
+    }
+
+    /**
+     * Set the number of threads used to compact the subtrees below the
+     * root concurrently. A value of 1 compacts the whole tree in the
+     * calling thread.
+     * @param compactionThreads
+     */
+    public void setCompactionThreads(int compactionThreads) {
+        checkArgument(compactionThreads > 0);
+        this.compactionThreads = compactionThreads;
+    }
+
+    /**
+     * Get whether compaction only rewrites the changes since the last
+     * compaction, instead of the whole head state
+     * @return  {@code true} if incremental compaction is on
+     */
+    public boolean isIncrementalCompaction() {
+        return incrementalCompaction;
+    }
+
+    /**
+     * Set whether compaction only rewrites the changes since the last
+     * compaction. The first compaction after the store has been opened
+     * always compacts the whole head state.
+     * @param incrementalCompaction
+     */
+    public void setIncrementalCompaction(boolean incrementalCompaction) {
+        this.incrementalCompaction = incrementalCompaction;
+    }
+
+    /**
+     * Get whether the compaction map is kept in memory mapped files
+     * outside of the heap
+     * @return  {@code true} if the compaction map is memory mapped
+     */
+    public boolean getMappedCompactionMap() {
+        return mappedCompactionMap;
+    }
+
+    /**
+     * Set whether the compaction map is kept in memory mapped files in the
+     * directory of the store instead of on the heap. This bounds the heap
+     * used by compaction regardless of the repository size. Has no effect
+     * if the compaction map is persisted.
+     * @param mappedCompactionMap
+     */
+    public void setMappedCompactionMap(boolean mappedCompactionMap) {
+        this.mappedCompactionMap = mappedCompactionMap;
+    }
+
     public abstract boolean compacted(@Nonnull Callable<Boolean> setHead) throws Exception;
 
 }
@@ -87,4 +87,45 @@ public interface CompactionStrategyMBean {
      */
     void setGainThreshold(byte gainThreshold);
 
+    /**
+     * Get the number of threads used to compact the subtrees below the
+     * root concurrently
+     * @return  number of compaction threads
+     */
+    int getCompactionThreads();
+
+    /**
+     * Set the number of threads used to compact the subtrees below the
+     * root concurrently
+     * @param compactionThreads
+     */
+    void setCompactionThreads(int compactionThreads);
+
+    /**
+     * Get whether compaction only rewrites the changes since the last
+     * compaction
+     * @return  {@code true} if incremental compaction is on
+     */
+    boolean isIncrementalCompaction();
+
+    /**
+     * Set whether compaction only rewrites the changes since the last
+     * compaction
+     * @param incrementalCompaction
+     */
+    void setIncrementalCompaction(boolean incrementalCompaction);
+
+    /**
+     * Get whether the compaction map is kept in memory mapped files
+     * @return  {@code true} if the compaction map is memory mapped
+     */
+    boolean getMappedCompactionMap();
+
+    /**
+     * Set whether the compaction map is kept in memory mapped files
+     * outside of the heap
+     * @param mappedCompactionMap
+     */
+    void setMappedCompactionMap(boolean mappedCompactionMap);
+
 }
@@ -113,4 +113,34 @@ public class DefaultCompactionStrategyMBean
         strategy.setGainThreshold(gainThreshold);
     }
 
+    @Override
+    public int getCompactionThreads() {
+        return strategy.getCompactionThreads();
+    }
+
+    @Override
+    public void setCompactionThreads(int compactionThreads) {
+        strategy.setCompactionThreads(compactionThreads);
+    }
+
+    @Override
+    public boolean isIncrementalCompaction() {
+        return strategy.isIncrementalCompaction();
+    }
+
+    @Override
+    public void setIncrementalCompaction(boolean incrementalCompaction) {
+        strategy.setIncrementalCompaction(incrementalCompaction);
+    }
+
+    @Override
+    public boolean getMappedCompactionMap() {
+        return strategy.getMappedCompactionMap();
+    }
+
+    @Override
+    public void setMappedCompactionMap(boolean mappedCompactionMap) {
+        strategy.setMappedCompactionMap(mappedCompactionMap);
+    }
+
 }
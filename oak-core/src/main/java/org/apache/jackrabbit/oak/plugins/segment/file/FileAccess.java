@@ -16,13 +16,30 @@
  */
 package org.apache.jackrabbit.oak.plugins.segment.file;
 
+import static com.google.common.base.Preconditions.checkArgument;
 import static com.google.common.base.Preconditions.checkState;
+import static com.google.common.collect.Lists.newArrayList;
 import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
 
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.lang.reflect.Method;
 import java.nio.ByteBuffer;
 import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 /**
  * A wrapper around either memory mapped files or random access files, to allow
@@ -30,6 +47,8 @@ import java.nio.MappedByteBuffer;
  */
 abstract class FileAccess {
 
+    private static final Logger log = LoggerFactory.getLogger(FileAccess.class);
+
     abstract boolean isMemoryMapped();
 
     abstract int length() throws IOException;
@@ -63,10 +82,7 @@ abstract class FileAccess {
 
         @Override
         public ByteBuffer read(int position, int length) {
-            ByteBuffer entry = buffer.asReadOnlyBuffer();
-            entry.position(entry.position() + position);
-            entry.limit(entry.position() + length);
-            return entry.slice();
+            return slice(buffer, position, length);
         }
 
         @Override
@@ -76,7 +92,7 @@ abstract class FileAccess {
     }
     
     /**
-     * The implementation that uses random access file (reads are synchronized).
+     * The implementation that uses random access file.
      */    
     static class Random extends FileAccess {
 
@@ -114,4 +130,313 @@ abstract class FileAccess {
 
     }
 
+    /**
+     * The implementation that uses positional reads of the file channel, so
+     * that concurrent reads do not need to be synchronized. Interrupting a
+     * reading thread closes the channel, in which case the file is reopened.
+     * The interrupted read still fails, but other and later reads succeed.
+     */
+    static class Positional extends FileAccess {
+
+        private final File path;
+
+        private final int length;
+
+        private volatile RandomAccessFile file;
+
+        private boolean closed;
+
+        Positional(File path, RandomAccessFile file) throws IOException {
+            long length = file.length();
+            checkState(length < Integer.MAX_VALUE);
+            this.path = path;
+            this.length = (int) length;
+            this.file = file;
+        }
+
+        @Override
+        boolean isMemoryMapped() {
+            return false;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public ByteBuffer read(int position, int length) throws IOException {
+            while (true) {
+                RandomAccessFile current = file;
+                try {
+                    return read(current.getChannel(), position, length);
+                } catch (ClosedByInterruptException e) {
+                    // the interrupt status stays set, so retrying in this
+                    // thread would only close the reopened channel again
+                    reopen(current, e);
+                    throw e;
+                } catch (ClosedChannelException e) {
+                    // closed by a concurrent interrupted read
+                    reopen(current, e);
+                }
+            }
+        }
+
+        private static ByteBuffer read(FileChannel channel, int position, int length)
+                throws IOException {
+            ByteBuffer entry = ByteBuffer.allocate(length);
+            long offset = position;
+            while (entry.hasRemaining()) {
+                int n = channel.read(entry, offset);
+                if (n < 0) {
+                    throw new EOFException();
+                }
+                offset += n;
+            }
+            entry.rewind();
+            return entry;
+        }
+
+        private synchronized void reopen(RandomAccessFile current, IOException e)
+                throws IOException {
+            if (closed) {
+                throw e;
+            }
+            if (file == current) {
+                log.debug("Reopening tar file {} after its channel was closed", path);
+                current.close();
+                file = new RandomAccessFile(path, "r");
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            closed = true;
+            file.close();
+        }
+
+    }
+
+    /**
+     * The implementation that memory maps a file only while it is among the
+     * most recently read files of its {@link HotFiles} set, and uses
+     * the given file access otherwise. This bounds the virtual memory used for
+     * memory mapping regardless of the number of tar files.
+     * <p>
+     * Reads from the mapped file return a copy of the data, so that no buffer
+     * outlives the mapping and a file can be unmapped explicitly instead of
+     * once its mapped buffer has been garbage collected.
+     */
+    static class Adaptive extends FileAccess {
+
+        private final File path;
+
+        private final FileAccess random;
+
+        private final HotFiles hotFiles;
+
+        /**
+         * The mapped file, or {@code null} if not mapped.
+         * Only updated by {@link HotFiles}.
+         */
+        private volatile MappedByteBuffer buffer;
+
+        /**
+         * Number of reads since this file was last unmapped
+         */
+        private final AtomicInteger reads = new AtomicInteger();
+
+        /**
+         * Held for reading while copying from the mapped file and for
+         * writing while unmapping it.
+         */
+        private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+        /**
+         * Time of the last read, as of {@link HotFiles#tick()}
+         */
+        private volatile long lastRead;
+
+        /**
+         * @param path      the file to map
+         * @param random    the file access used while the file is not mapped
+         * @param hotFiles  the set of files sharing the mapping limit
+         */
+        Adaptive(File path, FileAccess random, HotFiles hotFiles) {
+            this.path = path;
+            this.random = random;
+            this.hotFiles = hotFiles;
+        }
+
+        @Override
+        boolean isMemoryMapped() {
+            return false;
+        }
+
+        @Override
+        public int length() throws IOException {
+            return random.length();
+        }
+
+        @Override
+        public ByteBuffer read(int position, int length) throws IOException {
+            lastRead = hotFiles.tick();
+            if (buffer == null && reads.incrementAndGet() == hotFiles.threshold) {
+                hotFiles.map(this);
+            }
+
+            Lock readLock = lock.readLock();
+            readLock.lock();
+            try {
+                MappedByteBuffer mapped = buffer;
+                if (mapped != null) {
+                    ByteBuffer entry = ByteBuffer.allocate(length);
+                    entry.put(slice(mapped, position, length));
+                    entry.flip();
+                    return entry;
+                }
+            } finally {
+                readLock.unlock();
+            }
+            return random.read(position, length);
+        }
+
+        /**
+         * @return {@code true} if the file is currently memory mapped
+         */
+        boolean isMapped() {
+            return buffer != null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            hotFiles.unmap(this);
+            random.close();
+        }
+
+    }
+
+    /**
+     * The set of {@link Adaptive} files sharing a limit on the number of
+     * memory mapped files. A file is mapped once it has been read a given
+     * number of times. If the limit has been reached, the least recently
+     * read mapped file is unmapped first.
+     */
+    static class HotFiles {
+
+        /**
+         * Default number of reads after which a file is mapped
+         */
+        static final int MAP_THRESHOLD = 16;
+
+        private final int maxMapped;
+
+        private final int threshold;
+
+        private final AtomicLong clock = new AtomicLong();
+
+        private final List<Adaptive> mapped = newArrayList();
+
+        /**
+         * @param maxMapped the maximum number of memory mapped files
+         */
+        HotFiles(int maxMapped) {
+            this(maxMapped, MAP_THRESHOLD);
+        }
+
+        HotFiles(int maxMapped, int threshold) {
+            checkArgument(maxMapped > 0);
+            checkArgument(threshold > 0);
+            this.maxMapped = maxMapped;
+            this.threshold = threshold;
+        }
+
+        long tick() {
+            return clock.incrementAndGet();
+        }
+
+        /**
+         * @return  the number of currently mapped files
+         */
+        synchronized int getMappedCount() {
+            return mapped.size();
+        }
+
+        synchronized void map(Adaptive file) {
+            if (file.buffer != null) {
+                return;
+            }
+
+            if (mapped.size() >= maxMapped) {
+                Adaptive coldest = mapped.get(0);
+                for (Adaptive candidate : mapped) {
+                    if (candidate.lastRead < coldest.lastRead) {
+                        coldest = candidate;
+                    }
+                }
+                unmap(coldest);
+            }
+
+            // map through a separate file handle, as interrupting the
+            // mapping thread closes the channel used for the mapping
+            try {
+                RandomAccessFile access = new RandomAccessFile(file.path, "r");
+                try {
+                    file.buffer = access.getChannel().map(READ_ONLY, 0, access.length());
+                } finally {
+                    access.close();
+                }
+                mapped.add(file);
+            } catch (IOException e) {
+                log.warn("Failed to mmap tar file, continuing with normal file IO", e);
+            }
+        }
+
+        /**
+         * Unmap the given file, waiting for concurrent reads of the mapped
+         * file to complete.
+         */
+        synchronized void unmap(Adaptive file) {
+            if (mapped.remove(file)) {
+                Lock writeLock = file.lock.writeLock();
+                writeLock.lock();
+                try {
+                    release(file.buffer);
+                    file.buffer = null;
+                    file.reads.set(0);
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+        }
+
+    }
+
+    /**
+     * Releases the given mapping right away, if supported by the JVM.
+     * Otherwise the mapping is released once the buffer has been garbage
+     * collected. No other buffer must be reading from the mapping.
+     */
+    private static void release(MappedByteBuffer buffer) {
+        try {
+            Method getCleaner = buffer.getClass().getMethod("cleaner");
+            getCleaner.setAccessible(true);
+            Object cleaner = getCleaner.invoke(buffer);
+            if (cleaner != null) {
+                cleaner.getClass().getMethod("clean").invoke(cleaner);
+            }
+        } catch (Exception e) {
+            log.debug("Unable to release memory mapped buffer, "
+                    + "leaving it to the garbage collector", e);
+        }
+
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int position, int length) {
+        ByteBuffer entry = buffer.asReadOnlyBuffer();
+        entry.position(entry.position() + position);
+        entry.limit(entry.position() + length);
+        return entry.slice();
+    }
+
 }
\ No newline at end of file
@@ -23,13 +23,16 @@ import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Lists.newArrayListWithCapacity;
 import static com.google.common.collect.Lists.newLinkedList;
 import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Maps.newLinkedHashMap;
 import static com.google.common.collect.Sets.newHashSet;
+import static java.lang.Integer.getInteger;
 import static java.lang.String.format;
 import static java.util.Collections.emptyMap;
 import static java.util.Collections.singletonMap;
 import static org.apache.jackrabbit.oak.commons.IOUtils.humanReadableByteCount;
 import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
 import static org.apache.jackrabbit.oak.plugins.segment.CompactionMap.sum;
+import static org.apache.jackrabbit.oak.plugins.segment.SegmentTracker.DEFAULT_MEMORY_CACHE_SIZE;
 import static org.apache.jackrabbit.oak.plugins.segment.compaction.CompactionStrategy.NO_COMPACTION;
 
 import java.io.File;
@@ -38,6 +41,8 @@ import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileLock;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
@@ -59,6 +64,7 @@ import org.apache.jackrabbit.oak.api.Blob;
 import org.apache.jackrabbit.oak.plugins.blob.BlobStoreBlob;
 import org.apache.jackrabbit.oak.plugins.segment.Compactor;
 import org.apache.jackrabbit.oak.plugins.segment.CompactionMap;
+import org.apache.jackrabbit.oak.plugins.segment.MappedCompactionMap;
 import org.apache.jackrabbit.oak.plugins.segment.PersistedCompactionMap;
 import org.apache.jackrabbit.oak.plugins.segment.RecordId;
 import org.apache.jackrabbit.oak.plugins.segment.Segment;
@@ -97,6 +103,13 @@ public class FileStore implements SegmentStore {
 
     private static final String LOCK_FILE_NAME = "repo.lock";
 
+    /**
+     * Maximum number of segments waiting to be appended to the current tar
+     * file by a background thread. Defaults to 0, which writes segments
+     * directly in the committing thread.
+     */
+    private static final int WRITE_BEHIND = getInteger("oak.tar.writeBehind", 0);
+
     static final boolean MEMORY_MAPPING_DEFAULT =
             "64".equals(System.getProperty("sun.arch.data.model", "32"));
 
@@ -110,14 +123,24 @@ public class FileStore implements SegmentStore {
 
     private final boolean memoryMapping;
 
-    private volatile List<TarReader> readers;
+    /**
+     * The set of tar files of which only the most recently read ones are
+     * memory mapped, or {@code null} if all or no files are memory mapped.
+     */
+    private final FileAccess.HotFiles hotFiles;
+
+    /**
+     * The current tar writer and the readers of all older tar files. The
+     * snapshot is immutable and gets replaced whenever the writer is rolled
+     * over to a new file or when cleanup creates new tar generations.
+     * Segments can thus be looked up without synchronizing on this store.
+     */
+    private volatile TarFiles files;
 
     private int writeNumber;
 
     private File writeFile;
 
-    private TarWriter writer;
-
     private final RandomAccessFile journalFile;
 
     private final RandomAccessFile lockFile;
@@ -149,11 +172,38 @@ public class FileStore implements SegmentStore {
 
     private CompactionStrategy compactionStrategy = NO_COMPACTION;
 
+    /**
+     * The head state set by the last successful compaction, or {@code null}
+     * if there was none since this store was opened. Incremental compaction
+     * only compacts the changes since this state. Its segments are kept by
+     * {@link #cleanup()} until the next compaction.
+     */
+    private volatile SegmentNodeState lastCompacted;
+
     /**
      * Flag to request revision cleanup during the next flush.
      */
     private final AtomicBoolean cleanupNeeded = new AtomicBoolean(false);
 
+    /**
+     * In-memory graph of the references between segments, used by
+     * {@link #cleanup()} instead of the graphs stored in the tar files,
+     * or {@code null} if disabled.
+     */
+    private final SegmentGraph segmentGraph;
+
+    /**
+     * Whether the segments of the tar files that existed before the
+     * first cleanup have been added to the {@link #segmentGraph}.
+     * Guarded by {@link #cleanupMonitor}.
+     */
+    private boolean segmentGraphSeeded;
+
+    /**
+     * Serializes concurrent {@link #cleanup()} calls.
+     */
+    private final Object cleanupMonitor = new Object();
+
     /**
      * List of old tar file generations that are waiting to be removed. They can
      * not be removed immediately, because they first need to be closed, and the
@@ -190,7 +240,10 @@ public class FileStore implements SegmentStore {
         private NodeState root = EMPTY_NODE;
         private int maxFileSize = 256;
         private int cacheSize;   // 0 -> DEFAULT_MEMORY_CACHE_SIZE
+        private int offHeapCacheSize;   // 0 -> no off-heap cache
         private boolean memoryMapping;
+        private int maxMappedFiles;   // 0 -> no adaptive memory mapping
+        private boolean segmentGraph;
         private final LoggingGCMonitor gcMonitor = new LoggingGCMonitor();
 
         private Builder(File directory) {
@@ -241,6 +294,19 @@ public class FileStore implements SegmentStore {
             return this;
         }
 
+        /**
+         * Size of the off-heap segment cache in MB. Segments evicted from
+         * the on-heap cache are kept there until they are read again.
+         * Defaults to 0, which disables the off-heap cache.
+         * @param offHeapCacheSize
+         * @return this instance
+         */
+        @Nonnull
+        public Builder withOffHeapCacheSize(int offHeapCacheSize) {
+            this.offHeapCacheSize = offHeapCacheSize;
+            return this;
+        }
+
         /**
          * Turn caching off
          * @return this instance
@@ -262,6 +328,35 @@ public class FileStore implements SegmentStore {
             return this;
         }
 
+        /**
+         * Memory map only the most recently read tar files, up to the given
+         * number of files, instead of none. This bounds the virtual memory
+         * used while still avoiding file IO for the hot files. Only used
+         * if memory mapping is turned off. Defaults to 0, which disables
+         * adaptive memory mapping.
+         * @param maxMappedFiles
+         * @return this instance
+         */
+        @Nonnull
+        public Builder withMaxMappedFiles(int maxMappedFiles) {
+            this.maxMappedFiles = maxMappedFiles;
+            return this;
+        }
+
+        /**
+         * Turn the in-memory segment graph on or off. If turned on, revision
+         * cleanup marks the reachable segments against a graph maintained
+         * as segments are written, instead of reading the graphs of all tar
+         * files while blocking concurrent writes.
+         * @param segmentGraph
+         * @return this instance
+         */
+        @Nonnull
+        public Builder withSegmentGraph(boolean segmentGraph) {
+            this.segmentGraph = segmentGraph;
+            return this;
+        }
+
         /**
          * {@link GCMonitor} for monitoring this files store's gc process.
          * @param gcMonitor
@@ -282,7 +377,10 @@ public class FileStore implements SegmentStore {
          * <li>root: empty node</li>
          * <li>max file size: 256MB</li>
          * <li>cache size: 256MB</li>
+         * <li>off-heap cache size: 0 (disabled)</li>
          * <li>memory mapping: on for 64 bit JVMs off otherwise</li>
+         * <li>max mapped files: 0 (no adaptive memory mapping)</li>
+         * <li>segment graph: off</li>
          * <li>whiteboard: none. No {@link GCMonitor} tracking</li>
          * </ul>
          *
@@ -292,14 +390,16 @@ public class FileStore implements SegmentStore {
         @Nonnull
         public FileStore create() throws IOException {
             return new FileStore(
-                    blobStore, directory, root, maxFileSize, cacheSize, memoryMapping, gcMonitor);
+                    blobStore, directory, root, maxFileSize, cacheSize,
+                    offHeapCacheSize, memoryMapping, maxMappedFiles,
+                    segmentGraph, gcMonitor);
         }
     }
 
     @Deprecated
     public FileStore(BlobStore blobStore, File directory, int maxFileSizeMB, boolean memoryMapping)
             throws IOException {
-        this(blobStore, directory, EMPTY_NODE, maxFileSizeMB, 0, memoryMapping, GCMonitor.EMPTY);
+        this(blobStore, directory, EMPTY_NODE, maxFileSizeMB, 0, 0, memoryMapping, 0, false, GCMonitor.EMPTY);
     }
 
     @Deprecated
@@ -317,48 +417,59 @@ public class FileStore implements SegmentStore {
     @Deprecated
     public FileStore(File directory, int maxFileSizeMB, int cacheSizeMB,
             boolean memoryMapping) throws IOException {
-        this(null, directory, EMPTY_NODE, maxFileSizeMB, cacheSizeMB, memoryMapping, GCMonitor.EMPTY);
+        this(null, directory, EMPTY_NODE, maxFileSizeMB, cacheSizeMB, 0, memoryMapping, 0, false, GCMonitor.EMPTY);
     }
 
     @Deprecated
     FileStore(File directory, NodeState initial, int maxFileSize) throws IOException {
-        this(null, directory, initial, maxFileSize, -1, MEMORY_MAPPING_DEFAULT, GCMonitor.EMPTY);
+        this(null, directory, initial, maxFileSize, -1, 0, MEMORY_MAPPING_DEFAULT, 0, false, GCMonitor.EMPTY);
     }
 
     @Deprecated
     public FileStore(
             BlobStore blobStore, final File directory, NodeState initial, int maxFileSizeMB,
             int cacheSizeMB, boolean memoryMapping) throws IOException {
-        this(blobStore, directory, initial, maxFileSizeMB, cacheSizeMB, memoryMapping, GCMonitor.EMPTY);
+        this(blobStore, directory, initial, maxFileSizeMB, cacheSizeMB, 0, memoryMapping, 0, false, GCMonitor.EMPTY);
     }
 
     private FileStore(
             BlobStore blobStore, final File directory, NodeState initial, int maxFileSizeMB,
-            int cacheSizeMB, boolean memoryMapping, GCMonitor gcMonitor)
+            int cacheSizeMB, int offHeapCacheSizeMB, boolean memoryMapping,
+            int maxMappedFiles, boolean segmentGraph, GCMonitor gcMonitor)
             throws IOException {
         checkNotNull(directory).mkdirs();
         if (cacheSizeMB < 0) {
             this.tracker = new SegmentTracker(this, 0, getVersion());
         } else if (cacheSizeMB > 0) {
-            this.tracker = new SegmentTracker(this, cacheSizeMB, getVersion());
+            this.tracker = new SegmentTracker(this, cacheSizeMB, offHeapCacheSizeMB, getVersion());
         } else {
-            this.tracker = new SegmentTracker(this, getVersion());
+            this.tracker = new SegmentTracker(this, DEFAULT_MEMORY_CACHE_SIZE, offHeapCacheSizeMB, getVersion());
         }
         this.blobStore = blobStore;
         this.directory = directory;
         this.maxFileSize = maxFileSizeMB * MB;
         this.memoryMapping = memoryMapping;
+        if (!memoryMapping && maxMappedFiles > 0) {
+            this.hotFiles = new FileAccess.HotFiles(maxMappedFiles);
+        } else {
+            this.hotFiles = null;
+        }
+        if (segmentGraph) {
+            this.segmentGraph = new SegmentGraph();
+        } else {
+            this.segmentGraph = null;
+        }
         this.gcMonitor = gcMonitor;
 
         journalFile = new RandomAccessFile(new File(directory, JOURNAL_FILE_NAME), "rw");
         lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
 
         Map<Integer, Map<Character, File>> map = collectFiles(directory);
-        this.readers = newArrayListWithCapacity(map.size());
+        List<TarReader> readers = newArrayListWithCapacity(map.size());
         Integer[] indices = map.keySet().toArray(new Integer[map.size()]);
         Arrays.sort(indices);
         for (int i = indices.length - 1; i >= 0; i--) {
-            readers.add(TarReader.open(map.get(indices[i]), memoryMapping));
+            readers.add(TarReader.open(map.get(indices[i]), memoryMapping, hotFiles));
         }
 
         if (indices.length > 0) {
@@ -369,7 +480,8 @@ public class FileStore implements SegmentStore {
         this.writeFile = new File(
                 directory,
                 String.format(FILE_NAME_FORMAT, writeNumber, "a"));
-        this.writer = new TarWriter(writeFile);
+        this.files = new TarFiles(new TarWriter(writeFile, WRITE_BEHIND), readers,
+                TarEntryIndex.build(readers));
 
         RecordId id = null;
         JournalReader journalReader = new JournalReader(new File(directory, JOURNAL_FILE_NAME));
@@ -393,6 +505,10 @@ public class FileStore implements SegmentStore {
         journalFile.seek(journalFile.length());
         lock = lockFile.getChannel().lock();
 
+        // compaction maps are not persisted, so any runs left in the
+        // directory belong to maps of a previous instance
+        MappedCompactionMap.deleteRuns(directory);
+
         if (id != null) {
             head = new AtomicReference<RecordId>(id);
             persistedHead = new AtomicReference<RecordId>(id);
@@ -426,7 +542,12 @@ public class FileStore implements SegmentStore {
                     }
                 });
 
-        log.info("TarMK opened: {} (mmap={})", directory, memoryMapping);
+        if (hotFiles != null) {
+            log.info("TarMK opened: {} (mmap={}, maxMappedFiles={})",
+                    directory, memoryMapping, maxMappedFiles);
+        } else {
+            log.info("TarMK opened: {} (mmap={})", directory, memoryMapping);
+        }
     }
 
     public boolean maybeCompact(boolean cleanup) {
@@ -574,7 +695,7 @@ public class FileStore implements SegmentStore {
 
     public synchronized long size() {
         long size = writeFile.length();
-        for (TarReader reader : readers) {
+        for (TarReader reader : files.readers) {
             size += reader.size();
         }
         return size;
@@ -585,9 +706,10 @@ public class FileStore implements SegmentStore {
      *
      * @return number of segments
      */
-    private synchronized int count() {
-        int count = writer.count();
-        for (TarReader reader : readers) {
+    private int count() {
+        TarFiles snapshot = files;
+        int count = snapshot.writer.count();
+        for (TarReader reader : snapshot.readers) {
             count += reader.count();
         }
         return count;
@@ -596,10 +718,8 @@ public class FileStore implements SegmentStore {
     CompactionGainEstimate estimateCompactionGain() {
         CompactionGainEstimate estimate = new CompactionGainEstimate(getHead(),
                 count());
-        synchronized (this) {
-            for (TarReader reader : readers) {
-                reader.accept(estimate);
-            }
+        for (TarReader reader : files.readers) {
+            reader.accept(estimate);
         }
         return estimate;
     }
@@ -616,17 +736,19 @@ public class FileStore implements SegmentStore {
 
                 // needs to happen outside the synchronization block below to
                 // prevent the flush from stopping concurrent reads and writes
-                writer.flush();
+                files.writer.flush();
 
                 synchronized (this) {
                     log.debug("TarMK journal update {} -> {}", before, after);
                     journalFile.writeBytes(after.toString10() + " root\n");
                     journalFile.getChannel().force(false);
                     persistedHead.set(after);
+                }
 
-                    if (cleanup) {
-                        cleanup();
-                    }
+                // cleanup synchronizes as needed, so that it doesn't
+                // block concurrent writes when using the segment graph
+                if (cleanup) {
+                    cleanup();
                 }
             }
             synchronized (this) {
@@ -659,40 +781,24 @@ public class FileStore implements SegmentStore {
         CompactionMap cm = tracker.getCompactionMap();
         Set<UUID> cleanedIds = newHashSet();
 
-        synchronized (this) {
+        synchronized (cleanupMonitor) {
             gcMonitor.info("TarMK revision cleanup started. Current repository size {}",
                     humanReadableByteCount(initialSize));
 
-            newWriter();
-            tracker.clearCache();
-
-            // Suggest to the JVM that now would be a good time
-            // to clear stale weak references in the SegmentTracker
-            System.gc();
+            if (segmentGraph == null || !cleanupWithSegmentGraph(cleanedIds)) {
+                synchronized (this) {
+                    newWriter();
+                    tracker.clearCache();
 
-            Set<UUID> ids = newHashSet();
-            for (SegmentId id : tracker.getReferencedSegmentIds()) {
-                ids.add(new UUID(
-                        id.getMostSignificantBits(),
-                        id.getLeastSignificantBits()));
-            }
-            writer.collectReferences(ids);
+                    // Suggest to the JVM that now would be a good time
+                    // to clear stale weak references in the SegmentTracker
+                    System.gc();
 
-            List<TarReader> list = newArrayListWithCapacity(readers.size());
-            for (TarReader reader : readers) {
-                TarReader cleaned = reader.cleanup(ids, cm, cleanedIds);
-                if (cleaned == reader) {
-                    list.add(reader);
-                } else {
-                    if (cleaned != null) {
-                        list.add(cleaned);
-                    }
-                    File file = reader.close();
-                    gcMonitor.info("TarMK revision cleanup reclaiming {}", file.getName());
-                    toBeRemoved.addLast(file);
+                    Set<UUID> ids = getReferencedIds();
+                    files.writer.collectReferences(ids);
+                    sweep(ids, cm, null, cleanedIds);
                 }
             }
-            readers = list;
         }
 
         // Do this outside sync to avoid deadlock with SegmentId.getSegment(). See OAK-3179
@@ -707,6 +813,118 @@ public class FileStore implements SegmentStore {
                 cm.getDepth());
     }
 
+    /**
+     * Marks the reachable segments against the in-memory segment graph and
+     * removes the others. Only rolling over the tar writer and publishing
+     * the new tar generations synchronize on this store, so concurrent
+     * writes can proceed meanwhile. Segments written during the cleanup go
+     * to the new tar writer and can only reference segments reachable from
+     * the segment ids in memory, which are all marked.
+     *
+     * @param cleanedIds receives the ids of the removed segments
+     * @return {@code false} if the segment graph is incomplete and
+     *         cleanup needs to fall back to the graphs of the tar files
+     */
+    private boolean cleanupWithSegmentGraph(Set<UUID> cleanedIds)
+            throws IOException {
+        synchronized (this) {
+            newWriter();
+            tracker.clearCache();
+        }
+
+        // Suggest to the JVM that now would be a good time
+        // to clear stale weak references in the SegmentTracker
+        System.gc();
+
+        Set<UUID> ids = getReferencedIds();
+        TarFiles snapshot = files;
+        snapshot.writer.collectReferences(ids);
+
+        if (!segmentGraphSeeded) {
+            // segments written since this store was opened have been
+            // added to the graph already
+            for (TarReader reader : snapshot.readers) {
+                reader.collectGraph(segmentGraph);
+            }
+            segmentGraphSeeded = true;
+        }
+
+        BitSet marks = segmentGraph.mark(ids);
+        if (marks == null) {
+            log.warn("TarMK segment graph is incomplete, " +
+                    "falling back to the graphs of the tar files");
+            return false;
+        }
+        sweep(null, null, marks, cleanedIds);
+        segmentGraph.removeSegments(cleanedIds);
+        return true;
+    }
+
+    /**
+     * @return the ids of the segments referenced from memory, and of the
+     *         segment of the last compacted state
+     */
+    private Set<UUID> getReferencedIds() {
+        Set<UUID> ids = newHashSet();
+        for (SegmentId id : tracker.getReferencedSegmentIds()) {
+            ids.add(new UUID(
+                    id.getMostSignificantBits(),
+                    id.getLeastSignificantBits()));
+        }
+        SegmentNodeState compacted = lastCompacted;
+        if (compacted != null) {
+            ids.add(compacted.getRecordId().getSegmentId().asUUID());
+        }
+        return ids;
+    }
+
+    /**
+     * Cleans up the tar readers of the current snapshot, either following
+     * the graphs of the tar files from the given referenced ids, or based
+     * on the segments marked in the segment graph. The new tar generations
+     * replace the old ones in the latest snapshot, which may have gained
+     * new readers in the meantime.
+     */
+    private void sweep(Set<UUID> ids, CompactionMap cm, BitSet marks,
+            Set<UUID> cleanedIds) throws IOException {
+        Map<TarReader, TarReader> cleaned = newLinkedHashMap();
+        for (TarReader reader : files.readers) {
+            TarReader generation;
+            if (marks != null) {
+                generation = reader.sweep(segmentGraph, marks, cleanedIds);
+            } else {
+                generation = reader.cleanup(ids, cm, cleanedIds);
+            }
+            if (generation != reader) {
+                cleaned.put(reader, generation);
+            }
+        }
+
+        synchronized (this) {
+            TarFiles snapshot = files;
+            List<TarReader> list =
+                    newArrayListWithCapacity(snapshot.readers.size());
+            for (TarReader reader : snapshot.readers) {
+                if (!cleaned.containsKey(reader)) {
+                    list.add(reader);
+                } else if (cleaned.get(reader) != null) {
+                    list.add(cleaned.get(reader));
+                }
+            }
+
+            // publish the new generations before closing the old ones, so
+            // that concurrent readers of closed files find their segments
+            // when re-checking the latest tar files
+            files = new TarFiles(
+                    snapshot.writer, list, TarEntryIndex.build(list));
+            for (TarReader reader : cleaned.keySet()) {
+                File file = reader.close();
+                gcMonitor.info("TarMK revision cleanup reclaiming {}", file.getName());
+                toBeRemoved.addLast(file);
+            }
+        }
+    }
+
     /**
      * @return  a new {@link SegmentWriter} instance for writing to this store.
      */
@@ -714,6 +932,17 @@ public class FileStore implements SegmentStore {
         return new SegmentWriter(this, tracker, getVersion());
     }
 
+    /**
+     * Create a segment writer that fills the given number of segments
+     * concurrently, for use by that many threads.
+     *
+     * @param lanes number of concurrently filled segments
+     * @return a new segment writer
+     */
+    public SegmentWriter createSegmentWriter(int lanes) {
+        return new SegmentWriter(this, tracker, getVersion(), lanes);
+    }
+
     /**
      * Copy every referenced record in data (non-bulk) segments. Bulk segments
      * are fully kept (they are only removed in cleanup, if there is no
@@ -725,7 +954,7 @@ public class FileStore implements SegmentStore {
         gcMonitor.info("TarMK compaction running, strategy={}", compactionStrategy);
 
         long start = System.currentTimeMillis();
-        Compactor compactor = new Compactor(this, compactionStrategy);
+        Compactor compactor = new Compactor(this, compactionStrategy, gcMonitor);
         SegmentNodeState before = getHead();
         long existing = before.getChildNode(SegmentNodeStore.CHECKPOINTS)
                 .getChildNodeCount(Long.MAX_VALUE);
@@ -735,7 +964,20 @@ public class FileStore implements SegmentStore {
                     existing);
         }
 
-        SegmentNodeState after = compactor.compact(EMPTY_NODE, before, EMPTY_NODE);
+        SegmentNodeState after = null;
+        SegmentNodeState compacted = lastCompacted;
+        if (compactionStrategy.isIncrementalCompaction() && compacted != null) {
+            gcMonitor.info("TarMK compaction compacting changes since the last compaction");
+            try {
+                after = compactor.compact(compacted, before, compacted);
+            } catch (SegmentNotFoundException e) {
+                gcMonitor.warn("TarMK compaction could not read the last compacted state ({}). " +
+                        "Running full compaction", e.getMessage());
+            }
+        }
+        if (after == null) {
+            after = compactor.compact(EMPTY_NODE, before, EMPTY_NODE);
+        }
 
         Callable<Boolean> setHead = new SetHead(before, after, compactor);
         try {
@@ -781,14 +1023,15 @@ public class FileStore implements SegmentStore {
         });
     }
 
-    public synchronized Iterable<SegmentId> getSegmentIds() {
+    public Iterable<SegmentId> getSegmentIds() {
+        TarFiles snapshot = files;
         List<SegmentId> ids = newArrayList();
-        for (UUID uuid : writer.getUUIDs()) {
+        for (UUID uuid : snapshot.writer.getUUIDs()) {
             ids.add(tracker.getSegmentId(
                     uuid.getMostSignificantBits(),
                     uuid.getLeastSignificantBits()));
         }
-        for (TarReader reader : readers) {
+        for (TarReader reader : snapshot.readers) {
             for (UUID uuid : reader.getUUIDs()) {
                 ids.add(tracker.getSegmentId(
                         uuid.getMostSignificantBits(),
@@ -826,14 +1069,17 @@ public class FileStore implements SegmentStore {
             try {
                 flush();
 
-                writer.close();
+                TarFiles snapshot = files;
+                snapshot.writer.close();
                 tracker.getWriter().dropCache();
 
-                List<TarReader> list = readers;
-                readers = newArrayList();
-                for (TarReader reader : list) {
+                files = new TarFiles(
+                        snapshot.writer, Collections.<TarReader>emptyList(),
+                        TarEntryIndex.EMPTY);
+                for (TarReader reader : snapshot.readers) {
                     reader.close();
                 }
+                MappedCompactionMap.deleteRuns(directory);
 
                 lock.release();
                 lockFile.close();
@@ -861,27 +1107,24 @@ public class FileStore implements SegmentStore {
     }
 
     private boolean containsSegment(long msb, long lsb) {
-        for (TarReader reader : readers) {
-            if (reader.containsEntry(msb, lsb)) {
+        TarFiles snapshot = files;
+        while (true) {
+            if (snapshot.index.find(msb, lsb) != -1) {
                 return true;
             }
-        }
-
-        synchronized (this) {
-            if (writer.containsEntry(msb, lsb)) {
+            if (snapshot.writer.containsEntry(msb, lsb)) {
                 return true;
             }
-        }
 
-        // the writer might have switched to a new file,
-        // so we need to re-check the readers
-        for (TarReader reader : readers) {
-            if (reader.containsEntry(msb, lsb)) {
-                return true;
+            // the writer might have switched to a new file or cleanup
+            // might have replaced some of the readers, so we need to
+            // re-check with the latest tar files
+            TarFiles latest = getLatestFiles(snapshot);
+            if (latest == snapshot) {
+                return false;
             }
+            snapshot = latest;
         }
-
-        return false;
     }
 
     @Override
@@ -889,66 +1132,81 @@ public class FileStore implements SegmentStore {
         long msb = id.getMostSignificantBits();
         long lsb = id.getLeastSignificantBits();
 
-        for (TarReader reader : readers) {
-            try {
+        TarFiles snapshot = files;
+        while (true) {
+            int slot = snapshot.index.find(msb, lsb);
+            if (slot != -1) {
+                TarReader reader = snapshot.index.getReader(slot);
                 if (reader.isClosed()) {
                     // Cleanup might already have closed the file.
                     // The segment should be available from another file.
                     log.debug("Skipping closed tar file {}", reader);
-                    continue;
-                }
-
-                ByteBuffer buffer = reader.readEntry(msb, lsb);
-                if (buffer != null) {
-                    return new Segment(tracker, id, buffer);
+                } else {
+                    try {
+                        ByteBuffer buffer = reader.readEntry(
+                                snapshot.index.getOffset(slot),
+                                snapshot.index.getSize(slot));
+                        return new Segment(tracker, id, buffer);
+                    } catch (IOException e) {
+                        log.warn("Failed to read from tar file " + reader, e);
+                    }
                 }
-            } catch (IOException e) {
-                log.warn("Failed to read from tar file " + reader, e);
             }
-        }
 
-        synchronized (this) {
             try {
-                ByteBuffer buffer = writer.readEntry(msb, lsb);
+                ByteBuffer buffer = snapshot.writer.readEntry(msb, lsb);
                 if (buffer != null) {
                     return new Segment(tracker, id, buffer);
                 }
             } catch (IOException e) {
-                log.warn("Failed to read from tar file " + writer, e);
+                log.warn("Failed to read from tar file " + snapshot.writer, e);
             }
-        }
 
-        // the writer might have switched to a new file,
-        // so we need to re-check the readers
-        for (TarReader reader : readers) {
-            try {
-                if (reader.isClosed()) {
-                    // Cleanup might already have closed the file.
-                    // The segment should be available from another file.
-                    log.info("Skipping closed tar file {}", reader);
-                    continue;
-                }
-
-                ByteBuffer buffer = reader.readEntry(msb, lsb);
-                if (buffer != null) {
-                    return new Segment(tracker, id, buffer);
-                }
-            } catch (IOException e) {
-                log.warn("Failed to read from tar file " + reader, e);
+            // the writer might have switched to a new file or cleanup
+            // might have replaced some of the readers, so we need to
+            // re-check with the latest tar files
+            TarFiles latest = getLatestFiles(snapshot);
+            if (latest == snapshot) {
+                throw new SegmentNotFoundException(id);
             }
+            snapshot = latest;
         }
+    }
 
-        throw new SegmentNotFoundException(id);
+    /**
+     * Returns the latest tar files after a lookup in the given snapshot
+     * failed. The store lock is only acquired if the writer of the snapshot
+     * has already been closed, but the files with the new writer and the
+     * reader of the closed file are not yet published. Acquiring the lock
+     * then waits for {@link #newWriter()} to complete.
+     *
+     * @param snapshot the tar files that have already been searched
+     * @return the latest tar files, or {@code snapshot} if they did not change
+     */
+    private TarFiles getLatestFiles(TarFiles snapshot) {
+        TarFiles latest = files;
+        if (latest == snapshot && snapshot.writer.isClosed()) {
+            synchronized (this) {
+                latest = files;
+            }
+        }
+        return latest;
     }
 
     @Override
     public synchronized void writeSegment(
             SegmentId id, byte[] data, int offset, int length) {
         try {
-            long size = writer.writeEntry(
+            long size = files.writer.writeEntry(
                     id.getMostSignificantBits(),
                     id.getLeastSignificantBits(),
                     data, offset, length);
+            if (segmentGraph != null) {
+                segmentGraph.addSegment(
+                        id.getMostSignificantBits(),
+                        id.getLeastSignificantBits(),
+                        ByteBuffer.wrap(data, offset, length));
+            }
             if (size >= maxFileSize) {
                 newWriter();
             }
@@ -958,20 +1216,22 @@ public class FileStore implements SegmentStore {
     }
 
     private void newWriter() throws IOException {
-        if (writer.isDirty()) {
-            writer.close();
+        TarFiles snapshot = files;
+        if (snapshot.writer.isDirty()) {
+            snapshot.writer.close();
 
+            TarReader reader = TarReader.open(writeFile, memoryMapping, hotFiles);
             List<TarReader> list =
-                    newArrayListWithCapacity(1 + readers.size());
-            list.add(TarReader.open(writeFile, memoryMapping));
-            list.addAll(readers);
-            readers = list;
+                    newArrayListWithCapacity(1 + snapshot.readers.size());
+            list.add(reader);
+            list.addAll(snapshot.readers);
 
             writeNumber++;
             writeFile = new File(
                     directory,
                     String.format(FILE_NAME_FORMAT, writeNumber, "a"));
-            writer = new TarWriter(writeFile);
+            files = new TarFiles(new TarWriter(writeFile, WRITE_BEHIND), list,
+                    snapshot.index.add(reader));
         }
     }
 
@@ -999,14 +1259,14 @@ public class FileStore implements SegmentStore {
 
     public Map<String, Set<UUID>> getTarReaderIndex() {
         Map<String, Set<UUID>> index = new HashMap<String, Set<UUID>>();
-        for (TarReader reader : readers) {
+        for (TarReader reader : files.readers) {
             index.put(reader.getFile().getAbsolutePath(), reader.getUUIDs());
         }
         return index;
     }
 
     public Map<UUID, List<UUID>> getTarGraph(String fileName) throws IOException {
-        for (TarReader reader : readers) {
+        for (TarReader reader : files.readers) {
             if (fileName.equals(reader.getFile().getName())) {
                 Map<UUID, List<UUID>> graph = Maps.newHashMap();
                 for (UUID uuid : reader.getUUIDs()) {
@@ -1109,12 +1369,17 @@ public class FileStore implements SegmentStore {
             // needs to be called inside the commitSemaphore as doing otherwise
             // might result in mixed segments. See OAK-2192.
             if (setHead(before, after)) {
+                lastCompacted = after;
                 tracker.setCompactionMap(compactor.getCompactionMap());
 
-                // Drop the SegmentWriter caches and flush any existing state
-                // in an attempt to prevent new references to old pre-compacted
-                // content. TODO: There should be a cleaner way to do this. (implement GCMonitor!?)
-                tracker.getWriter().dropCache();
+                // Replace the SegmentWriter caches with the records of the
+                // compacted content and flush any existing state in an attempt
+                // to prevent new references to old pre-compacted content.
+                // Only done once the compacted content is the head state, as
+                // otherwise the cached records would refer to content that
+                // is never used. TODO: There should be a cleaner way to do
+                // this. (implement GCMonitor!?)
+                tracker.getWriter().adoptCache(compactor.getWriter());
                 tracker.getWriter().flush();
 
                 CompactionMap cm = tracker.getCompactionMap();
@@ -1131,6 +1396,34 @@ public class FileStore implements SegmentStore {
         return version;
     }
 
+    /**
+     * @return the directory containing the tar files of this store
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Immutable snapshot of the tar files of a store: the writer of the
+     * current tar file and the readers of all older files, newest first,
+     * along with the hash index of all entries of these readers.
+     */
+    private static class TarFiles {
+
+        private final TarWriter writer;
+
+        private final List<TarReader> readers;
+
+        private final TarEntryIndex index;
+
+        TarFiles(TarWriter writer, List<TarReader> readers, TarEntryIndex index) {
+            this.writer = writer;
+            this.readers = Collections.unmodifiableList(readers);
+            this.index = index;
+        }
+
+    }
+
     private static class LoggingGCMonitor implements GCMonitor {
         public GCMonitor delegatee = GCMonitor.EMPTY;
 
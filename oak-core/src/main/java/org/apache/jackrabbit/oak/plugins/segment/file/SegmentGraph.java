@@ -0,0 +1,320 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment.file;
+
+import static org.apache.jackrabbit.oak.plugins.segment.Segment.REF_COUNT_OFFSET;
+import static org.apache.jackrabbit.oak.plugins.segment.SegmentId.isDataSegmentId;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.UUID;
+
+/**
+ * In-memory graph of the references between the segments of a
+ * {@link FileStore}. The graph is maintained incrementally as segments
+ * are written, so that {@link FileStore#cleanup()} can determine the
+ * reachable segments without parsing the graph entries of all tar files
+ * and without blocking concurrent writes for the duration of the cleanup.
+ * <p>
+ * Each segment is identified by a dense integer index, and the references
+ * of a segment are kept as an array of such indices. Segment identifiers
+ * are mapped to their index with an open addressing hash table over
+ * primitive arrays. Segments that are only known as the target of a
+ * reference are kept as placeholders until they are added themselves.
+ * <p>
+ * All methods are synchronized, but none of them does any IO.
+ */
+class SegmentGraph {
+
+    private static final int[] NO_REFERENCES = new int[0];
+
+    /**
+     * Most and least significant bits of the segment identifiers, two
+     * consecutive elements per index.
+     */
+    private long[] ids = new long[32];
+
+    /**
+     * The referenced segments by index, or {@code null} for segments
+     * that have not been added yet.
+     */
+    private int[][] references = new int[16][];
+
+    /**
+     * Hash table mapping segment identifiers to their index plus one,
+     * or zero for an empty slot.
+     */
+    private int[] table = new int[32];
+
+    private int size;
+
+    /**
+     * Add a segment together with its references. The references of data
+     * segments are read from the segment header at the current position
+     * of the given buffer. Adding a segment that is already part of this
+     * graph replaces its references.
+     *
+     * @param msb the most significant bits of the segment id
+     * @param lsb the least significant bits of the segment id
+     * @param segment the segment data, or at least its header
+     */
+    synchronized void addSegment(long msb, long lsb, ByteBuffer segment) {
+        int[] refs = NO_REFERENCES;
+        if (isDataSegmentId(lsb)) {
+            int pos = segment.position();
+            int refcount = segment.get(pos + REF_COUNT_OFFSET) & 0xff;
+            if (refcount != 0) {
+                refs = new int[refcount];
+                for (int i = 0; i < refcount; i++) {
+                    int refpos = pos + 16 * (i + 1);
+                    refs[i] = index(
+                            segment.getLong(refpos),
+                            segment.getLong(refpos + 8));
+                }
+            }
+        }
+        // look up the index first, as it might grow the arrays
+        int index = index(msb, lsb);
+        references[index] = refs;
+    }
+
+    /**
+     * Add a segment together with its references.
+     *
+     * @param msb the most significant bits of the segment id
+     * @param lsb the least significant bits of the segment id
+     * @param refids the referenced segments, or {@code null} if none
+     */
+    synchronized void addSegment(long msb, long lsb, Collection<UUID> refids) {
+        int[] refs = NO_REFERENCES;
+        if (refids != null && !refids.isEmpty()) {
+            refs = new int[refids.size()];
+            int i = 0;
+            for (UUID refid : refids) {
+                refs[i++] = index(
+                        refid.getMostSignificantBits(),
+                        refid.getLeastSignificantBits());
+            }
+        }
+        // look up the index first, as it might grow the arrays
+        int index = index(msb, lsb);
+        references[index] = refs;
+    }
+
+    /**
+     * Mark all segments reachable from the given segments.
+     *
+     * @param roots the root segments
+     * @return the indices of the reachable segments, or {@code null} if a
+     *         reachable data segment has not been added to this graph, in
+     *         which case its references are unknown
+     */
+    synchronized BitSet mark(Collection<UUID> roots) {
+        BitSet marks = new BitSet(size);
+        int[] stack = new int[16];
+        int top = 0;
+        for (UUID root : roots) {
+            int index = find(
+                    root.getMostSignificantBits(),
+                    root.getLeastSignificantBits());
+            if (index == -1) {
+                if (isDataSegmentId(root.getLeastSignificantBits())) {
+                    return null;
+                }
+            } else if (!marks.get(index)) {
+                marks.set(index);
+                if (top == stack.length) {
+                    stack = Arrays.copyOf(stack, top * 2);
+                }
+                stack[top++] = index;
+            }
+        }
+        while (top > 0) {
+            int index = stack[--top];
+            int[] refs = references[index];
+            if (refs == null) {
+                if (isDataSegmentId(ids[2 * index + 1])) {
+                    return null;
+                }
+            } else {
+                for (int ref : refs) {
+                    if (!marks.get(ref)) {
+                        marks.set(ref);
+                        if (top == stack.length) {
+                            stack = Arrays.copyOf(stack, top * 2);
+                        }
+                        stack[top++] = ref;
+                    }
+                }
+            }
+        }
+        return marks;
+    }
+
+    /**
+     * Check whether the given segment has been marked as reachable.
+     * Segments that are not part of this graph are always considered
+     * reachable, so that they are never removed by mistake.
+     *
+     * @param marks the result of a previous call to {@link #mark(Collection)}
+     * @param msb the most significant bits of the segment id
+     * @param lsb the least significant bits of the segment id
+     * @return {@code true} if the segment is reachable or unknown
+     */
+    synchronized boolean isMarked(BitSet marks, long msb, long lsb) {
+        int index = find(msb, lsb);
+        return index == -1 || references[index] == null || marks.get(index);
+    }
+
+    /**
+     * Remove the given segments from this graph. The remaining segments
+     * are assigned new indices, so the result of previous calls to
+     * {@link #mark(Collection)} must not be used afterwards.
+     *
+     * @param removed the segments to remove
+     */
+    synchronized void removeSegments(Collection<UUID> removed) {
+        BitSet drop = new BitSet(size);
+        for (UUID id : removed) {
+            int index = find(
+                    id.getMostSignificantBits(),
+                    id.getLeastSignificantBits());
+            if (index != -1) {
+                drop.set(index);
+            }
+        }
+        if (drop.isEmpty()) {
+            return;
+        }
+
+        int[] renumbered = new int[size];
+        int count = 0;
+        for (int index = 0; index < size; index++) {
+            if (drop.get(index)) {
+                renumbered[index] = -1;
+            } else {
+                renumbered[index] = count++;
+            }
+        }
+
+        long[] oldIds = ids;
+        int[][] oldReferences = references;
+        int oldSize = size;
+        ids = new long[2 * capacityFor(count)];
+        references = new int[capacityFor(count)][];
+        table = new int[2 * capacityFor(count)];
+        size = 0;
+        for (int index = 0; index < oldSize; index++) {
+            if (renumbered[index] != -1) {
+                int[] refs = oldReferences[index];
+                if (refs != null && refs.length > 0) {
+                    int n = 0;
+                    int[] kept = new int[refs.length];
+                    for (int ref : refs) {
+                        if (renumbered[ref] != -1) {
+                            kept[n++] = renumbered[ref];
+                        }
+                    }
+                    refs = n == kept.length ? kept : Arrays.copyOf(kept, n);
+                }
+                int newIndex = index(oldIds[2 * index], oldIds[2 * index + 1]);
+                references[newIndex] = refs;
+            }
+        }
+    }
+
+    /**
+     * @return the number of segments in this graph, including placeholders
+     */
+    synchronized int size() {
+        return size;
+    }
+
+    //-----------------------------------------------------------< private >--
+
+    private int find(long msb, long lsb) {
+        int mask = table.length - 1;
+        int slot = hash(msb, lsb) & mask;
+        while (table[slot] != 0) {
+            int index = table[slot] - 1;
+            if (ids[2 * index] == msb && ids[2 * index + 1] == lsb) {
+                return index;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Find the index of the given segment, adding a placeholder if the
+     * segment is not yet part of this graph.
+     */
+    private int index(long msb, long lsb) {
+        int index = find(msb, lsb);
+        if (index != -1) {
+            return index;
+        }
+
+        if (size == references.length) {
+            ids = Arrays.copyOf(ids, 4 * size);
+            references = Arrays.copyOf(references, 2 * size);
+        }
+        index = size++;
+        ids[2 * index] = msb;
+        ids[2 * index + 1] = lsb;
+        if (2 * size > table.length) {
+            rehash();
+        } else {
+            insert(index);
+        }
+        return index;
+    }
+
+    private void rehash() {
+        table = new int[2 * table.length];
+        for (int index = 0; index < size; index++) {
+            insert(index);
+        }
+    }
+
+    private void insert(int index) {
+        int mask = table.length - 1;
+        int slot = hash(ids[2 * index], ids[2 * index + 1]) & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        table[slot] = index + 1;
+    }
+
+    private static int hash(long msb, long lsb) {
+        // the identifiers are random, apart from the few version
+        // and type bits, which are not among the lowest ones
+        long h = msb ^ lsb;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int capacityFor(int entries) {
+        int capacity = 16;
+        while (capacity < entries) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+}
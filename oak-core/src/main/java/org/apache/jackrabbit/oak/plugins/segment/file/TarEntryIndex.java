@@ -0,0 +1,191 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment.file;
+
+import java.io.File;
+import java.util.List;
+
+/**
+ * Immutable hash index of the entries of a number of tar files, mapping
+ * segment identifiers to the tar reader and location of the segment. This
+ * allows to find a segment with a single probe instead of searching the
+ * index of each tar file in turn.
+ * <p>
+ * The index uses open addressing with linear probing over primitive arrays.
+ * As segment identifiers are random, the low bits of the identifier are
+ * used as the hash code. Instances are never modified once created, so
+ * that they can be read without synchronization. Use
+ * {@link #add(TarReader)} to derive an index with the entries of a new
+ * tar file.
+ */
+class TarEntryIndex {
+
+    static final TarEntryIndex EMPTY = new TarEntryIndex(16);
+
+    /**
+     * Most and least significant bits of the segment identifiers, two
+     * consecutive elements per slot.
+     */
+    private final long[] keys;
+
+    /**
+     * The reader of each slot, or {@code null} for an empty slot.
+     */
+    private final TarReader[] readers;
+
+    private final int[] offsets;
+
+    private final int[] sizes;
+
+    private int count;
+
+    private TarEntryIndex(int capacity) {
+        this.keys = new long[capacity * 2];
+        this.readers = new TarReader[capacity];
+        this.offsets = new int[capacity];
+        this.sizes = new int[capacity];
+    }
+
+    /**
+     * Build an index of the entries of the given readers. If a segment
+     * is contained in several files, the first reader wins.
+     *
+     * @param readers the tar readers, newest first
+     * @return the index
+     */
+    static TarEntryIndex build(List<TarReader> readers) {
+        int entries = 0;
+        for (TarReader reader : readers) {
+            entries += reader.count();
+        }
+        TarEntryIndex index = new TarEntryIndex(capacityFor(entries));
+        for (TarReader reader : readers) {
+            index.putAll(reader, false);
+        }
+        return index;
+    }
+
+    /**
+     * Create a new index containing the entries of this index and the
+     * entries of the given, newer reader. This index is not modified.
+     *
+     * @param reader the reader to add
+     * @return the new index
+     */
+    TarEntryIndex add(TarReader reader) {
+        TarEntryIndex index = new TarEntryIndex(
+                capacityFor(count + reader.count()));
+        for (int slot = 0; slot < readers.length; slot++) {
+            if (readers[slot] != null) {
+                index.put(keys[2 * slot], keys[2 * slot + 1],
+                        readers[slot], offsets[slot], sizes[slot], false);
+            }
+        }
+        index.putAll(reader, true);
+        return index;
+    }
+
+    /**
+     * Find the slot of the given segment.
+     *
+     * @param msb the most significant bits of the segment id
+     * @param lsb the least significant bits of the segment id
+     * @return the slot, or -1 if the segment is not in this index
+     */
+    int find(long msb, long lsb) {
+        int mask = readers.length - 1;
+        int slot = hash(msb, lsb) & mask;
+        while (readers[slot] != null) {
+            if (keys[2 * slot] == msb && keys[2 * slot + 1] == lsb) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    TarReader getReader(int slot) {
+        return readers[slot];
+    }
+
+    int getOffset(int slot) {
+        return offsets[slot];
+    }
+
+    int getSize(int slot) {
+        return sizes[slot];
+    }
+
+    /**
+     * @return the number of entries in this index
+     */
+    int size() {
+        return count;
+    }
+
+    private void putAll(final TarReader reader, final boolean replace) {
+        reader.accept(new TarEntryVisitor() {
+            @Override
+            public void visit(long msb, long lsb, File file, int offset, int size) {
+                put(msb, lsb, reader, offset, size, replace);
+            }
+        });
+    }
+
+    private void put(long msb, long lsb, TarReader reader,
+            int offset, int size, boolean replace) {
+        int mask = readers.length - 1;
+        int slot = hash(msb, lsb) & mask;
+        while (readers[slot] != null) {
+            if (keys[2 * slot] == msb && keys[2 * slot + 1] == lsb) {
+                if (replace) {
+                    readers[slot] = reader;
+                    offsets[slot] = offset;
+                    sizes[slot] = size;
+                }
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[2 * slot] = msb;
+        keys[2 * slot + 1] = lsb;
+        readers[slot] = reader;
+        offsets[slot] = offset;
+        sizes[slot] = size;
+        count++;
+    }
+
+    private static int hash(long msb, long lsb) {
+        // the identifiers are random, apart from the few version
+        // and type bits, which are not among the lowest ones
+        long h = msb ^ lsb;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return the smallest power of two keeping the load factor
+     *         at or below 50% for the given number of entries
+     */
+    private static int capacityFor(int entries) {
+        int capacity = 16;
+        while (capacity < 2 * entries) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+}
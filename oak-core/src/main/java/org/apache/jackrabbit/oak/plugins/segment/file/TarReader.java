@@ -17,6 +17,7 @@
 package org.apache.jackrabbit.oak.plugins.segment.file;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static java.lang.Boolean.getBoolean;
 import static com.google.common.collect.Lists.newArrayList;
 import static com.google.common.collect.Lists.newArrayListWithCapacity;
 import static com.google.common.collect.Maps.newHashMap;
@@ -34,6 +35,7 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.LinkedHashMap;
 import java.util.List;
@@ -45,6 +47,8 @@ import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.CRC32;
 
+import javax.annotation.Nullable;
+
 import org.apache.commons.io.FileUtils;
 import org.apache.jackrabbit.oak.plugins.segment.CompactionMap;
 import org.slf4j.Logger;
@@ -71,13 +75,31 @@ class TarReader {
     /** The tar file block size. */
     private static final int BLOCK_SIZE = TarWriter.BLOCK_SIZE;
 
+    /**
+     * Whether to read tar files that are not memory mapped through
+     * positional channel reads instead of synchronized seek and read calls.
+     */
+    private static final boolean POSITIONAL_READS = getBoolean("oak.tar.positionalReads");
+
     static int getEntrySize(int size) {
         return BLOCK_SIZE + size + TarWriter.getPaddingSize(size);
     }
 
     static TarReader open(File file, boolean memoryMapping) throws IOException {
+        return open(file, memoryMapping, null);
+    }
+
+    /**
+     * @param file the tar file
+     * @param memoryMapping whether to memory map the file
+     * @param hotFiles if not {@code null} and memory mapping is off, the set
+     *                 of files of which the most recently read ones are
+     *                 memory mapped
+     */
+    static TarReader open(File file, boolean memoryMapping,
+            @Nullable FileAccess.HotFiles hotFiles) throws IOException {
         TarReader reader = openFirstFileWithValidIndex(
-                singletonList(file), memoryMapping);
+                singletonList(file), memoryMapping, hotFiles);
         if (reader != null) {
             return reader;
         } else {
@@ -97,18 +119,19 @@ class TarReader {
      *
      * @param files
      * @param memoryMapping
+     * @param hotFiles
      * @return
      * @throws IOException
      */
-    static TarReader open(Map<Character, File> files, boolean memoryMapping)
-            throws IOException {
+    static TarReader open(Map<Character, File> files, boolean memoryMapping,
+            @Nullable FileAccess.HotFiles hotFiles) throws IOException {
         SortedMap<Character, File> sorted = newTreeMap();
         sorted.putAll(files);
 
         List<File> list = newArrayList(sorted.values());
         Collections.reverse(list);
 
-        TarReader reader = openFirstFileWithValidIndex(list, memoryMapping);
+        TarReader reader = openFirstFileWithValidIndex(list, memoryMapping, hotFiles);
         if (reader != null) {
             return reader;
         }
@@ -146,7 +169,7 @@ class TarReader {
         }
         writer.close();
 
-        reader = openFirstFileWithValidIndex(singletonList(file), memoryMapping);
+        reader = openFirstFileWithValidIndex(singletonList(file), memoryMapping, hotFiles);
         if (reader != null) {
             return reader;
         } else {
@@ -182,7 +205,8 @@ class TarReader {
         }
     }
 
-    private static TarReader openFirstFileWithValidIndex(List<File> files, boolean memoryMapping) {
+    private static TarReader openFirstFileWithValidIndex(List<File> files, boolean memoryMapping,
+            @Nullable FileAccess.HotFiles hotFiles) {
         for (File file : files) {
             String name = file.getName();
             try {
@@ -208,7 +232,7 @@ class TarReader {
                                 index = mapped.read(
                                         mapped.length() - indexSize - 16 - 1024,
                                         indexSize);
-                                return new TarReader(file, mapped, index);
+                                return new TarReader(file, mapped, index, hotFiles);
                             } catch (IOException e) {
                                 log.warn("Failed to mmap tar file " + name
                                                  + ". Falling back to normal file IO,"
@@ -226,11 +250,19 @@ class TarReader {
                             }
                         }
 
-                        FileAccess random = new FileAccess.Random(access);
+                        FileAccess random;
+                        if (POSITIONAL_READS) {
+                            random = new FileAccess.Positional(file, access);
+                        } else {
+                            random = new FileAccess.Random(access);
+                        }
+                        if (hotFiles != null) {
+                            random = new FileAccess.Adaptive(file, random, hotFiles);
+                        }
                         // prevent the finally block from closing the file
                         // as the returned TarReader will take care of that
                         access = null;
-                        return new TarReader(file, random, index);
+                        return new TarReader(file, random, index, hotFiles);
                     }
                 } finally {
                     if (access != null) {
@@ -429,12 +461,19 @@ class TarReader {
 
     private final ByteBuffer index;
 
+    /**
+     * The set of adaptively mapped files this reader belongs to, if any
+     */
+    private final FileAccess.HotFiles hotFiles;
+
     private volatile boolean closed;
 
-    private TarReader(File file, FileAccess access, ByteBuffer index) {
+    private TarReader(File file, FileAccess access, ByteBuffer index,
+            @Nullable FileAccess.HotFiles hotFiles) {
         this.file = file;
         this.access = access;
         this.index = index;
+        this.hotFiles = hotFiles;
     }
 
     long size() {
@@ -507,6 +546,18 @@ class TarReader {
         }
     }
 
+    /**
+     * Get the byte buffer that allows reading the entry at the given
+     * location, as found in the index of this file.
+     *
+     * @param offset the offset of the entry in the tar file
+     * @param size the size of the entry
+     * @return the byte buffer
+     */
+    ByteBuffer readEntry(int offset, int size) throws IOException {
+        return access.read(offset, size);
+    }
+
     /**
      * Find the position of the given segment in the tar file.
      * It uses the tar index if available.
@@ -578,18 +629,7 @@ class TarReader {
             throws IOException {
         Set<UUID> cleaned = newHashSet();
         Map<UUID, List<UUID>> graph = getGraph();
-
-        TarEntry[] sorted = new TarEntry[index.remaining() / 24];
-        int position = index.position();
-        for (int i = 0; position < index.limit(); i++) {
-            sorted[i]  = new TarEntry(
-                    index.getLong(position),
-                    index.getLong(position + 8),
-                    index.getInt(position + 16),
-                    index.getInt(position + 20));
-            position += 24;
-        }
-        Arrays.sort(sorted, TarEntry.OFFSET_ORDER);
+        TarEntry[] sorted = getEntriesByOffset();
 
         int size = 0;
         int count = 0;
@@ -628,6 +668,91 @@ class TarReader {
                 }
             }
         }
+        return rewrite(sorted, size, count, cleaned, removed, graph != null);
+    }
+
+    /**
+     * Garbage collects segments in this file based on the reachable
+     * segments marked in the given in-memory segment graph. Unlike
+     * {@link #cleanup(Set, CompactionMap, Set)} this neither needs the
+     * pre-compiled graph of this file nor reads any segment headers.
+     *
+     * @param segmentGraph the segment graph
+     * @param marks the reachable segments as marked in {@code segmentGraph}
+     * @param removed a set which will receive the uuids of all segments that
+     *                have been cleaned.
+     * @return this (if the file is kept as is), or the new generation file, or
+     *         null if the file is fully garbage
+     */
+    synchronized TarReader sweep(
+            SegmentGraph segmentGraph, BitSet marks, Set<UUID> removed)
+            throws IOException {
+        Set<UUID> cleaned = newHashSet();
+        TarEntry[] sorted = getEntriesByOffset();
+
+        int size = 0;
+        int count = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            TarEntry entry = sorted[i];
+            if (segmentGraph.isMarked(marks, entry.msb(), entry.lsb())) {
+                size += getEntrySize(entry.size());
+                count += 1;
+            } else {
+                cleaned.add(new UUID(entry.msb(), entry.lsb()));
+                sorted[i] = null;
+            }
+        }
+        // the pre-compiled graph is only used to seed the in-memory
+        // graph, so it's not worth rewriting a file just to add one
+        return rewrite(sorted, size, count, cleaned, removed, true);
+    }
+
+    /**
+     * Add all segments of this file to the given in-memory segment graph,
+     * using the pre-compiled graph of this file if available, or the
+     * segment headers otherwise.
+     *
+     * @param segmentGraph the segment graph
+     */
+    void collectGraph(SegmentGraph segmentGraph) throws IOException {
+        Map<UUID, List<UUID>> graph = getGraph();
+        for (TarEntry entry : getEntriesByOffset()) {
+            if (graph != null || !isDataSegmentId(entry.lsb())) {
+                List<UUID> refids = null;
+                if (graph != null) {
+                    refids = graph.get(new UUID(entry.msb(), entry.lsb()));
+                }
+                segmentGraph.addSegment(entry.msb(), entry.lsb(), refids);
+            } else {
+                segmentGraph.addSegment(entry.msb(), entry.lsb(), access.read(
+                        entry.offset(), Math.min(entry.size(), 16 * 256)));
+            }
+        }
+    }
+
+    private TarEntry[] getEntriesByOffset() {
+        TarEntry[] sorted = new TarEntry[index.remaining() / 24];
+        int position = index.position();
+        for (int i = 0; position < index.limit(); i++) {
+            sorted[i]  = new TarEntry(
+                    index.getLong(position),
+                    index.getLong(position + 8),
+                    index.getInt(position + 16),
+                    index.getInt(position + 20));
+            position += 24;
+        }
+        Arrays.sort(sorted, TarEntry.OFFSET_ORDER);
+        return sorted;
+    }
+
+    /**
+     * Writes a new generation of this file containing the remaining
+     * entries, unless the space savings are not worth it.
+     */
+    private TarReader rewrite(
+            TarEntry[] sorted, int size, int count,
+            Set<UUID> cleaned, Set<UUID> removed, boolean hasGraph)
+            throws IOException {
         size += getEntrySize(24 * count + 16);
         size += 2 * BLOCK_SIZE;
 
@@ -636,7 +761,7 @@ class TarReader {
             removed.addAll(cleaned);
             logCleanedSegments(cleaned);
             return null;
-        } else if (size >= access.length() * 3 / 4 && graph != null) {
+        } else if (size >= access.length() * 3 / 4 && hasGraph) {
             // the space savings are not worth it at less than 25%,
             // unless this tar file lacks a pre-compiled segment graph
             // in which case we'll always generate a new tar file with
@@ -668,7 +793,7 @@ class TarReader {
         writer.close();
 
         TarReader reader = openFirstFileWithValidIndex(
-                singletonList(newFile), access.isMemoryMapped());
+                singletonList(newFile), access.isMemoryMapped(), hotFiles);
         if (reader != null) {
             logCleanedSegments(cleaned);
             removed.addAll(cleaned);
@@ -26,12 +26,14 @@ import static com.google.common.collect.Maps.newHashMap;
 import static com.google.common.collect.Maps.newLinkedHashMap;
 import static com.google.common.collect.Maps.newTreeMap;
 import static com.google.common.collect.Sets.newHashSet;
+import static com.google.common.util.concurrent.Uninterruptibles.putUninterruptibly;
 import static org.apache.jackrabbit.oak.plugins.segment.Segment.REF_COUNT_OFFSET;
 import static org.apache.jackrabbit.oak.plugins.segment.SegmentId.isDataSegmentId;
 
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.util.Arrays;
@@ -41,6 +43,9 @@ import java.util.Map;
 import java.util.Set;
 import java.util.SortedMap;
 import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.zip.CRC32;
 
 import com.google.common.collect.Lists;
@@ -50,6 +55,15 @@ import org.slf4j.LoggerFactory;
 /**
  * A writer for tar files. It is also used to read entries while the file is
  * still open.
+ * <p>
+ * Entries are either written directly by the thread calling
+ * {@link #writeEntry(long, long, byte[], int, int)}, or, if a write-behind
+ * queue size is given, appended to the file by a dedicated thread. In the
+ * latter case writers only block when the queue is full, and entries still
+ * in the queue are served from memory, while those already written are
+ * read through a file handle of their own. {@link #flush()} waits for all
+ * entries written so far to reach the file and then syncs it. Concurrent
+ * flushes are grouped, so that a single sync covers all of them.
  */
 class TarWriter {
 
@@ -97,6 +111,12 @@ class TarWriter {
 
     private static final byte[] ZERO_BYTES = new byte[BLOCK_SIZE];
 
+    /**
+     * Marker put into the write-behind queue by {@link #close()} to stop
+     * the write-behind thread.
+     */
+    private static final PendingEntry CLOSE = new PendingEntry(null, new byte[0], 0, 0, 0);
+
     static final int getPaddingSize(int size) {
         int remainder = size % BLOCK_SIZE;
         if (remainder > 0) {
@@ -122,6 +142,14 @@ class TarWriter {
      */
     private RandomAccessFile access = null;
 
+    /**
+     * Read-only file handle used by {@link #readEntry(long, long)} when
+     * entries are written by the write-behind thread, so that reads don't
+     * move the file pointer of {@link #access} while it appends entries.
+     * Initialized lazily. Should only be accessed from synchronized code.
+     */
+    private RandomAccessFile readAccess = null;
+
     /**
      * Flag to indicate a closed writer. Accessing a closed writer is illegal.
      * Should only be accessed from synchronized code.
@@ -146,8 +174,78 @@ class TarWriter {
      */
     private final SortedMap<UUID, List<UUID>> graph = newTreeMap();
 
+    /**
+     * Entries waiting to be written by the write-behind thread, or
+     * {@code null} if entries are written directly.
+     */
+    private final BlockingQueue<PendingEntry> queue;
+
+    /**
+     * Lock held while an entry is added and put into the {@link #queue}.
+     * Entries are queued in the order of their position in the file, but
+     * without holding the monitor of this writer while the queue is full,
+     * which would block all readers of this writer.
+     */
+    private final Object enqueue = new Object();
+
+    /**
+     * Entries in the {@link #queue}, to read them before they have been
+     * written to the file.
+     */
+    private final Map<UUID, PendingEntry> pending =
+            new ConcurrentHashMap<UUID, PendingEntry>();
+
+    /**
+     * The write-behind thread, started with the first write.
+     * Should only be accessed from synchronized code.
+     */
+    private Thread writeBehindThread = null;
+
+    /**
+     * Length of the file including all entries written so far, whether
+     * they are still in the {@link #queue} or not.
+     * Should only be accessed from synchronized code.
+     */
+    private long length = 0;
+
+    /**
+     * Lock guarding {@link #written}, {@link #synced} and {@link #failure},
+     * and signalling the progress of the write-behind thread.
+     */
+    private final Object progress = new Object();
+
+    /**
+     * Number of bytes actually written to the file.
+     */
+    private long written = 0;
+
+    /**
+     * Number of bytes known to be synced to the disk.
+     */
+    private long synced = 0;
+
+    /**
+     * The error of the write-behind thread, if any.
+     */
+    private IOException failure = null;
+
     TarWriter(File file) {
+        this(file, 0);
+    }
+
+    /**
+     * @param file the file to write
+     * @param writeBehind the maximum number of entries waiting to be written
+     *                    by a write-behind thread, or 0 to write entries
+     *                    directly in the calling thread
+     */
+    TarWriter(File file, int writeBehind) {
         this.file = file;
+        if (writeBehind > 0) {
+            this.queue = new ArrayBlockingQueue<PendingEntry>(writeBehind);
+        } else {
+            this.queue = null;
+        }
     }
 
     /**
@@ -163,9 +261,17 @@ class TarWriter {
         return newHashSet(index.keySet());
     }
 
+    /**
+     * Check whether the given segment is in this file. A closed writer
+     * contains no entries, as they are then accessible through a
+     * {@link TarReader} of the same file.
+     *
+     * @param msb the most significant bits of the segment id
+     * @param lsb the least significant bits of the segment id
+     * @return {@code true} if the segment is in this file
+     */
     synchronized boolean containsEntry(long msb, long lsb) {
-        checkState(!closed);
-        return index.containsKey(new UUID(msb, lsb));
+        return !closed && index.containsKey(new UUID(msb, lsb));
     }
 
     /**
@@ -174,17 +280,34 @@ class TarWriter {
      * 
      * @param msb the most significant bits of the segment id
      * @param lsb the least significant bits of the segment id
-     * @return the byte buffer, or null if not in this file
+     * @return the byte buffer, or null if not in this file or if this
+     *         writer has already been closed
      */
     synchronized ByteBuffer readEntry(long msb, long lsb) throws IOException {
-        checkState(!closed);
-        TarEntry entry = index.get(new UUID(msb, lsb));
+        if (closed) {
+            return null;
+        }
+        UUID uuid = new UUID(msb, lsb);
+        TarEntry entry = index.get(uuid);
         if (entry != null) {
             checkState(access != null); // implied by entry != null
             ByteBuffer data = ByteBuffer.allocate(entry.size());
-            access.seek(entry.offset());
-            access.readFully(data.array());
-            access.seek(access.length());
+            if (queue == null) {
+                access.seek(entry.offset());
+                access.readFully(data.array());
+                access.seek(access.length());
+                return data;
+            }
+
+            PendingEntry queued = pending.get(uuid);
+            if (queued != null) {
+                return queued.getData();
+            }
+            if (readAccess == null) {
+                readAccess = new RandomAccessFile(file, "r");
+            }
+            readAccess.seek(entry.offset());
+            readAccess.readFully(data.array());
             return data;
         } else {
             return null;
@@ -207,7 +330,23 @@ class TarWriter {
         return writeEntry(uuid, header, data, offset, size);
     }
 
-    private synchronized long writeEntry(
+    private long writeEntry(
+            UUID uuid, byte[] header, byte[] data, int offset, int size)
+            throws IOException {
+        if (queue == null) {
+            return writeDirectly(uuid, header, data, offset, size);
+        }
+
+        synchronized (enqueue) {
+            PendingEntry entry = addPending(uuid, header, data, offset, size);
+            // the entry is already in the index, so it must get written
+            // even if this thread is interrupted
+            putUninterruptibly(queue, entry);
+            return entry.end;
+        }
+    }
+
+    private synchronized long writeDirectly(
             UUID uuid, byte[] header, byte[] data, int offset, int size)
             throws IOException {
         checkState(!closed);
@@ -215,14 +354,56 @@ class TarWriter {
             access = new RandomAccessFile(file, "rw");
         }
 
+        int padding = getPaddingSize(size);
         access.write(header);
         access.write(data, offset, size);
-        int padding = getPaddingSize(size);
         if (padding > 0) {
             access.write(ZERO_BYTES, 0, padding);
         }
 
-        long length = access.getFilePointer();
+        long end = addEntry(uuid, header.length, data, offset, size, padding);
+        synchronized (progress) {
+            written = end;
+        }
+        return end;
+    }
+
+    /**
+     * Add an entry to be written by the write-behind thread. The caller
+     * puts it into the {@link #queue}.
+     */
+    private synchronized PendingEntry addPending(
+            UUID uuid, byte[] header, byte[] data, int offset, int size)
+            throws IOException {
+        checkState(!closed);
+        checkFailure();
+        if (access == null) {
+            access = new RandomAccessFile(file, "rw");
+        }
+
+        // the data array might be reused by the caller, so copy it
+        int padding = getPaddingSize(size);
+        byte[] block = new byte[header.length + size + padding];
+        System.arraycopy(header, 0, block, 0, header.length);
+        System.arraycopy(data, offset, block, header.length, size);
+        long end = addEntry(uuid, header.length, data, offset, size, padding);
+        PendingEntry entry = new PendingEntry(
+                uuid, block, header.length, size, end);
+        pending.put(uuid, entry);
+        if (writeBehindThread == null) {
+            startWriteBehind();
+        }
+        return entry;
+    }
+
+    /**
+     * Add an entry appended to the file to the index and the graph.
+     *
+     * @return the length of the file including the entry
+     */
+    private long addEntry(UUID uuid, int headerSize,
+            byte[] data, int offset, int size, int padding) {
+        length += headerSize + size + padding;
         checkState(length <= Integer.MAX_VALUE);
         TarEntry entry = new TarEntry(
                 uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(),
@@ -259,21 +440,56 @@ class TarWriter {
      * and writes to proceed while the file is being flushed. However,
      * this method <em>is</em> carefully synchronized with {@link #close()}
      * to prevent accidental flushing of an already closed file.
+     * <p>
+     * The method first waits for the write-behind thread to write all
+     * entries written so far. If a concurrent flush already synced them
+     * in the meantime, no further sync is needed.
      *
      * @throws IOException if the tar file could not be flushed
      */
     void flush() throws IOException {
+        long target;
+        synchronized (this) {
+            target = length;
+        }
+
+        synchronized (progress) {
+            while (written < target && failure == null) {
+                try {
+                    progress.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException(
+                            "Interrupted while flushing " + file);
+                }
+            }
+            checkFailure();
+            if (synced >= target) {
+                return;
+            }
+        }
+
         synchronized (file) {
             FileDescriptor descriptor = null;
+            long upTo;
 
             synchronized (this) {
                 if (access != null && !closed) {
                     descriptor = access.getFD();
                 }
             }
+            synchronized (progress) {
+                if (synced >= target) {
+                    return;
+                }
+                upTo = written;
+            }
 
             if (descriptor != null) {
                 descriptor.sync();
+                synchronized (progress) {
+                    synced = Math.max(synced, upTo);
+                }
             }
         }
     }
@@ -282,6 +498,14 @@ class TarWriter {
         return access != null;
     }
 
+    /**
+     * @return  {@code true} iff this writer has been closed
+     * @see #close()
+     */
+    synchronized boolean isClosed() {
+        return closed;
+    }
+
     /**
      * Closes this tar file.
      *
@@ -301,16 +525,120 @@ class TarWriter {
             return;
         }
 
+        stopWriteBehind();
+
         // Complete the tar file by adding the graph, the index and the
         // trailing two zero blocks. This code is synchronized on the file
         // instance to  ensure that no concurrent thread is still flushing
         // the file when we close the file handle.
         synchronized (file) {
-            writeGraph();
-            writeIndex();
-            access.write(ZERO_BYTES);
-            access.write(ZERO_BYTES);
-            access.close();
+            try {
+                checkFailure();
+                writeGraph();
+                writeIndex();
+                access.write(ZERO_BYTES);
+                access.write(ZERO_BYTES);
+            } finally {
+                access.close();
+                closeReadAccess();
+            }
+        }
+    }
+
+    private synchronized void closeReadAccess() throws IOException {
+        if (readAccess != null) {
+            readAccess.close();
+        }
+    }
+
+    private void startWriteBehind() {
+        writeBehindThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeBehind();
+            }
+        }, "TarMK write-behind " + file.getName());
+        writeBehindThread.setDaemon(true);
+        writeBehindThread.start();
+    }
+
+    /**
+     * Main loop of the write-behind thread. After a failure the remaining
+     * entries are still taken from the queue to not block the writers,
+     * which get the failure reported on their next call.
+     */
+    private void writeBehind() {
+        while (true) {
+            PendingEntry entry;
+            try {
+                entry = queue.take();
+            } catch (InterruptedException e) {
+                fail(new InterruptedIOException(
+                        "Write-behind thread interrupted for " + file));
+                return;
+            }
+            if (entry == CLOSE) {
+                return;
+            }
+
+            synchronized (progress) {
+                if (failure != null) {
+                    continue;
+                }
+            }
+            try {
+                access.write(entry.block);
+            } catch (IOException e) {
+                log.error("Failed to write segment " + entry.uuid + " to " + file, e);
+                fail(e);
+                continue;
+            }
+            pending.remove(entry.uuid);
+            synchronized (progress) {
+                written = entry.end;
+                progress.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Wait for the write-behind thread to write all queued entries and
+     * stop it.
+     */
+    private void stopWriteBehind() throws IOException {
+        Thread thread;
+        synchronized (this) {
+            thread = writeBehindThread;
+        }
+        if (thread != null) {
+            try {
+                synchronized (enqueue) {
+                    // after all entries being enqueued
+                    queue.put(CLOSE);
+                }
+                thread.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException(
+                        "Interrupted while closing " + file);
+            }
+        }
+    }
+
+    private void fail(IOException e) {
+        synchronized (progress) {
+            if (failure == null) {
+                failure = e;
+            }
+            progress.notifyAll();
+        }
+    }
+
+    private void checkFailure() throws IOException {
+        synchronized (progress) {
+            if (failure != null) {
+                throw new IOException("Failed to write " + file, failure);
+            }
         }
     }
 
@@ -471,6 +799,44 @@ class TarWriter {
         }
     }
 
+    /**
+     * An entry waiting in the write-behind queue.
+     */
+    private static class PendingEntry {
+
+        private final UUID uuid;
+
+        /**
+         * The tar header, the segment data and the padding
+         */
+        private final byte[] block;
+
+        private final int offset;
+
+        private final int size;
+
+        /**
+         * Length of the file once this entry has been written.
+         */
+        private final long end;
+
+        PendingEntry(UUID uuid, byte[] block, int offset, int size, long end) {
+            this.uuid = uuid;
+            this.block = block;
+            this.offset = offset;
+            this.size = size;
+            this.end = end;
+        }
+
+        ByteBuffer getData() {
+            ByteBuffer data = ByteBuffer.allocate(size);
+            data.put(block, offset, size);
+            data.rewind();
+            return data;
+        }
+
+    }
+
     //------------------------------------------------------------< Object >--
 
     @Override
@@ -17,16 +17,40 @@
 package org.apache.jackrabbit.oak.plugins.segment.http;
 
 import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.collect.Iterables.concat;
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Lists.newArrayListWithCapacity;
+import static com.google.common.collect.Lists.partition;
+import static com.google.common.collect.Maps.newConcurrentMap;
+import static com.google.common.util.concurrent.Futures.allAsList;
+import static com.google.common.util.concurrent.Futures.transform;
+import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
+import static com.google.common.util.concurrent.MoreExecutors.sameThreadExecutor;
+import static java.lang.Integer.getInteger;
+import static java.util.Collections.emptyList;
+import static java.util.concurrent.Executors.newFixedThreadPool;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.CheckForNull;
 
@@ -39,16 +63,61 @@ import org.apache.jackrabbit.oak.plugins.segment.SegmentTracker;
 import org.apache.jackrabbit.oak.plugins.segment.SegmentNodeState;
 import org.apache.jackrabbit.oak.plugins.segment.SegmentStore;
 
+import com.google.common.base.Function;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
 
 import org.apache.jackrabbit.oak.spi.blob.BlobStore;
 
 public class HttpStore implements SegmentStore {
 
+    /**
+     * Number of threads, and thus of concurrent keep-alive connections,
+     * used for asynchronous reads.
+     */
+    private static final int READ_THREADS =
+            getInteger("oak.segment.http.readThreads", 4);
+
+    /**
+     * Maximum number of segments requested in a single batched read.
+     */
+    private static final int BATCH_SIZE =
+            getInteger("oak.segment.http.batchSize", 64);
+
+    /**
+     * Maximum number of segment references remembered for reading ahead.
+     * 0 disables the read-ahead.
+     */
+    private static final int READ_AHEAD_SIZE =
+            getInteger("oak.segment.http.readAhead", 10000);
+
     private final SegmentTracker tracker = new SegmentTracker(this);
 
+    /**
+     * The data and the bulk segments referenced by recently read segments,
+     * keyed by each of these references. When one of them needs to be read,
+     * the others of the same kind not in memory yet are read along with it,
+     * instead of one request per segment while resolving the references of
+     * a segment.
+     */
+    private final Cache<SegmentId, List<SegmentId>> siblings =
+            CacheBuilder.newBuilder().maximumSize(READ_AHEAD_SIZE).build();
+
+    /**
+     * The batches being read in the background, keyed by their segments.
+     * Reading one of these segments waits for its batch instead of
+     * requesting it again.
+     */
+    private final ConcurrentMap<SegmentId, ListenableFuture<List<Segment>>> pending =
+            newConcurrentMap();
+
     private final URL base;
 
+    private final ListeningExecutorService executor;
+
     /**
      * @param base
      *            make sure the url ends with a slash "/", otherwise the
@@ -56,6 +125,17 @@ public class HttpStore implements SegmentStore {
      */
     public HttpStore(URL base) {
         this.base = base;
+        this.executor = listeningDecorator(newFixedThreadPool(READ_THREADS,
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r,
+                                "HttpStore read " + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                }));
     }
 
     @Override
@@ -112,10 +192,63 @@ public class HttpStore implements SegmentStore {
         return id.getTracker() == tracker || readSegment(id) != null;
     }
 
+    /**
+     * Read the given segment. The segments of the same kind referenced along
+     * with it by a recently read segment and not in memory yet are read with
+     * the same request, at most
+     * {@code oak.segment.http.batchSize} segments at once and the remaining
+     * ones in the background.
+     */
     @Override
     public Segment readSegment(SegmentId id) {
+        ListenableFuture<List<Segment>> future = pending.get(id);
+        if (future != null) {
+            try {
+                for (Segment segment : future.get()) {
+                    if (segment.getSegmentId().equals(id)) {
+                        return segment;
+                    }
+                }
+            } catch (ExecutionException e) {
+                // read the segment on its own
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        List<SegmentId> batch = newArrayList(id);
+        List<SegmentId> references = siblings.getIfPresent(id);
+        if (references != null) {
+            for (SegmentId reference : references) {
+                if (!reference.equals(id) && !reference.isLoaded()) {
+                    batch.add(reference);
+                }
+            }
+        }
+
+        if (batch.size() > 1) {
+            if (batch.size() > BATCH_SIZE) {
+                // best effort, segments failing to load are read on demand
+                readSegmentsAsync(newArrayList(
+                        batch.subList(BATCH_SIZE, batch.size())));
+                batch = batch.subList(0, BATCH_SIZE);
+            }
+            try {
+                return readSegments(batch).get(0);
+            } catch (SegmentNotFoundException e) {
+                // one of the other segments may be gone, retry on its own
+            }
+        }
+
+        Segment segment = readSingleSegment(id);
+        remember(segment);
+        return segment;
+    }
+
+    private Segment readSingleSegment(SegmentId id) {
+        URLConnection connection = null;
         try {
-            URLConnection connection = get(id.toString());
+            connection = get(id.toString());
             InputStream stream = connection.getInputStream();
             try {
                 byte[] data = ByteStreams.toByteArray(stream);
@@ -126,10 +259,192 @@ public class HttpStore implements SegmentStore {
         } catch (MalformedURLException e) {
             throw new SegmentNotFoundException(id, e);
         } catch (IOException e) {
+            discardError(connection);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Read the given segments with a single request to the batched
+     * {@code segments} endpoint of the remote store. The segments are added
+     * to the segment cache of the tracker.
+     *
+     * @param ids the segments to read
+     * @return the segments, in the order of the given identifiers
+     * @throws SegmentNotFoundException if one of the segments does not exist
+     */
+    public List<Segment> readSegments(List<SegmentId> ids) {
+        if (ids.isEmpty()) {
+            return emptyList();
+        }
+
+        URLConnection connection = null;
+        try {
+            connection = get("segments");
+            connection.setDoOutput(true);
+            Writer writer = new OutputStreamWriter(
+                    connection.getOutputStream(), UTF_8);
+            try {
+                for (SegmentId id : ids) {
+                    writer.write(id.toString());
+                    writer.write('\n');
+                }
+            } finally {
+                writer.close();
+            }
+
+            // each segment is preceded by its identifier and length,
+            // or a negative length if the segment was not found
+            DataInputStream stream = new DataInputStream(
+                    new BufferedInputStream(connection.getInputStream()));
+            try {
+                List<Segment> segments = newArrayListWithCapacity(ids.size());
+                for (SegmentId id : ids) {
+                    long msb = stream.readLong();
+                    long lsb = stream.readLong();
+                    int length = stream.readInt();
+                    if (msb != id.getMostSignificantBits()
+                            || lsb != id.getLeastSignificantBits()) {
+                        throw new IOException("Unexpected segment "
+                                + new UUID(msb, lsb) + ", expected " + id);
+                    } else if (length < 0) {
+                        throw new SegmentNotFoundException(id);
+                    }
+                    byte[] data = new byte[length];
+                    stream.readFully(data);
+                    Segment segment = new Segment(tracker, id, ByteBuffer.wrap(data));
+                    tracker.addSegment(segment);
+                    remember(segment);
+                    segments.add(segment);
+                }
+                return segments;
+            } finally {
+                stream.close();
+            }
+        } catch (MalformedURLException e) {
+            throw new IllegalStateException(e);
+        } catch (IOException e) {
+            discardError(connection);
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Read the given segment in the background. The segment is added to the
+     * segment cache of the tracker.
+     *
+     * @param id the segment to read
+     * @return the future segment, failing with a
+     *         {@link SegmentNotFoundException} if the segment does not exist
+     */
+    public ListenableFuture<Segment> readSegmentAsync(final SegmentId id) {
+        return executor.submit(new Callable<Segment>() {
+            @Override
+            public Segment call() {
+                Segment segment = readSegment(id);
+                tracker.addSegment(segment);
+                return segment;
+            }
+        });
+    }
+
+    /**
+     * Read the given segments in the background. The segments are requested
+     * in batches of at most {@code oak.segment.http.batchSize} segments,
+     * which are sent concurrently over separate keep-alive connections.
+     * The segments are added to the segment cache of the tracker.
+     *
+     * @param ids the segments to read
+     * @return the future segments, in the order of the given identifiers
+     */
+    public ListenableFuture<List<Segment>> readSegmentsAsync(
+            List<SegmentId> ids) {
+        List<ListenableFuture<List<Segment>>> batches = newArrayList();
+        for (List<SegmentId> batch : partition(ids, BATCH_SIZE)) {
+            batches.add(readBatchAsync(batch));
+        }
+        return transform(allAsList(batches),
+                new Function<List<List<Segment>>, List<Segment>>() {
+                    @Override
+                    public List<Segment> apply(List<List<Segment>> segments) {
+                        return newArrayList(concat(segments));
+                    }
+                });
+    }
+
+    private ListenableFuture<List<Segment>> readBatchAsync(
+            final List<SegmentId> batch) {
+        final ListenableFuture<List<Segment>> future = executor.submit(
+                new Callable<List<Segment>>() {
+                    @Override
+                    public List<Segment> call() {
+                        return readSegments(batch);
+                    }
+                });
+        for (SegmentId id : batch) {
+            pending.put(id, future);
+        }
+        future.addListener(new Runnable() {
+            @Override
+            public void run() {
+                for (SegmentId id : batch) {
+                    pending.remove(id, future);
+                }
+            }
+        }, sameThreadExecutor());
+        return future;
+    }
+
+    /**
+     * Remember the segments referenced by the given segment for reading
+     * them together once the first one of the same kind is needed. Bulk
+     * segments are only read along with other bulk segments, so that
+     * traversing the tree doesn't read the binaries it doesn't access.
+     */
+    private void remember(Segment segment) {
+        SegmentId id = segment.getSegmentId();
+        if (READ_AHEAD_SIZE > 0 && id.isDataSegmentId()) {
+            List<SegmentId> data = newArrayList();
+            List<SegmentId> bulk = newArrayList();
+            for (SegmentId reference : segment.getReferencedIds()) {
+                if (reference.isDataSegmentId()) {
+                    if (!reference.equals(id)) {
+                        data.add(reference);
+                    }
+                } else {
+                    bulk.add(reference);
+                }
+            }
+            for (SegmentId reference : data) {
+                siblings.put(reference, data);
+            }
+            for (SegmentId reference : bulk) {
+                siblings.put(reference, bulk);
+            }
+        }
+    }
+
+    /**
+     * Read and close the error stream of a failed request, so that the
+     * underlying connection can be reused for further requests.
+     */
+    private static void discardError(URLConnection connection) {
+        if (connection instanceof HttpURLConnection) {
+            InputStream error = ((HttpURLConnection) connection).getErrorStream();
+            if (error != null) {
+                try {
+                    try {
+                        ByteStreams.toByteArray(error);
+                    } finally {
+                        error.close();
+                    }
+                } catch (IOException e) {
+                    // ignore, the connection just won't be reused
+                }
+            }
+        }
+    }
+
     @Override
     public void writeSegment(
             SegmentId id, byte[] bytes, int offset, int length) {
@@ -152,6 +467,7 @@ public class HttpStore implements SegmentStore {
 
     @Override
     public void close() {
+        executor.shutdown();
     }
 
     @Override @CheckForNull
@@ -349,6 +349,99 @@ public class BasicDocumentStoreTest extends AbstractDocumentStoreTest {
         assertEquals("bar", d.get("foo").toString());
     }
 
+    @Test
+    public void testCreateOrUpdateMultiple() {
+        String id = this.getClass().getName() + ".testCreateOrUpdateMultiple";
+        // create every other test node
+        List<UpdateOp> creates = new ArrayList<UpdateOp>();
+        for (int i = 0; i < 10; i += 2) {
+            super.ds.remove(Collection.NODES, id + "-" + i);
+            super.ds.remove(Collection.NODES, id + "-" + (i + 1));
+            UpdateOp up = new UpdateOp(id + "-" + i, true);
+            up.set("_id", id + "-" + i);
+            up.set("foo", "old");
+            creates.add(up);
+            removeMe.add(id + "-" + i);
+            removeMe.add(id + "-" + (i + 1));
+        }
+        assertTrue(super.ds.create(Collection.NODES, creates));
+
+        // update existing and create new ones
+        List<UpdateOp> updates = new ArrayList<UpdateOp>();
+        for (int i = 0; i < 10; i++) {
+            UpdateOp up = new UpdateOp(id + "-" + i, true);
+            up.set("_id", id + "-" + i);
+            up.set("foo", "new-" + i);
+            updates.add(up);
+        }
+        List<NodeDocument> oldDocs = super.ds.createOrUpdate(Collection.NODES, updates);
+        assertEquals(updates.size(), oldDocs.size());
+        for (int i = 0; i < 10; i++) {
+            NodeDocument oldDoc = oldDocs.get(i);
+            if (i % 2 == 0) {
+                assertNotNull(oldDoc);
+                assertEquals(id + "-" + i, oldDoc.getId());
+                assertEquals("old", oldDoc.get("foo"));
+            } else {
+                assertNull(oldDoc);
+            }
+        }
+
+        // check cached and stored documents
+        for (int i = 0; i < 10; i++) {
+            NodeDocument d = ds.find(Collection.NODES, id + "-" + i);
+            assertNotNull(d);
+            assertEquals("new-" + i, d.get("foo"));
+        }
+        ds.invalidateCache();
+        for (int i = 0; i < 10; i++) {
+            NodeDocument d = ds.find(Collection.NODES, id + "-" + i, 0);
+            assertNotNull(d);
+            assertEquals("new-" + i, d.get("foo"));
+        }
+    }
+
+    @Test
+    public void testCreateOrUpdateMultipleRepeated() {
+        String id = this.getClass().getName() + ".testCreateOrUpdateMultipleRepeated";
+        for (int i = 0; i < 5; i++) {
+            super.ds.remove(Collection.NODES, id + "-" + i);
+            removeMe.add(id + "-" + i);
+        }
+
+        // more updates than between two full rewrites of a document
+        for (int n = 0; n < 20; n++) {
+            List<UpdateOp> updates = new ArrayList<UpdateOp>();
+            for (int i = 0; i < 5; i++) {
+                UpdateOp up = new UpdateOp(id + "-" + i, true);
+                up.set("_id", id + "-" + i);
+                up.set("foo", "value-" + n);
+                up.setMapEntry("bar", new Revision(n, 0, 1), "value-" + n);
+                updates.add(up);
+            }
+            if (n % 3 == 0) {
+                // old documents not in the cache
+                ds.invalidateCache();
+            }
+            List<NodeDocument> oldDocs = super.ds.createOrUpdate(Collection.NODES, updates);
+            for (int i = 0; i < 5; i++) {
+                if (n == 0) {
+                    assertNull(oldDocs.get(i));
+                } else {
+                    assertEquals("value-" + (n - 1), oldDocs.get(i).get("foo"));
+                }
+            }
+        }
+
+        ds.invalidateCache();
+        for (int i = 0; i < 5; i++) {
+            NodeDocument d = ds.find(Collection.NODES, id + "-" + i, 0);
+            assertNotNull(d);
+            assertEquals("value-19", d.get("foo"));
+            assertEquals(20, d.getValueMap("bar").size());
+        }
+    }
+
     @Test
     public void testUpdateModified() {
         String id = this.getClass().getName() + ".testUpdateModified";
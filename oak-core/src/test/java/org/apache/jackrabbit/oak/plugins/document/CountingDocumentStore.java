@@ -170,6 +170,13 @@ public class CountingDocumentStore implements DocumentStore {
         return delegate.createOrUpdate(collection, update);
     }
 
+    @Override
+    public <T extends Document> List<T> createOrUpdate(Collection<T> collection,
+                                                       List<UpdateOp> updateOps) {
+        getStats(collection).numCreateOrUpdateCalls++;
+        return delegate.createOrUpdate(collection, updateOps);
+    }
+
     @Override
     public <T extends Document> T findAndUpdate(Collection<T> collection,
                                                 UpdateOp update) {
@@ -314,6 +314,38 @@ public class JournalTest extends AbstractJournalTest {
         assertEquals("{\"branchVisible\":{},\"regular1\":{},\"regular2\":{},\"regular3\":{},\"regular4\":{},\"regular5\":{},\":childNodeCount\":6}", nodes);
     }
     
+    @Test
+    public void externalChangesOfMultipleClusterNodes() throws Exception {
+        DocumentMK mk1 = createMK(1, 0);
+        DocumentNodeStore ns1 = mk1.getNodeStore();
+        DocumentMK mk2 = createMK(2, 0);
+        DocumentNodeStore ns2 = mk2.getNodeStore();
+        DocumentMK mk3 = createMK(3, 0);
+        DocumentNodeStore ns3 = mk3.getNodeStore();
+
+        ns1.runBackgroundOperations();
+        ns2.runBackgroundOperations();
+        ns3.runBackgroundOperations();
+
+        // more changes than fit into a single cache invalidation partition
+        List<String> paths2 = Lists.newArrayList();
+        List<String> paths3 = Lists.newArrayList();
+        for (int i = 0; i < DocumentNodeStore.INVALIDATE_PARTITION_SIZE; i++) {
+            paths2.add("/a/" + i);
+            paths3.add("/b/" + i);
+        }
+        getOrCreate(ns2, paths2, false);
+        getOrCreate(ns3, paths3, false);
+        ns2.runBackgroundOperations();
+        ns3.runBackgroundOperations();
+        ns1.runBackgroundOperations();
+
+        NodeState root = ns1.getRoot();
+        assertEquals(paths2.size(), root.getChildNode("a").getChildNodeCount(Long.MAX_VALUE));
+        assertEquals(paths3.size(), root.getChildNode("b").getChildNodeCount(Long.MAX_VALUE));
+        assertTrue(ns1.getMBean().getBackgroundReadStats().contains("journal:"));
+    }
+
     /** Inspired by LastRevRecoveryTest.testRecover() - simplified and extended with journal related asserts **/
     @Test
     public void lastRevRecoveryJournalTest() throws Exception {
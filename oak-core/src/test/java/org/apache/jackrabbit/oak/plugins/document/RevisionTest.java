@@ -58,6 +58,36 @@ public class RevisionTest {
         }
     }
 
+    @Test
+    public void fromStringCached() {
+        Revision r = new Revision(0x14f2a8f4b1cL, 0x1a, 0x2b, true);
+        Revision r1 = Revision.fromString(r.toString());
+        Revision r2 = Revision.fromString(r.toString());
+        assertEquals(r, r1);
+        assertTrue(r1 == r2);
+        // trunk revision with same values is a different revision
+        Revision r3 = Revision.fromString(r.asTrunkRevision().toString());
+        assertEquals(r.asTrunkRevision(), r3);
+        assertFalse(r3.isBranch());
+        assertEquals(new Revision(Long.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE),
+                Revision.fromString("r7fffffffffffffff-7fffffff-7fffffff"));
+    }
+
+    @Test
+    public void fromStringInvalid() {
+        String[] invalid = {"", "b", "r", "r1", "r1-0", "x1-0-1", "r-0-1",
+                "r1--1", "r1-0-", "r1-g-1", "r1-80000000-1",
+                "r10000000000000000-0-1"};
+        for (String s : invalid) {
+            try {
+                Revision.fromString(s);
+                fail("Expected IllegalArgumentException for " + s);
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
     @Test
     public void difference() throws InterruptedException {
         long t0 = Revision.getCurrentTimestamp();
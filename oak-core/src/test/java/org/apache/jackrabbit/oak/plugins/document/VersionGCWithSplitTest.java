@@ -231,6 +231,19 @@ public class VersionGCWithSplitTest {
             return ref.get();
         }
 
+        @Nonnull
+        @Override
+        public <T extends Document> List<T> createOrUpdate(final Collection<T> collection,
+                                                           final List<UpdateOp> updateOps) {
+            final AtomicReference<List<T>> ref = new AtomicReference<List<T>>();
+            runLocked(new Runnable() {
+                public void run() {
+                    ref.set(docStore.createOrUpdate(collection, updateOps));
+                }
+            });
+            return ref.get();
+        }
+
         @Override
         public <T extends Document> T findAndUpdate(final Collection<T> collection,
                                                     final UpdateOp update) {
@@ -20,6 +20,8 @@ package org.apache.jackrabbit.oak.plugins.document.persistentCache;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayInputStream;
@@ -30,11 +32,17 @@ import java.util.Random;
 import com.google.common.cache.Cache;
 import org.apache.commons.io.FileUtils;
 import org.apache.jackrabbit.oak.cache.CacheLIRS;
+import org.apache.jackrabbit.oak.plugins.document.DocumentMK;
+import org.apache.jackrabbit.oak.plugins.document.DocumentNodeState;
+import org.apache.jackrabbit.oak.plugins.document.DocumentNodeStore;
 import org.apache.jackrabbit.oak.plugins.document.PathRev;
 import org.apache.jackrabbit.oak.plugins.document.Revision;
 import org.apache.jackrabbit.oak.plugins.document.util.StringValue;
 import org.apache.jackrabbit.oak.spi.blob.BlobStore;
 import org.apache.jackrabbit.oak.spi.blob.MemoryBlobStore;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.EmptyHook;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.junit.Test;
 
 public class CacheTest {
@@ -78,6 +86,133 @@ public class CacheTest {
         assertFalse(Thread.interrupted());
     }
 
+    @Test
+    public void binaryFormat() throws Exception {
+        FileUtils.deleteDirectory(new File("target/cacheTest"));
+        DocumentNodeStore ns = new DocumentMK.Builder().getNodeStore();
+        try {
+            NodeBuilder builder = ns.getRoot().builder();
+            NodeBuilder test = builder.child("test");
+            test.setProperty("p", "v\u00e4");
+            test.setProperty("n", 42);
+            test.child("a");
+            ns.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+            DocumentNodeState state = (DocumentNodeState) ns.getRoot().getChildNode("test");
+            DocumentNodeState.Children children = DocumentNodeState.Children.fromString(
+                    "\"hasMore\":true,\"children\":[\"a\",\"ab\",\"abc\",\"b\"]");
+            PathRev key = new PathRev("/test", new Revision(1, 2, 3, true));
+
+            PersistentCache pCache = new PersistentCache("target/cacheTest");
+            CacheLIRS<PathRev, DocumentNodeState> nodeCache = new CacheLIRS.Builder().
+                    maximumSize(1).build();
+            CacheLIRS<PathRev, DocumentNodeState.Children> childrenCache = new CacheLIRS.Builder().
+                    maximumSize(1).build();
+            pCache.wrap(ns, null, nodeCache, CacheType.NODE).put(key, state);
+            pCache.wrap(ns, null, childrenCache, CacheType.CHILDREN).put(key, children);
+            pCache.close();
+
+            // read from a new instance, with empty in-memory caches
+            pCache = new PersistentCache("target/cacheTest");
+            nodeCache = new CacheLIRS.Builder().maximumSize(1).build();
+            childrenCache = new CacheLIRS.Builder().maximumSize(1).build();
+            DocumentNodeState s = pCache.wrap(ns, null, nodeCache, CacheType.NODE).getIfPresent(key);
+            assertNotNull(s);
+            assertEquals(state.asString(), s.asString());
+            assertEquals(state, s);
+            DocumentNodeState.Children c = pCache.wrap(ns, null, childrenCache, CacheType.CHILDREN).getIfPresent(key);
+            assertNotNull(c);
+            assertEquals(children.asString(), c.asString());
+            pCache.close();
+
+            // entries in a different format are dropped
+            pCache = new PersistentCache("target/cacheTest,-binaryFormat");
+            nodeCache = new CacheLIRS.Builder().maximumSize(1).build();
+            assertNull(pCache.wrap(ns, null, nodeCache, CacheType.NODE).getIfPresent(key));
+            pCache.close();
+        } finally {
+            ns.dispose();
+        }
+    }
+
+    @Test
+    public void asyncWrite() throws Exception {
+        FileUtils.deleteDirectory(new File("target/cacheTest"));
+        PersistentCache pCache = new PersistentCache("target/cacheTest,writeQueue=16");
+        CacheLIRS<PathRev, StringValue> cache = new CacheLIRS.Builder().
+                maximumSize(1).build();
+        Cache<PathRev, StringValue> map = pCache.wrap(null, null, cache, CacheType.DIFF);
+        int count = 1000;
+        for (int i = 0; i < count; i++) {
+            PathRev k = new PathRev("/" + i, new Revision(0, 0, 1));
+            map.put(k, new StringValue("v" + i));
+        }
+        // the first entry is never dropped, and either pending or written
+        PathRev first = new PathRev("/0", new Revision(0, 0, 1));
+        cache.invalidateAll();
+        assertEquals("v0", map.getIfPresent(first).toString());
+        assertTrue(pCache.getWriteQueueSize() <= 16);
+        long dropped = pCache.getDroppedWriteCount();
+        pCache.close();
+
+        // all entries that were not dropped were written
+        pCache = new PersistentCache("target/cacheTest");
+        cache = new CacheLIRS.Builder().maximumSize(1).build();
+        map = pCache.wrap(null, null, cache, CacheType.DIFF);
+        int written = 0;
+        for (int i = 0; i < count; i++) {
+            PathRev k = new PathRev("/" + i, new Revision(0, 0, 1));
+            if (map.getIfPresent(k) != null) {
+                written++;
+            }
+        }
+        pCache.close();
+        assertEquals(count, written + dropped);
+    }
+
+    @Test
+    public void asyncWriteDroppedNotStale() throws Exception {
+        FileUtils.deleteDirectory(new File("target/cacheTest"));
+        int count = 1000;
+        PersistentCache pCache = new PersistentCache("target/cacheTest,writeQueue=0");
+        CacheLIRS<PathRev, StringValue> cache = new CacheLIRS.Builder().
+                maximumSize(1).build();
+        Cache<PathRev, StringValue> map = pCache.wrap(null, null, cache, CacheType.DIFF);
+        for (int i = 0; i < count; i++) {
+            PathRev k = new PathRev("/" + i, new Revision(0, 0, 1));
+            map.put(k, new StringValue("old" + i));
+        }
+        pCache.close();
+
+        pCache = new PersistentCache("target/cacheTest,writeQueue=1");
+        cache = new CacheLIRS.Builder().maximumSize(1).build();
+        map = pCache.wrap(null, null, cache, CacheType.DIFF);
+        for (int i = 0; i < count; i++) {
+            PathRev k = new PathRev("/" + i, new Revision(0, 0, 1));
+            map.put(k, new StringValue("new" + i));
+        }
+        assertTrue(pCache.getDroppedWriteCount() > 0);
+        // dropped values are removed, and never read back with the old value
+        cache.invalidateAll();
+        assertNoOldValue(map, count);
+        pCache.close();
+
+        pCache = new PersistentCache("target/cacheTest");
+        cache = new CacheLIRS.Builder().maximumSize(1).build();
+        map = pCache.wrap(null, null, cache, CacheType.DIFF);
+        assertNoOldValue(map, count);
+        pCache.close();
+    }
+
+    private static void assertNoOldValue(Cache<PathRev, StringValue> map, int count) {
+        for (int i = 0; i < count; i++) {
+            PathRev k = new PathRev("/" + i, new Revision(0, 0, 1));
+            StringValue v = map.getIfPresent(k);
+            if (v != null) {
+                assertEquals("new" + i, v.toString());
+            }
+        }
+    }
+
     @Test
     public void deleteOldAtStartup() throws Exception {
         FileUtils.deleteDirectory(new File("target/cacheTest"));
@@ -0,0 +1,169 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.document.util;
+
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NoSuchElementException;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import com.google.common.collect.Lists;
+
+import org.apache.jackrabbit.oak.plugins.document.Revision;
+import org.apache.jackrabbit.oak.plugins.document.StableRevisionComparator;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RevisionSortedMapTest {
+
+    @Test
+    public void sameAsTreeMap() {
+        SortedMap<Revision, Object> tree =
+                new TreeMap<Revision, Object>(StableRevisionComparator.REVERSE);
+        for (int i = 0; i < 20; i += 2) {
+            tree.put(new Revision(i, 0, 1), "v" + i);
+        }
+        SortedMap<Revision, Object> map = RevisionSortedMap.copyOf(tree);
+        assertEquals(tree, map);
+        assertEquals(tree.hashCode(), map.hashCode());
+        assertEquals(tree.toString(), map.toString());
+        assertEquals(Lists.newArrayList(tree.keySet()), Lists.newArrayList(map.keySet()));
+        assertEquals(tree.firstKey(), map.firstKey());
+        assertEquals(tree.lastKey(), map.lastKey());
+        assertEquals(StableRevisionComparator.REVERSE, map.comparator());
+
+        for (int i = -1; i < 21; i++) {
+            Revision r = new Revision(i, 0, 1);
+            assertEquals(tree.get(r), map.get(r));
+            assertEquals(tree.containsKey(r), map.containsKey(r));
+            assertEquals(tree.headMap(r), map.headMap(r));
+            assertEquals(tree.tailMap(r), map.tailMap(r));
+            for (int j = -1; j <= i; j++) {
+                Revision from = new Revision(i, 0, 1);
+                Revision to = new Revision(j, 0, 1);
+                assertEquals(tree.subMap(from, to), map.subMap(from, to));
+                assertEquals(tree.subMap(from, to).size(), map.subMap(from, to).size());
+            }
+        }
+        assertNull(map.get("r1-0-1"));
+
+        SortedMap<Revision, Object> head = map.headMap(new Revision(10, 0, 1));
+        assertEquals(tree.headMap(new Revision(10, 0, 1)).firstKey(), head.firstKey());
+        assertEquals(tree.headMap(new Revision(10, 0, 1)).lastKey(), head.lastKey());
+        assertTrue(head.tailMap(new Revision(10, 0, 1)).isEmpty());
+        assertEquals(tree.headMap(new Revision(10, 0, 1)).tailMap(new Revision(14, 0, 1)),
+                head.tailMap(new Revision(14, 0, 1)));
+    }
+
+    @Test
+    public void navigable() {
+        NavigableMap<Revision, Object> tree =
+                new TreeMap<Revision, Object>(StableRevisionComparator.REVERSE);
+        for (int i = 0; i < 20; i += 2) {
+            tree.put(new Revision(i, 0, 1), "v" + i);
+        }
+        NavigableMap<Revision, Object> map = RevisionSortedMap.copyOf(tree);
+        assertEquals(tree.firstEntry(), map.firstEntry());
+        assertEquals(tree.lastEntry(), map.lastEntry());
+        assertEquals(tree.descendingMap(), map.descendingMap());
+        assertEquals(Lists.newArrayList(tree.descendingMap().keySet()),
+                Lists.newArrayList(map.descendingMap().keySet()));
+        assertEquals(Lists.newArrayList(tree.navigableKeySet()),
+                Lists.newArrayList(map.navigableKeySet()));
+        assertEquals(Lists.newArrayList(tree.descendingKeySet()),
+                Lists.newArrayList(map.descendingKeySet()));
+        for (int i = -1; i < 21; i++) {
+            Revision r = new Revision(i, 0, 1);
+            assertEquals(tree.lowerEntry(r), map.lowerEntry(r));
+            assertEquals(tree.lowerKey(r), map.lowerKey(r));
+            assertEquals(tree.floorEntry(r), map.floorEntry(r));
+            assertEquals(tree.floorKey(r), map.floorKey(r));
+            assertEquals(tree.ceilingEntry(r), map.ceilingEntry(r));
+            assertEquals(tree.ceilingKey(r), map.ceilingKey(r));
+            assertEquals(tree.higherEntry(r), map.higherEntry(r));
+            assertEquals(tree.higherKey(r), map.higherKey(r));
+            for (boolean inclusive : new boolean[]{true, false}) {
+                assertEquals(tree.headMap(r, inclusive), map.headMap(r, inclusive));
+                assertEquals(tree.tailMap(r, inclusive), map.tailMap(r, inclusive));
+                Revision to = new Revision(i - 6, 0, 1);
+                assertEquals(tree.subMap(r, inclusive, to, !inclusive),
+                        map.subMap(r, inclusive, to, !inclusive));
+            }
+            assertEquals(tree.descendingMap().headMap(r),
+                    map.descendingMap().headMap(r));
+        }
+    }
+
+    @Test
+    public void empty() {
+        SortedMap<Revision, Object> map = RevisionSortedMap.copyOf(
+                new TreeMap<Revision, Object>(StableRevisionComparator.INSTANCE));
+        assertTrue(map.isEmpty());
+        assertFalse(map.entrySet().iterator().hasNext());
+        assertTrue(map.headMap(new Revision(1, 0, 1)).isEmpty());
+        try {
+            map.firstKey();
+            fail();
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void immutable() {
+        SortedMap<Revision, Object> tree =
+                new TreeMap<Revision, Object>(StableRevisionComparator.REVERSE);
+        tree.put(new Revision(1, 0, 1), "v");
+        Map<Revision, Object> map = RevisionSortedMap.copyOf(tree);
+        try {
+            map.put(new Revision(2, 0, 1), "v");
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        try {
+            map.remove(new Revision(1, 0, 1));
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+        assertEquals(1, map.size());
+    }
+
+    @Test
+    public void canCopy() {
+        SortedMap<Object, Object> map = new TreeMap<Object, Object>();
+        map.put("a", "b");
+        assertFalse(RevisionSortedMap.canCopy(map));
+        SortedMap<String, Object> strings = new TreeMap<String, Object>(
+                String.CASE_INSENSITIVE_ORDER);
+        strings.put("a", "b");
+        assertFalse(RevisionSortedMap.canCopy(strings));
+        SortedMap<Revision, Object> tree =
+                new TreeMap<Revision, Object>(StableRevisionComparator.REVERSE);
+        tree.put(new Revision(1, 0, 1), "v");
+        assertTrue(RevisionSortedMap.canCopy(tree));
+    }
+}
@@ -428,6 +428,52 @@ public class CompactionAndCleanupTest {
         }
     }
 
+    @Test
+    public void incrementalCompaction() throws IOException, CommitFailedException {
+        FileStore fileStore = new NonCachingFileStore(directory, 1);
+        try {
+            final SegmentNodeStore nodeStore = new SegmentNodeStore(fileStore);
+            CompactionStrategy strategy = new CompactionStrategy(false, false, CLEAN_NONE, 0, (byte) 0) {
+                @Override
+                public boolean compacted(@Nonnull Callable<Boolean> setHead)
+                        throws Exception {
+                    return nodeStore.locked(setHead);
+                }
+            };
+            strategy.setPersistCompactionMap(false);
+            strategy.setIncrementalCompaction(true);
+            fileStore.setCompactionStrategy(strategy);
+
+            NodeBuilder builder = nodeStore.getRoot().builder();
+            builder.setChildNode("unchanged").setProperty("property", "value");
+            builder.setChildNode("changed").setProperty("property", "value");
+            nodeStore.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+
+            // the first compaction compacts the whole head state
+            fileStore.compact();
+            NodeState compacted = fileStore.getHead().getChildNode("root");
+            RecordId unchanged = ((SegmentNodeState) compacted
+                    .getChildNode("unchanged")).getRecordId();
+
+            builder = nodeStore.getRoot().builder();
+            builder.getChildNode("changed").setProperty("property", "new value");
+            builder.setChildNode("added");
+            nodeStore.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+            NodeState head = nodeStore.getRoot();
+
+            // the second one only the changes, unchanged records are kept
+            fileStore.compact();
+            NodeState after = fileStore.getHead().getChildNode("root");
+            assertEquals(head, after);
+            assertEquals(unchanged, ((SegmentNodeState) after
+                    .getChildNode("unchanged")).getRecordId());
+            assertEquals("new value", after.getChildNode("changed")
+                    .getProperty("property").getValue(STRING));
+        } finally {
+            fileStore.close();
+        }
+    }
+
     private static void addContent(NodeBuilder builder) {
         for (int k = 0; k < 10000; k++) {
             builder.setProperty(UUID.randomUUID().toString(), UUID.randomUUID().toString());
@@ -16,13 +16,28 @@
  */
 package org.apache.jackrabbit.oak.plugins.segment;
 
+import static org.apache.commons.io.FileUtils.deleteDirectory;
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.apache.jackrabbit.oak.plugins.segment.compaction.CompactionStrategy.CleanupType.CLEAN_NONE;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import com.google.common.collect.Lists;
+
 import junit.framework.Assert;
 
 import org.apache.jackrabbit.oak.Oak;
 import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.plugins.segment.compaction.CompactionStrategy;
+import org.apache.jackrabbit.oak.plugins.segment.file.FileStore;
 import org.apache.jackrabbit.oak.plugins.segment.memory.MemoryStore;
 import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
 import org.apache.jackrabbit.oak.spi.commit.EmptyHook;
+import org.apache.jackrabbit.oak.spi.gc.GCMonitor;
 import org.apache.jackrabbit.oak.spi.security.OpenSecurityProvider;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
@@ -56,6 +71,75 @@ public class CompactorTest {
 
     }
 
+    @Test
+    public void testParallelCompactor() throws Exception {
+        File directory = File.createTempFile(
+                "CompactorTest", "dir", new File("target"));
+        directory.delete();
+        directory.mkdir();
+
+        FileStore fileStore = FileStore.newFileStore(directory).create();
+        try {
+            SegmentNodeStore store = new SegmentNodeStore(fileStore);
+            init(store);
+            for (int i = 0; i < 10; i++) {
+                addTestContent(store, i);
+            }
+            String checkpoint = store.checkpoint(Long.MAX_VALUE);
+
+            CompactionStrategy strategy = new CompactionStrategy(
+                    false, false, CLEAN_NONE, 0, (byte) 0) {
+                @Override
+                public boolean compacted(@Nonnull Callable<Boolean> setHead)
+                        throws Exception {
+                    return setHead.call();
+                }
+            };
+            strategy.setPersistCompactionMap(false);
+            strategy.setCompactionThreads(4);
+            final List<Object> subtrees = Lists.newArrayList();
+            GCMonitor monitor = new GCMonitor.Empty() {
+                @Override
+                public void info(String message, Object[] arguments) {
+                    if (message.startsWith("TarMK compaction compacted subtree")) {
+                        subtrees.add(arguments[0]);
+                    }
+                }
+            };
+            Compactor compactor = new Compactor(fileStore, strategy, monitor);
+
+            // compact the super-root, like FileStore.compact() does
+            NodeState before = fileStore.getHead();
+            SegmentNodeState after = compactor.compact(EMPTY_NODE, before, EMPTY_NODE);
+            Assert.assertEquals(before, after);
+
+            // the content is split into a task per child of /root. The
+            // checkpoints are compacted after the content and reuse its
+            // compacted records instead of copying them again
+            Assert.assertEquals(21, subtrees.size());
+            Assert.assertTrue(subtrees.contains("/root/test0"));
+            Assert.assertEquals("/checkpoints", subtrees.get(20));
+            NodeState compactedCheckpoint = after.getChildNode("checkpoints")
+                    .getChildNode(checkpoint).getChildNode("root");
+            Assert.assertEquals(
+                    ((SegmentNodeState) after.getChildNode("root")).getRecordId(),
+                    ((SegmentNodeState) compactedCheckpoint).getRecordId());
+
+            addTestContent(store, 10);
+            NodeBuilder builder = store.getRoot().builder();
+            builder.getChildNode("test0").setProperty("p", "v");
+            builder.getChildNode("child1").remove();
+            store.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+
+            NodeState head = fileStore.getHead();
+            after = compactor.compact(before, head, after);
+            Assert.assertEquals(head, after);
+        } finally {
+            fileStore.close();
+            deleteDirectory(directory);
+        }
+    }
+
     private static void init(NodeStore store) {
         new Oak(store).with(new OpenSecurityProvider())
                 .createContentRepository();
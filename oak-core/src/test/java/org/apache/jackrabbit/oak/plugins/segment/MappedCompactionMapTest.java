@@ -0,0 +1,133 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment;
+
+import static org.apache.commons.io.FileUtils.deleteDirectory;
+import static org.apache.jackrabbit.oak.plugins.segment.MappedCompactionMap.MERGE_FACTOR;
+import static org.apache.jackrabbit.oak.plugins.segment.TestUtils.randomRecordIdMap;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import org.apache.jackrabbit.oak.plugins.segment.file.FileStore;
+import org.apache.jackrabbit.oak.plugins.segment.memory.MemoryStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedCompactionMapTest {
+
+    private final Random rnd = new Random(42);
+
+    private File directory;
+
+    private SegmentTracker tracker;
+
+    @Before
+    public void setup() throws IOException {
+        directory = File.createTempFile(
+                MappedCompactionMapTest.class.getSimpleName(), "dir", new File("target"));
+        directory.delete();
+        directory.mkdir();
+        tracker = new MemoryStore().getTracker();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        deleteDirectory(directory);
+    }
+
+    @Test
+    public void tieredMerge() {
+        MappedCompactionMap map = new MappedCompactionMap(tracker, directory, 10);
+        Map<RecordId, RecordId> reference = Maps.newHashMap();
+        for (int i = 0; i < 100; i++) {
+            Map<RecordId, RecordId> entries = randomRecordIdMap(rnd, tracker, 2, 10);
+            for (Entry<RecordId, RecordId> entry : entries.entrySet()) {
+                map.put(entry.getKey(), entry.getValue());
+            }
+            reference.putAll(entries);
+
+            // never more than MERGE_FACTOR - 1 runs per level
+            int runs = map.getRunCount();
+            assertTrue("Too many runs: " + runs, runs < 3 * MERGE_FACTOR);
+            assertEquals(runs, runFileCount());
+        }
+        for (Entry<RecordId, RecordId> entry : reference.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+        assertEquals(reference.size(), map.getRecordCount());
+
+        map.compress();
+        assertEquals(1, map.getRunCount());
+        assertEquals(1, runFileCount());
+        for (Entry<RecordId, RecordId> entry : reference.entrySet()) {
+            assertEquals(entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    public void deleteRunsWhenRemoved() {
+        MappedCompactionMap map = new MappedCompactionMap(tracker, directory, 10);
+        Set<UUID> segments = Sets.newHashSet();
+        for (Entry<RecordId, RecordId> entry : randomRecordIdMap(rnd, tracker, 10, 10).entrySet()) {
+            map.put(entry.getKey(), entry.getValue());
+            segments.add(entry.getKey().getSegmentId().asUUID());
+        }
+        assertTrue(runFileCount() > 0);
+
+        map.remove(segments);
+        assertEquals(0, map.getSegmentCount());
+        assertEquals(0, runFileCount());
+    }
+
+    @Test
+    public void deleteRunsOfPreviousInstance() throws IOException {
+        MappedCompactionMap map = new MappedCompactionMap(tracker, directory, 10);
+        for (Entry<RecordId, RecordId> entry : randomRecordIdMap(rnd, tracker, 10, 10).entrySet()) {
+            map.put(entry.getKey(), entry.getValue());
+        }
+        assertTrue(runFileCount() > 0);
+
+        FileStore store = FileStore.newFileStore(directory).create();
+        try {
+            assertEquals(0, runFileCount());
+        } finally {
+            store.close();
+        }
+    }
+
+    private int runFileCount() {
+        int count = 0;
+        for (String name : directory.list()) {
+            if (name.startsWith("compaction-map-")) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+}
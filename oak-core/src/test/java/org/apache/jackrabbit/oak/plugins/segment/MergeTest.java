@@ -16,25 +16,32 @@
  */
 package org.apache.jackrabbit.oak.plugins.segment;
 
+import static junit.framework.Assert.assertEquals;
 import static junit.framework.Assert.assertFalse;
 import static junit.framework.Assert.assertTrue;
 import static junit.framework.Assert.fail;
 
+import java.util.List;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nonnull;
 
 import org.apache.jackrabbit.oak.api.CommitFailedException;
+import org.apache.jackrabbit.oak.api.PropertyState;
 import org.apache.jackrabbit.oak.plugins.segment.memory.MemoryStore;
 import org.apache.jackrabbit.oak.spi.commit.CommitHook;
 import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
 import org.apache.jackrabbit.oak.spi.commit.EmptyHook;
+import org.apache.jackrabbit.oak.spi.commit.Observer;
 import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
 import org.apache.jackrabbit.oak.spi.state.NodeState;
 import org.apache.jackrabbit.oak.spi.state.NodeStore;
 import org.junit.Test;
 
+import com.google.common.collect.Lists;
+
 public class MergeTest {
 
     @Test
@@ -135,4 +142,92 @@ public class MergeTest {
         background.join();
     }
 
+    @Test
+    public void testGroupMerge() throws Exception {
+        final AtomicInteger heads = new AtomicInteger();
+        final SegmentNodeStore store = new SegmentNodeStore(new MemoryStore() {
+            @Override
+            public boolean setHead(SegmentNodeState base, SegmentNodeState head) {
+                heads.incrementAndGet();
+                return super.setHead(base, head);
+            }
+        });
+        store.setGroupCommit(true);
+
+        final AtomicInteger observed = new AtomicInteger();
+        store.addObserver(new Observer() {
+            @Override
+            public void contentChanged(@Nonnull NodeState root, CommitInfo info) {
+                if (info != null) {
+                    observed.incrementAndGet();
+                }
+            }
+        });
+
+        // a slow commit hook lets commits queue up, and every
+        // tenth commit is rejected by the hook
+        final CommitHook hook = new CommitHook() {
+            @Override @Nonnull
+            public NodeState processCommit(
+                    NodeState before, NodeState after, CommitInfo info)
+                    throws CommitFailedException {
+                try {
+                    Thread.sleep(1);
+                } catch (InterruptedException e) {
+                    fail();
+                }
+                for (PropertyState property : after.getProperties()) {
+                    if (property.getName().startsWith("reject")) {
+                        throw new CommitFailedException("Test", 1, "rejected");
+                    }
+                }
+                return after;
+            }
+        };
+
+        final int threads = 10;
+        final int commits = 20;
+        final AtomicInteger failures = new AtomicInteger();
+        final AtomicBoolean error = new AtomicBoolean();
+        List<Thread> workers = Lists.newArrayList();
+        for (int t = 0; t < threads; t++) {
+            final String name = "p" + t;
+            Thread worker = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < commits; i++) {
+                        NodeBuilder builder = store.getRoot().builder();
+                        builder.setProperty(name, (long) i);
+                        if (i % 10 == 9) {
+                            builder.setProperty("reject-" + name, true);
+                        }
+                        try {
+                            NodeState merged = store.merge(
+                                    builder, hook, new CommitInfo("s", null));
+                            if (merged.getLong(name) != i) {
+                                error.set(true);
+                            }
+                        } catch (CommitFailedException e) {
+                            failures.incrementAndGet();
+                        }
+                    }
+                }
+            };
+            workers.add(worker);
+            worker.start();
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        assertFalse(error.get());
+        assertEquals(threads * commits / 10, failures.get());
+        assertEquals(threads * commits - failures.get(), observed.get());
+        // concurrent commits share head state updates
+        assertTrue(heads.get() < observed.get());
+        for (int t = 0; t < threads; t++) {
+            assertEquals(commits - 2, store.getRoot().getLong("p" + t));
+        }
+    }
+
 }
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment;
+
+import static org.apache.jackrabbit.oak.plugins.segment.Segment.MAX_SEGMENT_SIZE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class OffHeapSegmentCacheTest {
+
+    private final Random random = new Random(42);
+
+    private ByteBuffer newData(int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        return ByteBuffer.wrap(bytes);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooSmall() {
+        new OffHeapSegmentCache(MAX_SEGMENT_SIZE - 1, MAX_SEGMENT_SIZE);
+    }
+
+    @Test
+    public void putAndGet() {
+        OffHeapSegmentCache cache = new OffHeapSegmentCache(MAX_SEGMENT_SIZE, MAX_SEGMENT_SIZE);
+        UUID key = UUID.randomUUID();
+        ByteBuffer data = newData(1000);
+
+        assertNull(cache.getIfPresent(key));
+        cache.put(key, data);
+        assertEquals(data, cache.getIfPresent(key));
+        assertEquals(1, cache.size());
+        assertEquals(1000, cache.getWeight());
+        assertEquals(1, cache.stats().hitCount());
+        assertEquals(1, cache.stats().missCount());
+
+        cache.invalidateAll();
+        assertNull(cache.getIfPresent(key));
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.getWeight());
+    }
+
+    @Test
+    public void evictOldestSlab() {
+        int slabSize = MAX_SEGMENT_SIZE;
+        OffHeapSegmentCache cache = new OffHeapSegmentCache(2 * slabSize, slabSize);
+
+        // each of these fill a slab of their own
+        UUID first = UUID.randomUUID();
+        cache.put(first, newData(slabSize));
+        UUID second = UUID.randomUUID();
+        ByteBuffer secondData = newData(slabSize);
+        cache.put(second, secondData);
+        assertNotNull(cache.getIfPresent(first));
+
+        // wraps around and reuses the first slab
+        UUID third = UUID.randomUUID();
+        ByteBuffer thirdData = newData(1000);
+        cache.put(third, thirdData);
+
+        assertNull(cache.getIfPresent(first));
+        assertEquals(secondData, cache.getIfPresent(second));
+        assertEquals(thirdData, cache.getIfPresent(third));
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.stats().evictionCount());
+        assertEquals(slabSize + 1000, cache.getWeight());
+    }
+
+}
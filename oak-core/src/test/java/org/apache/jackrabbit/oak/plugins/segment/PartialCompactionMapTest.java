@@ -64,7 +64,7 @@ public class PartialCompactionMapTest {
     private static final int SEED = Integer.getInteger("SEED", new Random().nextInt());
 
     private final Random rnd = new Random(SEED);
-    private final boolean usePersistedMap;
+    private final String mapType;
 
     private File directory;
     private FileStore segmentStore;
@@ -73,12 +73,13 @@ public class PartialCompactionMapTest {
     private PartialCompactionMap map;
 
     @Parameterized.Parameters
-    public static List<Boolean[]> fixtures() {
-        return ImmutableList.of(new Boolean[] {true}, new Boolean[] {false});
+    public static List<String[]> fixtures() {
+        return ImmutableList.of(
+                new String[] {"persisted"}, new String[] {"inMemory"}, new String[] {"mapped"});
     }
 
-    public PartialCompactionMapTest(boolean usePersistedMap) {
-        this.usePersistedMap = usePersistedMap;
+    public PartialCompactionMapTest(String mapType) {
+        this.mapType = mapType;
     }
 
     @Before
@@ -102,8 +103,10 @@ public class PartialCompactionMapTest {
 
     private PartialCompactionMap createCompactionMap() {
         SegmentWriter writer = new SegmentWriter(segmentStore, getTracker(), V_11);
-        if (usePersistedMap) {
+        if ("persisted".equals(mapType)) {
             return new PersistedCompactionMap(segmentStore);
+        } else if ("mapped".equals(mapType)) {
+            return new MappedCompactionMap(writer.getTracker(), directory);
         } else {
             return new InMemoryCompactionMap(writer.getTracker());
         }
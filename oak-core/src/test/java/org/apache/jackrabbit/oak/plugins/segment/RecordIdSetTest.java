@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.jackrabbit.oak.plugins.segment;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Sets.newHashSet;
+import static org.apache.jackrabbit.oak.plugins.segment.Segment.MAX_SEGMENT_SIZE;
+import static org.apache.jackrabbit.oak.plugins.segment.Segment.RECORD_ALIGN_BITS;
+import static org.apache.jackrabbit.oak.plugins.segment.TestUtils.newValidOffset;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.jackrabbit.oak.plugins.segment.memory.MemoryStore;
+import org.junit.Test;
+
+public class RecordIdSetTest {
+
+    @Test
+    public void testEmpty() {
+        SegmentTracker tracker = new MemoryStore().getTracker();
+        RecordIdSet set = new RecordIdSet();
+        assertFalse(set.contains(new RecordId(tracker.newDataSegmentId(), 0)));
+    }
+
+    @Test
+    public void testRecordIdSet() {
+        int seed = new Random().nextInt();
+        Random r = new Random(seed);
+
+        SegmentTracker tracker = new MemoryStore().getTracker();
+        RecordIdSet set = new RecordIdSet();
+        Set<RecordId> reference = newHashSet();
+        List<RecordId> absent = newArrayList();
+        for (int i = 0; i < 1000; i++) {
+            SegmentId id = tracker.newDataSegmentId();
+            int n = r.nextInt(100);
+            int offset = MAX_SEGMENT_SIZE;
+            for (int j = 0; j < n; j++) {
+                offset = newValidOffset(r, (n - j) << RECORD_ALIGN_BITS, offset);
+                RecordId record = new RecordId(id, offset);
+                assertEquals("Failed with seed " + seed,
+                        reference.add(record), set.addIfNotPresent(record));
+            }
+            absent.add(new RecordId(tracker.newDataSegmentId(), 0));
+        }
+
+        for (RecordId id : reference) {
+            assertTrue("Failed with seed " + seed, set.contains(id));
+            assertFalse("Failed with seed " + seed, set.addIfNotPresent(id));
+        }
+        for (RecordId id : absent) {
+            assertFalse("Failed with seed " + seed, set.contains(id));
+        }
+    }
+}
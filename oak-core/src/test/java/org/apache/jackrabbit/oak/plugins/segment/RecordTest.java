@@ -22,6 +22,7 @@ import static java.util.Collections.singletonList;
 import static junit.framework.Assert.assertNotNull;
 import static junit.framework.Assert.fail;
 import static org.apache.jackrabbit.oak.api.Type.BINARIES;
+import static org.apache.jackrabbit.oak.api.Type.NAME;
 import static org.apache.jackrabbit.oak.api.Type.STRING;
 import static org.apache.jackrabbit.oak.api.Type.STRINGS;
 import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
@@ -379,4 +380,40 @@ public class RecordTest {
         assertNotNull(state.getProperty("jcr:mixinTypes"));
     }
 
+    @Test
+    public void testNodeDeduplication() {
+        NodeBuilder builder = EMPTY_NODE.builder();
+        builder.setProperty("jcr:primaryType", "nt:resource", NAME);
+        builder.setProperty("jcr:mimeType", "image/jpeg");
+        builder.setProperty("jcr:lastModified", 42L);
+
+        SegmentNodeState one = writer.writeNode(builder.getNodeState());
+        SegmentNodeState two = writer.writeNode(builder.getNodeState());
+        assertEquals(one.getRecordId(), two.getRecordId());
+
+        builder.setProperty("jcr:mimeType", "image/png");
+        SegmentNodeState three = writer.writeNode(builder.getNodeState());
+        assertFalse(one.getRecordId().equals(three.getRecordId()));
+    }
+
+    @Test
+    public void testCompactionWriterCache() {
+        NodeBuilder builder = EMPTY_NODE.builder();
+        builder.setProperty("jcr:mimeType", "image/jpeg");
+
+        SegmentNodeState before = writer.writeNode(builder.getNodeState());
+
+        // the compaction writer must not reuse pre-compacted records
+        SegmentWriter compactionWriter = writer.createCompactionWriter(1);
+        SegmentNodeState compacted =
+                compactionWriter.writeNode(builder.getNodeState());
+        assertFalse(before.getRecordId().equals(compacted.getRecordId()));
+        compactionWriter.flush();
+
+        // once adopted, the compacted records are reused
+        writer.adoptCache(compactionWriter);
+        SegmentNodeState after = writer.writeNode(builder.getNodeState());
+        assertEquals(compacted.getRecordId(), after.getRecordId());
+    }
+
 }
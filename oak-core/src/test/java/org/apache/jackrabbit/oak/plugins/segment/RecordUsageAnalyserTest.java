@@ -254,7 +254,7 @@ public class RecordUsageAnalyserTest {
 
         SegmentNodeState node = writer.writeNode(builder.getNodeState());
         analyser.analyseNode(node.getRecordId());
-        assertSizes(analyser, 24, 0, 14, 8, 12);
+        assertSizes(analyser, 24, 0, 14, 8, 9);
     }
 
     @Test
@@ -266,7 +266,7 @@ public class RecordUsageAnalyserTest {
 
         SegmentNodeState node = writer.writeNode(builder.getNodeState());
         analyser.analyseNode(node.getRecordId());
-        assertSizes(analyser, 457, 0, 254, 8, 105);
+        assertSizes(analyser, 457, 0, 254, 8, 9);
     }
 
     @Test
@@ -277,7 +277,7 @@ public class RecordUsageAnalyserTest {
 
         SegmentNodeState node = writer.writeNode(builder.getNodeState());
         analyser.analyseNode(node.getRecordId());
-        assertSizes(analyser, 24, 0, 14, 8, 12);
+        assertSizes(analyser, 24, 0, 14, 8, 9);
 
         builder = node.builder();
         builder.child("child1").setProperty("p", "q");
@@ -286,7 +286,7 @@ public class RecordUsageAnalyserTest {
         node = (SegmentNodeState) builder.getNodeState();
 
         analyser.analyseNode(node.getRecordId());
-        assertSizes(analyser, 41, 0, 18, 16, 24);
+        assertSizes(analyser, 41, 0, 18, 16, 21);
     }
 
     @Test
@@ -304,9 +304,9 @@ public class RecordUsageAnalyserTest {
         SegmentNodeState node = writer.writeNode(builder.getNodeState());
         analyser.analyseNode(node.getRecordId());
         if (segmentVersion == V_11) {
-            assertCounts(analyser, 1, 5, 6, 1, 1, 1, 0, 10, 1, 1, 2, 3);
+            assertCounts(analyser, 1, 5, 6, 1, 1, 1, 0, 10, 1, 1, 2, 2);
         } else {
-            assertCounts(analyser, 1, 3, 6, 1, 1, 1, 0, 10, 1, 1, 2, 3);
+            assertCounts(analyser, 1, 3, 6, 1, 1, 1, 0, 10, 1, 1, 2, 2);
         }
     }
 
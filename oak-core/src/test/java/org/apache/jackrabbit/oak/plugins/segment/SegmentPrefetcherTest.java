@@ -0,0 +1,106 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.apache.commons.io.FileUtils.deleteDirectory;
+import static org.apache.jackrabbit.oak.plugins.segment.file.FileStore.newFileStore;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import org.apache.jackrabbit.oak.plugins.segment.file.FileStore;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.EmptyHook;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentPrefetcherTest {
+
+    private File directory;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = File.createTempFile(
+                "SegmentPrefetcherTest", "dir", new File("target"));
+        directory.delete();
+        directory.mkdir();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        deleteDirectory(directory);
+    }
+
+    @Test
+    public void prefetchReferencedSegments() throws Exception {
+        FileStore store = newFileStore(directory).withMaxFileSize(1)
+                .withMemoryMapping(false).create();
+        try {
+            SegmentNodeStore nodeStore = new SegmentNodeStore(store);
+            for (int i = 0; i < 10; i++) {
+                NodeBuilder builder = nodeStore.getRoot().builder();
+                NodeBuilder parent = builder.child("c" + i);
+                for (int j = 0; j < 1000; j++) {
+                    parent.child("n" + j).setProperty("p", "value of " + i + "/" + j);
+                }
+                nodeStore.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+            }
+        } finally {
+            store.close();
+        }
+
+        // reopen to start with nothing in memory
+        store = newFileStore(directory).withMaxFileSize(1)
+                .withMemoryMapping(false).create();
+        try {
+            SegmentTracker tracker = store.getTracker();
+            Segment head = store.getHead().getRecordId().getSegment();
+            List<SegmentId> refs = newArrayList();
+            for (SegmentId id : head.getReferencedIds()) {
+                if (id.isDataSegmentId() && !id.isLoaded()) {
+                    refs.add(id);
+                }
+            }
+
+            SegmentPrefetcher prefetcher = new SegmentPrefetcher(tracker, 2, 100);
+            prefetcher.miss(head);
+            assertEquals(1, prefetcher.stats().missCount());
+
+            long deadline = System.currentTimeMillis() + 10000;
+            while (prefetcher.size() > 0 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, prefetcher.size());
+
+            for (SegmentId id : refs) {
+                assertTrue(id.isLoaded());
+            }
+            // the tracker may have loaded some itself if prefetching is enabled
+            assertTrue(prefetcher.stats().loadSuccessCount() <= refs.size());
+            assertEquals(0, prefetcher.stats().evictionCount());
+        } finally {
+            store.close();
+        }
+    }
+
+}
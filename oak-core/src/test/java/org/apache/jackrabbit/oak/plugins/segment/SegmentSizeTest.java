@@ -40,30 +40,30 @@ public class SegmentSizeTest {
     @Test
     public void testNodeSize() {
         NodeBuilder builder = EMPTY_NODE.builder();
-        assertEquals(48, getSize(builder));
-        assertEquals(4, getAmortizedSize(builder));
+        assertEquals(64, getSize(builder));
+        assertEquals(0, getAmortizedSize(builder));
 
         builder = EMPTY_NODE.builder();
         builder.setProperty("foo", "bar");
         assertEquals(48, getSize(builder));
-        assertEquals(8, getAmortizedSize(builder));
+        assertEquals(0, getAmortizedSize(builder));
 
         builder = EMPTY_NODE.builder();
         builder.setProperty("foo", "bar");
         builder.setProperty("baz", 123);
         assertEquals(80, getSize(builder));
-        assertEquals(16, getAmortizedSize(builder));
+        assertEquals(0, getAmortizedSize(builder));
 
         builder = EMPTY_NODE.builder();
         builder.child("foo");
         assertEquals(64, getSize(builder));
-        assertEquals(12, getAmortizedSize(builder));
+        assertEquals(0, getAmortizedSize(builder));
 
         builder = EMPTY_NODE.builder();
         builder.child("foo");
         builder.child("bar");
-        assertEquals(96, getSize(builder));
-        assertEquals(40, getAmortizedSize(builder));
+        assertEquals(80, getSize(builder));
+        assertEquals(32, getAmortizedSize(builder));
     }
 
     @Test
@@ -119,7 +119,7 @@ public class SegmentSizeTest {
         NodeBuilder builder = EMPTY_NODE.builder();
         builder.setProperty("jcr:primaryType", "rep:ACL", Type.NAME);
         assertEquals(48, getSize(builder));
-        assertEquals(4, getAmortizedSize(builder));
+        assertEquals(0, getAmortizedSize(builder));
 
         NodeBuilder deny = builder.child("deny");
         deny.setProperty("jcr:primaryType", "rep:DenyACE", Type.NAME);
@@ -144,7 +144,7 @@ public class SegmentSizeTest {
         builder.setProperty(PropertyStates.createProperty(
                 "rep:privileges", ImmutableList.of("jcr:read"), Type.NAMES));
         assertEquals(416, getSize(builder));
-        assertEquals(124, getAmortizedSize(builder));
+        assertEquals(108, getAmortizedSize(builder));
 
         NodeBuilder allow0 = builder.child("allow0");
         allow0.setProperty("jcr:primaryType", "rep:GrantACE");
@@ -152,7 +152,7 @@ public class SegmentSizeTest {
         allow0.setProperty(PropertyStates.createProperty(
                 "rep:privileges", ImmutableList.of("jcr:all"), Type.NAMES));
         assertEquals(480, getSize(builder));
-        assertEquals(160, getAmortizedSize(builder));
+        assertEquals(144, getAmortizedSize(builder));
     }
 
     @Test
@@ -168,7 +168,7 @@ public class SegmentSizeTest {
         SegmentNodeState state = writer.writeNode(builder.getNodeState());
         writer.flush();
         Segment segment = store.readSegment(state.getRecordId().getSegmentId());
-        assertEquals(27520, segment.size());
+        assertEquals(23520, segment.size());
 
         writer.flush(); // force flushing of the previous segment
 
@@ -187,6 +187,10 @@ public class SegmentSizeTest {
         return id.getSegment().size();
     }
 
+    /**
+     * Size of writing the same node again. Small nodes are deduplicated,
+     * in which case this is 0.
+     */
     private int getAmortizedSize(NodeBuilder builder) {
         SegmentWriter writer = new MemoryStore().getTracker().getWriter();
         NodeState state = builder.getNodeState();
@@ -0,0 +1,197 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Sets.newHashSet;
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.apache.jackrabbit.oak.plugins.memory.EmptyNodeState.EMPTY_NODE;
+import static org.apache.jackrabbit.oak.plugins.segment.SegmentVersion.V_11;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.apache.jackrabbit.oak.plugins.segment.memory.MemoryStore;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.junit.Test;
+
+public class SegmentWriterLanesTest {
+
+    @Test(expected = IllegalArgumentException.class)
+    public void noLanes() {
+        MemoryStore store = new MemoryStore();
+        new SegmentWriter(store, store.getTracker(), V_11, 0);
+    }
+
+    @Test
+    public void concurrentWriters() throws Exception {
+        MemoryStore store = new MemoryStore();
+        final SegmentWriter writer =
+                new SegmentWriter(store, store.getTracker(), V_11, 4);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<SegmentNodeState>> futures = newArrayList();
+            for (int i = 0; i < 8; i++) {
+                final int n = i;
+                futures.add(executor.submit(new Callable<SegmentNodeState>() {
+                    @Override
+                    public SegmentNodeState call() {
+                        return writer.writeNode(createTree(n));
+                    }
+                }));
+            }
+
+            List<SegmentNodeState> states = newArrayList();
+            for (Future<SegmentNodeState> future : futures) {
+                states.add(future.get());
+            }
+            writer.flush();
+
+            for (int i = 0; i < states.size(); i++) {
+                SegmentNodeState state = states.get(i);
+                assertTrue(store.containsSegment(
+                        state.getRecordId().getSegmentId()));
+                assertEquals(createTree(i), state);
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void sameRecordsOnDifferentLanes() throws Exception {
+        OrderCheckingStore store = new OrderCheckingStore();
+        final SegmentWriter writer =
+                new SegmentWriter(store, store.getTracker(), V_11, 2);
+
+        // the same strings and templates, written first on the second
+        // lane, which is flushed after the first one
+        final NodeState tree = createTree(0);
+        SegmentNodeState second = runOnLane(1, 2, new Callable<SegmentNodeState>() {
+            @Override
+            public SegmentNodeState call() {
+                return writer.writeNode(tree);
+            }
+        });
+        SegmentNodeState first = runOnLane(0, 2, new Callable<SegmentNodeState>() {
+            @Override
+            public SegmentNodeState call() {
+                return writer.writeNode(tree);
+            }
+        });
+        writer.flush();
+
+        assertEquals(emptyList(), store.getErrors());
+        assertEquals(tree, first);
+        assertEquals(tree, second);
+    }
+
+    @Test
+    public void referenceToOtherLane() throws Exception {
+        OrderCheckingStore store = new OrderCheckingStore();
+        final SegmentWriter writer =
+                new SegmentWriter(store, store.getTracker(), V_11, 2);
+
+        final RecordId other = runOnLane(1, 2, new Callable<RecordId>() {
+            @Override
+            public RecordId call() {
+                return writer.writeString("other");
+            }
+        });
+        final RecordId list = runOnLane(0, 2, new Callable<RecordId>() {
+            @Override
+            public RecordId call() {
+                return writer.writeList(asList(writer.writeString("own"), other));
+            }
+        });
+        writer.flush();
+
+        assertEquals(emptyList(), store.getErrors());
+        assertTrue(store.containsSegment(list.getSegmentId()));
+        assertEquals(other, new ListRecord(list, 2).getEntry(1));
+    }
+
+    /**
+     * Runs the given task in a new thread that is assigned to the given
+     * lane of a writer with the given number of lanes.
+     */
+    private static <T> T runOnLane(int lane, int lanes, Callable<T> task)
+            throws Exception {
+        FutureTask<T> future = new FutureTask<T>(task);
+        Thread thread = new Thread(future);
+        while (thread.getId() % lanes != lane) {
+            thread = new Thread(future);
+        }
+        thread.start();
+        return future.get();
+    }
+
+    /**
+     * Memory store that records an error whenever a data segment is written
+     * before a data segment it references.
+     */
+    private static class OrderCheckingStore extends MemoryStore {
+
+        private final Set<SegmentId> written = newHashSet();
+
+        private final List<String> errors = newArrayList();
+
+        @Override
+        public synchronized void writeSegment(
+                SegmentId id, byte[] data, int offset, int length) {
+            super.writeSegment(id, data, offset, length);
+            // segments written by the MemoryStore constructor are not
+            // checked, as the fields of this class are not yet initialised
+            if (written != null) {
+                for (SegmentId ref : readSegment(id).getReferencedIds()) {
+                    if (!ref.equals(id) && ref.isDataSegmentId()
+                            && !written.contains(ref)) {
+                        errors.add(id + " references unwritten segment " + ref);
+                    }
+                }
+                written.add(id);
+            }
+        }
+
+        synchronized List<String> getErrors() {
+            return errors;
+        }
+
+    }
+
+    private static NodeState createTree(int n) {
+        NodeBuilder builder = EMPTY_NODE.builder();
+        builder.setProperty("n", n);
+        for (int i = 0; i < 100; i++) {
+            NodeBuilder child = builder.child("child-" + i);
+            child.setProperty("jcr:primaryType", "nt:unstructured");
+            child.setProperty("value", "value-" + n + "-" + i);
+        }
+        return builder.getNodeState();
+    }
+
+}
@@ -0,0 +1,213 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment.file;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedByInterruptException;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class FileAccessTest {
+
+    private final List<FileAccess> files = newArrayList();
+
+    @After
+    public void tearDown() throws IOException {
+        for (FileAccess file : files) {
+            file.close();
+        }
+    }
+
+    private static File createFile(int size) throws IOException {
+        File file = File.createTempFile("FileAccessTest", ".tar", new File("target"));
+        file.deleteOnExit();
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) i;
+        }
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    private static RandomAccessFile open(File file) throws IOException {
+        return new RandomAccessFile(file, "r");
+    }
+
+    private static void assertRead(FileAccess file, int position, int length)
+            throws IOException {
+        ByteBuffer data = file.read(position, length);
+        assertEquals(length, data.remaining());
+        for (int i = 0; i < length; i++) {
+            assertEquals((byte) (position + i), data.get(data.position() + i));
+        }
+    }
+
+    @Test
+    public void randomRead() throws IOException {
+        FileAccess file = new FileAccess.Random(open(createFile(1000)));
+        files.add(file);
+
+        assertFalse(file.isMemoryMapped());
+        assertEquals(1000, file.length());
+        assertRead(file, 0, 10);
+        assertRead(file, 990, 10);
+        assertRead(file, 100, 500);
+    }
+
+    @Test
+    public void interruptedRandomRead() throws IOException {
+        FileAccess file = new FileAccess.Random(open(createFile(1000)));
+        files.add(file);
+
+        Thread.currentThread().interrupt();
+        try {
+            assertRead(file, 0, 10);
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        assertRead(file, 10, 10);
+    }
+
+    @Test
+    public void positionalRead() throws IOException {
+        File path = createFile(1000);
+        FileAccess file = new FileAccess.Positional(path, open(path));
+        files.add(file);
+
+        assertFalse(file.isMemoryMapped());
+        assertEquals(1000, file.length());
+        assertRead(file, 0, 10);
+        assertRead(file, 990, 10);
+        assertRead(file, 100, 500);
+    }
+
+    @Test
+    public void interruptedPositionalRead() throws IOException {
+        File path = createFile(1000);
+        FileAccess file = new FileAccess.Positional(path, open(path));
+        files.add(file);
+
+        Thread.currentThread().interrupt();
+        try {
+            file.read(0, 10);
+            fail("Expected ClosedByInterruptException");
+        } catch (ClosedByInterruptException expected) {
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+
+        // the file is reopened for later reads
+        assertRead(file, 10, 10);
+        assertEquals(1000, file.length());
+    }
+
+    @Test
+    public void adaptiveMapping() throws IOException {
+        FileAccess.HotFiles hotFiles = new FileAccess.HotFiles(1, 2);
+        FileAccess.Adaptive first = newAdaptive(createFile(1000), hotFiles);
+        FileAccess.Adaptive second = newAdaptive(createFile(1000), hotFiles);
+        files.add(first);
+        files.add(second);
+
+        // the first read uses file IO, the second one maps the file
+        assertRead(first, 10, 10);
+        assertEquals(0, hotFiles.getMappedCount());
+        assertRead(first, 20, 10);
+        assertEquals(1, hotFiles.getMappedCount());
+        assertTrue(first.isMapped());
+
+        // mapping the second file unmaps the first one
+        assertRead(second, 30, 10);
+        assertRead(second, 40, 10);
+        assertEquals(1, hotFiles.getMappedCount());
+        assertTrue(second.isMapped());
+        assertFalse(first.isMapped());
+
+        // the first file gets hot again
+        assertRead(first, 0, 10);
+        assertFalse(first.isMapped());
+        assertRead(first, 50, 10);
+        assertEquals(1, hotFiles.getMappedCount());
+        assertTrue(first.isMapped());
+        assertFalse(second.isMapped());
+
+        first.close();
+        files.remove(first);
+        assertEquals(0, hotFiles.getMappedCount());
+    }
+
+    @Test
+    public void readAfterUnmap() throws IOException {
+        FileAccess.HotFiles hotFiles = new FileAccess.HotFiles(1, 1);
+        FileAccess.Adaptive first = newAdaptive(createFile(1000), hotFiles);
+        FileAccess.Adaptive second = newAdaptive(createFile(1000), hotFiles);
+        files.add(first);
+        files.add(second);
+
+        ByteBuffer data = first.read(100, 10);
+        assertTrue(first.isMapped());
+
+        // data read from the mapped file stays valid after the mapping
+        // has been released
+        assertRead(second, 0, 10);
+        assertFalse(first.isMapped());
+        for (int i = 0; i < 10; i++) {
+            assertEquals((byte) (100 + i), data.get(i));
+        }
+    }
+
+    @Test
+    public void interruptedAdaptiveMapping() throws IOException {
+        FileAccess.HotFiles hotFiles = new FileAccess.HotFiles(1, 1);
+        FileAccess file = newAdaptive(createFile(1000), hotFiles);
+        files.add(file);
+
+        // mapping fails, but does not close the file used for reading
+        Thread.currentThread().interrupt();
+        try {
+            assertRead(file, 0, 10);
+        } finally {
+            assertTrue(Thread.interrupted());
+        }
+        assertEquals(0, hotFiles.getMappedCount());
+        assertRead(file, 10, 10);
+    }
+
+    private static FileAccess.Adaptive newAdaptive(File path, FileAccess.HotFiles hotFiles)
+            throws IOException {
+        return new FileAccess.Adaptive(
+                path, new FileAccess.Random(open(path)), hotFiles);
+    }
+
+}
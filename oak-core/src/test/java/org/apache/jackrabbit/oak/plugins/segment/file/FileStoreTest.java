@@ -33,6 +33,8 @@ import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.google.common.base.Strings;
 import org.apache.jackrabbit.oak.api.Blob;
@@ -40,6 +42,7 @@ import org.apache.jackrabbit.oak.plugins.segment.Compactor;
 import org.apache.jackrabbit.oak.plugins.segment.RecordId;
 import org.apache.jackrabbit.oak.plugins.segment.Segment;
 import org.apache.jackrabbit.oak.plugins.segment.SegmentBlob;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentId;
 import org.apache.jackrabbit.oak.plugins.segment.SegmentNodeBuilder;
 import org.apache.jackrabbit.oak.plugins.segment.SegmentNodeState;
 import org.apache.jackrabbit.oak.plugins.segment.SegmentWriter;
@@ -95,9 +98,18 @@ public class FileStoreTest {
 
     @Test
     public void testCompaction() throws IOException {
+        testCompaction(false);
+    }
+
+    @Test
+    public void testCompactionWithSegmentGraph() throws IOException {
+        testCompaction(true);
+    }
+
+    private void testCompaction(boolean segmentGraph) throws IOException {
         int largeBinarySize = 10 * 1024 * 1024;
 
-        FileStore store = new FileStore(directory, 1, false);
+        FileStore store = newStore(segmentGraph);
         SegmentWriter writer = store.getTracker().getWriter();
 
         SegmentNodeState base = store.getHead();
@@ -119,7 +131,7 @@ public class FileStoreTest {
 
         // First simulate the case where during compaction a reference to the
         // older segments is added to a segment that the compactor is writing
-        store = new FileStore(directory, 1, false);
+        store = newStore(segmentGraph);
         head = store.getHead();
         assertTrue(store.size() > largeBinarySize);
         builder = head.builder();
@@ -129,7 +141,7 @@ public class FileStoreTest {
         store.close();
 
         // In this case the revision cleanup is unable to reclaim the old data
-        store = new FileStore(directory, 1, false);
+        store = newStore(segmentGraph);
         assertTrue(store.size() > largeBinarySize);
         store.cleanup();
         assertTrue(store.size() > largeBinarySize);
@@ -137,7 +149,7 @@ public class FileStoreTest {
 
         // Now we do the same thing, but let the compactor use a different
         // SegmentWriter
-        store = new FileStore(directory, 1, false);
+        store = newStore(segmentGraph);
         head = store.getHead();
         assertTrue(store.size() > largeBinarySize);
         writer = new SegmentWriter(store, store.getTracker(), V_11);
@@ -151,13 +163,21 @@ public class FileStoreTest {
         store.close();
 
         // Revision cleanup is now able to reclaim the extra space (OAK-1932)
-        store = new FileStore(directory, 1, false);
+        store = newStore(segmentGraph);
         assertTrue(store.size() > largeBinarySize);
         store.cleanup();
         assertTrue(store.size() < largeBinarySize);
         store.close();
     }
 
+    private FileStore newStore(boolean segmentGraph) throws IOException {
+        return FileStore.newFileStore(directory)
+                .withMaxFileSize(1)
+                .withMemoryMapping(false)
+                .withSegmentGraph(segmentGraph)
+                .create();
+    }
+
     @Test
     public void testRecovery() throws IOException {
         FileStore store = new FileStore(directory, 1, false);
@@ -256,4 +276,55 @@ public class FileStoreTest {
         }
     }
 
+    @Test
+    public void concurrentReadsDuringRollover() throws Exception {
+        final FileStore store = new FileStore(directory, 1, false);
+        final List<SegmentId> written = new CopyOnWriteArrayList<SegmentId>();
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final List<Throwable> failures = new CopyOnWriteArrayList<Throwable>();
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random();
+                try {
+                    while (!done.get()) {
+                        if (!written.isEmpty()) {
+                            SegmentId id = written.get(
+                                    random.nextInt(written.size()));
+                            assertEquals(65536, store.readSegment(id).size());
+                        }
+                    }
+                } catch (Throwable t) {
+                    failures.add(t);
+                }
+            }
+        });
+        reader.start();
+
+        try {
+            Random random = new Random();
+            byte[] data = new byte[65536];
+            random.nextBytes(data);
+            for (int i = 0; i < 100; i++) {
+                // bulk segment identifiers have 0xB in the top lsb bits
+                long lsb = (random.nextLong() & ~(0xfL << 60)) | (0xbL << 60);
+                SegmentId id = store.getTracker().getSegmentId(
+                        random.nextLong(), lsb);
+                store.writeSegment(id, data, 0, data.length);
+                written.add(id);
+            }
+        } finally {
+            done.set(true);
+            reader.join();
+        }
+
+        assertTrue(failures.toString(), failures.isEmpty());
+        assertTrue(store.getTarReaderIndex().size() > 1);
+        for (SegmentId id : written) {
+            assertEquals(65536, store.readSegment(id).size());
+        }
+        store.close();
+    }
+
 }
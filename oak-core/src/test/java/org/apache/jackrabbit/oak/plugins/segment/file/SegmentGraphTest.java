@@ -0,0 +1,146 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment.file;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.singleton;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.UUID;
+
+import org.junit.Test;
+
+public class SegmentGraphTest {
+
+    private final Random random = new Random(42);
+
+    @Test
+    public void testMark() {
+        SegmentGraph graph = new SegmentGraph();
+        UUID root = newDataId();
+        UUID child = newDataId();
+        UUID bulk = newBulkId();
+        UUID garbage = newDataId();
+        add(graph, bulk);
+        add(graph, child, bulk);
+        add(graph, root, child);
+        add(graph, garbage, child);
+
+        BitSet marks = graph.mark(singleton(root));
+        assertNotNull(marks);
+        assertTrue(isMarked(graph, marks, root));
+        assertTrue(isMarked(graph, marks, child));
+        assertTrue(isMarked(graph, marks, bulk));
+        assertFalse(isMarked(graph, marks, garbage));
+
+        // unknown segments are never removed
+        assertTrue(isMarked(graph, marks, newDataId()));
+    }
+
+    @Test
+    public void testIncomplete() {
+        SegmentGraph graph = new SegmentGraph();
+        UUID root = newDataId();
+        UUID missing = newDataId();
+        add(graph, root, missing);
+        assertNull(graph.mark(singleton(root)));
+
+        add(graph, missing);
+        assertNotNull(graph.mark(singleton(root)));
+    }
+
+    @Test
+    public void testAddFromHeader() {
+        SegmentGraph graph = new SegmentGraph();
+        UUID root = newDataId();
+        UUID bulk = newBulkId();
+        add(graph, bulk);
+
+        ByteBuffer header = ByteBuffer.allocate(32);
+        header.put(5, (byte) 1);  // reference count
+        header.putLong(16, bulk.getMostSignificantBits());
+        header.putLong(24, bulk.getLeastSignificantBits());
+        graph.addSegment(
+                root.getMostSignificantBits(),
+                root.getLeastSignificantBits(),
+                header);
+
+        BitSet marks = graph.mark(singleton(root));
+        assertTrue(isMarked(graph, marks, bulk));
+    }
+
+    @Test
+    public void testRemove() {
+        SegmentGraph graph = new SegmentGraph();
+        UUID[] ids = new UUID[1000];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = newDataId();
+            if (i == 0) {
+                add(graph, ids[i]);
+            } else {
+                add(graph, ids[i], ids[i - 1]);
+            }
+        }
+        assertEquals(ids.length, graph.size());
+
+        graph.removeSegments(asList(ids).subList(500, 1000));
+        assertEquals(500, graph.size());
+
+        BitSet marks = graph.mark(singleton(ids[499]));
+        assertNotNull(marks);
+        for (int i = 0; i < 500; i++) {
+            assertTrue(isMarked(graph, marks, ids[i]));
+        }
+
+        UUID id = newDataId();
+        add(graph, id);
+        marks = graph.mark(singleton(ids[0]));
+        assertFalse(isMarked(graph, marks, id));
+        assertFalse(isMarked(graph, marks, ids[1]));
+    }
+
+    private UUID newDataId() {
+        return new UUID(random.nextLong(),
+                0xAL << 60 | (random.nextLong() & 0x0FFFFFFFFFFFFFFFL));
+    }
+
+    private UUID newBulkId() {
+        return new UUID(random.nextLong(),
+                0xBL << 60 | (random.nextLong() & 0x0FFFFFFFFFFFFFFFL));
+    }
+
+    private static void add(SegmentGraph graph, UUID id, UUID... refs) {
+        graph.addSegment(
+                id.getMostSignificantBits(),
+                id.getLeastSignificantBits(),
+                asList(refs));
+    }
+
+    private static boolean isMarked(
+            SegmentGraph graph, BitSet marks, UUID id) {
+        return graph.isMarked(marks,
+                id.getMostSignificantBits(), id.getLeastSignificantBits());
+    }
+
+}
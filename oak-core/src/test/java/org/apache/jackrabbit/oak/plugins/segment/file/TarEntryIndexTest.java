@@ -0,0 +1,124 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment.file;
+
+import static com.google.common.base.Charsets.UTF_8;
+import static com.google.common.collect.Lists.newArrayList;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.UUID;
+
+import org.junit.After;
+import org.junit.Test;
+
+public class TarEntryIndexTest {
+
+    private final List<TarReader> readers = newArrayList();
+
+    @After
+    public void tearDown() throws IOException {
+        for (TarReader reader : readers) {
+            reader.close();
+        }
+    }
+
+    private TarReader createReader(UUID... ids) throws IOException {
+        File file = File.createTempFile("TarEntryIndexTest", ".tar", new File("target"));
+        TarWriter writer = new TarWriter(file);
+        try {
+            for (UUID id : ids) {
+                byte[] data = id.toString().getBytes(UTF_8);
+                writer.writeEntry(id.getMostSignificantBits(),
+                        id.getLeastSignificantBits(), data, 0, data.length);
+            }
+        } finally {
+            writer.close();
+        }
+        TarReader reader = TarReader.open(file, false);
+        readers.add(reader);
+        return reader;
+    }
+
+    private static UUID newId() {
+        UUID id = UUID.randomUUID();
+        return new UUID(id.getMostSignificantBits(),
+                id.getLeastSignificantBits() & (-1L >>> 4)); // OAK-1672
+    }
+
+    private static void assertEntry(TarEntryIndex index, UUID id, TarReader reader)
+            throws IOException {
+        int slot = index.find(id.getMostSignificantBits(), id.getLeastSignificantBits());
+        assertTrue(slot != -1);
+        assertSame(reader, index.getReader(slot));
+        ByteBuffer data = reader.readEntry(index.getOffset(slot), index.getSize(slot));
+        assertEquals(ByteBuffer.wrap(id.toString().getBytes(UTF_8)), data);
+    }
+
+    @Test
+    public void buildAndAdd() throws IOException {
+        List<UUID> ids = newArrayList();
+        for (int i = 0; i < 100; i++) {
+            ids.add(newId());
+        }
+        UUID shared = newId();
+
+        TarReader older = createReader(ids.subList(0, 50).toArray(new UUID[50]));
+        TarReader newer = createReader(ids.subList(50, 100).toArray(new UUID[50]));
+        TarReader newest = createReader(shared);
+
+        List<TarReader> list = newArrayList();
+        list.add(newer);
+        list.add(older);
+        TarEntryIndex index = TarEntryIndex.build(list);
+        assertEquals(100, index.size());
+        for (int i = 0; i < 100; i++) {
+            assertEntry(index, ids.get(i), i < 50 ? older : newer);
+        }
+        assertEquals(-1, index.find(
+                shared.getMostSignificantBits(), shared.getLeastSignificantBits()));
+
+        TarEntryIndex added = index.add(newest);
+        assertEquals(101, added.size());
+        assertEntry(added, shared, newest);
+        assertEntry(added, ids.get(0), older);
+        assertEquals(100, index.size());
+    }
+
+    @Test
+    public void newerReaderWins() throws IOException {
+        UUID id = newId();
+        TarReader older = createReader(id);
+        TarReader newer = createReader(id);
+
+        List<TarReader> list = newArrayList();
+        list.add(newer);
+        list.add(older);
+        assertEntry(TarEntryIndex.build(list), id, newer);
+
+        list.remove(newer);
+        TarEntryIndex index = TarEntryIndex.build(list);
+        assertEntry(index, id, older);
+        assertEntry(index.add(newer), id, newer);
+    }
+
+}
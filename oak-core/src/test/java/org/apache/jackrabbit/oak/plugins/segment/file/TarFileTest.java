@@ -18,6 +18,7 @@ package org.apache.jackrabbit.oak.plugins.segment.file;
 
 import static com.google.common.base.Charsets.UTF_8;
 import static junit.framework.Assert.assertEquals;
+import static junit.framework.Assert.assertTrue;
 
 import java.io.File;
 import java.io.IOException;
@@ -68,4 +69,92 @@ public class TarFileTest {
         }
     }
 
+    @Test
+    public void testWriteBehind() throws IOException {
+        byte[] data = new byte[1000];
+        long[] msbs = new long[100];
+        long[] lsbs = new long[100];
+
+        TarWriter writer = new TarWriter(file, 4);
+        try {
+            for (int i = 0; i < msbs.length; i++) {
+                UUID id = UUID.randomUUID();
+                msbs[i] = id.getMostSignificantBits();
+                lsbs[i] = id.getLeastSignificantBits() & (-1 >>> 4); // OAK-1672
+                // the writer must not depend on the array after the call
+                data[0] = (byte) i;
+                writer.writeEntry(msbs[i], lsbs[i], data, 0, data.length);
+                assertEquals(i, writer.readEntry(msbs[i], lsbs[i]).get(0));
+            }
+            writer.flush();
+            for (int i = 0; i < msbs.length; i++) {
+                assertEquals(i, writer.readEntry(msbs[i], lsbs[i]).get(0));
+            }
+        } finally {
+            writer.close();
+        }
+
+        TarReader reader = TarReader.open(file, false);
+        try {
+            for (int i = 0; i < msbs.length; i++) {
+                assertEquals(i, reader.readEntry(msbs[i], lsbs[i]).get(0));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Test
+    public void testInterruptedReader() throws IOException {
+        testInterrupted(0);
+    }
+
+    @Test
+    public void testInterruptedWriteBehind() throws IOException {
+        testInterrupted(1);
+    }
+
+    /**
+     * An interrupted thread must neither break reads nor writes of other
+     * entries of the file.
+     */
+    private void testInterrupted(int writeBehind) throws IOException {
+        byte[] data = new byte[1000];
+        long[] msbs = new long[10];
+        long[] lsbs = new long[10];
+
+        TarWriter writer = new TarWriter(file, writeBehind);
+        try {
+            for (int i = 0; i < msbs.length; i++) {
+                UUID id = UUID.randomUUID();
+                msbs[i] = id.getMostSignificantBits();
+                lsbs[i] = id.getLeastSignificantBits() & (-1 >>> 4); // OAK-1672
+                data[0] = (byte) i;
+                Thread.currentThread().interrupt();
+                try {
+                    writer.writeEntry(msbs[i], lsbs[i], data, 0, data.length);
+                    writer.readEntry(msbs[0], lsbs[0]);
+                    assertTrue(Thread.currentThread().isInterrupted());
+                } finally {
+                    Thread.interrupted();
+                }
+                writer.flush();
+                for (int j = 0; j <= i; j++) {
+                    assertEquals(j, writer.readEntry(msbs[j], lsbs[j]).get(0));
+                }
+            }
+        } finally {
+            writer.close();
+        }
+
+        TarReader reader = TarReader.open(file, false);
+        try {
+            for (int i = 0; i < msbs.length; i++) {
+                assertEquals(i, reader.readEntry(msbs[i], lsbs[i]).get(0));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
 }
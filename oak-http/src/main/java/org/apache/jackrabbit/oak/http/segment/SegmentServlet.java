@@ -17,7 +17,9 @@
 package org.apache.jackrabbit.oak.http.segment;
 
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.List;
 import java.util.UUID;
 
 import javax.servlet.ServletException;
@@ -29,9 +31,11 @@ import org.apache.jackrabbit.oak.plugins.segment.RecordId;
 import org.apache.jackrabbit.oak.plugins.segment.Segment;
 import org.apache.jackrabbit.oak.plugins.segment.SegmentId;
 import org.apache.jackrabbit.oak.plugins.segment.SegmentNodeState;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentNotFoundException;
 import org.apache.jackrabbit.oak.plugins.segment.SegmentStore;
 
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
 
 public abstract class SegmentServlet extends HttpServlet {
 
@@ -98,6 +102,55 @@ public abstract class SegmentServlet extends HttpServlet {
         }
     }
 
+    /**
+     * Batched read of segments. The request body lists the segment
+     * identifiers, one per line. The response contains, in the same order,
+     * the identifier (most and least significant bits), the length and
+     * the data of each segment. The length of a missing segment is -1.
+     */
+    @Override
+    protected void doPost(
+            HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
+        String info = request.getPathInfo();
+        if (!"/segments".equals(info)) {
+            response.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+
+        List<String> lines = CharStreams.readLines(request.getReader());
+        SegmentId[] ids = new SegmentId[lines.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = getSegmentId(lines.get(i).trim());
+            if (ids[i] == null) {
+                response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+                return;
+            }
+        }
+
+        response.setContentType("application/octet-stream");
+        DataOutputStream out = new DataOutputStream(response.getOutputStream());
+        for (SegmentId id : ids) {
+            out.writeLong(id.getMostSignificantBits());
+            out.writeLong(id.getLeastSignificantBits());
+            // containsSegment() can't tell, as the identifiers are created
+            // by the tracker of the store
+            Segment segment;
+            try {
+                segment = id.getSegment();
+            } catch (SegmentNotFoundException e) {
+                segment = null;
+            }
+            if (segment == null) {
+                out.writeInt(-1);
+            } else {
+                out.writeInt(segment.size());
+                segment.writeTo(out);
+            }
+        }
+        out.flush();
+    }
+
     private void doGetSegment(
             String info, HttpServletResponse response)
             throws ServletException, IOException {
@@ -0,0 +1,304 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.oak.http.segment;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Lists.reverse;
+import static org.apache.jackrabbit.oak.api.Type.STRINGS;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.net.URL;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletRequestWrapper;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.common.base.Joiner;
+import com.google.common.base.Strings;
+import com.google.common.io.CharStreams;
+import org.apache.jackrabbit.oak.api.PropertyState;
+import org.apache.jackrabbit.oak.plugins.segment.Segment;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentId;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentNodeStore;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentNotFoundException;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentStore;
+import org.apache.jackrabbit.oak.plugins.segment.http.HttpStore;
+import org.apache.jackrabbit.oak.plugins.segment.memory.MemoryStore;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.EmptyHook;
+import org.apache.jackrabbit.oak.spi.state.ChildNodeEntry;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeState;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+public class HttpStoreTest {
+
+    private static final int BATCH_SIZE = 2;
+
+    private final MemoryStore store = new MemoryStore();
+
+    private final AtomicInteger batches = new AtomicInteger();
+
+    private final AtomicInteger singles = new AtomicInteger();
+
+    private final List<SegmentId> ids = newArrayList();
+
+    private Server server;
+
+    private HttpStore httpStore;
+
+    private HttpStore shuffledStore;
+
+    private URL url;
+
+    @BeforeClass
+    public static void setBatchSize() {
+        // read when HttpStore is loaded
+        System.setProperty("oak.segment.http.batchSize", String.valueOf(BATCH_SIZE));
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        // large values, so that the content spans several segments
+        SegmentNodeStore nodeStore = new SegmentNodeStore(store);
+        NodeBuilder builder = nodeStore.getRoot().builder();
+        for (int i = 0; i < 20; i++) {
+            builder.child("node" + i).setProperty(
+                    "value", Strings.repeat(String.valueOf((char) ('a' + i)), 100000));
+        }
+        nodeStore.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+        store.getTracker().getWriter().flush();
+        for (SegmentId id : store.getTracker().getReferencedSegmentIds()) {
+            try {
+                store.readSegment(id);
+                ids.add(id);
+            } catch (SegmentNotFoundException e) {
+                // allocated, but not written
+            }
+        }
+        assertTrue(ids.size() > BATCH_SIZE);
+
+        ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath("/");
+        context.addServlet(new ServletHolder(new TestServlet(false)), "/store/*");
+        context.addServlet(new ServletHolder(new TestServlet(true)), "/shuffled/*");
+        server = new Server(0);
+        server.setHandler(context);
+        server.start();
+        int port = server.getConnectors()[0].getLocalPort();
+
+        url = new URL("http://localhost:" + port + "/store/");
+        httpStore = new HttpStore(url);
+        shuffledStore = new HttpStore(new URL("http://localhost:" + port + "/shuffled/"));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        httpStore.close();
+        shuffledStore.close();
+        server.stop();
+    }
+
+    @Test
+    public void readSegments() throws IOException {
+        List<SegmentId> remote = toRemote(httpStore, ids);
+        List<Segment> segments = httpStore.readSegments(remote);
+        assertSegments(remote, segments);
+        assertEquals(1, batches.get());
+
+        // the order of the request is kept
+        remote = reverse(remote);
+        assertSegments(remote, httpStore.readSegments(remote));
+    }
+
+    @Test
+    public void readReferencesInBatches() {
+        // reads all segments, one at a time without batching
+        assertEquals(20 * 100000, getLength(httpStore.getHead()));
+        assertTrue(batches.get() > 0);
+        assertTrue(singles.get() + batches.get() < ids.size());
+
+        // batched segments are kept by the tracker
+        int requests = singles.get() + batches.get();
+        assertEquals(20 * 100000, getLength(httpStore.getHead()));
+        assertEquals(requests, singles.get() + batches.get());
+    }
+
+    private static long getLength(NodeState state) {
+        long length = 0;
+        for (PropertyState property : state.getProperties()) {
+            for (String value : property.getValue(STRINGS)) {
+                length += value.length();
+            }
+        }
+        for (ChildNodeEntry child : state.getChildNodeEntries()) {
+            length += getLength(child.getNodeState());
+        }
+        return length;
+    }
+
+    @Test
+    public void readSegmentsAsync() throws Exception {
+        List<SegmentId> remote = toRemote(httpStore, ids);
+        assertSegments(remote, httpStore.readSegmentsAsync(remote).get());
+        // split into batches of at most BATCH_SIZE segments
+        assertEquals((ids.size() + BATCH_SIZE - 1) / BATCH_SIZE, batches.get());
+    }
+
+    @Test
+    public void readSegmentAsync() throws Exception {
+        SegmentId id = toRemote(httpStore, ids).get(0);
+        assertSegment(id, httpStore.readSegmentAsync(id).get());
+    }
+
+    @Test
+    public void readMissingSegment() {
+        List<SegmentId> remote = toRemote(httpStore, ids);
+        UUID uuid = UUID.randomUUID();
+        SegmentId missing = httpStore.getTracker().getSegmentId(
+                uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        remote.add(1, missing);
+        try {
+            httpStore.readSegments(remote);
+            fail("Expected SegmentNotFoundException");
+        } catch (SegmentNotFoundException e) {
+            assertTrue(e.getMessage().contains(missing.toString()));
+        }
+    }
+
+    @Test
+    public void readMissingSegmentAsync() throws InterruptedException {
+        List<SegmentId> remote = toRemote(httpStore, ids);
+        UUID uuid = UUID.randomUUID();
+        remote.add(httpStore.getTracker().getSegmentId(
+                uuid.getMostSignificantBits(), uuid.getLeastSignificantBits()));
+        try {
+            httpStore.readSegmentsAsync(remote).get();
+            fail("Expected SegmentNotFoundException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof SegmentNotFoundException);
+        }
+    }
+
+    @Test
+    public void readMismatchedSegment() {
+        List<SegmentId> remote = toRemote(shuffledStore, ids);
+        try {
+            shuffledStore.readSegments(remote);
+            fail("Expected a failure for the unexpected segment");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
+            assertTrue(e.getCause().getMessage().startsWith("Unexpected segment"));
+        }
+    }
+
+    private static List<SegmentId> toRemote(SegmentStore store, List<SegmentId> ids) {
+        List<SegmentId> remote = newArrayList();
+        for (SegmentId id : ids) {
+            remote.add(store.getTracker().getSegmentId(
+                    id.getMostSignificantBits(), id.getLeastSignificantBits()));
+        }
+        return remote;
+    }
+
+    private void assertSegments(List<SegmentId> expected, List<Segment> segments)
+            throws IOException {
+        assertEquals(expected.size(), segments.size());
+        for (int i = 0; i < segments.size(); i++) {
+            assertSegment(expected.get(i), segments.get(i));
+        }
+    }
+
+    private void assertSegment(SegmentId expected, Segment segment)
+            throws IOException {
+        assertEquals(expected, segment.getSegmentId());
+        Segment local = store.readSegment(store.getTracker().getSegmentId(
+                expected.getMostSignificantBits(),
+                expected.getLeastSignificantBits()));
+        assertArrayEquals(toBytes(local), toBytes(segment));
+    }
+
+    private static byte[] toBytes(Segment segment) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        segment.writeTo(out);
+        return out.toByteArray();
+    }
+
+    private class TestServlet extends SegmentServlet {
+
+        private final boolean shuffle;
+
+        TestServlet(boolean shuffle) {
+            this.shuffle = shuffle;
+        }
+
+        @Override
+        protected SegmentStore getSegmentStore() {
+            return store;
+        }
+
+        @Override
+        protected void doGet(
+                HttpServletRequest request, HttpServletResponse response)
+                throws ServletException, IOException {
+            if (request.getPathInfo() != null
+                    && request.getPathInfo().length() > 1) {
+                singles.incrementAndGet();
+            }
+            super.doGet(request, response);
+        }
+
+        @Override
+        protected void doPost(
+                HttpServletRequest request, HttpServletResponse response)
+                throws ServletException, IOException {
+            batches.incrementAndGet();
+            if (shuffle) {
+                // reply in reverse order of the request
+                List<String> lines = CharStreams.readLines(request.getReader());
+                final String body = Joiner.on('\n').join(reverse(lines));
+                request = new HttpServletRequestWrapper(request) {
+                    @Override
+                    public BufferedReader getReader() {
+                        return new BufferedReader(new StringReader(body));
+                    }
+                };
+            }
+            super.doPost(request, response);
+        }
+
+    }
+
+}
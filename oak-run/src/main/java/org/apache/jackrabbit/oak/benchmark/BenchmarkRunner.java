@@ -205,6 +205,7 @@ public class BenchmarkRunner {
             new ConcurrentReadWriteTest(),
             new ConcurrentWriteReadTest(),
             new ConcurrentWriteTest(),
+            new ConcurrentCommitTest(),
             new SimpleSearchTest(),
             new SQL2SearchTest(),
             new DescendantSearchTest(),
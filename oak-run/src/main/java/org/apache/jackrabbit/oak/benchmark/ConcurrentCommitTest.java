@@ -0,0 +1,101 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.jackrabbit.oak.benchmark;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Test case measuring the throughput of many small, non conflicting commits
+ * from concurrent sessions. Each session repeatedly updates a property of a
+ * node of its own, so that commit latency rather than conflict handling
+ * dominates. Compare runs with and without
+ * {@code -Doak.segment.groupCommit=true} for the segment based fixtures.
+ */
+public class ConcurrentCommitTest extends AbstractTest {
+
+    protected static final String ROOT_NODE_NAME = "test" + TEST_ID;
+
+    private final int backgroundWriterCount;
+
+    private Writer writer;
+
+    public ConcurrentCommitTest() {
+        this(getScale(50));
+    }
+
+    protected ConcurrentCommitTest(int backgroundWriterCount) {
+        this.backgroundWriterCount = backgroundWriterCount;
+    }
+
+    @Override
+    public void beforeSuite() throws Exception {
+        Session session = loginWriter();
+        Node root = session.getRootNode().addNode(ROOT_NODE_NAME, "nt:unstructured");
+        for (int i = 0; i <= backgroundWriterCount; i++) {
+            root.addNode("node" + i, "nt:unstructured");
+        }
+        session.save();
+
+        writer = new Writer(0);
+        for (int i = 1; i <= backgroundWriterCount; i++) {
+            addBackgroundJob(new Writer(i));
+        }
+    }
+
+    private class Writer implements Runnable {
+
+        private final Session session = loginWriter();
+
+        private final String path;
+
+        private long count;
+
+        Writer(int index) {
+            this.path = "/" + ROOT_NODE_NAME + "/node" + index;
+        }
+
+        public void run() {
+            try {
+                Node node = session.getNode(path);
+                for (int i = 0; i < 100; i++) {
+                    node.setProperty("count", count++);
+                    session.save();
+                }
+            } catch (RepositoryException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+    }
+
+    @Override
+    public void runTest() throws Exception {
+        writer.run();
+    }
+
+    @Override
+    public void afterSuite() throws Exception {
+        Session session = loginWriter();
+        session.getNode("/" + ROOT_NODE_NAME).remove();
+        session.save();
+    }
+
+}
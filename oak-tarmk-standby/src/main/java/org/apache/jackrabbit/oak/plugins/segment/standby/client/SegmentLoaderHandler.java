@@ -21,10 +21,16 @@ package org.apache.jackrabbit.oak.plugins.segment.standby.client;
 import static org.apache.jackrabbit.oak.commons.IOUtils.humanReadableByteCount;
 import static org.apache.jackrabbit.oak.plugins.segment.standby.codec.Messages.newGetBlobReq;
 import static org.apache.jackrabbit.oak.plugins.segment.standby.codec.Messages.newGetSegmentReq;
+import static org.apache.jackrabbit.oak.plugins.segment.standby.codec.Messages.newGetSegmentsReq;
 import io.netty.channel.ChannelHandlerContext;
 import io.netty.channel.ChannelInboundHandlerAdapter;
 import io.netty.util.concurrent.EventExecutorGroup;
 
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -146,6 +152,12 @@ public class SegmentLoaderHandler extends ChannelInboundHandlerAdapter
         return getSegment(id);
     }
 
+    @Override
+    public Map<String, Segment> readSegments(Collection<String> ids) {
+        ctx.writeAndFlush(newGetSegmentsReq(this.clientID, ids));
+        return getSegments(ids);
+    }
+
     @Override
     public Blob readBlob(String blobId) {
         ctx.writeAndFlush(newGetBlobReq(this.clientID, blobId));
@@ -163,6 +175,44 @@ public class SegmentLoaderHandler extends ChannelInboundHandlerAdapter
         return getReply(id, SegmentReply.SEGMENT).getSegment();
     }
 
+    private Map<String, Segment> getSegments(Collection<String> ids) {
+        Set<String> pending = new HashSet<String>(ids);
+        Map<String, Segment> segments = new LinkedHashMap<String, Segment>();
+        boolean interrupted = false;
+        try {
+            while (!pending.isEmpty()) {
+                try {
+                    SegmentReply r = segment.poll(readTimeoutMs,
+                            TimeUnit.MILLISECONDS);
+                    if (r == null) {
+                        log.warn("timeout waiting for {}", pending);
+                        if (pending.size() == ids.size()) {
+                            // not a single reply
+                            return null;
+                        }
+                        break;
+                    }
+                    if (r.getType() == SegmentReply.SEGMENT) {
+                        Segment s = r.getSegment();
+                        String id = s.getSegmentId().toString();
+                        if (pending.remove(id)) {
+                            segments.put(id, s);
+                        }
+                    } else if (r.getType() == SegmentReply.MISSING_SEGMENT) {
+                        pending.remove(r.getMissingSegment().toString());
+                    }
+                } catch (InterruptedException ignore) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return segments;
+    }
+
     private Blob getBlob(final String id) {
         return getReply(id, SegmentReply.BLOB).getBlob();
     }
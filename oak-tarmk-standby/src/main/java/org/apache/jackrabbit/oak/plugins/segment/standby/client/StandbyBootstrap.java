@@ -0,0 +1,442 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment.standby.client;
+
+import static org.apache.jackrabbit.oak.plugins.segment.standby.codec.Messages.newGetSegmentsReq;
+import static org.apache.jackrabbit.oak.plugins.segment.standby.codec.Messages.newGetTarIndexReq;
+import static org.apache.jackrabbit.oak.plugins.segment.standby.store.StandbyStore.BATCH_SIZE;
+import io.netty.bootstrap.Bootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.ChannelInitializer;
+import io.netty.channel.ChannelOption;
+import io.netty.channel.ChannelPipeline;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
+import io.netty.handler.codec.compression.SnappyFramedDecoder;
+import io.netty.handler.codec.string.StringEncoder;
+import io.netty.handler.ssl.SslContext;
+import io.netty.util.CharsetUtil;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.jackrabbit.oak.plugins.segment.Segment;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentId;
+import org.apache.jackrabbit.oak.plugins.segment.standby.codec.ByteCounter;
+import org.apache.jackrabbit.oak.plugins.segment.standby.codec.ReplyDecoder;
+import org.apache.jackrabbit.oak.plugins.segment.standby.codec.SegmentReply;
+import org.apache.jackrabbit.oak.plugins.segment.standby.codec.TarIndex;
+import org.apache.jackrabbit.oak.plugins.segment.standby.store.StandbyStore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Initial sync of a standby instance. Copies the segments of the sealed tar
+ * files of the primary that are reachable from its head over a number of
+ * parallel connections. The segments are fetched in batches and persisted
+ * strictly in the reference order given by the primary, so that referenced
+ * segments are always persisted first. A batch that could not be read
+ * completely is retried and finally fails the bootstrap, which is then
+ * resumed by the next run: segments already present in the standby store
+ * are skipped. Once done the store is marked as bootstrapped and the regular
+ * head based sync only has to transfer the segments written to the primary
+ * after its tar index was taken.
+ */
+public class StandbyBootstrap {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(StandbyBootstrap.class);
+
+    /**
+     * Number of requests for the segments of a batch before giving up.
+     */
+    private static final int MAX_ATTEMPTS = 3;
+
+    private final String host;
+    private final int port;
+    private final StandbyStore store;
+    private final SslContext sslContext;
+    private final String clientID;
+    private final AtomicBoolean running;
+    private final int readTimeoutMs;
+    private final int threads;
+    private final ByteCounter rawBytes;
+    private final ByteCounter wireBytes;
+
+    /**
+     * Segments not persisted because some of their references are missing,
+     * left to the regular sync.
+     */
+    private final AtomicLong deferred = new AtomicLong();
+
+    public StandbyBootstrap(String host, int port, StandbyStore store,
+            SslContext sslContext, String clientID, AtomicBoolean running,
+            int readTimeoutMs, int threads, ByteCounter rawBytes,
+            ByteCounter wireBytes) {
+        this.host = host;
+        this.port = port;
+        this.store = store;
+        this.sslContext = sslContext;
+        this.clientID = clientID;
+        this.running = running;
+        this.readTimeoutMs = readTimeoutMs;
+        this.threads = threads;
+        this.rawBytes = rawBytes;
+        this.wireBytes = wireBytes;
+    }
+
+    /**
+     * Runs the bootstrap and marks the store as bootstrapped once all
+     * segments have been copied.
+     *
+     * @return  the number of segments transferred
+     * @throws IllegalStateException  if the tar index or some segments
+     *                                could not be read from the primary
+     */
+    public long run() throws Exception {
+        long t = System.currentTimeMillis();
+        EventLoopGroup group = new NioEventLoopGroup();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<Connection> connections = new ArrayList<Connection>();
+        try {
+            for (int i = 0; i < threads; i++) {
+                connections.add(connect(group));
+            }
+
+            TarIndex index = connections.get(0).readTarIndex();
+            if (index == null) {
+                throw new IllegalStateException(
+                        "Unable to read the tar index of the primary");
+            }
+            List<String> missing = new ArrayList<String>();
+            for (UUID uuid : index.getSegments()) {
+                SegmentId id = store.getTracker().getSegmentId(
+                        uuid.getMostSignificantBits(),
+                        uuid.getLeastSignificantBits());
+                if (!store.containsSegment(id)) {
+                    missing.add(id.toString());
+                }
+            }
+            log.info("Bootstrapping standby with {} of {} segments",
+                    missing.size(), index.getSegmentCount());
+
+            final Batches batches = new Batches(missing);
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (final Connection connection : connections) {
+                results.add(executor.submit(new Callable<Long>() {
+                    @Override
+                    public Long call() throws Exception {
+                        return copy(batches, connection);
+                    }
+                }));
+            }
+
+            long count = 0;
+            for (Future<Long> result : results) {
+                try {
+                    count += result.get();
+                } catch (ExecutionException e) {
+                    throw new IllegalStateException(
+                            "Bootstrapping the standby failed", e.getCause());
+                }
+            }
+            if (!running.get()) {
+                log.info("Bootstrap stopped after {} segments", count);
+                return count;
+            }
+            store.setBootstrapped();
+            log.info("Bootstrapped standby with {} segments in {}ms, {} "
+                    + "segments left to the regular sync", count,
+                    System.currentTimeMillis() - t, deferred.get());
+            return count;
+        } finally {
+            executor.shutdownNow();
+            for (Connection connection : connections) {
+                connection.close();
+            }
+            group.shutdownGracefully(1, 1, TimeUnit.SECONDS)
+                    .syncUninterruptibly();
+        }
+    }
+
+    private long copy(Batches batches, Connection connection) throws Exception {
+        long count = 0;
+        try {
+            for (int i = batches.next(); i >= 0 && running.get(); i = batches.next()) {
+                List<String> batch = batches.get(i);
+                Map<String, Segment> segments = readBatch(connection, batch);
+                if (!batches.awaitTurn(i)) {
+                    break;
+                }
+                for (String id : batch) {
+                    Segment s = segments.get(id);
+                    if (s != null && persist(s)) {
+                        count++;
+                    }
+                }
+                batches.done(i);
+            }
+        } catch (Exception e) {
+            batches.fail();
+            throw e;
+        }
+        return count;
+    }
+
+    /**
+     * Reads all segments of a batch, repeating the request for the ones not
+     * answered in time. Segments reported missing by the primary have been
+     * removed by a cleanup in the meantime and are not part of the result.
+     */
+    private Map<String, Segment> readBatch(Connection connection,
+            List<String> batch) throws InterruptedException {
+        Map<String, Segment> segments = new HashMap<String, Segment>();
+        Set<String> pending = new LinkedHashSet<String>(batch);
+        for (int attempt = 1; !pending.isEmpty(); attempt++) {
+            if (attempt > MAX_ATTEMPTS) {
+                throw new IllegalStateException("Unable to read segments "
+                        + pending + " from the primary");
+            }
+            if (attempt > 1) {
+                log.warn("timeout waiting for {}, retrying", pending);
+            }
+            connection.readSegments(pending, segments);
+        }
+        return segments;
+    }
+
+    /**
+     * Persists a segment unless it references a segment missing in the
+     * store, which would break the invariant that referenced segments are
+     * persisted first. This happens when the referenced segment was removed
+     * from the primary while bootstrapping.
+     */
+    private boolean persist(Segment segment) {
+        SegmentId id = segment.getSegmentId();
+        if (id.isDataSegmentId()) {
+            List<SegmentId> ids = segment.getReferencedIds();
+            // the first one is the segment itself
+            for (SegmentId reference : ids.subList(1, ids.size())) {
+                if (!store.containsSegment(reference)) {
+                    log.debug("not persisting {}, referenced segment {} is "
+                            + "missing", id, reference);
+                    deferred.incrementAndGet();
+                    return false;
+                }
+            }
+        }
+        store.persist(id, segment);
+        return true;
+    }
+
+    private Connection connect(EventLoopGroup group) throws InterruptedException {
+        final ReplyHandler handler = new ReplyHandler();
+
+        Bootstrap b = new Bootstrap();
+        b.group(group);
+        b.channel(NioSocketChannel.class);
+        b.option(ChannelOption.CONNECT_TIMEOUT_MILLIS, readTimeoutMs);
+        b.option(ChannelOption.TCP_NODELAY, true);
+        b.option(ChannelOption.SO_REUSEADDR, true);
+        b.option(ChannelOption.SO_KEEPALIVE, true);
+
+        b.handler(new ChannelInitializer<SocketChannel>() {
+            @Override
+            public void initChannel(SocketChannel ch) throws Exception {
+                ChannelPipeline p = ch.pipeline();
+                if (sslContext != null) {
+                    p.addLast(sslContext.newHandler(ch.alloc()));
+                }
+                p.addLast(wireBytes);
+                p.addLast(new StringEncoder(CharsetUtil.UTF_8));
+                p.addLast(new SnappyFramedDecoder(true));
+                p.addLast(rawBytes);
+                p.addLast(new ReplyDecoder(store));
+                p.addLast(handler);
+            }
+        });
+        Channel channel = b.connect(host, port).sync().channel();
+        return new Connection(channel, handler);
+    }
+
+    /**
+     * Collects the replies received on a connection.
+     */
+    private static class ReplyHandler extends ChannelInboundHandlerAdapter {
+
+        final BlockingQueue<SegmentReply> replies = new LinkedBlockingQueue<SegmentReply>();
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt)
+                throws Exception {
+            if (evt instanceof SegmentReply) {
+                replies.offer((SegmentReply) evt);
+            }
+        }
+
+        @Override
+        public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+                throws Exception {
+            log.error("Exception caught, closing channel.", cause);
+            ctx.close();
+        }
+    }
+
+    private class Connection {
+
+        private final Channel channel;
+
+        private final ReplyHandler handler;
+
+        Connection(Channel channel, ReplyHandler handler) {
+            this.channel = channel;
+            this.handler = handler;
+        }
+
+        TarIndex readTarIndex() throws InterruptedException {
+            channel.writeAndFlush(newGetTarIndexReq(clientID));
+            for (;;) {
+                SegmentReply r = handler.replies.poll(readTimeoutMs,
+                        TimeUnit.MILLISECONDS);
+                if (r == null) {
+                    log.warn("timeout waiting for the tar index");
+                    return null;
+                }
+                if (r.getType() == SegmentReply.TAR_INDEX) {
+                    return r.getTarIndex();
+                }
+            }
+        }
+
+        /**
+         * Requests the pending segments and waits for them until the read
+         * timeout expires. Answered segments are removed from the pending
+         * ones, and added to the given map unless reported missing.
+         */
+        void readSegments(Set<String> pending, Map<String, Segment> segments)
+                throws InterruptedException {
+            channel.writeAndFlush(newGetSegmentsReq(clientID, pending));
+            while (!pending.isEmpty()) {
+                SegmentReply r = handler.replies.poll(readTimeoutMs,
+                        TimeUnit.MILLISECONDS);
+                if (r == null) {
+                    return;
+                }
+                if (r.getType() == SegmentReply.SEGMENT) {
+                    Segment s = r.getSegment();
+                    String id = s.getSegmentId().toString();
+                    if (pending.remove(id)) {
+                        segments.put(id, s);
+                    }
+                } else if (r.getType() == SegmentReply.MISSING_SEGMENT) {
+                    pending.remove(r.getMissingSegment().toString());
+                }
+            }
+        }
+
+        void close() {
+            channel.close().syncUninterruptibly();
+        }
+    }
+
+    /**
+     * The batches of segments to copy, handed out in order to the copying
+     * threads. A batch is only persisted after all batches before it, which
+     * keeps the reference order across batches fetched in parallel.
+     */
+    private class Batches {
+
+        private final List<String> ids;
+
+        private final AtomicInteger next = new AtomicInteger();
+
+        /**
+         * Number of batches persisted so far.
+         */
+        private int persisted;
+
+        private boolean failed;
+
+        Batches(List<String> ids) {
+            this.ids = ids;
+        }
+
+        /**
+         * @return  the number of the next batch to copy, or -1 if none is left
+         */
+        int next() {
+            int i = next.getAndIncrement();
+            return i * BATCH_SIZE < ids.size() ? i : -1;
+        }
+
+        List<String> get(int i) {
+            return ids.subList(i * BATCH_SIZE,
+                    Math.min((i + 1) * BATCH_SIZE, ids.size()));
+        }
+
+        /**
+         * Waits until all batches before the given one are persisted.
+         *
+         * @return  {@code false} if the bootstrap was stopped in the meantime
+         * @throws IllegalStateException  if copying another batch failed
+         */
+        synchronized boolean awaitTurn(int i) throws InterruptedException {
+            while (persisted < i && !failed && running.get()) {
+                wait(100);
+            }
+            if (failed) {
+                throw new IllegalStateException(
+                        "Copying a previous batch failed");
+            }
+            return persisted == i;
+        }
+
+        synchronized void done(int i) {
+            persisted = i + 1;
+            notifyAll();
+        }
+
+        synchronized void fail() {
+            failed = true;
+            notifyAll();
+        }
+
+    }
+
+}
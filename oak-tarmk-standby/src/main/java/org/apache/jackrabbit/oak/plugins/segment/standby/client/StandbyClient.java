@@ -43,6 +43,7 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.apache.jackrabbit.oak.plugins.segment.SegmentStore;
+import org.apache.jackrabbit.oak.plugins.segment.standby.codec.ByteCounter;
 import org.apache.jackrabbit.oak.plugins.segment.standby.codec.RecordIdDecoder;
 import org.apache.jackrabbit.oak.plugins.segment.standby.jmx.ClientStandbyStatusMBean;
 import org.apache.jackrabbit.oak.plugins.segment.standby.jmx.StandbyStatusMBean;
@@ -59,6 +60,14 @@ import javax.net.ssl.SSLException;
 public final class StandbyClient implements ClientStandbyStatusMBean, Runnable, Closeable {
     public static final String CLIENT_ID_PROPERTY_NAME = "standbyID";
 
+    /**
+     * Number of parallel connections used to copy the sealed tar files of
+     * the primary before syncing, until a bootstrap of the store completed.
+     * 0 disables the bootstrap.
+     */
+    static final int BOOTSTRAP_THREADS = Integer.getInteger(
+            "oak.standby.bootstrapThreads", 0);
+
     private static final Logger log = LoggerFactory
             .getLogger(StandbyClient.class);
 
@@ -69,6 +78,8 @@ public final class StandbyClient implements ClientStandbyStatusMBean, Runnable,
 
     private final StandbyStore store;
     private final CommunicationObserver observer;
+    private final ByteCounter rawBytes = new ByteCounter();
+    private final ByteCounter wireBytes = new ByteCounter();
     private StandbyClientHandler handler;
     private EventLoopGroup group;
     private EventExecutorGroup executor;
@@ -175,8 +186,10 @@ public final class StandbyClient implements ClientStandbyStatusMBean, Runnable,
                     // WriteTimeoutHandler & ReadTimeoutHandler
                     p.addLast("readTimeoutHandler", new ReadTimeoutHandler(
                             readTimeoutMs, TimeUnit.MILLISECONDS));
+                    p.addLast(wireBytes);
                     p.addLast(new StringEncoder(CharsetUtil.UTF_8));
                     p.addLast(new SnappyFramedDecoder(true));
+                    p.addLast(rawBytes);
                     p.addLast(new RecordIdDecoder(store));
                     p.addLast(executor, handler);
                 }
@@ -187,6 +200,11 @@ public final class StandbyClient implements ClientStandbyStatusMBean, Runnable,
 
         try {
             syncStartTimestamp = System.currentTimeMillis();
+            if (BOOTSTRAP_THREADS > 0 && !store.isBootstrapped()) {
+                new StandbyBootstrap(host, port, store, sslContext,
+                        observer.getID(), running, readTimeoutMs,
+                        BOOTSTRAP_THREADS, rawBytes, wireBytes).run();
+            }
             // Start the client.
             ChannelFuture f = b.connect(host, port).sync();
             // Wait until the connection is closed.
@@ -247,6 +265,16 @@ public final class StandbyClient implements ClientStandbyStatusMBean, Runnable,
         return this.state;
     }
 
+    @Override
+    public long getTransferredRawBytes() {
+        return rawBytes.getReadBytes();
+    }
+
+    @Override
+    public long getTransferredWireBytes() {
+        return wireBytes.getReadBytes();
+    }
+
     @Override
     public int getFailedRequests() {
         return this.failedRequests;
@@ -23,10 +23,15 @@ public class Messages {
     public static final byte HEADER_RECORD = 0x00;
     public static final byte HEADER_SEGMENT = 0x01;
     public static final byte HEADER_BLOB = 0x02;
+    public static final byte HEADER_TAR_INDEX = 0x03;
+    public static final byte HEADER_MISSING_SEGMENT = 0x04;
 
     public static final String GET_HEAD = "h";
     public static final String GET_SEGMENT = "s.";
     public static final String GET_BLOB = "b.";
+    public static final String GET_TAR_INDEX = "ti";
+    public static final String GET_SEGMENTS = "ss.";
+    public static final String SEGMENT_ID_SEPARATOR = ",";
 
     private static final String MAGIC = "Standby-CMD@";
     private static final String SEPARATOR = ":";
@@ -43,6 +48,25 @@ public class Messages {
         return newRequest(clientID, GET_SEGMENT + sid);
     }
 
+    /**
+     * Creates a request for a batch of segments. The server streams all
+     * segments it has back to the client in a single round-trip, and a
+     * missing segment message for each of the ones it doesn't have.
+     */
+    public static String newGetSegmentsReq(String clientID, Iterable<String> sids) {
+        StringBuilder body = new StringBuilder(GET_SEGMENTS);
+        String separator = "";
+        for (String sid : sids) {
+            body.append(separator).append(sid);
+            separator = SEGMENT_ID_SEPARATOR;
+        }
+        return newRequest(clientID, body.toString());
+    }
+
+    public static String newGetTarIndexReq(String clientID) {
+        return newRequest(clientID, GET_TAR_INDEX);
+    }
+
     public static String newGetBlobReq(String clientID, String blobId) {
         return newRequest(clientID, GET_BLOB + blobId);
     }
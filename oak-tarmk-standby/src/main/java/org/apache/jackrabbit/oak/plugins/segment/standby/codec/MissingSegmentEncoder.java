@@ -0,0 +1,52 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.jackrabbit.oak.plugins.segment.standby.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToByteEncoder;
+
+import java.util.UUID;
+
+/**
+ * Tells the client that a segment requested with a batched request is not
+ * available on the primary, so that it doesn't wait for it.
+ */
+public class MissingSegmentEncoder extends MessageToByteEncoder<UUID> {
+
+    /**
+     * A missing segment message is composed of:
+     *
+     * <pre>
+     *  - (4 bytes) the message length
+     *  - (1 byte ) the message type
+     *  - (8 bytes) segment id most significant bits
+     *  - (8 bytes) segment id least significant bits
+     * </pre>
+     */
+    @Override
+    protected void encode(ChannelHandlerContext ctx, UUID id, ByteBuf out)
+            throws Exception {
+        out.writeInt(17);
+        out.writeByte(Messages.HEADER_MISSING_SEGMENT);
+        out.writeLong(id.getMostSignificantBits());
+        out.writeLong(id.getLeastSignificantBits());
+    }
+}
@@ -41,7 +41,7 @@ import com.google.common.hash.Hashing;
 public class ReplyDecoder extends ReplayingDecoder<DecodingState> {
 
     public enum DecodingState {
-        HEADER, SEGMENT, BLOB
+        HEADER, SEGMENT, BLOB, TAR_INDEX, MISSING_SEGMENT
     }
 
     private static final Logger log = LoggerFactory
@@ -78,6 +78,12 @@ public class ReplyDecoder extends ReplayingDecoder<DecodingState> {
             case Messages.HEADER_BLOB:
                 checkpoint(DecodingState.BLOB);
                 break;
+            case Messages.HEADER_TAR_INDEX:
+                checkpoint(DecodingState.TAR_INDEX);
+                break;
+            case Messages.HEADER_MISSING_SEGMENT:
+                checkpoint(DecodingState.MISSING_SEGMENT);
+                break;
             default:
                 throw new Exception("Unknown type: " + type);
             }
@@ -104,6 +110,25 @@ public class ReplyDecoder extends ReplayingDecoder<DecodingState> {
             return;
         }
 
+        case TAR_INDEX: {
+            TarIndex index = decodeTarIndex(in, length);
+            if (index != null) {
+                out.add(SegmentReply.empty());
+                ctx.fireUserEventTriggered(new SegmentReply(index));
+                reset();
+            }
+            return;
+        }
+
+        case MISSING_SEGMENT: {
+            UUID id = new UUID(in.readLong(), in.readLong());
+            log.debug("segment {} is missing on the primary", id);
+            out.add(SegmentReply.empty());
+            ctx.fireUserEventTriggered(new SegmentReply(id));
+            reset();
+            return;
+        }
+
         default:
             throw new Exception("Unknown decoding state: " + state());
         }
@@ -138,6 +163,22 @@ public class ReplyDecoder extends ReplayingDecoder<DecodingState> {
         return null;
     }
 
+    private TarIndex decodeTarIndex(ByteBuf in, int len) {
+        long hash = in.readLong();
+        byte[] index = new byte[len - 9];
+        in.readBytes(index);
+
+        Hasher hasher = Hashing.murmur3_32().newHasher();
+        long check = hasher.putBytes(index).hash().padToLong();
+        if (hash == check) {
+            TarIndex t = TarIndex.fromBytes(index);
+            log.debug("received tar index with {} segments", t.getSegmentCount());
+            return t;
+        }
+        log.debug("received corrupted tar index, ignoring");
+        return null;
+    }
+
     private IdArrayBasedBlob decodeBlob(ByteBuf in, int length, byte type) {
         int inIdLen = in.readInt();
         byte[] bid = new byte[inIdLen];
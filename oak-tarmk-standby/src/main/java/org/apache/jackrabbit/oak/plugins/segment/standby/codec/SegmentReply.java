@@ -16,12 +16,16 @@
  */
 package org.apache.jackrabbit.oak.plugins.segment.standby.codec;
 
+import java.util.UUID;
+
 import org.apache.jackrabbit.oak.plugins.segment.Segment;
 
 public class SegmentReply {
 
     public static final int SEGMENT = 0;
     public static final int BLOB = 1;
+    public static final int TAR_INDEX = 2;
+    public static final int MISSING_SEGMENT = 3;
 
     public static SegmentReply empty() {
         return new SegmentReply();
@@ -33,22 +37,48 @@ public class SegmentReply {
 
     private final IdArrayBasedBlob blob;
 
+    private final TarIndex tarIndex;
+
+    private final UUID missingSegment;
+
     public SegmentReply(Segment segment) {
         this.type = SEGMENT;
         this.segment = segment;
         this.blob = null;
+        this.tarIndex = null;
+        this.missingSegment = null;
     }
 
     public SegmentReply(IdArrayBasedBlob blob) {
         this.type = BLOB;
         this.segment = null;
         this.blob = blob;
+        this.tarIndex = null;
+        this.missingSegment = null;
+    }
+
+    public SegmentReply(TarIndex tarIndex) {
+        this.type = TAR_INDEX;
+        this.segment = null;
+        this.blob = null;
+        this.tarIndex = tarIndex;
+        this.missingSegment = null;
+    }
+
+    public SegmentReply(UUID missingSegment) {
+        this.type = MISSING_SEGMENT;
+        this.segment = null;
+        this.blob = null;
+        this.tarIndex = null;
+        this.missingSegment = missingSegment;
     }
 
     private SegmentReply() {
         this.type = -1;
         this.segment = null;
         this.blob = null;
+        this.tarIndex = null;
+        this.missingSegment = null;
     }
 
     public Segment getSegment() {
@@ -59,6 +89,14 @@ public class SegmentReply {
         return blob;
     }
 
+    public TarIndex getTarIndex() {
+        return tarIndex;
+    }
+
+    public UUID getMissingSegment() {
+        return missingSegment;
+    }
+
     public int getType() {
         return type;
     }
@@ -0,0 +1,80 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.jackrabbit.oak.plugins.segment.standby.codec;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * The segments of the sealed tar files of the primary that are reachable
+ * from its head, ordered so that every segment comes after the segments it
+ * references. Persisting them in this order keeps the invariant of the
+ * standby store that referenced segments are always persisted first.
+ */
+public class TarIndex {
+
+    private final List<UUID> segments;
+
+    private TarIndex(List<UUID> segments) {
+        this.segments = segments;
+    }
+
+    /**
+     * Creates a tar index from segment ids given in reference order.
+     */
+    public static TarIndex of(List<UUID> segments) {
+        return new TarIndex(new ArrayList<UUID>(segments));
+    }
+
+    public static TarIndex fromBytes(byte[] data) {
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        int count = buffer.getInt();
+        List<UUID> segments = new ArrayList<UUID>(count);
+        for (int i = 0; i < count; i++) {
+            segments.add(new UUID(buffer.getLong(), buffer.getLong()));
+        }
+        return new TarIndex(segments);
+    }
+
+    public byte[] toBytes() {
+        ByteBuffer buffer = ByteBuffer.allocate(4 + 16 * segments.size());
+        buffer.putInt(segments.size());
+        for (UUID uuid : segments) {
+            buffer.putLong(uuid.getMostSignificantBits());
+            buffer.putLong(uuid.getLeastSignificantBits());
+        }
+        return buffer.array();
+    }
+
+    /**
+     * @return  the segment ids, referenced segments first
+     */
+    public List<UUID> getSegments() {
+        return Collections.unmodifiableList(segments);
+    }
+
+    public int getSegmentCount() {
+        return segments.size();
+    }
+
+}
@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package org.apache.jackrabbit.oak.plugins.segment.standby.codec;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.handler.codec.MessageToByteEncoder;
+
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+public class TarIndexEncoder extends MessageToByteEncoder<TarIndex> {
+
+    /**
+     * A tar index message is composed of:
+     *
+     * <pre>
+     *  - (4 bytes) the message length
+     *  - (1 byte ) the message type
+     *  - (8 bytes) checksum hash
+     *  - the serialized {@link TarIndex}
+     * </pre>
+     */
+    @Override
+    protected void encode(ChannelHandlerContext ctx, TarIndex index,
+            ByteBuf out) throws Exception {
+        byte[] data = index.toBytes();
+
+        Hasher hasher = Hashing.murmur3_32().newHasher();
+        long hash = hasher.putBytes(data).hash().padToLong();
+
+        out.writeInt(data.length + 9);
+        out.writeByte(Messages.HEADER_TAR_INDEX);
+        out.writeLong(hash);
+        out.writeBytes(data);
+    }
+}
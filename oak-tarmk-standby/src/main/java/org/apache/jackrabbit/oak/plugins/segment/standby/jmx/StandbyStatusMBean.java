@@ -39,6 +39,12 @@ public interface StandbyStatusMBean {
     @Description("instance is running")
     boolean isRunning();
 
+    @Description("number of uncompressed bytes transferred")
+    long getTransferredRawBytes();
+
+    @Description("number of bytes transferred over the wire")
+    long getTransferredWireBytes();
+
     @Description("stop the communication")
     void stop();
 
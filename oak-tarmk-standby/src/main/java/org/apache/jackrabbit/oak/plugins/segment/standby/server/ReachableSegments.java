@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment.standby.server;
+
+import static com.google.common.collect.Lists.newArrayList;
+import static com.google.common.collect.Maps.newHashMap;
+import static com.google.common.collect.Sets.newHashSet;
+import static java.util.Collections.emptyList;
+import static org.apache.jackrabbit.oak.plugins.segment.SegmentId.isDataSegmentId;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import org.apache.jackrabbit.oak.plugins.segment.SegmentId;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentNotFoundException;
+import org.apache.jackrabbit.oak.plugins.segment.file.FileStore;
+import org.apache.jackrabbit.oak.plugins.segment.standby.codec.TarIndex;
+
+/**
+ * Collects the segments of the sealed tar files of a store that are
+ * reachable from its head, in reference order. Segments not reachable from
+ * the head are garbage to be removed by the next cleanup and are skipped.
+ */
+final class ReachableSegments {
+
+    private ReachableSegments() {
+    }
+
+    static TarIndex collect(FileStore store) throws IOException {
+        Set<UUID> sealed = newHashSet();
+        Map<UUID, List<UUID>> graph = newHashMap();
+        for (Map.Entry<String, Set<UUID>> e : store.getTarReaderIndex().entrySet()) {
+            sealed.addAll(e.getValue());
+            graph.putAll(store.getTarGraph(new File(e.getKey()).getName()));
+        }
+
+        // iterative post order traversal, as the reference chains can be
+        // too long for a recursive one
+        SegmentId head = store.getHead().getRecordId().getSegmentId();
+        UUID root = new UUID(head.getMostSignificantBits(),
+                head.getLeastSignificantBits());
+        List<UUID> segments = newArrayList();
+        Set<UUID> visited = newHashSet();
+        Deque<UUID> path = new ArrayDeque<UUID>();
+        Deque<Iterator<UUID>> references = new ArrayDeque<Iterator<UUID>>();
+        visited.add(root);
+        path.push(root);
+        references.push(getReferences(store, graph, root).iterator());
+        while (!path.isEmpty()) {
+            Iterator<UUID> iterator = references.peek();
+            if (iterator.hasNext()) {
+                UUID next = iterator.next();
+                if (visited.add(next)) {
+                    path.push(next);
+                    references.push(getReferences(store, graph, next).iterator());
+                }
+            } else {
+                references.pop();
+                UUID done = path.pop();
+                if (sealed.contains(done)) {
+                    segments.add(done);
+                }
+            }
+        }
+        return TarIndex.of(segments);
+    }
+
+    private static List<UUID> getReferences(FileStore store,
+            Map<UUID, List<UUID>> graph, UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        if (!isDataSegmentId(lsb)) {
+            return emptyList();
+        }
+        List<UUID> references = graph.get(uuid);
+        if (references != null) {
+            return references;
+        }
+
+        // not in a sealed tar file or without a graph entry
+        references = newArrayList();
+        try {
+            List<SegmentId> ids = store.readSegment(
+                    store.getTracker().getSegmentId(msb, lsb)).getReferencedIds();
+            // the first one is the segment itself
+            for (SegmentId id : ids.subList(1, ids.size())) {
+                references.add(new UUID(id.getMostSignificantBits(),
+                        id.getLeastSignificantBits()));
+            }
+        } catch (SegmentNotFoundException e) {
+            // already removed, nothing to copy
+        }
+        return references;
+    }
+
+}
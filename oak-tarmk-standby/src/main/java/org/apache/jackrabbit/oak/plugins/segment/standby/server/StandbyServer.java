@@ -43,8 +43,11 @@ import java.util.concurrent.TimeUnit;
 
 import org.apache.jackrabbit.oak.plugins.segment.SegmentStore;
 import org.apache.jackrabbit.oak.plugins.segment.standby.codec.BlobEncoder;
+import org.apache.jackrabbit.oak.plugins.segment.standby.codec.ByteCounter;
+import org.apache.jackrabbit.oak.plugins.segment.standby.codec.MissingSegmentEncoder;
 import org.apache.jackrabbit.oak.plugins.segment.standby.codec.RecordIdEncoder;
 import org.apache.jackrabbit.oak.plugins.segment.standby.codec.SegmentEncoder;
+import org.apache.jackrabbit.oak.plugins.segment.standby.codec.TarIndexEncoder;
 import org.apache.jackrabbit.oak.plugins.segment.standby.jmx.StandbyStatusMBean;
 import org.apache.jackrabbit.oak.plugins.segment.standby.store.CommunicationObserver;
 import org.slf4j.Logger;
@@ -68,6 +71,8 @@ public class StandbyServer implements StandbyStatusMBean, Closeable {
     private final ServerBootstrap b;
     private final CommunicationObserver observer;
     private final StandbyServerHandler handler;
+    private final ByteCounter rawBytes = new ByteCounter();
+    private final ByteCounter wireBytes = new ByteCounter();
     private SslContext sslContext;
     private ChannelFuture channelFuture;
     private boolean running;
@@ -126,12 +131,16 @@ public class StandbyServer implements StandbyStatusMBean, Closeable {
                 if (sslContext != null) {
                     p.addLast(sslContext.newHandler(ch.alloc()));
                 }
+                p.addLast(wireBytes);
                 p.addLast(new LineBasedFrameDecoder(8192));
                 p.addLast(new StringDecoder(CharsetUtil.UTF_8));
                 p.addLast(new SnappyFramedEncoder());
+                p.addLast(rawBytes);
                 p.addLast(new RecordIdEncoder());
                 p.addLast(new SegmentEncoder());
                 p.addLast(new BlobEncoder());
+                p.addLast(new TarIndexEncoder());
+                p.addLast(new MissingSegmentEncoder());
                 p.addLast(handler);
             }
         });
@@ -249,4 +258,14 @@ public class StandbyServer implements StandbyStatusMBean, Closeable {
     public String getStatus() {
         return handler == null ? STATUS_INITIALIZING : handler.state;
     }
+
+    @Override
+    public long getTransferredRawBytes() {
+        return rawBytes.getWrittenBytes();
+    }
+
+    @Override
+    public long getTransferredWireBytes() {
+        return wireBytes.getWrittenBytes();
+    }
 }
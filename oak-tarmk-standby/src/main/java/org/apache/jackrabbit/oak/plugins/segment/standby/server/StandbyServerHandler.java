@@ -34,7 +34,9 @@ import org.apache.jackrabbit.oak.plugins.segment.RecordId;
 import org.apache.jackrabbit.oak.plugins.segment.Segment;
 import org.apache.jackrabbit.oak.plugins.segment.SegmentId;
 import org.apache.jackrabbit.oak.plugins.segment.SegmentStore;
+import org.apache.jackrabbit.oak.plugins.segment.file.FileStore;
 import org.apache.jackrabbit.oak.plugins.segment.standby.codec.Messages;
+import org.apache.jackrabbit.oak.plugins.segment.standby.codec.TarIndex;
 import org.apache.jackrabbit.oak.plugins.segment.standby.store.CommunicationObserver;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -63,6 +65,41 @@ public class StandbyServerHandler extends SimpleChannelInboundHandler<String> {
         return null;
     }
 
+    private Segment readSegment(String sid) throws InterruptedException {
+        UUID uuid = UUID.fromString(sid);
+        Segment s = null;
+        for (int i = 0; i < 10; i++) {
+            try {
+                s = store.readSegment(new SegmentId(store.getTracker(),
+                        uuid.getMostSignificantBits(), uuid
+                        .getLeastSignificantBits()));
+            } catch (IllegalStateException e) {
+                // segment not found
+                log.debug("waiting for segment. Got exception: " + e.getMessage());
+                TimeUnit.MILLISECONDS.sleep(2000);
+            }
+            if (s != null) break;
+        }
+        return s;
+    }
+
+    /**
+     * Reads a segment of a batched request, without waiting for it to
+     * become available. This runs on the event loop, where waiting would
+     * stall all the other requests of the channel.
+     */
+    private Segment readSegmentNow(UUID uuid) {
+        try {
+            return store.readSegment(new SegmentId(store.getTracker(),
+                    uuid.getMostSignificantBits(),
+                    uuid.getLeastSignificantBits()));
+        } catch (IllegalStateException e) {
+            // segment not found
+            log.debug("segment {} not found: {}", uuid, e.getMessage());
+            return null;
+        }
+    }
+
     private static long ipToLong(InetAddress ip) {
         byte[] octets = ip.getAddress();
         long result = 0;
@@ -144,26 +181,39 @@ public class StandbyServerHandler extends SimpleChannelInboundHandler<String> {
                     ctx.writeAndFlush(r);
                     return;
                 }
+            } else if (Messages.GET_TAR_INDEX.equalsIgnoreCase(request)) {
+                if (store instanceof FileStore) {
+                    TarIndex index = ReachableSegments.collect((FileStore) store);
+                    log.debug("sending tar index with {} segments to {}", index
+                            .getSegmentCount(), client);
+                    ctx.writeAndFlush(index);
+                    return;
+                }
+                log.warn("Store is not a FileStore, can't send tar index");
+            } else if (request.startsWith(Messages.GET_SEGMENTS)) {
+                String sids = request.substring(Messages.GET_SEGMENTS.length());
+                log.debug("request segments {}", sids);
+                int sent = 0;
+                for (String sid : sids.split(Messages.SEGMENT_ID_SEPARATOR)) {
+                    UUID uuid = UUID.fromString(sid);
+                    Segment s = readSegmentNow(uuid);
+                    // stream the whole batch, flushed once at the end. The
+                    // client retries the missing segments
+                    if (s != null) {
+                        ctx.write(s);
+                        observer.didSendSegmentBytes(clientID, s.size());
+                        sent++;
+                    } else {
+                        ctx.write(uuid);
+                    }
+                }
+                log.debug("sending {} segments to {}", sent, client);
+                ctx.flush();
+                return;
             } else if (request.startsWith(Messages.GET_SEGMENT)) {
                 String sid = request.substring(Messages.GET_SEGMENT.length());
                 log.debug("request segment id {}", sid);
-                UUID uuid = UUID.fromString(sid);
-
-                Segment s = null;
-
-                for (int i = 0; i < 10; i++) {
-                    try {
-                        s = store.readSegment(new SegmentId(store.getTracker(),
-                                uuid.getMostSignificantBits(), uuid
-                                .getLeastSignificantBits()));
-                    } catch (IllegalStateException e) {
-                        // segment not found
-                        log.debug("waiting for segment. Got exception: " + e.getMessage());
-                        TimeUnit.MILLISECONDS.sleep(2000);
-                    }
-                    if (s != null) break;
-                }
-
+                Segment s = readSegment(sid);
                 if (s != null) {
                     log.debug("sending segment " + sid + " to " + client);
                     ctx.writeAndFlush(s);
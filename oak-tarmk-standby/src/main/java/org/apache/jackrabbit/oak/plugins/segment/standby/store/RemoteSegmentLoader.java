@@ -16,6 +16,9 @@
  */
 package org.apache.jackrabbit.oak.plugins.segment.standby.store;
 
+import java.util.Collection;
+import java.util.Map;
+
 import org.apache.jackrabbit.oak.api.Blob;
 import org.apache.jackrabbit.oak.plugins.segment.Segment;
 
@@ -23,6 +26,20 @@ public interface RemoteSegmentLoader {
 
     Segment readSegment(String id);
 
+    /**
+     * Reads a batch of segments in a single round-trip.
+     *
+     * @param ids  the segment ids to read
+     * @return  the segments that could be read, keyed by id. Segments the
+     *          primary doesn't have or that did not arrive in time are
+     *          missing from the result. The primary doesn't wait for
+     *          missing segments, so these should be retried with
+     *          {@link #readSegment(String)}. {@code null} if the primary
+     *          did not answer at all, as primaries that don't support
+     *          batched reads ignore the request.
+     */
+    Map<String, Segment> readSegments(Collection<String> ids);
+
     Blob readBlob(String blobId);
 
     void close();
@@ -19,11 +19,14 @@ package org.apache.jackrabbit.oak.plugins.segment.standby.store;
 import static org.apache.jackrabbit.oak.commons.IOUtils.humanReadableByteCount;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayDeque;
+import java.util.Collections;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -43,10 +46,38 @@ public class StandbyStore implements SegmentStore {
 
     private static final Logger log = LoggerFactory.getLogger(StandbyStore.class);
 
+    /**
+     * Maximum number of segments transferred per round-trip. This bounds both
+     * the number of segments in flight and the length of the request line,
+     * which the primary limits to 8k characters.
+     */
+    public static final int BATCH_SIZE = Math.min(128,
+            Integer.getInteger("oak.standby.batchSize", 64));
+
     private final SegmentTracker tracker = new SegmentTracker(this);
 
     private final SegmentStore delegate;
 
+    /**
+     * Whether to read segments in batches. Cleared for the lifetime of this
+     * store once the primary did not answer a batch at all, which is the
+     * case for primaries that don't support batched reads. Otherwise every
+     * batch would wait for the read timeout before falling back to single
+     * segment reads.
+     */
+    private volatile boolean batchReads = BATCH_SIZE > 1;
+
+    /**
+     * Name of the file marking a completed bootstrap, kept in the directory
+     * of the file store so that it survives restarts of the standby.
+     */
+    private static final String BOOTSTRAP_MARKER = "standby.bootstrapped";
+
+    /**
+     * Whether the bootstrap completed, for stores not backed by files.
+     */
+    private volatile boolean bootstrapped;
+
     private RemoteSegmentLoader loader;
 
     public StandbyStore(SegmentStore delegate) {
@@ -98,6 +129,37 @@ public class StandbyStore implements SegmentStore {
                     cacheWeight -= s.size();
                     cacheOps++;
                     logRefs = false;
+                } else if (batchReads) {
+                    // fetch the segment together with the next ones pending
+                    // in the queue, keeping the prefetched ones in the cache
+                    Map<String, SegmentId> batch = nextBatch(id, ids,
+                            persisted, cache);
+                    log.debug("transferring segments {}", batch.keySet());
+                    Map<String, Segment> segments =
+                            loader.readSegments(batch.keySet());
+                    if (segments == null) {
+                        log.warn("The primary did not answer a batched read, "
+                                + "falling back to reading single segments");
+                        batchReads = false;
+                        segments = Collections.emptyMap();
+                    }
+                    s = null;
+                    for (Map.Entry<String, Segment> e : segments.entrySet()) {
+                        SegmentId bid = batch.get(e.getKey());
+                        if (id.equals(bid)) {
+                            s = e.getValue();
+                        } else {
+                            cache.put(bid, e.getValue());
+                            cacheWeight += e.getValue().size();
+                            maxWeight = Math.max(maxWeight, cacheWeight);
+                            maxKeys = Math.max(maxKeys, cache.size());
+                        }
+                    }
+                    if (s == null) {
+                        // not available on the primary yet, retry on its own
+                        log.debug("transferring segment {}", id);
+                        s = loader.readSegment(id.toString());
+                    }
                 } else {
                     log.debug("transferring segment {}", id);
                     s = loader.readSegment(id.toString());
@@ -174,6 +236,23 @@ public class StandbyStore implements SegmentStore {
         return delegate.readSegment(sid);
     }
 
+    private Map<String, SegmentId> nextBatch(SegmentId id,
+            Iterable<SegmentId> ids, Set<SegmentId> persisted,
+            Map<SegmentId, Segment> cache) {
+        Map<String, SegmentId> batch = new LinkedHashMap<String, SegmentId>();
+        batch.put(id.toString(), id);
+        for (SegmentId next : ids) {
+            if (batch.size() >= BATCH_SIZE) {
+                break;
+            }
+            if (!persisted.contains(next) && !cache.containsKey(next)
+                    && !delegate.containsSegment(next)) {
+                batch.put(next.toString(), next);
+            }
+        }
+        return batch;
+    }
+
     public void persist(SegmentId in, Segment s) {
         SegmentId id = delegate.getTracker().getSegmentId(
                 in.getMostSignificantBits(), in.getLeastSignificantBits());
@@ -229,6 +308,39 @@ public class StandbyStore implements SegmentStore {
         delegate.gc();
     }
 
+    /**
+     * @return  {@code true} if a bootstrap of this store completed
+     */
+    public boolean isBootstrapped() {
+        if (delegate instanceof FileStore) {
+            return getBootstrapMarker((FileStore) delegate).exists();
+        }
+        return bootstrapped;
+    }
+
+    /**
+     * Marks the bootstrap of this store as completed, after flushing the
+     * segments copied by it.
+     */
+    public void setBootstrapped() {
+        if (delegate instanceof FileStore) {
+            FileStore store = (FileStore) delegate;
+            try {
+                store.flush();
+                getBootstrapMarker(store).createNewFile();
+            } catch (IOException e) {
+                throw new IllegalStateException(
+                        "Unable to mark the store as bootstrapped", e);
+            }
+        } else {
+            bootstrapped = true;
+        }
+    }
+
+    private static File getBootstrapMarker(FileStore store) {
+        return new File(store.getDirectory(), BOOTSTRAP_MARKER);
+    }
+
     public long size() {
         if (delegate instanceof FileStore) {
             return ((FileStore) delegate).size();
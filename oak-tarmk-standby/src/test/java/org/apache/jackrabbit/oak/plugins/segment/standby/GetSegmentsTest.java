@@ -0,0 +1,119 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment.standby;
+
+import static java.util.Arrays.asList;
+import static org.apache.jackrabbit.oak.plugins.segment.standby.codec.Messages.newGetSegmentsReq;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.handler.codec.compression.SnappyFramedDecoder;
+import io.netty.util.CharsetUtil;
+
+import java.io.InputStream;
+import java.net.Socket;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.apache.jackrabbit.oak.plugins.segment.SegmentId;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentNodeStore;
+import org.apache.jackrabbit.oak.plugins.segment.file.FileStore;
+import org.apache.jackrabbit.oak.plugins.segment.standby.codec.ReplyDecoder;
+import org.apache.jackrabbit.oak.plugins.segment.standby.codec.SegmentReply;
+import org.apache.jackrabbit.oak.plugins.segment.standby.server.StandbyServer;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.EmptyHook;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class GetSegmentsTest extends TestBase {
+
+    @Before
+    public void setUp() throws Exception {
+        setUpServerAndClient();
+    }
+
+    @After
+    public void after() {
+        closeServerAndClient();
+    }
+
+    @Test
+    public void testMissingSegment() throws Exception {
+        FileStore primary = getPrimary();
+        NodeStore store = new SegmentNodeStore(primary);
+        NodeBuilder builder = store.getRoot().builder();
+        builder.child("test").setProperty("p", "v");
+        store.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+        primary.flush();
+
+        SegmentId existing = primary.getHead().getRecordId().getSegmentId();
+        UUID missing = UUID.randomUUID();
+
+        StandbyServer server = new StandbyServer(getPort(), primary);
+        server.start();
+        final List<SegmentReply> replies = new CopyOnWriteArrayList<SegmentReply>();
+        EmbeddedChannel decoder = new EmbeddedChannel(
+                new SnappyFramedDecoder(true), new ReplyDecoder(getSecondary()),
+                new ChannelInboundHandlerAdapter() {
+                    @Override
+                    public void userEventTriggered(ChannelHandlerContext ctx,
+                            Object evt) {
+                        if (evt instanceof SegmentReply) {
+                            replies.add((SegmentReply) evt);
+                        }
+                    }
+                });
+        Socket socket = new Socket(LOCALHOST, getPort());
+        try {
+            long t = System.currentTimeMillis();
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write(newGetSegmentsReq("test",
+                    asList(missing.toString(), existing.toString()))
+                    .getBytes(CharsetUtil.UTF_8));
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[4096];
+            while (replies.size() < 2) {
+                int n = in.read(buffer);
+                assertTrue("connection closed", n > 0);
+                decoder.writeInbound(Unpooled.copiedBuffer(buffer, 0, n));
+            }
+
+            // replied in request order, without waiting for the missing one
+            assertTrue(System.currentTimeMillis() - t < 2000);
+            assertEquals(SegmentReply.MISSING_SEGMENT, replies.get(0).getType());
+            assertEquals(missing, replies.get(0).getMissingSegment());
+            assertEquals(SegmentReply.SEGMENT, replies.get(1).getType());
+            assertEquals(existing.toString(),
+                    replies.get(1).getSegment().getSegmentId().toString());
+        } finally {
+            socket.close();
+            decoder.finish();
+            server.close();
+        }
+    }
+
+}
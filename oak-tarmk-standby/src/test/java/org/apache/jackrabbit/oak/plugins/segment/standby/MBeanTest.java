@@ -100,6 +100,8 @@ public class MBeanTest extends TestBase {
 
             assertEquals("0", jmxServer.getAttribute(status, "FailedRequests").toString());
             assertEquals("-1", jmxServer.getAttribute(status, "SecondsSinceLastSuccess").toString());
+            assertEquals("0", jmxServer.getAttribute(status, "TransferredRawBytes").toString());
+            assertEquals("0", jmxServer.getAttribute(status, "TransferredWireBytes").toString());
 
             assertEquals(StandbyStatusMBean.STATUS_INITIALIZING, jmxServer.getAttribute(status, "Status"));
 
@@ -0,0 +1,175 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment.standby;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.jackrabbit.oak.plugins.segment.Segment;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentId;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentNodeStore;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentWriter;
+import org.apache.jackrabbit.oak.plugins.segment.file.FileStore;
+import org.apache.jackrabbit.oak.plugins.segment.standby.client.StandbyBootstrap;
+import org.apache.jackrabbit.oak.plugins.segment.standby.codec.ByteCounter;
+import org.apache.jackrabbit.oak.plugins.segment.standby.server.StandbyServer;
+import org.apache.jackrabbit.oak.plugins.segment.standby.store.StandbyStore;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.EmptyHook;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.apache.jackrabbit.oak.spi.state.NodeStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class StandbyBootstrapTest extends TestBase {
+
+    @Before
+    public void setUp() throws Exception {
+        setUpServerAndClient();
+    }
+
+    @After
+    public void after() {
+        closeServerAndClient();
+    }
+
+    @Test
+    public void testBootstrap() throws Exception {
+        FileStore primary = getPrimary();
+        FileStore secondary = getSecondary();
+
+        // spread the content over several tar files
+        NodeStore store = new SegmentNodeStore(primary);
+        Random random = new Random(42);
+        for (int i = 0; i < 4; i++) {
+            NodeBuilder builder = store.getRoot().builder();
+            byte[] data = new byte[512 * 1024];
+            random.nextBytes(data);
+            builder.child("n" + i).setProperty("blob",
+                    store.createBlob(new ByteArrayInputStream(data)));
+            store.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+            primary.flush();
+            if (i == 0) {
+                // a stream in segments of its own that nothing references
+                random.nextBytes(data);
+                SegmentWriter writer = primary.getTracker().getWriter();
+                writer.writeStream(new ByteArrayInputStream(data));
+                writer.flush();
+            }
+        }
+        int segments = 0;
+        for (Set<UUID> uuids : primary.getTarReaderIndex().values()) {
+            segments += uuids.size();
+        }
+        assertTrue(primary.getTarReaderIndex().size() > 1);
+
+        StandbyServer server = new StandbyServer(getPort(), primary);
+        server.start();
+        try {
+            OrderCheckingStore standby = new OrderCheckingStore(secondary);
+            assertFalse(standby.isBootstrapped());
+            ByteCounter rawBytes = new ByteCounter();
+            ByteCounter wireBytes = new ByteCounter();
+            long count = newBootstrap(standby, rawBytes, wireBytes).run();
+            assertEquals(standby.written, count);
+            assertEquals(0, standby.unordered);
+            assertTrue(standby.isBootstrapped());
+            assertTrue(rawBytes.getReadBytes() > 0);
+            assertTrue(wireBytes.getReadBytes() > 0);
+
+            // the segments of the unreferenced stream are skipped
+            assertTrue(count > 0);
+            assertTrue(count < segments);
+
+            // the marker is kept in the store, and segments already present
+            // are skipped
+            standby = new OrderCheckingStore(secondary);
+            assertTrue(standby.isBootstrapped());
+            assertEquals(0, newBootstrap(standby, rawBytes, wireBytes).run());
+        } finally {
+            server.close();
+        }
+    }
+
+    @Test
+    public void testBootstrapWithoutPrimary() throws Exception {
+        StandbyStore standby = new StandbyStore(getSecondary());
+        try {
+            newBootstrap(standby, new ByteCounter(), new ByteCounter()).run();
+            fail("Expected the bootstrap to fail");
+        } catch (Exception e) {
+            // expected
+        }
+        assertFalse(standby.isBootstrapped());
+    }
+
+    private StandbyBootstrap newBootstrap(StandbyStore standby,
+            ByteCounter rawBytes, ByteCounter wireBytes) {
+        return new StandbyBootstrap(LOCALHOST, getPort(), standby, null,
+                "bootstrap", new AtomicBoolean(true), 10000, 2, rawBytes,
+                wireBytes);
+    }
+
+    /**
+     * Counts the persisted segments, and the ones persisted before one of
+     * the segments they reference.
+     */
+    private static class OrderCheckingStore extends StandbyStore {
+
+        int written;
+
+        int unordered;
+
+        OrderCheckingStore(FileStore delegate) {
+            super(delegate);
+        }
+
+        @Override
+        public void writeSegment(SegmentId id, byte[] bytes, int offset,
+                int length) {
+            written++;
+            if (id.isDataSegmentId()) {
+                Segment segment = new Segment(getTracker(),
+                        getTracker().getSegmentId(id.getMostSignificantBits(),
+                                id.getLeastSignificantBits()),
+                        ByteBuffer.wrap(bytes, offset, length));
+                List<SegmentId> ids = segment.getReferencedIds();
+                for (SegmentId reference : ids.subList(1, ids.size())) {
+                    if (!containsSegment(reference)) {
+                        unordered++;
+                    }
+                }
+            }
+            super.writeSegment(id, bytes, offset, length);
+        }
+
+    }
+
+}
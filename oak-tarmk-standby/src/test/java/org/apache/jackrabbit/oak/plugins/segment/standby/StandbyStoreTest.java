@@ -0,0 +1,147 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment.standby;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map;
+
+import com.google.common.base.Strings;
+import org.apache.jackrabbit.oak.api.Blob;
+import org.apache.jackrabbit.oak.plugins.segment.Segment;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentId;
+import org.apache.jackrabbit.oak.plugins.segment.SegmentNodeStore;
+import org.apache.jackrabbit.oak.plugins.segment.memory.MemoryStore;
+import org.apache.jackrabbit.oak.plugins.segment.standby.store.RemoteSegmentLoader;
+import org.apache.jackrabbit.oak.plugins.segment.standby.store.StandbyStore;
+import org.apache.jackrabbit.oak.spi.commit.CommitInfo;
+import org.apache.jackrabbit.oak.spi.commit.EmptyHook;
+import org.apache.jackrabbit.oak.spi.state.NodeBuilder;
+import org.junit.Test;
+
+public class StandbyStoreTest {
+
+    @Test
+    public void fallBackToSingleReads() throws Exception {
+        // large values, so that the content spans several segments
+        MemoryStore primary = new MemoryStore();
+        SegmentNodeStore nodeStore = new SegmentNodeStore(primary);
+        NodeBuilder builder = nodeStore.getRoot().builder();
+        for (int i = 0; i < 5; i++) {
+            builder.child("node" + i).setProperty(
+                    "value", Strings.repeat(String.valueOf(i), 100000));
+        }
+        nodeStore.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+        primary.getTracker().getWriter().flush();
+
+        StandbyStore standby = new StandbyStore(new MemoryStore());
+        UnbatchedLoader loader = new UnbatchedLoader(primary, standby);
+        SegmentId head = primary.getHead().getRecordId().getSegmentId();
+        standby.preSync(loader);
+        try {
+            standby.readSegment(standby.getTracker().getSegmentId(
+                    head.getMostSignificantBits(),
+                    head.getLeastSignificantBits()));
+            standby.readSegment(standby.getTracker().getSegmentId(
+                    head.getMostSignificantBits(),
+                    head.getLeastSignificantBits()));
+        } finally {
+            standby.postSync();
+        }
+
+        // batching is given up after the first unanswered batch
+        assertEquals(1, loader.batches);
+        assertTrue(loader.singles > 1);
+        for (SegmentId id : primary.readSegment(head).getReferencedIds()) {
+            assertTrue(standby.containsSegment(id));
+        }
+    }
+
+    /**
+     * Loader of a primary that does not support batched reads.
+     */
+    private static class UnbatchedLoader implements RemoteSegmentLoader {
+
+        private final MemoryStore primary;
+
+        private final StandbyStore standby;
+
+        int batches;
+
+        int singles;
+
+        UnbatchedLoader(MemoryStore primary, StandbyStore standby) {
+            this.primary = primary;
+            this.standby = standby;
+        }
+
+        @Override
+        public Segment readSegment(String id) {
+            singles++;
+            for (SegmentId sid : primary.getTracker().getReferencedSegmentIds()) {
+                if (sid.toString().equals(id)) {
+                    try {
+                        ByteArrayOutputStream out = new ByteArrayOutputStream();
+                        primary.readSegment(sid).writeTo(out);
+                        return new Segment(standby.getTracker(),
+                                standby.getTracker().getSegmentId(
+                                        sid.getMostSignificantBits(),
+                                        sid.getLeastSignificantBits()),
+                                ByteBuffer.wrap(out.toByteArray()));
+                    } catch (IOException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public Map<String, Segment> readSegments(Collection<String> ids) {
+            batches++;
+            return null;
+        }
+
+        @Override
+        public Blob readBlob(String blobId) {
+            return null;
+        }
+
+        @Override
+        public void close() {
+        }
+
+        @Override
+        public boolean isClosed() {
+            return false;
+        }
+
+        @Override
+        public boolean isRunning() {
+            return true;
+        }
+
+    }
+
+}
@@ -27,8 +27,12 @@ import static org.junit.Assert.assertTrue;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.util.Random;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
 import org.apache.jackrabbit.oak.api.Blob;
 import org.apache.jackrabbit.oak.api.CommitFailedException;
 import org.apache.jackrabbit.oak.api.PropertyState;
@@ -45,6 +49,7 @@ import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import com.google.common.base.Strings;
 import com.google.common.io.ByteStreams;
 
 public class StandbyTest extends TestBase {
@@ -98,6 +103,46 @@ public class StandbyTest extends TestBase {
 
     }
 
+    @Test
+    public void testTransferredBytes() throws Exception {
+        FileStore primary = getPrimary();
+        FileStore secondary = getSecondary();
+
+        NodeStore store = new SegmentNodeStore(primary);
+        NodeBuilder builder = store.getRoot().builder();
+        NodeBuilder content = builder.child("server");
+        for (int i = 0; i < 500; i++) {
+            // highly compressible
+            content.child("c" + i).setProperty("p", Strings.repeat("v" + i, 100));
+        }
+        store.merge(builder, EmptyHook.INSTANCE, CommitInfo.EMPTY);
+        primary.flush();
+
+        final StandbyServer server = new StandbyServer(getPort(), primary);
+        server.start();
+        StandbyClient cl = new StandbyClient("127.0.0.1", getPort(), secondary);
+
+        MBeanServer jmxServer = ManagementFactory.getPlatformMBeanServer();
+        ObjectName clientStatus = new ObjectName(cl.getMBeanName());
+        ObjectName serverStatus = new ObjectName(server.getMBeanName());
+        try {
+            cl.run();
+            assertEquals(primary.getHead(), secondary.getHead());
+
+            // received by the client, sent by the server
+            for (ObjectName status : new ObjectName[] { clientStatus, serverStatus }) {
+                long raw = (Long) jmxServer.getAttribute(status, "TransferredRawBytes");
+                long wire = (Long) jmxServer.getAttribute(status, "TransferredWireBytes");
+                assertTrue(status + " raw bytes", raw > 0);
+                assertTrue(status + " wire bytes", wire > 0);
+                assertTrue(status + " wire " + wire + " > raw " + raw, wire <= raw);
+            }
+        } finally {
+            server.close();
+            cl.close();
+        }
+    }
+
     private static byte[] addTestContent(NodeStore store, String child, int size, int dataNodes)
             throws CommitFailedException, IOException {
         NodeBuilder builder = store.getRoot().builder();
@@ -0,0 +1,123 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+package org.apache.jackrabbit.oak.plugins.segment.standby.codec;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.jackrabbit.oak.plugins.segment.memory.MemoryStore;
+import org.junit.Test;
+
+public class TarIndexTest {
+
+    private static List<UUID> newSegments() {
+        List<UUID> segments = new ArrayList<UUID>();
+        for (int i = 0; i < 5; i++) {
+            segments.add(UUID.randomUUID());
+        }
+        return segments;
+    }
+
+    @Test
+    public void roundTrip() {
+        List<UUID> segments = newSegments();
+        TarIndex index = TarIndex.of(segments);
+        assertEquals(segments, index.getSegments());
+        assertEquals(5, index.getSegmentCount());
+        // the reference order is kept
+        assertEquals(segments, TarIndex.fromBytes(index.toBytes()).getSegments());
+    }
+
+    @Test
+    public void emptyRoundTrip() {
+        TarIndex index = TarIndex.fromBytes(
+                TarIndex.of(new ArrayList<UUID>()).toBytes());
+        assertTrue(index.getSegments().isEmpty());
+        assertEquals(0, index.getSegmentCount());
+    }
+
+    @Test
+    public void encodeDecode() {
+        List<UUID> segments = newSegments();
+        ByteBuf message = encode(TarIndex.of(segments));
+
+        ReplyCollector replies = new ReplyCollector();
+        EmbeddedChannel channel = new EmbeddedChannel(
+                new ReplyDecoder(new MemoryStore()), replies);
+        // deliver the message in two parts, as it may arrive over the wire
+        int half = message.readableBytes() / 2;
+        channel.writeInbound(message.readBytes(half));
+        assertNull(replies.reply);
+        channel.writeInbound(message);
+
+        assertNotNull(replies.reply);
+        assertEquals(SegmentReply.TAR_INDEX, replies.reply.getType());
+        assertEquals(segments, replies.reply.getTarIndex().getSegments());
+        channel.finish();
+    }
+
+    @Test
+    public void corruptedIndexIgnored() {
+        ByteBuf message = encode(TarIndex.of(newSegments()));
+        // flip a bit of the serialized index, after length, type and hash
+        int offset = message.readerIndex() + 4 + 1 + 8 + 4;
+        message.setByte(offset, message.getByte(offset) ^ 1);
+
+        ReplyCollector replies = new ReplyCollector();
+        EmbeddedChannel channel = new EmbeddedChannel(
+                new ReplyDecoder(new MemoryStore()), replies);
+        channel.writeInbound(message);
+        assertNull(replies.reply);
+        channel.finish();
+    }
+
+    private static ByteBuf encode(TarIndex index) {
+        EmbeddedChannel channel = new EmbeddedChannel(new TarIndexEncoder());
+        channel.writeOutbound(index);
+        ByteBuf message = (ByteBuf) channel.readOutbound();
+        channel.finish();
+        assertEquals(Messages.HEADER_TAR_INDEX, message.getByte(message.readerIndex() + 4));
+        assertEquals(message.readableBytes() - 4, message.getInt(message.readerIndex()));
+        return message;
+    }
+
+    private static class ReplyCollector extends ChannelInboundHandlerAdapter {
+
+        SegmentReply reply;
+
+        @Override
+        public void userEventTriggered(ChannelHandlerContext ctx, Object evt) {
+            if (evt instanceof SegmentReply) {
+                reply = (SegmentReply) evt;
+            }
+        }
+
+    }
+
+}